@@ -1,505 +1,1158 @@
 package org.apache.cordova.ipfs;
 
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.net.ConnectivityManager;
+import android.net.NetworkInfo;
+import android.net.Uri;
+import android.os.BatteryManager;
+import android.os.Build;
 import android.util.Log;
+import android.webkit.WebResourceResponse;
+import android.webkit.WebView;
 
 import org.apache.cordova.CallbackContext;
 import org.apache.cordova.CordovaInterface;
 import org.apache.cordova.CordovaPlugin;
+import org.apache.cordova.CordovaResourceApi;
 import org.apache.cordova.CordovaWebView;
+import org.apache.cordova.PluginResult;
+import org.apache.cordova.engine.SystemWebViewEngine;
 import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
-import org.rauschig.jarchivelib.ArchiveFormat;
-import org.rauschig.jarchivelib.Archiver;
-import org.rauschig.jarchivelib.ArchiverFactory;
-import org.rauschig.jarchivelib.CompressionType;
 
-import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
-import java.io.FileWriter;
+import java.io.FileNotFoundException;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.InputStreamReader;
-import java.io.OutputStream;
-import java.net.HttpURLConnection;
-import java.net.MalformedURLException;
-import java.net.URL;
+import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.concurrent.Future;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 
 /**
  * This class extends the CordovaPlugin and provides a wrap for go-ipfs arm binaries
  * which can be used is Cordova projects. It consists of the basic functionalities like
- * downloading, extracting, initing the repo, starting / stopping the daemon
+ * downloading, extracting, initing the repo, starting / stopping the daemon, which are
+ * implemented by IpfsNode; this class only maps the JS actions and callbacks onto the nodes.
+ * Every action is addressed to a node by its id (the first argument of every call, "default"
+ * if none), the node being created on its first call, see IpfsNodes
  *
  * @author xSkyripper
  */
 public class Ipfs extends CordovaPlugin {
-    private URL ipfsArchiveSrc;
-    private String appFilesDir;
-    private String ipfsBinPath;
-    private String ipfsRepo;
-
-    private Process ipfsDaemonProcess = null;
-    private Future ipfsDaemonThreadFuture = null;
+    private IpfsNodes nodes;
+    private final ConcurrentHashMap<String, NodeBinding> bindings = new ConcurrentHashMap<String, NodeBinding>();
+    private volatile boolean charging = false;
+    private volatile boolean unmetered = true;
+    private volatile boolean background = false;
+    private final ConcurrentHashMap<String, AtomicBoolean> transfers = new ConcurrentHashMap<String, AtomicBoolean>();
+
+    private static final long PROGRESS_INTERVAL = 250;
+    private static final long METRICS_INTERVAL = 5000;
+    private static final int PUBSUB_BATCH_SIZE = 64;
+    private static final long PUBSUB_BATCH_WINDOW = 100;
+    private static final int PUBSUB_QUEUE_SIZE = 1024;
+    private static final Set<String> LOCAL_HOSTS = new HashSet<String>(Arrays.asList("127.0.0.1", "localhost", "[::1]"));
+    // the actions addressed to a node, see execute
+    private static final Set<String> NODE_ACTIONS = new HashSet<String>(Arrays.asList(
+            "init", "start", "stop", "watchState", "logs", "addFile", "catToFile", "get", "config",
+            "metrics", "subscribe", "unsubscribe", "publish", "prefetch", "pin", "watchJobs", "gc"));
 
     private String LOG_TAG = "#######CIP######";
 
 
     /**
-     * Function for starting a system process that will "shell execute" the given command(s)
-     * in the cmdArray, using the environment variables provided in envArray. The process will be
-     * waited to finish
-     * If ignoreExc is true, the error output of the command will be ignored.
+     * 'config' plugin function exposed to JS interface, ran asynchronously
+     * Applies a batch of patches to the repo config in a single read-modify-write; a running daemon
+     * only picks the changes up on its next start
      *
-     * @param cmdArray  the array of shell commands
-     * @param envArray  the array of environment variables
-     * @param ignoreExc if true, the error output is ignores; else, and IOException will be thrown
-     * @throws IOException          thrown if something happens with the process or if the error output is
-     *                              not ignored
-     * @throws InterruptedException thrown if something happens on waiting the process to finish
+     * @param b     the binding of the node
+     * @param args  JSONArray arguments provided from the call; expected to find the array of patches
+     *              {path: "Swarm.ConnMgr.HighWater", value: 100} or {path: "...", remove: true}
+     * @param cbCtx callback context used to call success or error callbacks
      */
-    private void execShell(final String[] cmdArray, final String[] envArray, Boolean ignoreExc, String workingDir) throws IOException, InterruptedException {
-        Log.d(LOG_TAG, Arrays.toString(cmdArray));
-        Process proc;
+    private void config(final NodeBinding b, final JSONArray args, final CallbackContext cbCtx) {
+        cordova.getThreadPool().execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    boolean changed = b.node.config(args.getJSONArray(0));
+                    cbCtx.success(new JSONObject().put("changed", changed));
+                } catch (IllegalStateException e) {
+                    cbCtx.error("Cordova IPFS Plugin (config): \n" + e.getMessage());
+                } catch (IOException e) {
+                    e.printStackTrace();
+                    cbCtx.error("Cordova IPFS Plugin (config): \n" + e.toString());
+                } catch (JSONException e) {
+                    e.printStackTrace();
+                    cbCtx.error("Cordova IPFS Plugin (config): \n" + e.toString());
+                }
+            }
+        });
+    }
 
-        if (workingDir != null)
-            proc = Runtime.getRuntime().exec(cmdArray, envArray, new File(workingDir));
-        else
-            proc = Runtime.getRuntime().exec(cmdArray, envArray);
+    /**
+     * Calls the success or error callback of every 'init' call waiting for the running init
+     *
+     * @param b      the binding of the node
+     * @param result the result of the init, or null if it failed
+     * @param error  the error, if the init failed
+     */
+    private void finishInit(NodeBinding b, JSONObject result, String error) {
+        List<CallbackContext> cbCtxs;
+        synchronized (b.initCbCtxs) {
+            cbCtxs = new ArrayList<CallbackContext>(b.initCbCtxs);
+            b.initCbCtxs.clear();
+            b.initProgressCbCtxs.clear();
+        }
 
+        for (CallbackContext cbCtx : cbCtxs)
+            if (result != null)
+                cbCtx.success(result);
+            else
+                cbCtx.error("Cordova IPFS Plugin (init): \n" + error);
+    }
 
-        StringBuilder procOutput = new StringBuilder();
-        StringBuilder procError = new StringBuilder();
+    /**
+     * 'init' plugin function exposed to JS interface, ran asynchronously by IpfsNode.init
+     * Parses the arguments provided, saves them. builds the path of the repo and the binary
+     * and tries to prepare the IPF if the binary doesn't exist
+     * and to init the repo if the IPFS repo dir doesn't exists or if resetRepo option is 'true'
+     * Calls made while an init is running are coalesced with it and get its result; resetting the
+     * repo is refused while the daemon is not STOPPED.
+     * If the 'progress' option is true, the callback is kept and gets {type: "progress", phase, ...}
+     * results (see IpfsInitProgress) before the final {type: "done", ...} result
+     *
+     * @param b     the binding of the node
+     * @param args  JSONArray arguments provided from the call; expected to find
+     *              'appFilesDir' the path to the app's files/files dir,
+     *              'src' the URL of the go-ipfs ARM tar.gz archive
+     *              'resetRepo' boolean used for reseting the repo
+     *              'streamExtract' (optional) boolean, download & extract in a single pass
+     *              'extractEntries' (optional) archive entries to keep when streaming
+     *              'downloadSegments' (optional) number of parallel download segments
+     *              'version' (optional) the version the binary is pinned to (defaults to 'src')
+     *              'sha256' (optional) the expected SHA-256 of the IPFS binary
+     *              'provision' (optional) {algorithm, bits, profiles, datastore, emptyRepo} for 'ipfs init'
+     *              'pregenerateRepo' (optional) boolean, keep a spare repo ready for the next reset
+     *              'progress' (optional) boolean, report the progress of every phase
+     *              'progressInterval' / 'progressStep' (optional) the throttling of the progress
+     * @param cbCtx callback context used to call succes or error callbacks
+     */
+    private void init(final NodeBinding b, final JSONArray args, final CallbackContext cbCtx) {
+        JSONObject options = args.optJSONObject(0);
+        synchronized (b.initCbCtxs) {
+            b.initCbCtxs.add(cbCtx);
+            if (options != null && options.optBoolean("progress", false))
+                b.initProgressCbCtxs.add(cbCtx);
+            if (b.initCbCtxs.size() > 1) {
+                Log.d(LOG_TAG, "init already running, waiting for it to finish");
+                return;
+            }
+        }
 
-        String line;
+        final Runnable initAsync = new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    finishInit(b, b.node.init(args.getJSONObject(0), b.initListener).put("type", "done"), null);
+                } catch (IllegalStateException e) {
+                    finishInit(b, null, e.getMessage());
+                } catch (Exception e) {
+                    e.printStackTrace();
+                    finishInit(b, null, e.toString());
+                }
+            }
+        };
 
-        BufferedReader procOutputReader = new BufferedReader(new InputStreamReader(proc.getInputStream()));
-        while ((line = procOutputReader.readLine()) != null) {
-            procOutput.append(line).append("\n");
-            Log.d(LOG_TAG, line);
-        }
+        cordova.getThreadPool().execute(initAsync);
+    }
 
-        BufferedReader procErrorReader = new BufferedReader(new InputStreamReader(proc.getErrorStream()));
-        while ((line = procErrorReader.readLine()) != null) {
-            procError.append(line).append("\n");
-            Log.d(LOG_TAG, line);
-        }
+    /**
+     * 'start' plugin function exposed to JS interface, ran asynchronously by the daemon supervisor
+     * Concurrent calls are coalesced: if the daemon is already starting, the call waits for the
+     * same launch; if it's already READY, the call succeeds at once.
+     * The success callback is called once the API answers, with the endpoint and the time spent
+     * spawning the process, waiting for the repo lock and waiting for the API; if the API doesn't
+     * answer in 'readyTimeout' ms, the daemon is destroyed and the error callback is called.
+     * A daemon that crashes is restarted with exponential backoff (see setRestartPolicy)
+     * A daemon already running on the repo (e.g. after a WebView reload) is adopted instead of
+     * spawning a new one, unless 'adopt' is false
+     *
+     * @param b     the binding of the node
+     * @param args  JSONArray arguments provided from the call; optional {readyTimeout: ms,
+     *              config: patches applied with the API permissions before starting,
+     *              autoRestart: boolean, maxRestarts: int, restartBackoff: ms, adopt: boolean,
+     *              backgroundMode: "none" | "trim" | "suspend" | "stop", backgroundPeers: int}
+     * @param cbCtx callback context used to call success or error callbacks
+     */
+    private void startDaemon(NodeBinding b, JSONArray args, final CallbackContext cbCtx) {
+        JSONObject options = args.optJSONObject(0);
+        if (options == null)
+            options = new JSONObject();
+
+        b.node.setDaemonOptions(
+                options.optLong("readyTimeout", IpfsNode.DAEMON_READY_TIMEOUT),
+                options.optJSONArray("config"),
+                options.optBoolean("adopt", true));
+        b.node.supervisor().setRestartPolicy(
+                options.optBoolean("autoRestart", true),
+                options.optInt("maxRestarts", 5),
+                options.optLong("restartWindow", 10 * 60 * 1000),
+                options.optLong("restartBackoff", 1000));
 
-        //Log.d(LOG_TAG, procOutput.toString());
+        try {
+            b.powerPolicy.configure(
+                    IpfsPowerPolicy.Mode.valueOf(options.optString("backgroundMode", "none").toUpperCase()),
+                    options.optInt("backgroundPeers", 8));
+        } catch (IllegalArgumentException e) {
+            cbCtx.error("Cordova IPFS Plugin (start): \nUnknown backgroundMode " + options.optString("backgroundMode"));
+            return;
+        }
 
-        if (!ignoreExc)
-            if (!procError.toString().equals("")) {
-                Log.d(LOG_TAG, "Tried:" + Arrays.toString(cmdArray));
-                throw new IOException(procError.toString());
+        b.node.supervisor().start(new IpfsDaemonSupervisor.Callback() {
+            @Override
+            public void success(JSONObject result) {
+                cbCtx.success(result);
             }
 
-        proc.waitFor();
+            @Override
+            public void error(String message) {
+                cbCtx.error("Cordova IPFS Plugin (start): \n" + message);
+            }
+        });
     }
 
-
     /**
-     * Deletes a file or a directory recursively; if the delete returns 'false' (some file could
-     * not be deleted), it simply logs a messages
+     * 'stop' plugin function exposed to JS interface, ran asynchronously by the daemon supervisor
+     * Stops the IPFS daemon gracefully if it's running (API shutdown, then SIGTERM, then kill) and
+     * waits for the process to exit; concurrent calls are coalesced and a daemon that is still
+     * starting is stopped as soon as it's up
      *
-     * @param fileOrDirectory the file / dir to be deleted
+     * @param b     the binding of the node
+     * @param args  JSONArray arguments provided from the call; optional {shutdownTimeout: ms,
+     *              termTimeout: ms}
+     * @param cbCtx callback context used to call succes or error callbacks
      */
+    private void stopDaemon(NodeBinding b, JSONArray args, final CallbackContext cbCtx) {
+        JSONObject options = args.optJSONObject(0);
+        if (options != null)
+            b.node.supervisor().setStopTimeouts(
+                    options.optLong("shutdownTimeout", 5000),
+                    options.optLong("termTimeout", 3000));
+
+        b.node.supervisor().stop(new IpfsDaemonSupervisor.Callback() {
+            @Override
+            public void success(JSONObject result) {
+                cbCtx.success(result.has("exitCode")
+                        ? "Cordova IPFS Plugin (stop): Success, exit code: " + result.optInt("exitCode")
+                        : "Cordova IPFS Plugin (stop): Success");
+            }
 
-    private void deleteRecursive(File fileOrDirectory) {
-        if (fileOrDirectory.isDirectory())
-            for (File child : fileOrDirectory.listFiles())
-                deleteRecursive(child);
-        if (!(fileOrDirectory.delete()))
-            Log.d(LOG_TAG, "File " + fileOrDirectory.getName() + " couldn't be deleted !");
+            @Override
+            public void error(String message) {
+                cbCtx.error("Cordova IPFS Plugin (stop): \n" + message);
+            }
+        });
     }
 
     /**
-     * Checks if a process is running by trying to access the exitValue; if an exception is thrown
-     * then the process is still running; otherwise, it finished running and it has an exit value
+     * 'watchState' plugin function exposed to JS interface
+     * Keeps the callback and sends the current daemon state to it, then every state transition
+     * as {state, previous, info}, replacing any previous subscriber
      *
-     * @param process the process to be checked
-     * @return true if the process is running; false otherwise
+     * @param b     the binding of the node
+     * @param cbCtx callback context used to call success or error callbacks
      */
-    private Boolean isRunning(Process process) {
+    private void watchState(NodeBinding b, CallbackContext cbCtx) {
+        CallbackContext previous = b.stateCbCtx;
+        b.stateCbCtx = cbCtx;
+        if (previous != null)
+            previous.sendPluginResult(new PluginResult(PluginResult.Status.NO_RESULT));
+
         try {
-            process.exitValue();
-            return false;
-        } catch (Exception e) {
-            return true;
+            PluginResult result = new PluginResult(PluginResult.Status.OK, new JSONObject()
+                    .put("state", b.node.supervisor().state().name()));
+            result.setKeepCallback(true);
+            cbCtx.sendPluginResult(result);
+        } catch (JSONException e) {
+            e.printStackTrace();
+            cbCtx.error("Cordova IPFS Plugin (watchState): \n" + e.toString());
         }
     }
 
     /**
-     * Download the go-ipfs archive from the ipfsArchiveSrc provided at "init"
-     * The method open the connection to the URL provided, checks if the connection
-     * returns HTTP "200", else it throws an exception; It also checks if the archive already exists
-     * and it has the same size as the archive existing at the URL provided;
+     * 'logs' plugin function exposed to JS interface
+     * Returns the recent lines of the daemon output kept in the ring buffer; if 'follow' is true,
+     * the callback is kept and every new line is sent to it as {stream, line}, replacing
+     * any previous subscriber
      *
-     * @throws Exception if something happens (connection couldn't be initiated, the source server
-     *                   returned something else than "200", stream exceptions)
+     * @param b     the binding of the node
+     * @param args  JSONArray arguments provided from the call; optional {follow: boolean}
+     * @param cbCtx callback context used to call success or error callbacks
      */
-    private void downloadIpfs() throws Exception {
-        InputStream input;
-        OutputStream output;
-        HttpURLConnection conn;
-        int archiveFileLength;
-        long totalDownloaded = 0;
-        byte block[] = new byte[4096];
-        int blockSize;
-
-        Log.d(LOG_TAG, "STARTING DOWNLOAD");
-
-        conn = (HttpURLConnection) ipfsArchiveSrc.openConnection();
-        Log.d(LOG_TAG, "OPENED CONN");
-
-        conn.connect();
-        Log.d(LOG_TAG, "CONNECTED TO SRC");
-
-        if (conn.getResponseCode() != HttpURLConnection.HTTP_OK) {
-            throw new Exception("Server returned HTTP " + conn.getResponseCode()
-                    + " " + conn.getResponseMessage());
+    private void logs(NodeBinding b, JSONArray args, CallbackContext cbCtx) {
+        JSONObject options = args.optJSONObject(0);
+        boolean follow = options != null && options.optBoolean("follow", false);
+
+        try {
+            IpfsProcessOutput output = b.node.output();
+            JSONArray recent = output == null ? new JSONArray() : output.toJSON();
+            if (!follow) {
+                cbCtx.success(recent);
+                return;
+            }
+
+            CallbackContext previous = b.logsCbCtx;
+            b.logsCbCtx = cbCtx;
+            if (previous != null)
+                previous.sendPluginResult(new PluginResult(PluginResult.Status.NO_RESULT));
+
+            PluginResult result = new PluginResult(PluginResult.Status.OK, recent);
+            result.setKeepCallback(true);
+            cbCtx.sendPluginResult(result);
+        } catch (JSONException e) {
+            e.printStackTrace();
+            cbCtx.error("Cordova IPFS Plugin (logs): \n" + e.toString());
         }
-        Log.d(LOG_TAG, "GOT 200 FROM SRC");
+    }
 
-        archiveFileLength = conn.getContentLength();
-        File oldArchive = new File(appFilesDir + "go-ipfs.tar.gz");
-        // archive exists and has the same size (TODO: HASH CHECKING)
-        if (oldArchive.exists() && oldArchive.length() == archiveFileLength) {
-            Log.d(LOG_TAG, "archive exists and has the same length");
+    /**
+     * 'metrics' plugin function exposed to JS interface
+     * Returns a metrics snapshot (lifecycle timings, daemon process usage, bandwidth, peers and
+     * repo size, see IpfsMetrics); if 'follow' is true, the callback is kept and a new snapshot is
+     * sent to it every 'interval' ms, replacing any previous subscriber. The sampling thread only
+     * runs while there is a subscriber; 'stop' ends the subscription
+     *
+     * @param b     the binding of the node
+     * @param args  JSONArray arguments provided from the call; optional {follow: boolean,
+     *              interval: ms, stop: boolean}
+     * @param cbCtx callback context used to call success or error callbacks
+     */
+    private void metrics(final NodeBinding b, JSONArray args, final CallbackContext cbCtx) {
+        JSONObject options = args.optJSONObject(0);
+        if (options == null)
+            options = new JSONObject();
+
+        if (options.optBoolean("stop", false)) {
+            b.node.metrics().stopSampling();
+            CallbackContext previous = b.metricsCbCtx;
+            b.metricsCbCtx = null;
+            if (previous != null)
+                previous.sendPluginResult(new PluginResult(PluginResult.Status.NO_RESULT));
+            cbCtx.success("Cordova IPFS Plugin (metrics): Success");
             return;
         }
 
-        input = conn.getInputStream();
-        output = new FileOutputStream(appFilesDir + "go-ipfs.tar.gz");
-
-        int lastDownTotal = -1;
-        while ((blockSize = input.read(block)) != -1) {
-            totalDownloaded += blockSize;
-
-            if (archiveFileLength > 0) {
-                if (((int) (totalDownloaded * 100 / archiveFileLength)) % 10 == 0)
-                    if (((int) (totalDownloaded * 100 / archiveFileLength)) != lastDownTotal) {
-                        lastDownTotal = (int) (totalDownloaded * 100 / archiveFileLength);
-                        Log.d(LOG_TAG, "Downloaded " + lastDownTotal + "%");
+        if (!options.optBoolean("follow", false)) {
+            cordova.getThreadPool().execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        cbCtx.success(b.node.metrics().sampleOnce());
+                    } catch (Exception e) {
+                        e.printStackTrace();
+                        cbCtx.error("Cordova IPFS Plugin (metrics): \n" + e.toString());
                     }
-            }
-
-            output.write(block, 0, blockSize);
+                }
+            });
+            return;
         }
 
-        Log.d(LOG_TAG, "FINISHED DOWNLOADING");
+        CallbackContext previous = b.metricsCbCtx;
+        b.metricsCbCtx = cbCtx;
+        if (previous != null)
+            previous.sendPluginResult(new PluginResult(PluginResult.Status.NO_RESULT));
 
-        input.close();
-        output.close();
-        conn.disconnect();
+        b.node.metrics().startSampling(options.optLong("interval", METRICS_INTERVAL), new IpfsMetrics.Listener() {
+            @Override
+            public void onSample(JSONObject snapshot) {
+                if (b.metricsCbCtx != cbCtx)
+                    return;
+                PluginResult result = new PluginResult(PluginResult.Status.OK, snapshot);
+                result.setKeepCallback(true);
+                cbCtx.sendPluginResult(result);
+            }
+        });
     }
 
     /**
-     * Extracts the archive downloaded by downloadIpfs using the custom jar included in the project
-     * to the same directory, tries to make the binary executable and
-     * finally deletes the archive for "space reasons"
+     * 'gc' plugin function exposed to JS interface
+     * Runs a full repo garbage collection right away (see IpfsRepoGc), first releasing the soft
+     * pins of the prefetched DAGs if 'releaseSoftPins' is true, and returns its report; if
+     * 'follow' is true, the callback is kept instead and gets the report of every run, replacing
+     * any previous subscriber; 'stop' ends the subscription
      *
-     * @throws Exception an exception is thrown if the IPFS binary couldn't be made executable
+     * @param b     the binding of the node
+     * @param args  JSONArray arguments provided from the call; optional {follow: boolean, stop: boolean,
+     *              releaseSoftPins: boolean}
+     * @param cbCtx callback context used to call success or error callbacks
      */
-    private void extractIpfs() throws Exception {
-        Log.d(LOG_TAG, "STARTING EXTRACT");
-
-        Archiver archiver = ArchiverFactory.createArchiver(ArchiveFormat.TAR, CompressionType.GZIP);
-        archiver.extract(new File(appFilesDir + "go-ipfs.tar.gz"), new File(appFilesDir));
-
-        if (!(new File(ipfsBinPath).setExecutable(true, true))) {
-            throw new Exception("IPFS Bin " + ipfsBinPath + " cannot be set executable !");
+    private void gc(final NodeBinding b, JSONArray args, final CallbackContext cbCtx) {
+        JSONObject options = args.optJSONObject(0);
+        if (options == null)
+            options = new JSONObject();
+
+        if (options.optBoolean("stop", false) || options.optBoolean("follow", false)) {
+            CallbackContext previous = b.gcCbCtx;
+            b.gcCbCtx = options.optBoolean("follow", false) ? cbCtx : null;
+            if (previous != null)
+                previous.sendPluginResult(new PluginResult(PluginResult.Status.NO_RESULT));
+            if (b.gcCbCtx == null)
+                cbCtx.success("Cordova IPFS Plugin (gc): Success");
+            return;
         }
 
-        this.deleteRecursive(new File(appFilesDir + "go-ipfs.tar.gz"));
-        Log.d(LOG_TAG, "FINISHED EXTRACT");
+        final boolean releaseSoftPins = options.optBoolean("releaseSoftPins", false);
+        cordova.getThreadPool().execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    cbCtx.success(b.node.gc().runNow(releaseSoftPins));
+                } catch (Exception e) {
+                    e.printStackTrace();
+                    cbCtx.error("Cordova IPFS Plugin (gc): \n" + e.toString());
+                }
+            }
+        });
     }
 
-
     /**
-     * Calls the 2 methods that "prepare" go-ipfs ARM: downloadIpfs and extractIpfs
+     * Lets the repo GC run while the app is idle (in background, with the daemon kept running by
+     * the power policy) or the device is charging, but never while the daemon is paused
      *
-     * @throws Exception exceptions are re-thrown from these 2 functions
+     * @param b the binding of the node
      */
-    private void prepareIpfs() throws Exception {
-        this.downloadIpfs();
-        this.extractIpfs();
+    private void updateGcConditions(NodeBinding b) {
+        boolean daemonPaused = background && b.powerPolicy.pausesDaemon();
+        b.node.gc().setConditions(background && !daemonPaused, charging && !daemonPaused);
     }
 
-
     /**
-     * Reads the IPFS config file and adds the next permissions on HTTPHeaders for API connections
-     * API.HTTPHeaders.Access-Control-Allow-Origin "[\"*\"]"
-     * API.HTTPHeaders.Access-Control-Allow-Credentials "[\"true\"]"
+     * 'subscribe' plugin function exposed to JS interface
+     * Subscribes to a pubsub topic natively (see IpfsPubsub); the callback is kept and receives the
+     * messages in batches {topic, messages, dropped}, then {topic, messages: [], closed: true}
+     * once the topic is unsubscribed. Subscribing again to a topic replaces its subscriber
      *
-     * @throws IOException   if the config file doesn't exist or other problem
-     * @throws JSONException if the json data cannot be parse or other problem
+     * @param b     the binding of the node
+     * @param args  JSONArray arguments provided from the call; expected to find the topic and
+     *              optional {batchSize: 64, batchWindow: ms, queueSize: 1024,
+     *              overflow: "dropOldest" | "dropNewest" | "block", discover: boolean}
+     * @param cbCtx callback context used to call success or error callbacks
      */
-    private void configAPI() throws IOException, JSONException {
-        int num;
-        char[] buffer = new char[1024];
-        BufferedReader input;
-        StringBuilder content = new StringBuilder();
-
-        input = new BufferedReader(
-                new InputStreamReader(
-                        new FileInputStream(ipfsRepo + "config")
-                )
-        );
-        while ((num = input.read(buffer)) > 0) {
-            content.append(buffer, 0, num);
+    private void subscribe(NodeBinding b, JSONArray args, final CallbackContext cbCtx) {
+        JSONObject options = args.optJSONObject(1);
+        if (options == null)
+            options = new JSONObject();
+
+        IpfsPubsub.Overflow overflow;
+        String overflowOption = options.optString("overflow", "dropOldest");
+        if (overflowOption.equals("dropOldest"))
+            overflow = IpfsPubsub.Overflow.DROP_OLDEST;
+        else if (overflowOption.equals("dropNewest"))
+            overflow = IpfsPubsub.Overflow.DROP_NEWEST;
+        else if (overflowOption.equals("block"))
+            overflow = IpfsPubsub.Overflow.BLOCK;
+        else {
+            cbCtx.error("Cordova IPFS Plugin (subscribe): \nUnknown overflow " + overflowOption);
+            return;
         }
 
-        JSONObject jsonConfig = new JSONObject(content.toString());
-        jsonConfig.getJSONObject("API").put("HTTPHeaders",
-                new JSONObject("{" +
-                        "\"Access-Control-Allow-Credentials\": [" +
-                        "\"true\"" +
-                        "]," +
-                        "\"Access-Control-Allow-Origin\": [" +
-                        "\"*\"" +
-                        "]" +
-                        "}"));
-        input.close();
-        FileWriter file = new FileWriter(ipfsRepo + "config");
-        file.write(jsonConfig.toString(4));
-        file.close();
-        Log.d(LOG_TAG, "FINISHED CONFIGING FOR API !");
+        try {
+            b.node.pubsub().subscribe(args.getString(0),
+                    options.optInt("batchSize", PUBSUB_BATCH_SIZE),
+                    options.optLong("batchWindow", PUBSUB_BATCH_WINDOW),
+                    options.optInt("queueSize", PUBSUB_QUEUE_SIZE),
+                    overflow,
+                    options.optBoolean("discover", false),
+                    new IpfsPubsub.Listener() {
+                        @Override
+                        public void onMessages(String topic, JSONArray messages, long dropped) {
+                            try {
+                                PluginResult result = new PluginResult(PluginResult.Status.OK, new JSONObject()
+                                        .put("topic", topic).put("messages", messages).put("dropped", dropped));
+                                result.setKeepCallback(true);
+                                cbCtx.sendPluginResult(result);
+                            } catch (JSONException e) {
+                                e.printStackTrace();
+                            }
+                        }
+
+                        @Override
+                        public void onClosed(String topic) {
+                            try {
+                                cbCtx.success(new JSONObject()
+                                        .put("topic", topic).put("messages", new JSONArray()).put("closed", true));
+                            } catch (JSONException e) {
+                                e.printStackTrace();
+                            }
+                        }
+                    });
+        } catch (JSONException e) {
+            e.printStackTrace();
+            cbCtx.error("Cordova IPFS Plugin (subscribe): \n" + e.toString());
+        }
     }
 
     /**
-     * Deletes the current IPFS Repo folder and tries to recreate it using "ipfs init" exec shell
-     * taking into account possible errors on initing
+     * 'unsubscribe' plugin function exposed to JS interface
+     * Closes the subscription to a topic; its subscriber gets the last batch and then the
+     * closing result
      *
-     * @throws Exception thrown by exec shell ('ipfs init') if something happens during initialization
+     * @param b     the binding of the node
+     * @param args  JSONArray arguments provided from the call; expected to find the topic
+     * @param cbCtx callback context used to call success or error callbacks
      */
-    private void initRepo() throws Exception {
-        Log.d(LOG_TAG, "INITING IF REPO RESET OR REPO NOT EXISTS");
-
-        this.deleteRecursive(new File(ipfsRepo));
-        this.execShell(
-                new String[]{ipfsBinPath, "init"},
-                new String[]{"IPFS_PATH=" + this.ipfsRepo}, false, null);
-
-        Log.d(LOG_TAG, "INITING FINISHED");
+    private void unsubscribe(NodeBinding b, JSONArray args, CallbackContext cbCtx) {
+        if (!b.node.pubsub().unsubscribe(args.optString(0))) {
+            cbCtx.error("Cordova IPFS Plugin (unsubscribe): \nNot subscribed to " + args.optString(0));
+            return;
+        }
+        cbCtx.success("Cordova IPFS Plugin (unsubscribe): Success");
     }
 
-
     /**
-     * 'init' plugin function exposed to JS interface, ran asynchronously
-     * Parses the arguments provided, saves them. builds the path of the repo and the binary
-     * and tries to prepare the IPF if the binary doesn't exist
-     * and to init the repo if the IPFS repo dir doesn't exists or if resetRepo option is 'true'
+     * 'publish' plugin function exposed to JS interface, ran asynchronously
+     * Publishes a message to a pubsub topic
      *
-     * @param args  JSONArray arguments provided from the call; expected to find
-     *              'appFilesDir' the path to the app's files/files dir,
-     *              'src' the URL of the go-ipfs ARM tar.gz archive
-     *              'resetRepo' boolean used for reseting the repo
-     * @param cbCtx callback context used to call succes or error callbacks
+     * @param b     the binding of the node
+     * @param args  JSONArray arguments provided from the call; expected to find the topic and
+     *              the message
+     * @param cbCtx callback context used to call success or error callbacks
      */
-    private void init(final JSONArray args, final CallbackContext cbCtx) {
-
-        final Runnable initAsync = new Runnable() {
+    private void publish(final NodeBinding b, final JSONArray args, final CallbackContext cbCtx) {
+        cordova.getThreadPool().execute(new Runnable() {
             @Override
             public void run() {
-                Boolean resetRepo;
                 try {
-                    JSONObject config = args.getJSONObject(0);
-
-                    appFilesDir = config.getString("appFilesDir");
-                    ipfsArchiveSrc = new URL(config.getString("src"));
-                    ipfsBinPath = appFilesDir.concat("go-ipfs/ipfs");
-                    ipfsRepo = appFilesDir.concat(".ipfs/");
-                    resetRepo = config.getBoolean("resetRepo");
-
-                    Log.d(LOG_TAG, "ipfsBinPath: " + ipfsBinPath);
-                    Log.d(LOG_TAG, "ipfsArchiveSrc: " + ipfsArchiveSrc);
-                    Log.d(LOG_TAG, "appFilesDir: " + appFilesDir);
-                    Log.d(LOG_TAG, "ipfsRepo: " + ipfsRepo);
-                    Log.d(LOG_TAG, "resetRepo: " + resetRepo);
-                } catch (JSONException e) {
+                    b.node.pubsub().publish(args.getString(0), args.getString(1));
+                    cbCtx.success("Cordova IPFS Plugin (publish): Success");
+                } catch (IOException e) {
                     e.printStackTrace();
-                    cbCtx.error("Cordova IPFS Plugin (init): \n" + e.toString());
-                    return;
-                } catch (MalformedURLException e) {
+                    cbCtx.error("Cordova IPFS Plugin (publish): \n" + e.toString());
+                } catch (JSONException e) {
                     e.printStackTrace();
-                    cbCtx.error("Cordova IPFS Plugin (init): \n" + e.toString());
-                    return;
+                    cbCtx.error("Cordova IPFS Plugin (publish): \n" + e.toString());
                 }
+            }
+        });
+    }
 
-                if (!(new File(ipfsBinPath).exists()))
-                    try {
-                        prepareIpfs();
-                    } catch (Exception e) {
-                        e.printStackTrace();
-                        cbCtx.error("Cordova IPFS Plugin (init): \n" + e.toString());
+    /**
+     * 'prefetch' and 'pin' plugin functions exposed to JS interface
+     * Queues a background job per CID (see IpfsJobScheduler); the success callback gets the jobs
+     * right away, the progress is reported to the 'watchJobs' subscriber
+     *
+     * @param b     the binding of the node
+     * @param type  the kind of the jobs
+     * @param args  JSONArray arguments provided from the call; expected to find the array of CIDs
+     *              and optional {priority: int, unmetered: boolean, charging: boolean}; prefetch
+     *              jobs wait for an unmetered network by default
+     * @param cbCtx callback context used to call success or error callbacks
+     */
+    private void submitJobs(NodeBinding b, IpfsJobScheduler.Type type, JSONArray args, CallbackContext cbCtx) {
+        String action = type == IpfsJobScheduler.Type.PIN ? "pin" : "prefetch";
+        JSONObject options = args.optJSONObject(1);
+        if (options == null)
+            options = new JSONObject();
+
+        try {
+            JSONArray cids = args.getJSONArray(0);
+            List<String> cidList = new ArrayList<String>();
+            for (int i = 0; i < cids.length(); i++)
+                cidList.add(cids.getString(i));
+
+            cbCtx.success(b.node.jobs().submit(type, cidList,
+                    options.optInt("priority", 0),
+                    options.optBoolean("unmetered", type == IpfsJobScheduler.Type.PREFETCH),
+                    options.optBoolean("charging", false)));
+        } catch (JSONException e) {
+            e.printStackTrace();
+            cbCtx.error("Cordova IPFS Plugin (" + action + "): \n" + e.toString());
+        }
+    }
+
+    /**
+     * 'watchJobs' plugin function exposed to JS interface
+     * Keeps the callback and sends the current jobs to it, then every job event as {event, job},
+     * replacing any previous subscriber
+     *
+     * @param b     the binding of the node
+     * @param cbCtx callback context used to call success or error callbacks
+     */
+    private void watchJobs(NodeBinding b, CallbackContext cbCtx) {
+        CallbackContext previous = b.jobsCbCtx;
+        b.jobsCbCtx = cbCtx;
+        if (previous != null)
+            previous.sendPluginResult(new PluginResult(PluginResult.Status.NO_RESULT));
+
+        PluginResult result = new PluginResult(PluginResult.Status.OK, b.node.jobs().list());
+        result.setKeepCallback(true);
+        cbCtx.sendPluginResult(result);
+    }
+
+    /**
+     * Keeps the job scheduler and repo GC conditions (unmetered network, charging) of every node
+     * up to date with the connectivity and battery broadcasts
+     */
+    private final BroadcastReceiver conditionsReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            if (Intent.ACTION_BATTERY_CHANGED.equals(intent.getAction()))
+                charging = intent.getIntExtra(BatteryManager.EXTRA_PLUGGED, 0) != 0;
+
+            ConnectivityManager cm = (ConnectivityManager) context.getSystemService(Context.CONNECTIVITY_SERVICE);
+            NetworkInfo network = cm == null ? null : cm.getActiveNetworkInfo();
+            unmetered = network != null && network.isConnected() && !cm.isActiveNetworkMetered();
+            for (NodeBinding b : bindings.values()) {
+                b.node.jobs().setConditions(unmetered, charging);
+                updateGcConditions(b);
+            }
+        }
+    };
+
+    /**
+     * 'addFile', 'catToFile' and 'get' plugin functions exposed to JS interface, ran asynchronously
+     * Streams content between the local filesystem and the daemon API with IpfsContentTransfer,
+     * so only the resulting CID or path crosses the bridge.
+     * If the 'progress' option is true, {type: "progress", bytes, total} results are sent at most
+     * every PROGRESS_INTERVAL ms before the final {type: "done", ...} result.
+     * A transfer started with an 'id' option can be stopped with the 'cancel' action
+     *
+     * @param b      the binding of the node
+     * @param action 'addFile' with args [path, options], 'catToFile' with args [cid, path, options]
+     *               or 'get' with args [cid, dir, options]
+     * @param args   JSONArray arguments provided from the call; options is {id, progress}
+     * @param cbCtx  callback context used to call success or error callbacks
+     */
+    private void transfer(NodeBinding b, final String action, final JSONArray args, final CallbackContext cbCtx) {
+        final String api = b.node.api();
+        if (api == null) {
+            cbCtx.error("Cordova IPFS Plugin (" + action + "): \n"
+                    + "The IPFS daemon is not running. Run start first or wait for start to finish !");
+            return;
+        }
+
+        final JSONObject options = args.optJSONObject(action.equals("addFile") ? 1 : 2);
+        final String id = options == null ? null : options.optString("id", null);
+        final AtomicBoolean cancelled = new AtomicBoolean(false);
+        if (id != null && transfers.putIfAbsent(id, cancelled) != null) {
+            cbCtx.error("Cordova IPFS Plugin (" + action + "): \nTransfer " + id + " is already running");
+            return;
+        }
+
+        IpfsContentTransfer.ProgressListener listener = null;
+        if (options != null && options.optBoolean("progress", false))
+            listener = new IpfsContentTransfer.ProgressListener() {
+                private long lastSent = 0;
+
+                @Override
+                public void onProgress(long bytes, long total) {
+                    long now = System.currentTimeMillis();
+                    if (now - lastSent < PROGRESS_INTERVAL)
                         return;
-                    }
+                    lastSent = now;
 
-                if (resetRepo || !(new File(ipfsRepo).exists()))
                     try {
-                        initRepo();
-                    } catch (IOException e) {
-                        e.printStackTrace();
-                        cbCtx.error("Cordova IPFS Plugin (init): \n" + e.toString());
-                        return;
-                    } catch (InterruptedException e) {
-                        e.printStackTrace();
-                        cbCtx.error("Cordova IPFS Plugin (init): \n" + e.toString());
-                        return;
-                    } catch (Exception e) {
+                        PluginResult result = new PluginResult(PluginResult.Status.OK, new JSONObject()
+                                .put("type", "progress").put("bytes", bytes).put("total", total));
+                        result.setKeepCallback(true);
+                        cbCtx.sendPluginResult(result);
+                    } catch (JSONException e) {
                         e.printStackTrace();
-                        cbCtx.error("Cordova IPFS Plugin (init): \n" + e.toString());
-                        return;
                     }
+                }
+            };
+        final IpfsContentTransfer transfer = new IpfsContentTransfer(api, cancelled, listener);
 
-                cbCtx.success("Cordova IPFS Plugin (init): IPFS was prepared & inited !");
+        cordova.getThreadPool().execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    JSONObject done = new JSONObject().put("type", "done");
+                    if (action.equals("addFile")) {
+                        done.put("cid", transfer.add(new File(args.getString(0))));
+                    } else if (action.equals("catToFile")) {
+                        File target = new File(args.getString(1));
+                        done.put("bytes", transfer.catToFile(args.getString(0), target));
+                        done.put("path", target.getPath());
+                    } else {
+                        done.put("path", transfer.get(args.getString(0), new File(args.getString(1))));
+                    }
+                    cbCtx.success(done);
+                } catch (Exception e) {
+                    e.printStackTrace();
+                    cbCtx.error("Cordova IPFS Plugin (" + action + "): \n" + e.toString());
+                } finally {
+                    if (id != null)
+                        transfers.remove(id);
+                }
             }
-        };
-
-        cordova.getThreadPool().execute(initAsync);
+        });
     }
 
     /**
-     * 'start' plugin function exposed to JS interface, ran asynchronously
-     * Checks if the IPFS binary and the IPFS repo dir exist, throwing an error of they don't
-     * Tries to set through exec shell the IPFS config access control
-     * Starts the IPFS daemon with 'pubsub' in a new process
-     * contained by a thread if it's not already running and sets the local Future of the thread
+     * 'cancel' plugin function exposed to JS interface
+     * Stops the transfer started with the given 'id'; the transfer itself fails with an
+     * IpfsContentTransfer.CancelledException
      *
+     * @param args  JSONArray arguments provided from the call; expected to find the transfer id
      * @param cbCtx callback context used to call success or error callbacks
      */
-    private void startDaemon(final CallbackContext cbCtx) {
-        //> ipfs config --json API.HTTPHeaders.Access-Control-Allow-Credentials "[\"true\"]"
-        //> ipfs config --json API.HTTPHeaders.Access-Control-Allow-Origin "[\"*\"]"
+    private void cancel(JSONArray args, CallbackContext cbCtx) {
+        AtomicBoolean cancelled = transfers.get(args.optString(0));
+        if (cancelled == null) {
+            cbCtx.error("Cordova IPFS Plugin (cancel): \nNo transfer with id " + args.optString(0));
+            return;
+        }
+
+        cancelled.set(true);
+        cbCtx.success("Cordova IPFS Plugin (cancel): Success");
+    }
 
-        final Runnable ipfsDaemonThread = new Runnable() {
+    /**
+     * A node and the JS side of it: its power policy and its subscribers. The listeners of the
+     * node push its events to the subscribers of this binding only
+     */
+    private class NodeBinding {
+        final IpfsNode node;
+        final IpfsPowerPolicy powerPolicy;
+        final List<CallbackContext> initCbCtxs = new ArrayList<CallbackContext>();
+        // the waiting 'init' calls that asked for progress, guarded by initCbCtxs
+        final List<CallbackContext> initProgressCbCtxs = new ArrayList<CallbackContext>();
+        volatile CallbackContext metricsCbCtx = null;
+        volatile CallbackContext stateCbCtx = null;
+        volatile CallbackContext logsCbCtx = null;
+        volatile CallbackContext jobsCbCtx = null;
+        volatile CallbackContext gcCbCtx = null;
+
+        /**
+         * Pushes the progress of the running init to the 'init' calls that asked for it
+         */
+        final IpfsInitProgress.Listener initListener = new IpfsInitProgress.Listener() {
             @Override
-            public void run() {
-                if (!(new File(ipfsBinPath).exists())) {
-                    cbCtx.error("Cordova IPFS Plugin (start): \n"
-                            + "The IPFS was not prepared (binary not found)"
-                            + " Run init first or wait for init to finish !");
-                    return;
+            public void onProgress(JSONObject event) {
+                List<CallbackContext> cbCtxs;
+                synchronized (initCbCtxs) {
+                    if (initProgressCbCtxs.isEmpty())
+                        return;
+                    cbCtxs = new ArrayList<CallbackContext>(initProgressCbCtxs);
                 }
 
-                if (!(new File(ipfsRepo).exists())) {
-                    cbCtx.error("Cordova IPFS Plugin (start): \n"
-                            + "The IPFS repo was not initialized (" + ipfsRepo + " not found)"
-                            + " Run init first or wait for init to finish !");
+                try {
+                    event.put("type", "progress");
+                } catch (JSONException e) {
+                    e.printStackTrace();
                     return;
                 }
+                for (CallbackContext cbCtx : cbCtxs) {
+                    PluginResult result = new PluginResult(PluginResult.Status.OK, event);
+                    result.setKeepCallback(true);
+                    cbCtx.sendPluginResult(result);
+                }
+            }
+        };
+
+        /**
+         * Pushes every state transition to the 'watchState' subscriber as {state, previous, info}
+         */
+        private final IpfsDaemonSupervisor.Listener stateListener = new IpfsDaemonSupervisor.Listener() {
+            @Override
+            public void onStateChanged(IpfsDaemonSupervisor.State state, IpfsDaemonSupervisor.State previous, JSONObject info) {
+                CallbackContext cbCtx = stateCbCtx;
+                if (cbCtx == null)
+                    return;
 
                 try {
-                    configAPI();
-                } catch (IOException e) {
+                    PluginResult result = new PluginResult(PluginResult.Status.OK, new JSONObject()
+                            .put("state", state.name())
+                            .put("previous", previous.name())
+                            .put("info", info == null ? new JSONObject() : info));
+                    result.setKeepCallback(true);
+                    cbCtx.sendPluginResult(result);
+                } catch (JSONException e) {
                     e.printStackTrace();
-                    cbCtx.error("Cordova IPFS Plugin (start): \n" + e.toString());
+                }
+            }
+        };
+
+        /**
+         * Sends every daemon output line to the 'logs' subscriber as {stream, line}
+         */
+        private final IpfsProcessOutput.Listener outputListener = new IpfsProcessOutput.Listener() {
+            @Override
+            public void onLine(String stream, String line) {
+                CallbackContext cbCtx = logsCbCtx;
+                if (cbCtx == null)
                     return;
+
+                try {
+                    PluginResult result = new PluginResult(PluginResult.Status.OK,
+                            new JSONObject().put("stream", stream).put("line", line));
+                    result.setKeepCallback(true);
+                    cbCtx.sendPluginResult(result);
                 } catch (JSONException e) {
                     e.printStackTrace();
-                    cbCtx.error("Cordova IPFS Plugin (start): \n" + e.toString());
-                    return;
                 }
+            }
+        };
+
+        /**
+         * Pushes every job event to the 'watchJobs' subscriber as {event, job}
+         */
+        private final IpfsJobScheduler.Listener jobsListener = new IpfsJobScheduler.Listener() {
+            @Override
+            public void onJobEvent(String event, JSONObject job) {
+                CallbackContext cbCtx = jobsCbCtx;
+                if (cbCtx == null)
+                    return;
 
                 try {
-                    StringBuilder ipfsDaemonProcOutput = new StringBuilder();
-                    StringBuilder ipfsDaemonProcError = new StringBuilder();
+                    PluginResult result = new PluginResult(PluginResult.Status.OK,
+                            new JSONObject().put("event", event).put("job", job));
+                    result.setKeepCallback(true);
+                    cbCtx.sendPluginResult(result);
+                } catch (JSONException e) {
+                    e.printStackTrace();
+                }
+            }
+        };
 
-                    String line;
+        /**
+         * Pushes the report of every repo GC run to the 'gc' subscriber
+         */
+        private final IpfsRepoGc.Listener gcListener = new IpfsRepoGc.Listener() {
+            @Override
+            public void onRun(JSONObject report) {
+                CallbackContext cbCtx = gcCbCtx;
+                if (cbCtx == null)
+                    return;
 
-                    ipfsDaemonProcess = Runtime.getRuntime().exec(
-                            new String[]{ipfsBinPath, "daemon", "--enable-pubsub-experiment"},
-                            new String[]{"IPFS_PATH=" + ipfsRepo}
-                    );
+                PluginResult result = new PluginResult(PluginResult.Status.OK, report);
+                result.setKeepCallback(true);
+                cbCtx.sendPluginResult(result);
+            }
+        };
 
+        NodeBinding(String id) {
+            node = nodes.create(id, stateListener, outputListener);
+            powerPolicy = new IpfsPowerPolicy(node);
+            node.jobs().setListener(jobsListener);
+            node.gc().setListener(gcListener);
+            node.jobs().setConditions(unmetered, charging);
+        }
+    }
 
-                    BufferedReader ipfsDaemonProcOutputReader = new BufferedReader(new InputStreamReader(ipfsDaemonProcess.getInputStream()));
-                    while ((line = ipfsDaemonProcOutputReader.readLine()) != null) {
-                        ipfsDaemonProcOutput.append(line).append("\n");
-                        if (line.contains("Daemon is ready")) {
-                            cbCtx.success("Cordova IPFS Plugin (start): \n Started");
-                        }
-                        Log.d(LOG_TAG, line);
-                    }
+    /**
+     * Returns the binding of the node with the given id, creating the node on its first call
+     *
+     * @param id the node id
+     * @return the binding
+     * @throws IllegalArgumentException if the id is not valid
+     */
+    private NodeBinding binding(String id) {
+        NodeBinding b = bindings.get(id);
+        if (b != null)
+            return b;
+
+        synchronized (bindings) {
+            b = bindings.get(id);
+            if (b == null) {
+                b = new NodeBinding(id);
+                updateGcConditions(b);
+                bindings.put(id, b);
+            }
+            return b;
+        }
+    }
 
-                    BufferedReader ipfsDaemonProcErrorReader = new BufferedReader(new InputStreamReader(ipfsDaemonProcess.getErrorStream()));
-                    while ((line = ipfsDaemonProcErrorReader.readLine()) != null) {
-                        ipfsDaemonProcError.append(line).append("\n");
-                        Log.d(LOG_TAG, line);
-                    }
+    /**
+     * 'nodes' plugin function exposed to JS interface
+     * Returns the nodes created so far as [{id, state, api}]
+     *
+     * @param cbCtx callback context used to call success or error callbacks
+     */
+    private void listNodes(CallbackContext cbCtx) {
+        try {
+            JSONArray list = new JSONArray();
+            for (IpfsNode node : nodes.all())
+                list.put(new JSONObject()
+                        .put("id", node.id())
+                        .put("state", node.supervisor().state().name())
+                        .put("api", node.api() == null ? JSONObject.NULL : node.api()));
+            cbCtx.success(list);
+        } catch (JSONException e) {
+            e.printStackTrace();
+            cbCtx.error("Cordova IPFS Plugin (nodes): \n" + e.toString());
+        }
+    }
 
-                    Log.d(LOG_TAG, "IPFS daemon exit val: " + ipfsDaemonProcess.waitFor());
-                    Log.d(LOG_TAG, "IPFS daemon out     : " + ipfsDaemonProcOutput.toString());
-                    Log.d(LOG_TAG, "IPFS daemon err     : " + ipfsDaemonProcError.toString());
-                } catch (IOException e) {
-                    e.printStackTrace();
-                    cbCtx.error("Cordova IPFS Plugin (start): \n" + e.toString());
-                } catch (InterruptedException e) {
-                    e.printStackTrace();
-                    cbCtx.error("Cordova IPFS Plugin (start): \n" + e.toString());
-                }
+    @Override
+    public void initialize(CordovaInterface cordova, CordovaWebView webView) {
+        super.initialize(cordova, webView);
+        // the core classes don't depend on Android, their logs and signals are routed here
+        IpfsLog.setSink(new IpfsLog.Sink() {
+            @Override
+            public void d(String tag, String message) {
+                Log.d(tag, message);
+            }
+        });
+        IpfsProcesses.setSignaller(new IpfsProcesses.Signaller() {
+            @Override
+            public void send(int pid, int signal) {
+                android.os.Process.sendSignal(pid, signal);
+            }
+        });
+        nodes = new IpfsNodes();
+        final NodeBinding b = binding(IpfsNodes.DEFAULT_NODE);
+
+        Context context = cordova.getActivity().getApplicationContext();
+        context.registerReceiver(conditionsReceiver, new IntentFilter(Intent.ACTION_BATTERY_CHANGED));
+        context.registerReceiver(conditionsReceiver, new IntentFilter(ConnectivityManager.CONNECTIVITY_ACTION));
 
+        final File cacheDir = new File(cordova.getActivity().getCacheDir(), "ipfs");
+        cordova.getThreadPool().execute(new Runnable() {
+            @Override
+            public void run() {
+                b.node.cache().open(cacheDir);
             }
-        };
+        });
+
+        // media elements seek with Range requests, which only a WebView client can answer
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP && webView.getEngine() instanceof SystemWebViewEngine) {
+            final SystemWebViewEngine engine = (SystemWebViewEngine) webView.getEngine();
+            cordova.getActivity().runOnUiThread(new Runnable() {
+                @Override
+                public void run() {
+                    ((WebView) engine.getView()).setWebViewClient(new IpfsWebViewClient(engine, Ipfs.this));
+                }
+            });
+        }
 
-        if (ipfsDaemonThreadFuture == null)
-            ipfsDaemonThreadFuture = cordova.getThreadPool().submit(ipfsDaemonThread);
-        else if (ipfsDaemonThreadFuture.isCancelled() || ipfsDaemonThreadFuture.isDone()) {
-            ipfsDaemonThreadFuture = cordova.getThreadPool().submit(ipfsDaemonThread);
-        } else {
-            cbCtx.success("Cordova IPFS Plugin (start): Daemon is already running");
+        // resume deleting the repo tombstones left by a previous run (default appFilesDir location)
+        File defaultAppFilesDir = new File(cordova.getActivity().getFilesDir(), "files");
+        if (defaultAppFilesDir.isDirectory())
+            IpfsRepoReaper.reclaimAsync(defaultAppFilesDir);
+    }
+
+    @Override
+    public void onPause(boolean multitasking) {
+        super.onPause(multitasking);
+        background = true;
+        for (NodeBinding b : bindings.values()) {
+            // a GC run is aborted before the power policy may pause the daemon
+            updateGcConditions(b);
+            b.powerPolicy.enterBackground(b.node.api());
+        }
+    }
+
+    @Override
+    public void onResume(boolean multitasking) {
+        super.onResume(multitasking);
+        background = false;
+        for (NodeBinding b : bindings.values()) {
+            b.powerPolicy.leaveBackground();
+            updateGcConditions(b);
         }
     }
 
+    @Override
+    public void onDestroy() {
+        cordova.getActivity().getApplicationContext().unregisterReceiver(conditionsReceiver);
+        for (NodeBinding b : bindings.values())
+            b.powerPolicy.shutdown();
+        nodes.shutdown();
+        super.onDestroy();
+    }
+
     /**
-     * 'stop' plugin function exposed to JS interface
-     * Stops the IPFS daemon if it's running and waits for the process to exit
+     * Routes the ipfs://[cid]/[path] URLs and the /ipfs/[cid]/[path] URLs of the gateway of the
+     * default node to handleOpenForRead, so the WebView loads them through its content cache;
+     * on API 21+ with the system engine they are answered by serve instead (see IpfsWebViewClient)
+     */
+    @Override
+    public Uri remapUri(Uri uri) {
+        return ipfsPath(uri) == null ? null : toPluginUri(uri);
+    }
+
+    @Override
+    public CordovaResourceApi.OpenForReadResult handleOpenForRead(Uri uri) throws IOException {
+        Uri original = fromPluginUri(uri);
+        String path = ipfsPath(original);
+        if (path == null)
+            throw new FileNotFoundException("Cordova IPFS Plugin (handleOpenForRead): not an IPFS URL " + original);
+
+        IpfsContentCache.Content content = binding(IpfsNodes.DEFAULT_NODE).node.cache().open(path);
+        return new CordovaResourceApi.OpenForReadResult(original, content.stream, content.mimeType, content.length, null);
+    }
+
+    /**
+     * Answers a WebView request for an IPFS URL from the content cache of the default node:
+     * "200" with the whole object, "206" with the requested range (seeking into a cached object
+     * is immediate) or "416" if the range starts past its end. An object whose size is known is
+     * announced as seekable ("Accept-Ranges: bytes")
      *
-     * @param cbCtx callback context used to call succes or error callbacks
+     * @param uri   the requested URL
+     * @param range the Range header of the request; null if there is none
+     * @return the response; null if it's not an IPFS URL
      */
-    private void stopDaemon(final CallbackContext cbCtx) {
-        if (this.ipfsDaemonThreadFuture != null)
-            if (this.ipfsDaemonThreadFuture.isDone()) {
-                Log.d(LOG_TAG, "IPFS daemon thread is STOPPED");
-            } else {
-                Log.d(LOG_TAG, "IPFS daemon thread is still DAEMONING");
-            }
+    WebResourceResponse serve(Uri uri, String range) {
+        String path = ipfsPath(uri);
+        if (path == null)
+            return null;
 
-        if (this.ipfsDaemonProcess != null)
-            if (this.isRunning(this.ipfsDaemonProcess)) {
-                this.ipfsDaemonProcess.destroy();
+        Map<String, String> headers = new HashMap<String, String>();
+        IpfsContentCache.Content content = null;
+        try {
+            content = binding(IpfsNodes.DEFAULT_NODE).node.cache().open(path);
+            if (content.size >= 0)
+                headers.put("Accept-Ranges", "bytes");
+            long[] bytes = IpfsContentCache.range(range, content.size);
+            if (bytes == null) {
+                if (content.length >= 0)
+                    headers.put("Content-Length", String.valueOf(content.length));
+                return new WebResourceResponse(content.mimeType, null, 200, "OK", headers, content.stream);
+            }
+            if (bytes[0] > bytes[1]) {
+                content.stream.close();
+                headers.put("Content-Range", "bytes */" + content.size);
+                return new WebResourceResponse(content.mimeType, null, 416, "Range Not Satisfiable", headers,
+                        new ByteArrayInputStream(new byte[0]));
+            }
 
+            IpfsContentCache.Content part = IpfsContentCache.slice(content, bytes[0], bytes[1]);
+            headers.put("Content-Range", "bytes " + bytes[0] + "-" + bytes[1] + "/" + content.size);
+            headers.put("Content-Length", String.valueOf(part.length));
+            return new WebResourceResponse(part.mimeType, null, 206, "Partial Content", headers, part.stream);
+        } catch (IOException e) {
+            Log.d(LOG_TAG, "Cordova IPFS Plugin (serve): " + uri + ": " + e.toString());
+            if (content != null) {
                 try {
-                    cbCtx.success("Cordova IPFS Plugin (stop): Success, exit code: " + this.ipfsDaemonProcess.waitFor());
-                } catch (InterruptedException e) {
-                    e.printStackTrace();
-                    cbCtx.error("Cordova IPFS Plugin (stop): \n" + e.toString());
+                    content.stream.close();
+                } catch (IOException closing) {
+                    closing.printStackTrace();
                 }
-                return;
             }
+            return new WebResourceResponse("text/plain", "UTF-8", 502, "Bad Gateway", headers,
+                    new ByteArrayInputStream(e.toString().getBytes()));
+        }
+    }
 
-        cbCtx.success("Cordova IPFS Plugin (stop): Success");
+    /**
+     * @return the IPFS path ([cid]/[path]) of an ipfs:// URL or of a URL of the gateway of the
+     * default node; null for any other URL
+     */
+    private String ipfsPath(Uri uri) {
+        String scheme = uri.getScheme();
+        String host = uri.getHost();
+        String path = uri.getPath();
+        if (scheme == null || host == null)
+            return null;
+
+        if (scheme.equals("ipfs"))
+            return host + (path == null ? "" : path);
+        if ((scheme.equals("http") || scheme.equals("https")) && path != null && path.startsWith("/ipfs/")
+                && isGateway(host, uri.getPort()))
+            return path;
+        return null;
     }
 
-    @Override
-    public void initialize(CordovaInterface cordova, CordovaWebView webView) {
-        super.initialize(cordova, webView);
+    /**
+     * Checks if host:port is the gateway of the running default node; any loopback name matches a
+     * gateway listening on a loopback address, so other local servers and ports are left alone
+     *
+     * @return true if it's the gateway
+     */
+    private boolean isGateway(String host, int port) {
+        NodeBinding b = bindings.get(IpfsNodes.DEFAULT_NODE);
+        String gateway = b == null ? null : b.node.gateway();
+        if (gateway == null)
+            return false;
+
+        Uri gatewayUri = Uri.parse(gateway);
+        String gatewayHost = gatewayUri.getHost();
+        return gatewayUri.getPort() == port
+                && (gatewayHost.equals(host) || LOCAL_HOSTS.contains(gatewayHost) && LOCAL_HOSTS.contains(host));
     }
 
     @Override
     public boolean execute(String action, JSONArray args, final CallbackContext callbackContext) {
+        if (action.equals("nodes")) {
+            this.listNodes(callbackContext);
+            return true;
+        } else if (action.equals("cancel")) {
+            this.cancel(args, callbackContext);
+            return true;
+        } else if (!NODE_ACTIONS.contains(action)) {
+            return false;
+        }
+
+        // every other action is addressed to a node: its id comes first, then the action arguments
+        NodeBinding b;
+        try {
+            b = binding(args.optString(0, IpfsNodes.DEFAULT_NODE));
+        } catch (IllegalArgumentException e) {
+            callbackContext.error("Cordova IPFS Plugin (" + action + "): \n" + e.getMessage());
+            return true;
+        }
+        JSONArray nodeArgs = new JSONArray();
+        for (int i = 1; i < args.length(); i++)
+            nodeArgs.put(args.opt(i));
+
         if (action.equals("init")) {
-            this.init(args, callbackContext);
+            this.init(b, nodeArgs, callbackContext);
             return true;
         } else if (action.equals("start")) {
-            this.startDaemon(callbackContext);
+            this.startDaemon(b, nodeArgs, callbackContext);
             return true;
         } else if (action.equals("stop")) {
-            this.stopDaemon(callbackContext);
+            this.stopDaemon(b, nodeArgs, callbackContext);
+            return true;
+        } else if (action.equals("watchState")) {
+            this.watchState(b, callbackContext);
+            return true;
+        } else if (action.equals("logs")) {
+            this.logs(b, nodeArgs, callbackContext);
+            return true;
+        } else if (action.equals("addFile") || action.equals("catToFile") || action.equals("get")) {
+            this.transfer(b, action, nodeArgs, callbackContext);
+            return true;
+        } else if (action.equals("config")) {
+            this.config(b, nodeArgs, callbackContext);
+            return true;
+        } else if (action.equals("metrics")) {
+            this.metrics(b, nodeArgs, callbackContext);
+            return true;
+        } else if (action.equals("subscribe")) {
+            this.subscribe(b, nodeArgs, callbackContext);
+            return true;
+        } else if (action.equals("unsubscribe")) {
+            this.unsubscribe(b, nodeArgs, callbackContext);
+            return true;
+        } else if (action.equals("publish")) {
+            this.publish(b, nodeArgs, callbackContext);
+            return true;
+        } else if (action.equals("prefetch")) {
+            this.submitJobs(b, IpfsJobScheduler.Type.PREFETCH, nodeArgs, callbackContext);
+            return true;
+        } else if (action.equals("pin")) {
+            this.submitJobs(b, IpfsJobScheduler.Type.PIN, nodeArgs, callbackContext);
+            return true;
+        } else if (action.equals("watchJobs")) {
+            this.watchJobs(b, callbackContext);
+            return true;
+        } else if (action.equals("gc")) {
+            this.gc(b, nodeArgs, callbackContext);
             return true;
         }
         return false;
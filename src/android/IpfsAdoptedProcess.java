@@ -0,0 +1,107 @@
+package org.apache.cordova.ipfs;
+
+import java.io.ByteArrayInputStream;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+
+/**
+ * A daemon that was already running when the plugin started it (e.g. after a WebView reload),
+ * adopted instead of spawning a new one. It is seen as a Process by the supervisor: it's alive
+ * while /proc/[pid] runs an ipfs binary, destroy() kills it and waitFor() polls until it's gone.
+ * Only a daemon with a verified PID is adopted (see IpfsReadinessProbe.findRunning), so it can
+ * always be signalled and its exit always seen. Its output is not available and its exit code is
+ * unknown (-1).
+ *
+ * @author xSkyripper
+ */
+class IpfsAdoptedProcess extends Process {
+    private static final long POLL_INTERVAL = 250;
+
+    // named "pid" like the field of the platform Process, see IpfsProcesses.pid
+    private final int pid;
+
+    /**
+     * @param pid the PID of the daemon, checked with isIpfs
+     * @throws IllegalArgumentException if the PID is not valid
+     */
+    IpfsAdoptedProcess(int pid) {
+        if (pid <= 0)
+            throw new IllegalArgumentException("Cannot adopt an IPFS daemon without its PID");
+        this.pid = pid;
+    }
+
+    @Override
+    public OutputStream getOutputStream() {
+        return new OutputStream() {
+            @Override
+            public void write(int b) throws IOException {
+                throw new IOException("The input of an adopted IPFS daemon is not available");
+            }
+        };
+    }
+
+    @Override
+    public InputStream getInputStream() {
+        return new ByteArrayInputStream(new byte[0]);
+    }
+
+    @Override
+    public InputStream getErrorStream() {
+        return new ByteArrayInputStream(new byte[0]);
+    }
+
+    @Override
+    public int waitFor() throws InterruptedException {
+        while (isIpfs(pid))
+            Thread.sleep(POLL_INTERVAL);
+        return -1;
+    }
+
+    @Override
+    public int exitValue() {
+        if (isIpfs(pid))
+            throw new IllegalThreadStateException("Adopted IPFS daemon " + pid + " is still running");
+        return -1;
+    }
+
+    @Override
+    public void destroy() {
+        IpfsProcesses.signal(pid, IpfsProcesses.SIGKILL);
+    }
+
+    /**
+     * Checks if a PID belongs to a running IPFS process, by its /proc/[pid]/cmdline (a PID that
+     * was reused by another process doesn't count)
+     *
+     * @param pid the PID
+     * @return true if the process is alive and runs an "ipfs" binary
+     */
+    static boolean isIpfs(int pid) {
+        if (pid <= 0)
+            return false;
+
+        byte[] cmdline = new byte[256];
+        int length = 0;
+        try {
+            InputStream input = new FileInputStream("/proc/" + pid + "/cmdline");
+            try {
+                int read;
+                while (length < cmdline.length && (read = input.read(cmdline, length, cmdline.length - length)) != -1)
+                    length += read;
+            } finally {
+                input.close();
+            }
+        } catch (IOException e) {
+            return false;
+        }
+
+        // the first NUL-terminated entry is the executable path
+        int end = 0;
+        while (end < length && cmdline[end] != 0)
+            end++;
+        return new String(cmdline, 0, end).endsWith("ipfs");
+    }
+}
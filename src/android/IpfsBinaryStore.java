@@ -0,0 +1,199 @@
+package org.apache.cordova.ipfs;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.security.MessageDigest;
+
+
+/**
+ * Content-addressed store for the go-ipfs binary, kept under appFilesDir/bin/.
+ * Every installed binary lives in bin/(sha256)/ipfs and a small manifest.json records the
+ * version, digest, size and mtime of the current one, so checking if the right binary is
+ * installed is a manifest read plus a stat, without hashing the binary.
+ * New binaries are hashed while they are written and made current by atomically replacing the
+ * manifest, so the previous binary stays on disk until the next install.
+ *
+ * @author xSkyripper
+ */
+class IpfsBinaryStore {
+    private static final String LOG_TAG = "#######CIP######";
+    private static final String BIN_NAME = "ipfs";
+
+    private final File storeDir;
+    private final File manifestFile;
+
+    /**
+     * @param storeDir the dir where the binaries and the manifest are kept
+     */
+    IpfsBinaryStore(File storeDir) {
+        this.storeDir = storeDir;
+        this.manifestFile = new File(storeDir, "manifest.json");
+    }
+
+    /**
+     * Looks up the current binary in the manifest and checks that it matches the requested
+     * version / digest and that its size and mtime were not changed since the install
+     *
+     * @param version        the version (or source URL) the binary must have been installed for
+     * @param expectedDigest the SHA-256 (hex) the binary must have; null if any digest is accepted
+     * @return the path of the current binary or null if it must be (re)installed
+     */
+    String current(String version, String expectedDigest) {
+        JSONObject manifest = this.readManifest();
+        if (manifest == null)
+            return null;
+
+        String digest = manifest.optString("digest");
+        if (!version.equals(manifest.optString("version"))
+                || (expectedDigest != null && !expectedDigest.equalsIgnoreCase(digest)))
+            return null;
+
+        File binary = this.binaryFile(digest);
+        if (binary.length() != manifest.optLong("size", -1)
+                || binary.lastModified() != manifest.optLong("mtime", -1)) {
+            IpfsLog.d(LOG_TAG, "IPFS Bin " + binary.getPath() + " was changed since it was installed");
+            return null;
+        }
+
+        return binary.getPath();
+    }
+
+    /**
+     * Writes the binary read from the input to a temp file while hashing it, verifies the digest,
+     * moves it to bin/(sha256)/ipfs and then atomically points the manifest to it.
+     * Binaries other than the new and the previous one are deleted
+     *
+     * @param version        the version (or source URL) the binary is installed for
+     * @param input          the stream of the binary; it's read to its end but not closed
+     * @param expectedDigest the SHA-256 (hex) the binary must have; null if any digest is accepted
+     * @return the path of the installed binary
+     * @throws Exception if the digest doesn't match, or if the binary or the manifest
+     *                   couldn't be written
+     */
+    String install(String version, InputStream input, String expectedDigest) throws Exception {
+        MessageDigest sha256 = MessageDigest.getInstance("SHA-256");
+        byte block[] = new byte[65536];
+        int blockSize;
+
+        if (!storeDir.exists() && !storeDir.mkdirs())
+            throw new IOException("Cannot create dir " + storeDir.getPath());
+
+        File tmp = File.createTempFile("ipfs", ".part", storeDir);
+        FileOutputStream output = new FileOutputStream(tmp);
+        try {
+            while ((blockSize = input.read(block)) != -1) {
+                sha256.update(block, 0, blockSize);
+                output.write(block, 0, blockSize);
+            }
+            output.getFD().sync();
+        } finally {
+            output.close();
+        }
+
+        String digest = toHex(sha256.digest());
+        if (expectedDigest != null && !expectedDigest.equalsIgnoreCase(digest)) {
+            tmp.delete();
+            throw new Exception("IPFS Bin digest " + digest + " doesn't match the expected " + expectedDigest);
+        }
+
+        File binary = this.binaryFile(digest);
+        if (!binary.getParentFile().exists() && !binary.getParentFile().mkdirs())
+            throw new IOException("Cannot create dir " + binary.getParent());
+        if (!tmp.renameTo(binary))
+            throw new IOException("Cannot move " + tmp.getPath() + " to " + binary.getPath());
+        if (!binary.setExecutable(true, true))
+            throw new Exception("IPFS Bin " + binary.getPath() + " cannot be set executable !");
+
+        JSONObject previous = this.readManifest();
+        this.writeManifest(new JSONObject()
+                .put("version", version)
+                .put("digest", digest)
+                .put("size", binary.length())
+                .put("mtime", binary.lastModified()));
+        this.prune(digest, previous == null ? null : previous.optString("digest"));
+
+        IpfsLog.d(LOG_TAG, "Installed IPFS Bin " + version + " sha256:" + digest);
+        return binary.getPath();
+    }
+
+    private File binaryFile(String digest) {
+        return new File(new File(storeDir, digest), BIN_NAME);
+    }
+
+    private JSONObject readManifest() {
+        if (!manifestFile.exists())
+            return null;
+
+        try {
+            StringBuilder content = new StringBuilder();
+            char[] buffer = new char[1024];
+            int num;
+            BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(manifestFile), "UTF-8"));
+            try {
+                while ((num = reader.read(buffer)) > 0)
+                    content.append(buffer, 0, num);
+            } finally {
+                reader.close();
+            }
+            return new JSONObject(content.toString());
+        } catch (IOException e) {
+            IpfsLog.d(LOG_TAG, "Binary manifest is unreadable: " + e.toString());
+        } catch (JSONException e) {
+            IpfsLog.d(LOG_TAG, "Binary manifest is corrupted: " + e.toString());
+        }
+        return null;
+    }
+
+    private void writeManifest(JSONObject manifest) throws IOException, JSONException {
+        File tmp = new File(manifestFile.getPath() + ".tmp");
+        FileOutputStream output = new FileOutputStream(tmp);
+        try {
+            OutputStreamWriter writer = new OutputStreamWriter(output, "UTF-8");
+            writer.write(manifest.toString(4));
+            writer.flush();
+            output.getFD().sync();
+        } finally {
+            output.close();
+        }
+        if (!tmp.renameTo(manifestFile))
+            throw new IOException("Cannot move " + tmp.getPath() + " to " + manifestFile.getPath());
+    }
+
+    /**
+     * Deletes the binaries (and leftover temp files) that are neither current nor previous
+     */
+    private void prune(String current, String previous) {
+        File[] children = storeDir.listFiles();
+        if (children == null)
+            return;
+
+        for (File child : children) {
+            String name = child.getName();
+            if (name.equals(current) || name.equals(previous) || child.equals(manifestFile))
+                continue;
+
+            File[] files = child.listFiles();
+            if (files != null)
+                for (File file : files)
+                    file.delete();
+            if (!child.delete())
+                IpfsLog.d(LOG_TAG, "File " + name + " couldn't be deleted !");
+        }
+    }
+
+    private static String toHex(byte[] bytes) {
+        StringBuilder hex = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes)
+            hex.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+        return hex.toString();
+    }
+}
@@ -0,0 +1,182 @@
+package org.apache.cordova.ipfs;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+
+
+/**
+ * Applies batches of patches to the IPFS repo config in a single read-modify-write.
+ * A patch is {path: "Swarm.ConnMgr.HighWater", value: 100} (missing parent objects are created)
+ * or {path: "Datastore.StorageMax", remove: true}. The config is written only if a patch actually
+ * changed it, through a temp file that is synced and renamed over the config, so a crash can never
+ * leave a half written config behind.
+ * The patches can also be computed from the config being patched (see Patcher), so deriving them
+ * doesn't take another read of the file.
+ *
+ * @author xSkyripper
+ */
+class IpfsConfig {
+    private static final String LOG_TAG = "#######CIP######";
+
+    /**
+     * Computes patches from the current config
+     */
+    interface Patcher {
+        /**
+         * @param config the config as read, before any patch; must not be modified
+         * @return the patches to apply
+         */
+        JSONArray patches(JSONObject config) throws IOException, JSONException;
+    }
+
+    private final File configFile;
+
+    /**
+     * @param configFile the config file of the repo
+     */
+    IpfsConfig(File configFile) {
+        this.configFile = configFile;
+    }
+
+    /**
+     * Applies the patches in order and writes the config if anything changed
+     *
+     * @param patches the array of patches
+     * @return true if the config was changed and written
+     * @throws IOException   if the config file can't be read or written
+     * @throws JSONException if the config or a patch is invalid
+     */
+    synchronized boolean apply(final JSONArray patches) throws IOException, JSONException {
+        return this.apply(new Patcher() {
+            @Override
+            public JSONArray patches(JSONObject config) {
+                return patches;
+            }
+        });
+    }
+
+    /**
+     * Reads the config once, applies the patches computed from it in order and writes the config
+     * if anything changed
+     *
+     * @param patcher computes the patches from the config
+     * @return true if the config was changed and written
+     * @throws IOException   if the config file can't be read or written, or thrown by the patcher
+     * @throws JSONException if the config or a patch is invalid
+     */
+    synchronized boolean apply(Patcher patcher) throws IOException, JSONException {
+        JSONObject config = new JSONObject(this.read());
+        JSONArray patches = patcher.patches(config);
+        boolean changed = false;
+
+        for (int i = 0; i < patches.length(); i++) {
+            JSONObject patch = patches.getJSONObject(i);
+            changed |= this.applyPatch(config, patch.getString("path"),
+                    patch.optBoolean("remove", false) ? null : patch.get("value"));
+        }
+
+        if (!changed) {
+            IpfsLog.d(LOG_TAG, "Config unchanged, " + patches.length() + " patches already applied");
+            return false;
+        }
+
+        this.write(config.toString(4));
+        IpfsLog.d(LOG_TAG, "FINISHED CONFIGING (" + patches.length() + " patches) !");
+        return true;
+    }
+
+    /**
+     * @param config the config
+     * @param path   the dotted path, e.g. "Addresses.API"
+     * @return the value at the dotted path, or null if there is none
+     */
+    static Object get(JSONObject config, String path) {
+        Object node = config;
+        for (String key : path.split("\\.")) {
+            if (!(node instanceof JSONObject))
+                return null;
+            node = ((JSONObject) node).opt(key);
+        }
+        return node;
+    }
+
+    /**
+     * Sets (or removes, if value is null) the value at the dotted path
+     *
+     * @return true if the config was changed
+     */
+    private boolean applyPatch(JSONObject config, String path, Object value) throws JSONException {
+        String[] keys = path.split("\\.");
+        JSONObject parent = config;
+
+        for (int i = 0; i < keys.length - 1; i++) {
+            JSONObject child = parent.optJSONObject(keys[i]);
+            if (child == null) {
+                if (value == null)
+                    return false;
+                child = new JSONObject();
+                parent.put(keys[i], child);
+            }
+            parent = child;
+        }
+
+        String key = keys[keys.length - 1];
+        Object current = parent.opt(key);
+        if (value == null) {
+            if (current == null)
+                return false;
+            parent.remove(key);
+            return true;
+        }
+
+        if (current != null && toJSONString(current).equals(toJSONString(value)))
+            return false;
+        parent.put(key, value);
+        return true;
+    }
+
+    private String read() throws IOException {
+        int num;
+        char[] buffer = new char[4096];
+        StringBuilder content = new StringBuilder();
+        BufferedReader input = new BufferedReader(
+                new InputStreamReader(new FileInputStream(configFile), "UTF-8"));
+        try {
+            while ((num = input.read(buffer)) > 0)
+                content.append(buffer, 0, num);
+        } finally {
+            input.close();
+        }
+        return content.toString();
+    }
+
+    private void write(String content) throws IOException {
+        File tmp = new File(configFile.getPath() + ".tmp");
+        FileOutputStream output = new FileOutputStream(tmp);
+        try {
+            OutputStreamWriter writer = new OutputStreamWriter(output, "UTF-8");
+            writer.write(content);
+            writer.flush();
+            output.getFD().sync();
+        } finally {
+            output.close();
+        }
+        if (!tmp.renameTo(configFile))
+            throw new IOException("Cannot move " + tmp.getPath() + " to " + configFile.getPath());
+    }
+
+    private static String toJSONString(Object value) {
+        if (value instanceof String)
+            return JSONObject.quote((String) value);
+        return String.valueOf(value);
+    }
+}
@@ -0,0 +1,681 @@
+package org.apache.cordova.ipfs;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLConnection;
+import java.net.URLEncoder;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+
+/**
+ * A size-bounded LRU cache of IPFS content, keyed by its immutable path (CID and optional
+ * sub-path), so an entry never needs to be invalidated, only evicted. Every object is kept in a
+ * file of the cache directory and read memory-mapped; the small ones (up to MEMORY_OBJECT_LIMIT)
+ * are kept in memory as well, in their own LRU. A miss streams the content from the daemon
+ * (/api/v0/cat) to the reader while filling the cache, and only an object read to the length the
+ * daemon announced (X-Content-Length) is committed: a cat failing midway ends its body cleanly,
+ * with the error in a trailer the HTTP client doesn't expose, so a short object is never cached.
+ * The directory is indexed on open(), ordered by the last access (file mtime), so the cache
+ * survives app restarts; until it's opened the content is served straight from the daemon.
+ * A range of an object (see range and slice) is served from the mapped file or from memory
+ * without reading what's before it; the range of a miss reads through, filling the cache.
+ *
+ * @author xSkyripper
+ */
+class IpfsContentCache {
+    private static final String LOG_TAG = "#######CIP######";
+    private static final int BLOCK_SIZE = 65536;
+    private static final int CONNECT_TIMEOUT = 5000;
+    private static final int READ_TIMEOUT = 60000;
+    private static final int SNIFF_LENGTH = 16;
+    private static final String TMP_SUFFIX = ".tmp";
+    private static final Pattern RANGE = Pattern.compile("bytes=(\\d*)-(\\d*)");
+
+    static final long MEMORY_LIMIT = 16 * 1024 * 1024;
+    static final long DISK_LIMIT = 256 * 1024 * 1024;
+    static final long MEMORY_OBJECT_LIMIT = 256 * 1024;
+
+    /**
+     * An opened object, or a range of it: its content, its length (-1 if unknown yet), the size
+     * of the whole object (-1 if unknown yet) and its MIME type (null if it couldn't be guessed,
+     * the WebView sniffs it then)
+     */
+    static class Content {
+        final InputStream stream;
+        final long length;
+        final long size;
+        final String mimeType;
+
+        Content(InputStream stream, long length, String mimeType) {
+            this(stream, length, length, mimeType);
+        }
+
+        Content(InputStream stream, long length, long size, String mimeType) {
+            this.stream = stream;
+            this.length = length;
+            this.size = size;
+            this.mimeType = mimeType;
+        }
+    }
+
+    private final IpfsNode node;
+    // both in access order; memory holds the content, disk the length of the cache files
+    private final LinkedHashMap<String, byte[]> memory = new LinkedHashMap<String, byte[]>(16, 0.75f, true);
+    private final LinkedHashMap<String, Long> disk = new LinkedHashMap<String, Long>(16, 0.75f, true);
+    private File dir = null;
+    private long memoryLimit = MEMORY_LIMIT;
+    private long diskLimit = DISK_LIMIT;
+    private long memoryBytes = 0;
+    private long diskBytes = 0;
+    private long tmpSequence = 0;
+
+    private final AtomicLong memoryHits = new AtomicLong();
+    private final AtomicLong diskHits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+
+    /**
+     * @param node the node whose daemon API serves the misses
+     */
+    IpfsContentCache(IpfsNode node) {
+        this.node = node;
+    }
+
+    /**
+     * Indexes the cache directory (creating it if needed), oldest access first, and deletes the
+     * fills left unfinished by a previous run; may take a while on a large cache, so it's meant
+     * to be called off the UI thread
+     *
+     * @param dir the cache directory
+     */
+    void open(File dir) {
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            IpfsLog.d(LOG_TAG, "Content cache disabled, can't create " + dir.getAbsolutePath());
+            return;
+        }
+
+        File[] files = dir.listFiles();
+        if (files == null)
+            files = new File[0];
+        final long[] accessed = new long[files.length];
+        Integer[] order = new Integer[files.length];
+        for (int i = 0; i < files.length; i++) {
+            accessed[i] = files[i].lastModified();
+            order[i] = i;
+        }
+        Arrays.sort(order, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer a, Integer b) {
+                return accessed[a] < accessed[b] ? -1 : (accessed[a] == accessed[b] ? 0 : 1);
+            }
+        });
+
+        synchronized (this) {
+            for (Integer i : order) {
+                File file = files[i];
+                if (file.getName().endsWith(TMP_SUFFIX)) {
+                    file.delete();
+                    continue;
+                }
+                disk.put(file.getName(), file.length());
+                diskBytes += file.length();
+            }
+            this.dir = dir;
+            this.trim();
+        }
+        IpfsLog.d(LOG_TAG, "Content cache opened: " + disk.size() + " objects, " + diskBytes + " bytes");
+    }
+
+    /**
+     * Changes the size bounds of the cache, evicting right away what doesn't fit anymore
+     *
+     * @param memoryLimit the maximum bytes kept in memory
+     * @param diskLimit   the maximum bytes kept on disk; larger objects are never cached
+     */
+    synchronized void setLimits(long memoryLimit, long diskLimit) {
+        this.memoryLimit = Math.max(0, memoryLimit);
+        this.diskLimit = Math.max(0, diskLimit);
+        this.trim();
+    }
+
+    /**
+     * Opens an object, from memory, from disk or, on a miss, from the daemon
+     *
+     * @param path the IPFS path of the object, without the "/ipfs/" prefix (e.g. "QmHash/img.png")
+     * @return the content of the object; a miss fills the cache as it's read and the stream must
+     * be closed in any case
+     * @throws IOException if the object is not cached and the daemon is not running or doesn't
+     *                     have it
+     */
+    Content open(String path) throws IOException {
+        String key = normalize(path);
+        if (key.length() == 0)
+            throw new IOException("Empty IPFS path");
+        String name = fileName(key);
+
+        byte[] bytes;
+        File cached = null;
+        synchronized (this) {
+            // the disk LRU is touched by memory hits as well
+            boolean onDisk = dir != null && disk.get(name) != null;
+            bytes = memory.get(name);
+            if (onDisk)
+                cached = new File(dir, name);
+        }
+
+        if (bytes != null) {
+            memoryHits.incrementAndGet();
+            // and so is the file mtime, the only order that survives a restart
+            if (cached != null)
+                cached.setLastModified(System.currentTimeMillis());
+            return new Content(new ByteArrayInputStream(bytes), bytes.length, mimeType(key, bytes));
+        }
+        if (cached != null) {
+            Content content = this.openCached(name, key, cached);
+            if (content != null) {
+                diskHits.incrementAndGet();
+                return content;
+            }
+        }
+
+        misses.incrementAndGet();
+        return this.fetch(name, key);
+    }
+
+    /**
+     * @return {memoryHits, diskHits, misses, evictions, memoryBytes, diskBytes, objects}
+     */
+    JSONObject stats() {
+        try {
+            synchronized (this) {
+                return new JSONObject()
+                        .put("memoryHits", memoryHits.get())
+                        .put("diskHits", diskHits.get())
+                        .put("misses", misses.get())
+                        .put("evictions", evictions.get())
+                        .put("memoryBytes", memoryBytes)
+                        .put("diskBytes", diskBytes)
+                        .put("objects", disk.size());
+            }
+        } catch (JSONException e) {
+            e.printStackTrace();
+            return new JSONObject();
+        }
+    }
+
+    /**
+     * Maps a cache file; a small object is promoted to memory on the way
+     *
+     * @return the content; null if the file is gone (e.g. the system cleared the cache dir)
+     */
+    private Content openCached(String name, String key, File file) throws IOException {
+        ByteBuffer buffer;
+        try {
+            FileInputStream input = new FileInputStream(file);
+            try {
+                FileChannel channel = input.getChannel();
+                buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            } finally {
+                input.close();
+            }
+        } catch (IOException e) {
+            synchronized (this) {
+                Long length = disk.remove(name);
+                if (length != null)
+                    diskBytes -= length;
+                this.forget(name);
+            }
+            return null;
+        }
+        // the file mtime keeps the LRU order across restarts
+        file.setLastModified(System.currentTimeMillis());
+
+        long length = buffer.remaining();
+        if (length <= MEMORY_OBJECT_LIMIT) {
+            byte[] bytes = new byte[(int) length];
+            buffer.get(bytes);
+            synchronized (this) {
+                this.remember(name, bytes);
+                this.trim();
+            }
+            return new Content(new ByteArrayInputStream(bytes), length, mimeType(key, bytes));
+        }
+
+        byte[] head = new byte[Math.min(SNIFF_LENGTH, (int) length)];
+        buffer.duplicate().get(head);
+        return new Content(new ByteBufferInputStream(buffer), length, mimeType(key, head));
+    }
+
+    /**
+     * Opens the object from the daemon, filling the cache while it's read
+     */
+    private Content fetch(String name, String key) throws IOException {
+        String api = node.api();
+        if (api == null)
+            throw new IOException("The IPFS daemon is not running");
+
+        HttpURLConnection conn = (HttpURLConnection) new URL(api + "/api/v0/cat?arg="
+                + URLEncoder.encode("/ipfs/" + key, "UTF-8")).openConnection();
+        conn.setRequestMethod("POST");
+        conn.setConnectTimeout(CONNECT_TIMEOUT);
+        conn.setReadTimeout(READ_TIMEOUT);
+        if (conn.getResponseCode() != HttpURLConnection.HTTP_OK) {
+            int code = conn.getResponseCode();
+            conn.disconnect();
+            throw new IOException("IPFS API returned HTTP " + code + " for " + key);
+        }
+
+        long length = -1;
+        String header = conn.getHeaderField("X-Content-Length");
+        if (header != null) {
+            try {
+                length = Long.parseLong(header.trim());
+            } catch (NumberFormatException e) {
+                length = -1;
+            }
+        }
+
+        // without a length a truncated object can't be told apart from a whole one, so it's not cached
+        File tmp = null;
+        synchronized (this) {
+            if (dir != null && length >= 0 && length <= diskLimit)
+                tmp = new File(dir, name + "." + (tmpSequence++) + TMP_SUFFIX);
+        }
+
+        InputStream stream = new BufferedInputStream(
+                tmp == null ? conn.getInputStream() : new FillStream(conn, name, tmp, length), BLOCK_SIZE);
+        String mimeType = URLConnection.guessContentTypeFromName(key);
+        if (mimeType == null)
+            mimeType = URLConnection.guessContentTypeFromStream(stream);
+        return new Content(stream, length, mimeType);
+    }
+
+    /**
+     * Adds a fully fetched object to the cache, then evicts the least recently used ones until
+     * the cache fits its bounds again
+     *
+     * @param bytes the content, if small enough for memory; null otherwise
+     */
+    private synchronized void commit(String name, File tmp, long length, byte[] bytes) {
+        if (dir == null || length > diskLimit || !tmp.renameTo(new File(dir, name))) {
+            tmp.delete();
+            return;
+        }
+
+        Long previous = disk.put(name, length);
+        if (previous != null)
+            diskBytes -= previous;
+        diskBytes += length;
+        if (bytes != null)
+            this.remember(name, bytes);
+        this.trim();
+    }
+
+    private void remember(String name, byte[] bytes) {
+        byte[] previous = memory.put(name, bytes);
+        if (previous != null)
+            memoryBytes -= previous.length;
+        memoryBytes += bytes.length;
+    }
+
+    private void forget(String name) {
+        byte[] bytes = memory.remove(name);
+        if (bytes != null)
+            memoryBytes -= bytes.length;
+    }
+
+    /**
+     * Evicts the least recently used objects, from memory and from disk, beyond the bounds;
+     * the caller holds the lock
+     */
+    private void trim() {
+        Iterator<Map.Entry<String, byte[]>> inMemory = memory.entrySet().iterator();
+        while (memoryBytes > memoryLimit && inMemory.hasNext()) {
+            memoryBytes -= inMemory.next().getValue().length;
+            inMemory.remove();
+        }
+
+        List<String> evicted = new ArrayList<String>();
+        Iterator<Map.Entry<String, Long>> onDisk = disk.entrySet().iterator();
+        while (diskBytes > diskLimit && onDisk.hasNext()) {
+            Map.Entry<String, Long> eldest = onDisk.next();
+            diskBytes -= eldest.getValue();
+            evicted.add(eldest.getKey());
+            onDisk.remove();
+        }
+        for (String name : evicted) {
+            this.forget(name);
+            // an evicted file that is still mapped stays readable until it's unmapped
+            new File(dir, name).delete();
+            evictions.incrementAndGet();
+        }
+    }
+
+    /**
+     * Parses the Range header of a request for an object, as sent by media elements to seek:
+     * a single "bytes=start-[end]" or "bytes=-suffixLength" range
+     *
+     * @param header the Range header; may be null
+     * @param size   the size of the object; -1 if unknown
+     * @return {first, last} byte (inclusive, last clamped to the size), first > last if the range
+     * can't be satisfied; null if the whole object is served instead (no header, several ranges,
+     * unknown size or a header that can't be parsed)
+     */
+    static long[] range(String header, long size) {
+        if (header == null || size < 0)
+            return null;
+        Matcher matcher = RANGE.matcher(header.trim());
+        if (!matcher.matches() || matcher.group(1).isEmpty() && matcher.group(2).isEmpty())
+            return null;
+
+        try {
+            if (matcher.group(1).isEmpty()) {
+                long suffix = Long.parseLong(matcher.group(2));
+                return new long[]{Math.max(0, size - suffix), size - 1};
+            }
+            long first = Long.parseLong(matcher.group(1));
+            long last = matcher.group(2).isEmpty() ? Long.MAX_VALUE : Long.parseLong(matcher.group(2));
+            // an invalid range is ignored, one past the end can't be satisfied
+            if (last < first)
+                return null;
+            return new long[]{first, Math.min(last, size - 1)};
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Narrows an opened object to a range: the bytes before it are skipped, which is immediate
+     * for a cached object (memory or mapped file) and reads through a miss (still filling the
+     * cache), and the stream ends after the last byte of the range
+     *
+     * @param content the whole object, see open
+     * @param first   the first byte of the range
+     * @param last    the last byte of the range (inclusive)
+     * @return the range; its size is the size of the whole object
+     * @throws IOException if the object ended before the range
+     */
+    static Content slice(Content content, long first, long last) throws IOException {
+        long skipped = 0;
+        while (skipped < first) {
+            long num = content.stream.skip(first - skipped);
+            if (num <= 0) {
+                if (content.stream.read() == -1)
+                    throw new IOException("IPFS object ended at " + skipped + " bytes, before the range " + first + "-" + last);
+                num = 1;
+            }
+            skipped += num;
+        }
+        long length = last - first + 1;
+        return new Content(new BoundedInputStream(content.stream, length), length, content.size, content.mimeType);
+    }
+
+    /**
+     * @return the path without the leading "/ipfs/" or "/" and the trailing "/"
+     */
+    static String normalize(String path) {
+        String key = path;
+        if (key.startsWith("/ipfs/"))
+            key = key.substring("/ipfs/".length());
+        while (key.startsWith("/"))
+            key = key.substring(1);
+        while (key.endsWith("/"))
+            key = key.substring(0, key.length() - 1);
+        return key;
+    }
+
+    /**
+     * @return the cache file name of a key (SHA-1 hex), since sub-paths can be deep or long
+     */
+    private static String fileName(String key) throws IOException {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-1").digest(key.getBytes("UTF-8"));
+            StringBuilder name = new StringBuilder(digest.length * 2);
+            for (byte b : digest)
+                name.append(String.format("%02x", b));
+            return name.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException(e.toString());
+        }
+    }
+
+    private static String mimeType(String key, byte[] head) {
+        String mimeType = URLConnection.guessContentTypeFromName(key);
+        if (mimeType != null)
+            return mimeType;
+        try {
+            return URLConnection.guessContentTypeFromStream(
+                    new ByteArrayInputStream(head, 0, Math.min(SNIFF_LENGTH, head.length)));
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    /**
+     * The stream of a miss: copies what's read from the daemon to a temporary cache file (and to
+     * memory while the object is small) and commits it once the end of the content is reached
+     * with the expected length; an object closed before its end, ending short of (or past) the
+     * expected length, or outgrowing the disk bound, is discarded
+     */
+    private class FillStream extends FilterInputStream {
+        private final HttpURLConnection conn;
+        private final String name;
+        private final File tmp;
+        private final long expected;
+        private FileOutputStream output;
+        private ByteArrayOutputStream small = new ByteArrayOutputStream();
+        private long length = 0;
+        private boolean finished = false;
+
+        FillStream(HttpURLConnection conn, String name, File tmp, long expected) throws IOException {
+            super(conn.getInputStream());
+            this.conn = conn;
+            this.name = name;
+            this.tmp = tmp;
+            this.expected = expected;
+            this.output = new FileOutputStream(tmp);
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] one = new byte[1];
+            return this.read(one, 0, 1) == -1 ? -1 : one[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int count) throws IOException {
+            int read;
+            try {
+                read = super.read(buffer, offset, count);
+            } catch (IOException e) {
+                this.discard();
+                throw e;
+            }
+
+            if (read == -1) {
+                this.finish();
+            } else if (output != null) {
+                output.write(buffer, offset, read);
+                length += read;
+                if (small != null) {
+                    if (length <= MEMORY_OBJECT_LIMIT)
+                        small.write(buffer, offset, read);
+                    else
+                        small = null;
+                }
+                if (length > diskLimit)
+                    this.discard();
+            }
+            return read;
+        }
+
+        @Override
+        public long skip(long count) throws IOException {
+            // the skipped bytes are read, so they still fill the cache file
+            byte[] buffer = new byte[(int) Math.min(BLOCK_SIZE, Math.max(1, count))];
+            int read = this.read(buffer, 0, (int) Math.min(buffer.length, count));
+            return Math.max(0, read);
+        }
+
+        @Override
+        public boolean markSupported() {
+            return false;
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                // a reader may stop at the announced length without reading the end of stream
+                if (expected >= 0 && length == expected)
+                    this.finish();
+                else
+                    this.discard();
+                super.close();
+            } finally {
+                conn.disconnect();
+            }
+        }
+
+        private void finish() throws IOException {
+            if (finished || output == null)
+                return;
+            finished = true;
+            if (length != expected) {
+                IpfsLog.d(LOG_TAG, "Content cache fill of " + name + " ended at " + length + " of " + expected + " bytes");
+                this.discard();
+                return;
+            }
+            output.getFD().sync();
+            output.close();
+            output = null;
+            commit(name, tmp, length, small == null ? null : small.toByteArray());
+            small = null;
+        }
+
+        private void discard() {
+            if (output == null)
+                return;
+            try {
+                output.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            output = null;
+            small = null;
+            tmp.delete();
+        }
+    }
+
+    /**
+     * Ends a stream after a number of bytes; closing it closes the stream
+     */
+    private static class BoundedInputStream extends FilterInputStream {
+        private long remaining;
+
+        BoundedInputStream(InputStream stream, long length) {
+            super(stream);
+            this.remaining = length;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (remaining <= 0)
+                return -1;
+            int read = super.read();
+            if (read != -1)
+                remaining--;
+            return read;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int count) throws IOException {
+            if (remaining <= 0)
+                return -1;
+            int read = super.read(buffer, offset, (int) Math.min(count, remaining));
+            if (read > 0)
+                remaining -= read;
+            return read;
+        }
+
+        @Override
+        public long skip(long count) throws IOException {
+            long skipped = super.skip(Math.min(count, remaining));
+            remaining -= skipped;
+            return skipped;
+        }
+
+        @Override
+        public int available() throws IOException {
+            return (int) Math.min(super.available(), remaining);
+        }
+
+        @Override
+        public boolean markSupported() {
+            return false;
+        }
+    }
+
+    /**
+     * Reads a (memory-mapped) buffer without copying it first
+     */
+    private static class ByteBufferInputStream extends InputStream {
+        private final ByteBuffer buffer;
+
+        ByteBufferInputStream(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        @Override
+        public int read() {
+            return buffer.hasRemaining() ? buffer.get() & 0xff : -1;
+        }
+
+        @Override
+        public int read(byte[] bytes, int offset, int count) {
+            if (count == 0)
+                return 0;
+            if (!buffer.hasRemaining())
+                return -1;
+            int read = Math.min(count, buffer.remaining());
+            buffer.get(bytes, offset, read);
+            return read;
+        }
+
+        @Override
+        public long skip(long count) {
+            int skipped = (int) Math.max(0, Math.min(count, buffer.remaining()));
+            buffer.position(buffer.position() + skipped);
+            return skipped;
+        }
+
+        @Override
+        public int available() {
+            return buffer.remaining();
+        }
+    }
+}
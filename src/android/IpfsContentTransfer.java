@@ -0,0 +1,302 @@
+package org.apache.cordova.ipfs;
+
+import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
+import org.apache.commons.compress.archivers.tar.TarArchiveInputStream;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLEncoder;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+
+/**
+ * Streams content between the local filesystem and the daemon HTTP API, so that files never
+ * cross the WebView bridge: 'add' uploads a file as a chunked multipart body, 'cat' and 'get'
+ * write the content of a CID straight to disk. All copies go through NIO channels with a fixed
+ * buffer, report the transferred bytes to a ProgressListener and stop when the cancel flag is set,
+ * failing with a CancelledException (an IOException, like any other failed transfer).
+ *
+ * @author xSkyripper
+ */
+class IpfsContentTransfer {
+    private static final String LOG_TAG = "#######CIP######";
+
+    private static final int BLOCK_SIZE = 65536;
+    private static final int CONNECT_TIMEOUT = 5000;
+    private static final int READ_TIMEOUT = 60000;
+
+    /**
+     * Receives the number of bytes transferred so far and the total (-1 if unknown)
+     */
+    interface ProgressListener {
+        void onProgress(long bytes, long total);
+    }
+
+    /**
+     * Thrown when a transfer stops because its cancel flag was set
+     */
+    static class CancelledException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        CancelledException() {
+            super("Transfer cancelled");
+        }
+    }
+
+    private final String api;
+    private final AtomicBoolean cancelled;
+    private final ProgressListener listener;
+
+    /**
+     * @param api       the daemon API endpoint (e.g. http://127.0.0.1:5001)
+     * @param cancelled the flag that stops the transfer when set
+     * @param listener  receives the progress of the transfer; may be null
+     */
+    IpfsContentTransfer(String api, AtomicBoolean cancelled, ProgressListener listener) {
+        this.api = api;
+        this.cancelled = cancelled;
+        this.listener = listener;
+    }
+
+    /**
+     * Adds a file to IPFS through /api/v0/add
+     *
+     * @param file the file to be added
+     * @return the CID of the file
+     * @throws IOException if the file can't be read, the API returned something else than "200"
+     *                     or the transfer was cancelled
+     */
+    String add(File file) throws IOException {
+        String boundary = "----CordovaIpfs" + Long.toHexString(System.nanoTime());
+        byte[] head = ("--" + boundary + "\r\n"
+                + "Content-Disposition: form-data; name=\"file\"; " + filenameParams(file.getName()) + "\r\n"
+                + "Content-Type: application/octet-stream\r\n\r\n").getBytes("UTF-8");
+        byte[] tail = ("\r\n--" + boundary + "--\r\n").getBytes("UTF-8");
+
+        HttpURLConnection conn = this.open("/api/v0/add?progress=false");
+        conn.setDoOutput(true);
+        conn.setChunkedStreamingMode(BLOCK_SIZE);
+        conn.setRequestProperty("Content-Type", "multipart/form-data; boundary=" + boundary);
+
+        try {
+            FileInputStream input = new FileInputStream(file);
+            OutputStream output = conn.getOutputStream();
+            try {
+                output.write(head);
+                this.copy(input.getChannel(), Channels.newChannel(output), file.length());
+                output.write(tail);
+            } finally {
+                input.close();
+                output.close();
+            }
+
+            this.checkResponse(conn);
+
+            String hash = null;
+            BufferedReader reader = new BufferedReader(new InputStreamReader(conn.getInputStream(), "UTF-8"));
+            try {
+                String line;
+                while ((line = reader.readLine()) != null)
+                    if (!line.trim().isEmpty())
+                        hash = new JSONObject(line).optString("Hash", hash);
+            } finally {
+                reader.close();
+            }
+
+            if (hash == null)
+                throw new IOException("IPFS API returned no hash for " + file.getPath());
+            IpfsLog.d(LOG_TAG, "Added " + file.getPath() + " as " + hash);
+            return hash;
+        } catch (JSONException e) {
+            throw new IOException("IPFS API returned an invalid response: " + e.toString());
+        } finally {
+            conn.disconnect();
+        }
+    }
+
+    /**
+     * Writes the content of a CID to a file through /api/v0/cat; the content is written to a
+     * ".part" file that is renamed to the target once complete
+     *
+     * @param cid    the CID of the content
+     * @param target the file the content is written to
+     * @return the number of bytes written
+     * @throws IOException if the file can't be written, the API returned something else than
+     *                     "200" or the transfer was cancelled
+     */
+    long catToFile(String cid, File target) throws IOException {
+        HttpURLConnection conn = this.open("/api/v0/cat?arg=" + URLEncoder.encode(cid, "UTF-8"));
+        File partial = new File(target.getPath() + ".part");
+
+        try {
+            this.checkResponse(conn);
+            if (target.getParentFile() != null && !target.getParentFile().exists() && !target.getParentFile().mkdirs())
+                throw new IOException("Cannot create dir " + target.getParent());
+
+            long length = parseLength(conn.getHeaderField("X-Content-Length"));
+            InputStream input = conn.getInputStream();
+            FileOutputStream output = new FileOutputStream(partial);
+            long written;
+            try {
+                written = this.copy(Channels.newChannel(input), output.getChannel(), length);
+            } finally {
+                input.close();
+                output.close();
+            }
+
+            if (!partial.renameTo(target))
+                throw new IOException("Cannot move " + partial.getPath() + " to " + target.getPath());
+            IpfsLog.d(LOG_TAG, "Wrote " + cid + " to " + target.getPath() + " (" + written + " bytes)");
+            return written;
+        } finally {
+            partial.delete();
+            conn.disconnect();
+        }
+    }
+
+    /**
+     * Writes the content of a CID (file or directory tree) under a dir through /api/v0/get
+     *
+     * @param cid the CID of the content
+     * @param dir the dir the content is written to
+     * @return the path of the written file or dir
+     * @throws IOException if the content can't be written, the API returned something else than
+     *                     "200", an entry points outside of dir or the transfer was cancelled
+     */
+    String get(String cid, File dir) throws IOException {
+        HttpURLConnection conn = this.open("/api/v0/get?arg=" + URLEncoder.encode(cid, "UTF-8"));
+        String root = dir.getCanonicalPath() + File.separator;
+        String first = null;
+        long total = 0;
+
+        try {
+            this.checkResponse(conn);
+            TarArchiveInputStream tarInput = new TarArchiveInputStream(
+                    new BufferedInputStream(conn.getInputStream(), BLOCK_SIZE));
+            try {
+                TarArchiveEntry entry;
+                while ((entry = tarInput.getNextTarEntry()) != null) {
+                    File target = new File(dir, entry.getName());
+                    if (!target.getCanonicalPath().startsWith(root))
+                        throw new IOException("Entry " + entry.getName() + " is outside of " + dir.getPath());
+                    if (first == null)
+                        first = target.getPath();
+
+                    if (entry.isDirectory()) {
+                        if (!target.exists() && !target.mkdirs())
+                            throw new IOException("Cannot create dir " + target.getPath());
+                        continue;
+                    }
+                    if (!target.getParentFile().exists() && !target.getParentFile().mkdirs())
+                        throw new IOException("Cannot create dir " + target.getParent());
+
+                    FileOutputStream output = new FileOutputStream(target);
+                    try {
+                        total += this.copy(Channels.newChannel(tarInput), output.getChannel(), -1);
+                    } finally {
+                        output.close();
+                    }
+                }
+            } finally {
+                tarInput.close();
+            }
+
+            IpfsLog.d(LOG_TAG, "Got " + cid + " in " + dir.getPath() + " (" + total + " bytes)");
+            return first == null ? dir.getPath() : first;
+        } finally {
+            conn.disconnect();
+        }
+    }
+
+    private HttpURLConnection open(String path) throws IOException {
+        HttpURLConnection conn = (HttpURLConnection) new URL(api + path).openConnection();
+        conn.setRequestMethod("POST");
+        conn.setConnectTimeout(CONNECT_TIMEOUT);
+        conn.setReadTimeout(READ_TIMEOUT);
+        return conn;
+    }
+
+    private void checkResponse(HttpURLConnection conn) throws IOException {
+        if (conn.getResponseCode() != HttpURLConnection.HTTP_OK)
+            throw new IOException("IPFS API returned HTTP " + conn.getResponseCode()
+                    + " " + conn.getResponseMessage());
+    }
+
+    /**
+     * Copies a channel to another until EOF through a single buffer, reporting the progress and
+     * checking the cancel flag after every block
+     *
+     * @return the number of bytes copied
+     */
+    private long copy(ReadableByteChannel source, WritableByteChannel sink, long total) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocateDirect(BLOCK_SIZE);
+        long copied = 0;
+
+        while (source.read(buffer) != -1) {
+            if (cancelled.get())
+                throw new CancelledException();
+
+            buffer.flip();
+            while (buffer.hasRemaining())
+                copied += sink.write(buffer);
+            buffer.clear();
+
+            if (listener != null)
+                listener.onProgress(copied, total);
+        }
+        return copied;
+    }
+
+    /**
+     * @return the filename parameters of a Content-Disposition: the name as a quoted-string
+     * (backslash escaped, RFC 2616) and, if it isn't plain ASCII, as a percent encoded UTF-8
+     * filename* too (RFC 5987), which parsers that know it prefer
+     */
+    private static String filenameParams(String name) throws IOException {
+        StringBuilder quoted = new StringBuilder("filename=\"");
+        StringBuilder extended = new StringBuilder("; filename*=UTF-8''");
+        boolean ascii = true;
+
+        for (int i = 0; i < name.length(); i++) {
+            char c = name.charAt(i);
+            if (c == '"' || c == '\\')
+                quoted.append('\\');
+            quoted.append(c < 0x20 || c == 0x7f ? '_' : c);
+            ascii &= c < 0x80;
+        }
+        for (byte b : name.getBytes("UTF-8")) {
+            char c = (char) (b & 0xff);
+            if ((c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9')
+                    || "!#$&+-.^_`|~".indexOf(c) >= 0)
+                extended.append(c);
+            else
+                extended.append('%').append(Character.toUpperCase(Character.forDigit(c >> 4, 16)))
+                        .append(Character.toUpperCase(Character.forDigit(c & 0xf, 16)));
+        }
+        return quoted.append('"') + (ascii ? "" : extended.toString());
+    }
+
+    private static long parseLength(String length) {
+        try {
+            return length == null ? -1 : Long.parseLong(length);
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+}
@@ -0,0 +1,563 @@
+package org.apache.cordova.ipfs;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+
+/**
+ * Owns the lifecycle of the IPFS daemon process through an explicit state machine
+ * (STOPPED, STARTING, READY, STOPPING, CRASHED).
+ * Every decision is taken on a single "ipfs-supervisor" thread, so concurrent start / stop calls
+ * are serialized and coalesced: a start while STARTING waits for the same launch, a stop while
+ * STARTING stops the daemon as soon as it's up, a start while STOPPING starts it again afterwards.
+ * Blocking work (launching, stopping, waiting for the process to exit) runs on a separate worker
+ * pool; stopping is graceful: API shutdown, then SIGTERM, then kill, each after its own deadline;
+ * a daemon still running KILL_TIMEOUT ms after the kill fails the stop (it's left STOPPED, with
+ * the error in the info of the transition).
+ * A daemon that exits while READY is CRASHED and restarted with exponential backoff,
+ * as long as the restart budget (maxRestarts within restartWindow) is not spent; a restart that
+ * fails to launch is one more crash, it goes back to CRASHED and the next restart is backed off
+ * the same way, until the budget is spent and the daemon is STOPPED.
+ * The supervisors of several nodes can share the same supervisor thread (see IpfsNodes).
+ *
+ * @author xSkyripper
+ */
+class IpfsDaemonSupervisor {
+    private static final String LOG_TAG = "#######CIP######";
+
+    enum State {STOPPED, STARTING, READY, STOPPING, CRASHED}
+
+    /**
+     * Spawns and waits for the daemon; implemented by the plugin
+     */
+    interface Launcher {
+        /**
+         * Prepares the repo and spawns the daemon process
+         */
+        Process spawn() throws Exception;
+
+        /**
+         * Blocks until the spawned daemon is ready
+         *
+         * @return the readiness info (endpoint, timings) passed to the start callbacks
+         */
+        JSONObject awaitReady(Process process, long spawnStarted, long spawned) throws Exception;
+    }
+
+    /**
+     * Receives every state transition, on the supervisor thread
+     */
+    interface Listener {
+        void onStateChanged(State state, State previous, JSONObject info);
+    }
+
+    /**
+     * Receives the result of a start / stop request
+     */
+    interface Callback {
+        void success(JSONObject result);
+
+        void error(String message);
+    }
+
+    private final Launcher launcher;
+    private final Listener listener;
+    private final ScheduledExecutorService control;
+    private final boolean ownsControl;
+    private final ExecutorService worker;
+
+    private final AtomicReference<State> state = new AtomicReference<State>(State.STOPPED);
+    private final List<Callback> startWaiters = new ArrayList<Callback>();
+    private final List<Callback> stopWaiters = new ArrayList<Callback>();
+    private final List<Long> restarts = new ArrayList<Long>();
+
+    // written on the supervisor thread, read from any thread
+    private volatile Process process = null;
+    private volatile JSONObject readyInfo = null;
+    private long generation = 0;
+    private boolean restartAfterStop = false;
+    // the current launch is an automatic restart after a crash
+    private boolean restarting = false;
+
+    private volatile boolean autoRestart = true;
+    private volatile int maxRestarts = 5;
+    private volatile long restartWindow = 10 * 60 * 1000;
+    private volatile long restartBackoff = 1000;
+    private volatile long shutdownTimeout = 5000;
+    private volatile long termTimeout = 3000;
+    private static final long MAX_RESTART_BACKOFF = 30000;
+    private static final long KILL_TIMEOUT = 5000;
+
+    IpfsDaemonSupervisor(Launcher launcher, Listener listener) {
+        this(launcher, listener, null);
+    }
+
+    /**
+     * @param control the single supervisor thread, shared with other supervisors and shut down by
+     *                its owner; null to get an own thread
+     */
+    IpfsDaemonSupervisor(Launcher launcher, Listener listener, ScheduledExecutorService control) {
+        this.launcher = launcher;
+        this.listener = listener;
+        this.ownsControl = control == null;
+        this.control = control != null ? control : supervisorThread();
+        this.worker = Executors.newCachedThreadPool(threadFactory("ipfs-supervisor-worker"));
+    }
+
+    /**
+     * @return a new single supervisor thread
+     */
+    static ScheduledExecutorService supervisorThread() {
+        return Executors.newSingleThreadScheduledExecutor(threadFactory("ipfs-supervisor"));
+    }
+
+    /**
+     * @param autoRestart    restart the daemon when it crashes
+     * @param maxRestarts    the maximum number of restarts within restartWindow
+     * @param restartWindow  the window (ms) the restarts are counted in
+     * @param restartBackoff the delay (ms) before the first restart, doubled for every next one
+     */
+    void setRestartPolicy(boolean autoRestart, int maxRestarts, long restartWindow, long restartBackoff) {
+        this.autoRestart = autoRestart;
+        this.maxRestarts = maxRestarts;
+        this.restartWindow = restartWindow;
+        this.restartBackoff = restartBackoff;
+    }
+
+    /**
+     * @param shutdownTimeout the time (ms) the daemon gets to exit after /api/v0/shutdown
+     * @param termTimeout     the time (ms) the daemon gets to exit after SIGTERM
+     */
+    void setStopTimeouts(long shutdownTimeout, long termTimeout) {
+        this.shutdownTimeout = shutdownTimeout;
+        this.termTimeout = termTimeout;
+    }
+
+    State state() {
+        return state.get();
+    }
+
+    /**
+     * @return the daemon process, or null if it's not running
+     */
+    Process process() {
+        return process;
+    }
+
+    /**
+     * Starts the daemon, or joins the launch in progress; the callback gets the readiness info
+     */
+    void start(final Callback callback) {
+        control.execute(new Runnable() {
+            @Override
+            public void run() {
+                switch (state.get()) {
+                    case READY:
+                        callback.success(readyInfo);
+                        break;
+                    case STARTING:
+                        startWaiters.add(callback);
+                        break;
+                    case STOPPING:
+                        startWaiters.add(callback);
+                        restartAfterStop = true;
+                        break;
+                    default:
+                        startWaiters.add(callback);
+                        restarts.clear();
+                        restarting = false;
+                        launch();
+                }
+            }
+        });
+    }
+
+    /**
+     * Stops the daemon, or joins the stop in progress; a daemon that is STARTING is stopped
+     * as soon as it's up
+     */
+    void stop(final Callback callback) {
+        control.execute(new Runnable() {
+            @Override
+            public void run() {
+                switch (state.get()) {
+                    case STOPPED:
+                    case CRASHED:
+                        restarts.clear();
+                        generation++;
+                        if (state.get() == State.CRASHED)
+                            transition(State.STOPPED, null);
+                        callback.success(new JSONObject());
+                        break;
+                    case STARTING:
+                    case STOPPING:
+                        stopWaiters.add(callback);
+                        restartAfterStop = false;
+                        break;
+                    default:
+                        stopWaiters.add(callback);
+                        terminate();
+                }
+            }
+        });
+    }
+
+    /**
+     * Stops the daemon gracefully if it's running and then the supervisor threads (a shared
+     * supervisor thread is left to its owner)
+     */
+    void shutdown() {
+        control.execute(new Runnable() {
+            @Override
+            public void run() {
+                final Process stopping = process;
+                final String api = readyInfo == null ? null : readyInfo.optString("api", null);
+                generation++;
+                if (ownsControl)
+                    control.shutdown();
+
+                worker.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            if (stopping != null)
+                                gracefulStop(stopping, api);
+                        } catch (IOException e) {
+                            IpfsLog.d(LOG_TAG, e.getMessage());
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                        }
+                        worker.shutdown();
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * Runs on the supervisor thread; spawns the daemon on the worker pool
+     */
+    private void launch() {
+        final long launchGeneration = ++generation;
+        transition(State.STARTING, null);
+
+        worker.execute(new Runnable() {
+            @Override
+            public void run() {
+                Process spawned = null;
+                try {
+                    long spawnStarted = System.nanoTime();
+                    spawned = launcher.spawn();
+                    long spawnEnded = System.nanoTime();
+                    watch(spawned, launchGeneration);
+
+                    final Process startedProcess = spawned;
+                    final JSONObject info = launcher.awaitReady(spawned, spawnStarted, spawnEnded);
+                    post(new Runnable() {
+                        @Override
+                        public void run() {
+                            onReady(startedProcess, info, launchGeneration);
+                        }
+                    });
+                } catch (final Exception e) {
+                    IpfsLog.d(LOG_TAG, "IPFS daemon launch failed: " + e.toString());
+                    if (spawned != null)
+                        spawned.destroy();
+                    post(new Runnable() {
+                        @Override
+                        public void run() {
+                            onLaunchFailed(e, launchGeneration);
+                        }
+                    });
+                }
+            }
+        });
+    }
+
+    private void onReady(Process startedProcess, JSONObject info, long launchGeneration) {
+        if (launchGeneration != generation || state.get() != State.STARTING) {
+            startedProcess.destroy();
+            return;
+        }
+
+        process = startedProcess;
+        readyInfo = info;
+        restarting = false;
+        transition(State.READY, info);
+
+        for (Callback waiter : drain(startWaiters))
+            waiter.success(info);
+
+        if (!stopWaiters.isEmpty())
+            terminate();
+    }
+
+    private void onLaunchFailed(Exception e, long launchGeneration) {
+        if (launchGeneration != generation)
+            return;
+
+        process = null;
+        readyInfo = null;
+        boolean restart = restarting;
+        restarting = false;
+
+        if (restart && stopWaiters.isEmpty() && restartBudgetLeft()) {
+            transition(State.CRASHED, errorInfo(e.toString()));
+            for (Callback waiter : drain(startWaiters))
+                waiter.error(e.toString());
+            scheduleRestart();
+            return;
+        }
+
+        if (restart)
+            IpfsLog.d(LOG_TAG, "IPFS daemon restart failed, restart budget spent (" + restarts.size() + " restarts)");
+        transition(State.STOPPED, errorInfo(e.toString()));
+
+        for (Callback waiter : drain(startWaiters))
+            waiter.error(e.toString());
+        for (Callback waiter : drain(stopWaiters))
+            waiter.success(new JSONObject());
+    }
+
+    /**
+     * Runs on the supervisor thread; stops the daemon gracefully on the worker pool
+     */
+    private void terminate() {
+        final Process stopping = process;
+        final String api = readyInfo == null ? null : readyInfo.optString("api", null);
+        final long stopGeneration = ++generation;
+        transition(State.STOPPING, null);
+
+        worker.execute(new Runnable() {
+            @Override
+            public void run() {
+                int exitCode = -1;
+                String error = null;
+                try {
+                    exitCode = gracefulStop(stopping, api);
+                } catch (IOException e) {
+                    error = e.getMessage();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+
+                final int code = exitCode;
+                final String stopError = error;
+                post(new Runnable() {
+                    @Override
+                    public void run() {
+                        onStopped(code, stopError, stopGeneration);
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * @param error why the daemon couldn't be stopped; null if it exited
+     */
+    private void onStopped(int exitCode, String error, long stopGeneration) {
+        if (stopGeneration != generation)
+            return;
+
+        process = null;
+        readyInfo = null;
+        JSONObject info = error == null ? new JSONObject() : errorInfo(error);
+        try {
+            info.put("exitCode", exitCode);
+        } catch (JSONException ignored) {
+        }
+        transition(State.STOPPED, info);
+
+        for (Callback waiter : drain(stopWaiters)) {
+            if (error == null)
+                waiter.success(info);
+            else
+                waiter.error(error);
+        }
+
+        if (restartAfterStop) {
+            restartAfterStop = false;
+            launch();
+        }
+    }
+
+    /**
+     * Stops the daemon in steps, each one with its own deadline: /api/v0/shutdown (lets go-ipfs
+     * flush its datastore), then SIGTERM, then Process.destroy()
+     * The daemon gets a SIGCONT first, in case it was suspended
+     *
+     * @param stopping the daemon process
+     * @param api      the API endpoint of the daemon; null to skip the API shutdown
+     * @return the exit code of the daemon
+     * @throws IOException          if the daemon is still running KILL_TIMEOUT ms after being destroyed
+     * @throws InterruptedException if the waiting thread is interrupted
+     */
+    private int gracefulStop(Process stopping, String api) throws IOException, InterruptedException {
+        int pid = IpfsProcesses.pid(stopping);
+        IpfsProcesses.signal(pid, IpfsProcesses.SIGCONT);
+
+        if (api != null && requestShutdown(api) && IpfsProcesses.waitFor(stopping, shutdownTimeout)) {
+            IpfsLog.d(LOG_TAG, "IPFS daemon stopped through the API");
+            return stopping.exitValue();
+        }
+
+        if (IpfsProcesses.signal(pid, IpfsProcesses.SIGTERM) && IpfsProcesses.waitFor(stopping, termTimeout)) {
+            IpfsLog.d(LOG_TAG, "IPFS daemon stopped by SIGTERM");
+            return stopping.exitValue();
+        }
+
+        IpfsLog.d(LOG_TAG, "IPFS daemon didn't stop in time, destroying it");
+        stopping.destroy();
+        if (!IpfsProcesses.waitFor(stopping, KILL_TIMEOUT))
+            throw new IOException("IPFS daemon " + pid + " still running " + KILL_TIMEOUT + " ms after being killed");
+        return stopping.exitValue();
+    }
+
+    private boolean requestShutdown(String api) {
+        HttpURLConnection conn = null;
+        try {
+            conn = (HttpURLConnection) new URL(api + "/api/v0/shutdown").openConnection();
+            conn.setRequestMethod("POST");
+            conn.setConnectTimeout(1000);
+            conn.setReadTimeout((int) Math.max(1000, shutdownTimeout));
+            return conn.getResponseCode() == HttpURLConnection.HTTP_OK;
+        } catch (IOException e) {
+            IpfsLog.d(LOG_TAG, "IPFS daemon API shutdown failed: " + e.toString());
+            return false;
+        } finally {
+            if (conn != null)
+                conn.disconnect();
+        }
+    }
+
+    /**
+     * Posts the result of a worker task to the supervisor thread; once the supervisor thread was
+     * shut down (see shutdown and IpfsNodes.shutdown) the result is dropped
+     */
+    private void post(Runnable event) {
+        try {
+            control.execute(event);
+        } catch (RejectedExecutionException e) {
+            IpfsLog.d(LOG_TAG, "IPFS supervisor shut down, event dropped");
+        }
+    }
+
+    /**
+     * Waits for the process to exit on the worker pool; an exit that was not requested by a stop
+     * is handled as a crash
+     */
+    private void watch(final Process watched, final long watchGeneration) {
+        worker.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    final int exitCode = watched.waitFor();
+                    post(new Runnable() {
+                        @Override
+                        public void run() {
+                            onExited(exitCode, watchGeneration);
+                        }
+                    });
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        });
+    }
+
+    private void onExited(int exitCode, long watchGeneration) {
+        if (watchGeneration != generation || state.get() != State.READY)
+            return;
+
+        process = null;
+        readyInfo = null;
+        JSONObject info = errorInfo("IPFS daemon exited with " + exitCode);
+        transition(State.CRASHED, info);
+
+        if (!restartBudgetLeft()) {
+            IpfsLog.d(LOG_TAG, "IPFS daemon crashed, restart budget spent (" + restarts.size() + " restarts)");
+            return;
+        }
+        scheduleRestart();
+    }
+
+    /**
+     * Drops the restarts that left the restart window
+     *
+     * @return true if the daemon may be restarted once more
+     */
+    private boolean restartBudgetLeft() {
+        long now = System.currentTimeMillis();
+        while (!restarts.isEmpty() && now - restarts.get(0) > restartWindow)
+            restarts.remove(0);
+        return autoRestart && restarts.size() < maxRestarts;
+    }
+
+    /**
+     * Runs on the supervisor thread, while CRASHED; relaunches the daemon after the backoff of
+     * the restarts in the window, unless it's started or stopped meanwhile
+     */
+    private void scheduleRestart() {
+        long delay = Math.min(restartBackoff << Math.min(restarts.size(), 16), MAX_RESTART_BACKOFF);
+        restarts.add(System.currentTimeMillis());
+        final long crashGeneration = generation;
+        IpfsLog.d(LOG_TAG, "IPFS daemon crashed, restarting in " + delay + " ms");
+
+        control.schedule(new Runnable() {
+            @Override
+            public void run() {
+                if (crashGeneration == generation && state.get() == State.CRASHED) {
+                    restarting = true;
+                    launch();
+                }
+            }
+        }, delay, TimeUnit.MILLISECONDS);
+    }
+
+    private void transition(State next, JSONObject info) {
+        State previous = state.getAndSet(next);
+        IpfsLog.d(LOG_TAG, "IPFS daemon " + previous + " -> " + next);
+        if (listener != null)
+            listener.onStateChanged(next, previous, info);
+    }
+
+    private static List<Callback> drain(List<Callback> waiters) {
+        List<Callback> drained = new ArrayList<Callback>(waiters);
+        waiters.clear();
+        return drained;
+    }
+
+    private static JSONObject errorInfo(String message) {
+        JSONObject info = new JSONObject();
+        try {
+            info.put("error", message);
+        } catch (JSONException ignored) {
+        }
+        return info;
+    }
+
+    private static ThreadFactory threadFactory(final String name) {
+        return new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, name);
+                thread.setDaemon(true);
+                return thread;
+            }
+        };
+    }
+}
@@ -0,0 +1,472 @@
+package org.apache.cordova.ipfs;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+
+/**
+ * Resumable download engine used for fetching the go-ipfs archive.
+ * The remote file is probed with a one byte Range request; if the server supports ranges,
+ * the file is split into segments that are downloaded in parallel and written with positional
+ * FileChannel writes into a preallocated ".part" file. The progress of each segment is
+ * checkpointed in a ".state" file (together with the ETag / Last-Modified validator), so an
+ * interrupted download continues from where it stopped on the next "init".
+ * If the server has no range support, the file is downloaded as a single stream.
+ * The downloaded bytes are reported to a ProgressListener after every block, which is expected
+ * to throttle its own reporting (see IpfsInitProgress).
+ *
+ * @author xSkyripper
+ */
+class IpfsDownloader {
+    private static final String LOG_TAG = "#######CIP######";
+
+    private static final int BLOCK_SIZE = 65536;
+    private static final long MIN_SEGMENT_SIZE = 1024 * 1024;
+    private static final long CHECKPOINT_BYTES = 1024 * 1024;
+    private static final int MAX_RETRIES = 5;
+    private static final int CONNECT_TIMEOUT = 15000;
+    private static final int READ_TIMEOUT = 30000;
+
+    private final URL src;
+    private final File target;
+    private final File partFile;
+    private final File stateFile;
+    private final int segments;
+    private final IpfsContentTransfer.ProgressListener listener;
+
+    private String validator;
+    private long length;
+    private long[] segmentStarts;
+    private long[] segmentEnds;
+    private AtomicLongArray segmentDone;
+    private final AtomicLong totalDownloaded = new AtomicLong();
+    private long resumedAt = 0;
+    private FileChannel channel;
+    private long retryBackoff = 500;
+
+    /**
+     * @param src      the URL of the file to be downloaded
+     * @param target   the file the download is saved to
+     * @param segments the maximum number of parallel segments (1 disables segmenting)
+     * @param listener receives the downloaded bytes (resumed part included); may be null
+     */
+    IpfsDownloader(URL src, File target, int segments, IpfsContentTransfer.ProgressListener listener) {
+        this.src = src;
+        this.target = target;
+        this.partFile = new File(target.getPath() + ".part");
+        this.stateFile = new File(target.getPath() + ".state");
+        this.segments = Math.max(1, segments);
+        this.listener = listener;
+    }
+
+    /**
+     * Downloads the file, resuming a previous partial download if the remote validator
+     * (ETag / Last-Modified) and length still match. The target is left untouched if it
+     * already exists with the same length as the remote file
+     *
+     * @throws Exception if the server returned an unexpected HTTP code or if a segment failed
+     *                   more than MAX_RETRIES times in a row
+     */
+    void download() throws Exception {
+        IpfsLog.d(LOG_TAG, "STARTING DOWNLOAD");
+
+        boolean rangeSupport = this.probe();
+
+        if (target.exists() && target.length() == length) {
+            IpfsLog.d(LOG_TAG, "archive exists and has the same length");
+            return;
+        }
+
+        if (!rangeSupport || length <= 0) {
+            IpfsLog.d(LOG_TAG, "Server has no range support, downloading as a single stream");
+            this.downloadStream();
+        } else {
+            if (!this.loadState())
+                this.createState();
+            try {
+                this.downloadSegments();
+            } catch (SourceChangedException e) {
+                // after the last checkpoint, so the next download starts over
+                stateFile.delete();
+                throw e;
+            }
+        }
+
+        if (target.exists() && !target.delete())
+            throw new IOException("Cannot delete old " + target.getPath());
+        if (!partFile.renameTo(target))
+            throw new IOException("Cannot move " + partFile.getPath() + " to " + target.getPath());
+        stateFile.delete();
+
+        IpfsLog.d(LOG_TAG, "FINISHED DOWNLOADING");
+    }
+
+    /**
+     * @param retryBackoff the delay before the first retry of a dropped connection, doubled on
+     *                     every retry in a row; 500 ms by default
+     */
+    void setRetryBackoff(long retryBackoff) {
+        this.retryBackoff = retryBackoff;
+    }
+
+    /**
+     * @return the number of bytes fetched by the last download, without the resumed part
+     */
+    long transferred() {
+        return Math.max(0, totalDownloaded.get() - resumedAt);
+    }
+
+    /**
+     * Requests the first byte of the file to find out the length, the validator and whether
+     * the server answers Range requests
+     *
+     * @return true if the server answered with "206"
+     * @throws Exception if the server returned something else than "200" or "206"
+     */
+    private boolean probe() throws Exception {
+        HttpURLConnection conn = this.open();
+        conn.setRequestProperty("Range", "bytes=0-0");
+
+        try {
+            int code = conn.getResponseCode();
+            validator = conn.getHeaderField("ETag");
+            if (validator == null)
+                validator = conn.getHeaderField("Last-Modified");
+
+            if (code == HttpURLConnection.HTTP_PARTIAL) {
+                String contentRange = conn.getHeaderField("Content-Range");
+                length = contentRange == null ? -1
+                        : Long.parseLong(contentRange.substring(contentRange.lastIndexOf('/') + 1).trim());
+                return validator != null;
+            }
+            if (code == HttpURLConnection.HTTP_OK) {
+                length = conn.getContentLength();
+                return false;
+            }
+            throw new Exception("Server returned HTTP " + code + " " + conn.getResponseMessage());
+        } finally {
+            conn.disconnect();
+        }
+    }
+
+    /**
+     * Reads the ".state" file of a previous download and keeps it only if it was made for the same
+     * validator and length as the current remote file
+     *
+     * @return true if the previous download can be resumed
+     */
+    private boolean loadState() {
+        if (!stateFile.exists() || !partFile.exists())
+            return false;
+
+        Properties state = new Properties();
+        try {
+            FileInputStream input = new FileInputStream(stateFile);
+            try {
+                state.load(input);
+            } finally {
+                input.close();
+            }
+
+            if (!validator.equals(state.getProperty("validator"))
+                    || length != Long.parseLong(state.getProperty("length"))
+                    || partFile.length() != length)
+                return false;
+
+            int count = Integer.parseInt(state.getProperty("segments"));
+            segmentStarts = new long[count];
+            segmentEnds = new long[count];
+            segmentDone = new AtomicLongArray(count);
+            for (int i = 0; i < count; i++) {
+                segmentStarts[i] = Long.parseLong(state.getProperty("start." + i));
+                segmentEnds[i] = Long.parseLong(state.getProperty("end." + i));
+                segmentDone.set(i, Long.parseLong(state.getProperty("done." + i)));
+                totalDownloaded.addAndGet(segmentDone.get(i));
+            }
+        } catch (Exception e) {
+            IpfsLog.d(LOG_TAG, "Download state " + stateFile.getPath() + " is unusable: " + e.toString());
+            return false;
+        }
+
+        resumedAt = totalDownloaded.get();
+        IpfsLog.d(LOG_TAG, "Resuming download at " + resumedAt + "/" + length + " bytes");
+        return true;
+    }
+
+    /**
+     * Splits the remote file in segments of at least MIN_SEGMENT_SIZE and preallocates the
+     * ".part" file
+     *
+     * @throws IOException if the ".part" file cannot be preallocated
+     */
+    private void createState() throws IOException {
+        int count = (int) Math.max(1, Math.min(segments, length / MIN_SEGMENT_SIZE));
+        long segmentSize = length / count;
+
+        segmentStarts = new long[count];
+        segmentEnds = new long[count];
+        segmentDone = new AtomicLongArray(count);
+        for (int i = 0; i < count; i++) {
+            segmentStarts[i] = i * segmentSize;
+            segmentEnds[i] = (i == count - 1) ? length - 1 : (i + 1) * segmentSize - 1;
+        }
+        totalDownloaded.set(0);
+
+        RandomAccessFile file = new RandomAccessFile(partFile, "rw");
+        try {
+            file.setLength(length);
+        } finally {
+            file.close();
+        }
+        this.saveState(new long[count]);
+    }
+
+    /**
+     * Takes a snapshot of the progress of every segment, forces the downloaded data to disk and
+     * then saves the snapshot; the segments keep writing meanwhile, so the progress read after the
+     * force could count bytes that are not stored yet, while the snapshot only counts bytes that
+     * were written before the force and the ".state" file never claims more than what is stored
+     */
+    private synchronized void checkpoint() {
+        long[] done = new long[segmentDone.length()];
+        for (int i = 0; i < done.length; i++)
+            done[i] = segmentDone.get(i);
+
+        try {
+            channel.force(false);
+            this.saveState(done);
+        } catch (IOException e) {
+            IpfsLog.d(LOG_TAG, "Download checkpoint failed: " + e.toString());
+        }
+    }
+
+    /**
+     * @param done the downloaded bytes of every segment
+     */
+    private void saveState(long[] done) throws IOException {
+        Properties state = new Properties();
+        state.setProperty("validator", validator);
+        state.setProperty("length", String.valueOf(length));
+        state.setProperty("segments", String.valueOf(segmentStarts.length));
+        for (int i = 0; i < segmentStarts.length; i++) {
+            state.setProperty("start." + i, String.valueOf(segmentStarts[i]));
+            state.setProperty("end." + i, String.valueOf(segmentEnds[i]));
+            state.setProperty("done." + i, String.valueOf(done[i]));
+        }
+
+        File tmp = new File(stateFile.getPath() + ".tmp");
+        FileOutputStream output = new FileOutputStream(tmp);
+        try {
+            state.store(output, null);
+        } finally {
+            output.close();
+        }
+        if (!tmp.renameTo(stateFile))
+            throw new IOException("Cannot move " + tmp.getPath() + " to " + stateFile.getPath());
+    }
+
+    /**
+     * Downloads all the unfinished segments in parallel, one thread per segment
+     *
+     * @throws Exception the first error thrown by a segment
+     */
+    private void downloadSegments() throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(segmentStarts.length);
+        List<Future<?>> futures = new ArrayList<Future<?>>();
+        RandomAccessFile file = new RandomAccessFile(partFile, "rw");
+        channel = file.getChannel();
+
+        try {
+            for (int i = 0; i < segmentStarts.length; i++) {
+                final int segment = i;
+                futures.add(executor.submit(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            downloadSegment(segment);
+                        } catch (IOException e) {
+                            throw new RuntimeException(e);
+                        }
+                    }
+                }));
+            }
+
+            for (Future<?> future : futures)
+                future.get();
+        } catch (ExecutionException e) {
+            throw (e.getCause().getCause() instanceof Exception)
+                    ? (Exception) e.getCause().getCause()
+                    : new Exception(e.getCause());
+        } finally {
+            executor.shutdownNow();
+            this.checkpoint();
+            channel.close();
+            file.close();
+        }
+    }
+
+    /**
+     * Downloads the remaining bytes of a segment with "Range" + "If-Range", retrying with
+     * exponential backoff from the last written position when the connection drops
+     *
+     * @param segment the index of the segment
+     * @throws IOException if the file changed on the server or if the segment failed
+     *                     more than MAX_RETRIES times in a row
+     */
+    private void downloadSegment(int segment) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(BLOCK_SIZE);
+        int retries = 0;
+
+        while (segmentStarts[segment] + segmentDone.get(segment) <= segmentEnds[segment]) {
+            long position = segmentStarts[segment] + segmentDone.get(segment);
+            long sinceCheckpoint = 0;
+            HttpURLConnection conn = null;
+
+            try {
+                conn = this.open();
+                conn.setRequestProperty("Range", "bytes=" + position + "-" + segmentEnds[segment]);
+                conn.setRequestProperty("If-Range", validator);
+
+                if (conn.getResponseCode() != HttpURLConnection.HTTP_PARTIAL) {
+                    throw new SourceChangedException("The archive changed on the server (HTTP "
+                            + conn.getResponseCode() + "), the download will restart on next init");
+                }
+
+                InputStream input = conn.getInputStream();
+                int blockSize;
+                while ((blockSize = input.read(buffer.array())) != -1) {
+                    blockSize = (int) Math.min(blockSize, segmentEnds[segment] - position + 1);
+                    buffer.limit(blockSize);
+                    buffer.position(0);
+                    while (buffer.hasRemaining())
+                        position += channel.write(buffer, position);
+
+                    segmentDone.addAndGet(segment, blockSize);
+                    this.progress(totalDownloaded.addAndGet(blockSize));
+
+                    sinceCheckpoint += blockSize;
+                    if (sinceCheckpoint >= CHECKPOINT_BYTES) {
+                        sinceCheckpoint = 0;
+                        this.checkpoint();
+                    }
+                    buffer.clear();
+                    retries = 0;
+                    if (position > segmentEnds[segment])
+                        break;
+                }
+                input.close();
+                if (position <= segmentEnds[segment])
+                    throw new IOException("Connection closed at " + position);
+            } catch (SourceChangedException e) {
+                throw e;
+            } catch (IOException e) {
+                if (++retries > MAX_RETRIES)
+                    throw e;
+
+                IpfsLog.d(LOG_TAG, "Segment " + segment + " interrupted at " + position
+                        + " (" + e.toString() + "), retry " + retries);
+                this.checkpoint();
+                this.backoff(retries);
+            } finally {
+                if (conn != null)
+                    conn.disconnect();
+            }
+        }
+    }
+
+    /**
+     * Downloads the whole file as a single stream, for servers with no range support;
+     * the download restarts from zero when the connection drops
+     *
+     * @throws Exception if the server returned something else than "200" or if the download
+     *                   failed more than MAX_RETRIES times in a row
+     */
+    private void downloadStream() throws Exception {
+        byte block[] = new byte[BLOCK_SIZE];
+        int blockSize;
+        int retries = 0;
+
+        while (true) {
+            HttpURLConnection conn = this.open();
+            try {
+                if (conn.getResponseCode() != HttpURLConnection.HTTP_OK) {
+                    throw new Exception("Server returned HTTP " + conn.getResponseCode()
+                            + " " + conn.getResponseMessage());
+                }
+                length = conn.getContentLength();
+                totalDownloaded.set(0);
+
+                InputStream input = conn.getInputStream();
+                FileOutputStream output = new FileOutputStream(partFile);
+                try {
+                    while ((blockSize = input.read(block)) != -1) {
+                        output.write(block, 0, blockSize);
+                        this.progress(totalDownloaded.addAndGet(blockSize));
+                    }
+                } finally {
+                    output.close();
+                    input.close();
+                }
+                if (length >= 0 && totalDownloaded.get() != length)
+                    throw new IOException("Connection closed at " + totalDownloaded.get() + "/" + length);
+                return;
+            } catch (IOException e) {
+                if (++retries > MAX_RETRIES)
+                    throw e;
+                IpfsLog.d(LOG_TAG, "Download interrupted (" + e.toString() + "), retry " + retries);
+                this.backoff(retries);
+            } finally {
+                conn.disconnect();
+            }
+        }
+    }
+
+    private HttpURLConnection open() throws IOException {
+        HttpURLConnection conn = (HttpURLConnection) src.openConnection();
+        conn.setConnectTimeout(CONNECT_TIMEOUT);
+        conn.setReadTimeout(READ_TIMEOUT);
+        return conn;
+    }
+
+    private void backoff(int retries) throws IOException {
+        try {
+            Thread.sleep(retryBackoff << Math.min(retries, 6));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Download interrupted");
+        }
+    }
+
+    private void progress(long downloaded) {
+        if (listener != null)
+            listener.onProgress(downloaded, length);
+    }
+
+    /**
+     * Thrown when the server stops honouring "If-Range", meaning the remote file was replaced
+     */
+    private static class SourceChangedException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        SourceChangedException(String message) {
+            super(message);
+        }
+    }
+}
@@ -0,0 +1,187 @@
+package org.apache.cordova.ipfs;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+
+/**
+ * Reports the progress of an 'init' as structured events, one phase at a time (download,
+ * extract, initRepo, see IpfsMetrics.Phase): {phase, bytes, total, percent, bytesPerSecond, eta,
+ * elapsed}, with -1 for what is not known yet. The copy loops report every block through
+ * onProgress, which only compares the bytes against the next threshold and the time against the
+ * next deadline: an event is built and sent at most every 'interval' ms and only once the phase
+ * moved by 'step' of its total, so reporting costs nothing to the copy loops and the bridge gets
+ * at most 1000 / interval events per second. The start and the end of every phase are always
+ * reported.
+ * Safe to call from the parallel segments of a download.
+ *
+ * @author xSkyripper
+ */
+class IpfsInitProgress implements IpfsContentTransfer.ProgressListener {
+    private static final String LOG_TAG = "#######CIP######";
+
+    static final long INTERVAL = 100;
+    static final double STEP = 0.01;
+
+    interface Listener {
+        /**
+         * Called on the thread doing the work of the phase
+         *
+         * @param event {phase, bytes, total, percent, bytesPerSecond, eta, elapsed, done}
+         */
+        void onProgress(JSONObject event);
+    }
+
+    private final Listener listener;
+    private final long interval;
+    private final double step;
+    private final JSONObject timings = new JSONObject();
+
+    private IpfsMetrics.Phase phase = null;
+    private long phaseStarted;
+    private volatile long total;
+    private long baseBytes;
+    private long baseAt;
+    private volatile long lastBytes;
+    private volatile long nextBytes;
+    private volatile long nextAt;
+
+    /**
+     * @param listener receives the events; may be null, then only the timings are kept
+     * @param interval the minimum time between 2 events of a phase, in ms
+     * @param step     the minimum progress between 2 events of a phase, as a fraction of its total
+     */
+    IpfsInitProgress(Listener listener, long interval, double step) {
+        this.listener = listener;
+        this.interval = Math.max(0, interval);
+        this.step = Math.max(0, Math.min(1, step));
+    }
+
+    /**
+     * Ends the current phase, if any, and starts the next one
+     *
+     * @param next  the phase
+     * @param total the bytes the phase has to go through; -1 if not known
+     */
+    synchronized void begin(IpfsMetrics.Phase next, long total) {
+        end();
+        phase = next;
+        phaseStarted = System.currentTimeMillis();
+        this.total = total;
+        baseBytes = -1;
+        lastBytes = 0;
+        nextBytes = 0;
+        nextAt = 0;
+        emit(0, false);
+    }
+
+    @Override
+    public void onProgress(long bytes, long total) {
+        lastBytes = bytes;
+        if (total > 0)
+            this.total = total;
+        if (bytes < nextBytes || System.currentTimeMillis() < nextAt)
+            return;
+
+        synchronized (this) {
+            if (phase == null || bytes < nextBytes)
+                return;
+            emit(bytes, false);
+        }
+    }
+
+    /**
+     * Ends the current phase, recording its duration in the timings, and reports it
+     */
+    synchronized void end() {
+        if (phase == null)
+            return;
+
+        long elapsed = System.currentTimeMillis() - phaseStarted;
+        try {
+            timings.put(IpfsMetrics.phaseName(phase), timings.optLong(IpfsMetrics.phaseName(phase), 0) + elapsed);
+        } catch (JSONException e) {
+            e.printStackTrace();
+        }
+        emit(total > 0 ? total : lastBytes, true);
+        phase = null;
+    }
+
+    /**
+     * @return the duration of every phase that ran, in ms, keyed by phase name
+     */
+    synchronized JSONObject timings() {
+        return timings;
+    }
+
+    /**
+     * Wraps a stream so the bytes read from it are reported to the current phase
+     *
+     * @param input the stream
+     * @param total the bytes expected from the stream; -1 if not known
+     * @return the wrapping stream
+     */
+    InputStream track(InputStream input, final long total) {
+        return new FilterInputStream(input) {
+            private long read = 0;
+
+            @Override
+            public int read() throws IOException {
+                int b = super.read();
+                if (b != -1)
+                    onProgress(++read, total);
+                return b;
+            }
+
+            @Override
+            public int read(byte[] buffer, int offset, int length) throws IOException {
+                int count = super.read(buffer, offset, length);
+                if (count > 0)
+                    onProgress(read += count, total);
+                return count;
+            }
+        };
+    }
+
+    private void emit(long bytes, boolean done) {
+        long now = System.currentTimeMillis();
+        long elapsed = now - phaseStarted;
+        // a resumed download starts above zero, only what this phase moved counts for the rate
+        if (baseBytes < 0 && bytes > 0) {
+            // a phase ending before any progress was reported counts from its start
+            baseBytes = done ? 0 : bytes;
+            baseAt = done ? phaseStarted : now;
+        }
+        long moved = baseBytes < 0 ? 0 : bytes - baseBytes;
+        long bytesPerSecond = now > baseAt && moved > 0 ? moved * 1000 / (now - baseAt) : -1;
+
+        nextAt = now + interval;
+        nextBytes = total > 0 ? bytes + (long) (step * total) : 0;
+
+        String name = IpfsMetrics.phaseName(phase);
+        long percent = total > 0 ? Math.min(100, bytes * 100 / total) : -1;
+        if (done || bytes == 0)
+            IpfsLog.d(LOG_TAG, "init " + name + (done ? " done in " + elapsed + " ms" : " started"));
+        if (listener == null)
+            return;
+
+        try {
+            listener.onProgress(new JSONObject()
+                    .put("phase", name)
+                    .put("bytes", bytes)
+                    .put("total", total > 0 ? total : -1)
+                    .put("percent", percent)
+                    .put("bytesPerSecond", bytesPerSecond)
+                    .put("eta", done ? 0 : total > 0 && bytesPerSecond > 0
+                            ? (total - bytes) * 1000 / bytesPerSecond : -1)
+                    .put("elapsed", elapsed)
+                    .put("done", done));
+        } catch (JSONException e) {
+            e.printStackTrace();
+        }
+    }
+}
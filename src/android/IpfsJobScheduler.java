@@ -0,0 +1,692 @@
+package org.apache.cordova.ipfs;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLEncoder;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+
+/**
+ * Background prefetch and pin jobs run against the daemon of a node.
+ * Jobs are queued by priority (then by arrival), a CID already queued or running for the same
+ * kind of job is not queued twice (a higher priority request raises the queued job instead), and
+ * they are run by a resizable pool of workers only while the daemon is READY and the job's
+ * conditions (unmetered network, charging) are met. A failed job is retried with exponential
+ * backoff up to MAX_ATTEMPTS times; a job interrupted by the daemon going away or being suspended
+ * (see setPaused) is requeued without counting an attempt. The queue is saved (atomically) to a
+ * JSON file on every change and reloaded from it, so pending jobs survive app restarts.
+ * Prefetching walks the whole DAG with "refs -r" (fetching every block), pinning uses
+ * "pin add --progress"; both report the blocks done and the blocks per second.
+ * While the repo has a quota (see IpfsRepoGc), a prefetched DAG is soft-pinned, so the quota GC
+ * doesn't delete it right after it was fetched: it's copied to PREFETCH_DIR in the MFS of the
+ * daemon (whose root is a GC root) and recorded with the jobs. A soft pin is not a pin, so it
+ * never touches the pins of the app, whoever made them. The quota GC releases the oldest soft pins
+ * only when the garbage is not enough to get back under its low watermark (see releaseSoftPins),
+ * a manual GC can release them all; a pin job replaces the soft pin of its CID with a regular pin.
+ *
+ * @author xSkyripper
+ */
+class IpfsJobScheduler {
+    private static final String LOG_TAG = "#######CIP######";
+    private static final int CONNECT_TIMEOUT = 5000;
+    private static final int READ_TIMEOUT = 5 * 60 * 1000;
+    private static final int MAX_ATTEMPTS = 5;
+    private static final long MIN_RETRY_BACKOFF = 2000;
+    private static final long MAX_RETRY_BACKOFF = 5 * 60 * 1000;
+    private static final long PROGRESS_INTERVAL = 500;
+    // the MFS directory of the soft pins, one entry per CID
+    static final String PREFETCH_DIR = "/.prefetch";
+
+    enum Type {PREFETCH, PIN}
+
+    interface Listener {
+        /**
+         * Called on a worker thread for every job event
+         *
+         * @param event "queued", "started", "progress", "retry", "done" or "failed"
+         * @param job   the job, see Job.toJSON
+         */
+        void onJobEvent(String event, JSONObject job);
+    }
+
+    private final IpfsNode node;
+    private final List<Job> queue = new ArrayList<Job>();
+    private final Map<String, Job> jobs = new HashMap<String, Job>();
+    private final List<Thread> workerThreads = new ArrayList<Thread>();
+    // the soft-pinned CIDs and when they were pinned, oldest first
+    private final LinkedHashMap<String, Long> softPins = new LinkedHashMap<String, Long>();
+    private volatile Listener listener = null;
+    private volatile long retryBackoff = MIN_RETRY_BACKOFF;
+    private File storeFile = null;
+    private int workers = 2;
+    private int workerSequence = 0;
+    private long nextId = 1;
+    private boolean unmetered = true;
+    private boolean charging = true;
+    private boolean paused = false;
+    private boolean stopped = false;
+
+    /**
+     * @param node the node whose daemon runs the jobs
+     */
+    IpfsJobScheduler(IpfsNode node) {
+        this.node = node;
+    }
+
+    void setListener(Listener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * Sets the file the queue is saved to and loads the jobs saved in it
+     *
+     * @param storeFile the JSON file of the queue
+     */
+    synchronized void open(File storeFile) {
+        if (storeFile.equals(this.storeFile))
+            return;
+        this.storeFile = storeFile;
+
+        if (storeFile.exists()) {
+            try {
+                String content = read(storeFile).trim();
+                JSONArray saved;
+                if (content.startsWith("[")) {
+                    // the jobs only, saved before the soft pins existed
+                    saved = new JSONArray(content);
+                } else {
+                    JSONObject store = new JSONObject(content);
+                    saved = store.getJSONArray("jobs");
+                    JSONArray pins = store.optJSONArray("softPins");
+                    for (int i = 0; pins != null && i < pins.length(); i++)
+                        softPins.put(pins.getJSONObject(i).getString("cid"), pins.getJSONObject(i).optLong("pinnedAt"));
+                }
+                for (int i = 0; i < saved.length(); i++) {
+                    Job job = Job.fromJSON(saved.getJSONObject(i));
+                    nextId = Math.max(nextId, Long.parseLong(job.id.substring(1)) + 1);
+                    if (!jobs.containsKey(job.key())) {
+                        jobs.put(job.key(), job);
+                        queue.add(job);
+                    }
+                }
+                IpfsLog.d(LOG_TAG, "Loaded " + saved.length() + " jobs from " + storeFile.getPath());
+            } catch (Exception e) {
+                IpfsLog.d(LOG_TAG, "Cannot load the jobs from " + storeFile.getPath() + ": " + e.toString());
+            }
+        }
+        this.save();
+        this.ensureWorkers();
+        this.notifyAll();
+    }
+
+    /**
+     * @param workers the number of jobs run at the same time
+     */
+    synchronized void setWorkers(int workers) {
+        this.workers = Math.max(1, workers);
+        this.ensureWorkers();
+        this.notifyAll();
+    }
+
+    /**
+     * @param retryBackoff the delay before the first retry of a failed job, in ms; doubled on
+     *                     every attempt
+     */
+    void setRetryBackoff(long retryBackoff) {
+        this.retryBackoff = Math.max(1, retryBackoff);
+    }
+
+    /**
+     * Updates the device conditions the jobs are gated on
+     *
+     * @param unmetered true if the active network is unmetered
+     * @param charging  true if the device is charging
+     */
+    synchronized void setConditions(boolean unmetered, boolean charging) {
+        if (this.unmetered == unmetered && this.charging == charging)
+            return;
+        this.unmetered = unmetered;
+        this.charging = charging;
+        IpfsLog.d(LOG_TAG, "Job conditions: unmetered " + unmetered + ", charging " + charging);
+        this.notifyAll();
+    }
+
+    /**
+     * Pauses the jobs while the daemon is suspended (SIGSTOP), which would never answer: no job
+     * is started and the requests of the running ones are closed, so they are requeued
+     *
+     * @param paused true while the daemon is suspended
+     */
+    void setPaused(boolean paused) {
+        final List<HttpURLConnection> requests = new ArrayList<HttpURLConnection>();
+        synchronized (this) {
+            if (this.paused == paused)
+                return;
+            this.paused = paused;
+            IpfsLog.d(LOG_TAG, "Jobs " + (paused ? "paused" : "resumed"));
+            if (paused)
+                for (Job job : jobs.values())
+                    if (job.conn != null)
+                        requests.add(job.conn);
+            this.notifyAll();
+        }
+        if (requests.isEmpty())
+            return;
+
+        // closed on their own thread, as in IpfsRepoGc.abort
+        Thread disconnect = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                for (HttpURLConnection conn : requests)
+                    conn.disconnect();
+            }
+        }, "ipfs-jobs-pause");
+        disconnect.setDaemon(true);
+        disconnect.start();
+    }
+
+    /**
+     * Wakes the workers up, e.g. once the daemon is READY
+     */
+    synchronized void wake() {
+        this.notifyAll();
+    }
+
+    /**
+     * Queues a job for every CID
+     *
+     * @param type              the kind of the jobs
+     * @param cids              the CIDs
+     * @param priority          the higher, the sooner
+     * @param requireUnmetered  if true, the jobs only run on an unmetered network
+     * @param requireCharging   if true, the jobs only run while charging
+     * @return the jobs (the existing job for a CID that was already queued or running)
+     */
+    JSONArray submit(Type type, List<String> cids, int priority, boolean requireUnmetered, boolean requireCharging) {
+        List<JSONObject> queued = new ArrayList<JSONObject>();
+        JSONArray result = new JSONArray();
+
+        synchronized (this) {
+            for (String cid : cids) {
+                Job job = jobs.get(type + ":" + cid);
+                if (job == null) {
+                    job = new Job("j" + (nextId++), type, cid, priority, requireUnmetered, requireCharging);
+                    jobs.put(job.key(), job);
+                    queue.add(job);
+                    queued.add(job.toJSON());
+                } else if (!job.running && priority > job.priority) {
+                    job.priority = priority;
+                }
+                result.put(job.toJSON());
+            }
+            this.save();
+            this.ensureWorkers();
+            this.notifyAll();
+        }
+
+        for (JSONObject job : queued)
+            this.emit("queued", job);
+        return result;
+    }
+
+    /**
+     * @return the queued and running jobs
+     */
+    synchronized JSONArray list() {
+        JSONArray list = new JSONArray();
+        for (Job job : jobs.values())
+            list.put(job.toJSON());
+        return list;
+    }
+
+    /**
+     * Releases the oldest soft-pinned DAGs (removes their MFS entries) until their estimated size
+     * (the CumulativeSize of their root) reaches the given amount, so the next GC can collect the
+     * blocks nothing else references; called by the quota GC and by a manual GC asked to
+     *
+     * @param api   the API endpoint of the daemon
+     * @param bytes the amount of bytes to release
+     * @return the number of soft pins released
+     */
+    int releaseSoftPins(String api, long bytes) {
+        List<String> oldest;
+        synchronized (this) {
+            oldest = new ArrayList<String>(softPins.keySet());
+        }
+
+        int released = 0;
+        long releasedBytes = 0;
+        for (Iterator<String> it = oldest.iterator(); it.hasNext() && releasedBytes < bytes; ) {
+            String cid = it.next();
+            try {
+                long size = 0;
+                try {
+                    size = new JSONObject(call(api + "/api/v0/object/stat?arg=" + URLEncoder.encode(cid, "UTF-8")))
+                            .optLong("CumulativeSize", 0);
+                } catch (IOException e) {
+                    IpfsLog.d(LOG_TAG, "Cannot stat " + cid + ", releasing it anyway: " + e.toString());
+                }
+                synchronized (this) {
+                    // pinned by a pin job meanwhile
+                    if (!softPins.containsKey(cid))
+                        continue;
+                    softPins.remove(cid);
+                    this.save();
+                }
+                unlink(api, cid);
+                released++;
+                releasedBytes += size;
+            } catch (Exception e) {
+                IpfsLog.d(LOG_TAG, "Cannot release the soft pin of " + cid + ": " + e.toString());
+            }
+        }
+        IpfsLog.d(LOG_TAG, "Released " + released + " soft pins, about " + releasedBytes + " bytes");
+        return released;
+    }
+
+    /**
+     * @return the soft-pinned CIDs, oldest first
+     */
+    synchronized List<String> softPins() {
+        return new ArrayList<String>(softPins.keySet());
+    }
+
+    synchronized void shutdown() {
+        stopped = true;
+        for (Thread worker : workerThreads)
+            worker.interrupt();
+        this.notifyAll();
+    }
+
+    private void ensureWorkers() {
+        while (!stopped && workerThreads.size() < workers && !queue.isEmpty()) {
+            Thread worker = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    work();
+                }
+            }, "ipfs-jobs-" + (workerSequence++));
+            worker.setDaemon(true);
+            worker.setPriority(Thread.MIN_PRIORITY);
+            workerThreads.add(worker);
+            worker.start();
+        }
+    }
+
+    /**
+     * The loop of a worker: takes the next runnable job and runs it, until the scheduler is
+     * stopped or there are more workers than wanted; it's the live workers that are counted, so
+     * a pool that shrinks while its workers are busy gets back to the wanted size as they finish,
+     * whichever finishes first
+     */
+    private void work() {
+        try {
+            while (true) {
+                Job job;
+                String api;
+                synchronized (this) {
+                    while (true) {
+                        if (stopped || workerThreads.size() > workers) {
+                            workerThreads.remove(Thread.currentThread());
+                            return;
+                        }
+                        api = node.api();
+                        long wait = 0;
+                        job = null;
+                        if (api != null && !paused) {
+                            long now = System.currentTimeMillis();
+                            for (Job candidate : queue) {
+                                if (candidate.requireUnmetered && !unmetered || candidate.requireCharging && !charging)
+                                    continue;
+                                if (candidate.notBefore > now) {
+                                    wait = wait == 0 ? candidate.notBefore - now : Math.min(wait, candidate.notBefore - now);
+                                    continue;
+                                }
+                                if (job == null || candidate.priority > job.priority)
+                                    job = candidate;
+                            }
+                        }
+                        if (job != null)
+                            break;
+                        this.wait(wait);
+                    }
+                    queue.remove(job);
+                    job.running = true;
+                    job.attempts++;
+                }
+
+                this.emit("started", job.toJSON());
+                this.run(job, api);
+            }
+        } catch (InterruptedException e) {
+            synchronized (this) {
+                workerThreads.remove(Thread.currentThread());
+            }
+        }
+    }
+
+    /**
+     * Runs a job and requeues it (with backoff) or drops it according to the result
+     */
+    private void run(Job job, String api) {
+        String error;
+        try {
+            this.execute(job, api);
+            if (job.type == Type.PREFETCH)
+                this.softPin(job.cid, api);
+            boolean wasSoftPinned;
+            synchronized (this) {
+                jobs.remove(job.key());
+                // pinned by the app: it's not released by the GC anymore
+                wasSoftPinned = job.type == Type.PIN && softPins.remove(job.cid) != null;
+                this.save();
+            }
+            if (wasSoftPinned)
+                unlinkQuietly(api, job.cid);
+            this.emit("done", job.toJSON());
+            return;
+        } catch (Exception e) {
+            error = e.toString();
+        }
+
+        String event;
+        synchronized (this) {
+            job.running = false;
+            job.error = error;
+            if (node.api() == null || paused) {
+                // the daemon went away or was suspended: not the job's fault
+                job.attempts--;
+                queue.add(job);
+                event = "retry";
+            } else if (job.attempts < MAX_ATTEMPTS) {
+                job.notBefore = System.currentTimeMillis()
+                        + Math.min(MAX_RETRY_BACKOFF, retryBackoff << (job.attempts - 1));
+                queue.add(job);
+                event = "retry";
+            } else {
+                jobs.remove(job.key());
+                event = "failed";
+            }
+            this.save();
+            this.notifyAll();
+        }
+
+        IpfsLog.d(LOG_TAG, "Job " + job.id + " " + event + ": " + error);
+        this.emit(event, job.toJSON());
+    }
+
+    /**
+     * Streams the API call of the job, counting the blocks
+     *
+     * @throws IOException if the API failed or reported an error
+     */
+    private void execute(Job job, String api) throws IOException, JSONException {
+        String path = job.type == Type.PIN
+                ? "/api/v0/pin/add?progress=true&arg=" + URLEncoder.encode(job.cid, "UTF-8")
+                : "/api/v0/refs?recursive=true&unique=true&arg=" + URLEncoder.encode(job.cid, "UTF-8");
+
+        HttpURLConnection conn = (HttpURLConnection) new URL(api + path).openConnection();
+        job.conn = conn;
+        try {
+            conn.setRequestMethod("POST");
+            conn.setConnectTimeout(CONNECT_TIMEOUT);
+            conn.setReadTimeout(READ_TIMEOUT);
+            // setPaused closes the connected request, or it's refused here
+            conn.connect();
+            synchronized (this) {
+                if (paused)
+                    throw new IOException("The IPFS daemon is suspended");
+            }
+            if (conn.getResponseCode() != HttpURLConnection.HTTP_OK)
+                throw new IOException("IPFS API returned HTTP " + conn.getResponseCode() + " for " + job.cid);
+
+            long started = System.currentTimeMillis();
+            long lastSent = started;
+            // a retry walks the DAG from its root again
+            job.blocks = 0;
+            BufferedReader reader = new BufferedReader(new InputStreamReader(conn.getInputStream(), "UTF-8"));
+            try {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    if (line.length() == 0)
+                        continue;
+
+                    JSONObject output = new JSONObject(line);
+                    String err = output.optString("Err", output.optString("Message", ""));
+                    if (err.length() > 0)
+                        throw new IOException(err);
+
+                    job.blocks = job.type == Type.PIN ? output.optLong("Progress", job.blocks) : job.blocks + 1;
+                    long now = System.currentTimeMillis();
+                    if (now - lastSent >= PROGRESS_INTERVAL) {
+                        lastSent = now;
+                        job.blocksPerSecond = job.blocks * 1000 / Math.max(1, now - started);
+                        this.emit("progress", job.toJSON());
+                    }
+                }
+            } finally {
+                reader.close();
+            }
+            job.blocksPerSecond = job.blocks * 1000 / Math.max(1, System.currentTimeMillis() - started);
+        } finally {
+            job.conn = null;
+            conn.disconnect();
+        }
+    }
+
+    /**
+     * Soft-pins a prefetched DAG: links it into PREFETCH_DIR and records it; the blocks are all in
+     * the repo, so it doesn't fetch anything. Without a quota nothing would ever release it, so
+     * the DAG is left to the GC then
+     */
+    private void softPin(String cid, String api) throws IOException {
+        synchronized (this) {
+            if (softPins.containsKey(cid)) {
+                // prefetched again, it's the newest one now
+                softPins.remove(cid);
+                softPins.put(cid, System.currentTimeMillis());
+                this.save();
+                return;
+            }
+        }
+        if (!node.gc().hasQuota())
+            return;
+
+        String entry = URLEncoder.encode(PREFETCH_DIR + "/" + cid, "UTF-8");
+        call(api + "/api/v0/files/mkdir?parents=true&arg=" + URLEncoder.encode(PREFETCH_DIR, "UTF-8"));
+        try {
+            call(api + "/api/v0/files/cp?arg=" + URLEncoder.encode("/ipfs/" + cid, "UTF-8") + "&arg=" + entry);
+        } catch (IOException e) {
+            // linked by a previous run whose store was lost
+            try {
+                call(api + "/api/v0/files/stat?arg=" + entry);
+            } catch (IOException stat) {
+                throw e;
+            }
+        }
+        synchronized (this) {
+            softPins.put(cid, System.currentTimeMillis());
+            this.save();
+        }
+    }
+
+    /**
+     * Removes the MFS entry of a soft pin
+     */
+    private static void unlink(String api, String cid) throws IOException {
+        call(api + "/api/v0/files/rm?recursive=true&arg=" + URLEncoder.encode(PREFETCH_DIR + "/" + cid, "UTF-8"));
+    }
+
+    private static void unlinkQuietly(String api, String cid) {
+        try {
+            unlink(api, cid);
+        } catch (IOException e) {
+            IpfsLog.d(LOG_TAG, "Cannot remove the soft pin of " + cid + ": " + e.toString());
+        }
+    }
+
+    /**
+     * POSTs an API call
+     *
+     * @return the response body
+     * @throws IOException if the API didn't answer with "200"
+     */
+    private static String call(String url) throws IOException {
+        HttpURLConnection conn = (HttpURLConnection) new URL(url).openConnection();
+        try {
+            conn.setRequestMethod("POST");
+            conn.setConnectTimeout(CONNECT_TIMEOUT);
+            conn.setReadTimeout(READ_TIMEOUT);
+            if (conn.getResponseCode() != HttpURLConnection.HTTP_OK)
+                throw new IOException("IPFS API returned HTTP " + conn.getResponseCode() + " for " + url);
+            return read(conn.getInputStream());
+        } finally {
+            conn.disconnect();
+        }
+    }
+
+    private void emit(String event, JSONObject job) {
+        Listener current = listener;
+        if (current != null)
+            current.onJobEvent(event, job);
+    }
+
+    /**
+     * Saves the queued and running jobs and the soft pins to the store file (tmp file, fsync and
+     * rename); must be called with the scheduler lock held
+     */
+    private void save() {
+        if (storeFile == null)
+            return;
+
+        File tmp = new File(storeFile.getPath() + ".tmp");
+        try {
+            JSONArray savedJobs = new JSONArray();
+            for (Job job : jobs.values())
+                savedJobs.put(job.toJSON());
+            JSONArray savedPins = new JSONArray();
+            for (Map.Entry<String, Long> pin : softPins.entrySet())
+                savedPins.put(new JSONObject().put("cid", pin.getKey()).put("pinnedAt", pin.getValue()));
+            JSONObject saved = new JSONObject().put("jobs", savedJobs).put("softPins", savedPins);
+
+            FileOutputStream output = new FileOutputStream(tmp);
+            try {
+                OutputStreamWriter writer = new OutputStreamWriter(output, "UTF-8");
+                writer.write(saved.toString());
+                writer.flush();
+                output.getFD().sync();
+            } finally {
+                output.close();
+            }
+            if (!tmp.renameTo(storeFile))
+                throw new IOException("Cannot move " + tmp.getPath() + " to " + storeFile.getPath());
+        } catch (IOException e) {
+            IpfsLog.d(LOG_TAG, "Cannot save the jobs: " + e.toString());
+        } catch (JSONException e) {
+            IpfsLog.d(LOG_TAG, "Cannot save the jobs: " + e.toString());
+        }
+    }
+
+    private static String read(File file) throws IOException {
+        return read(new FileInputStream(file));
+    }
+
+    private static String read(InputStream input) throws IOException {
+        StringBuilder content = new StringBuilder();
+        char[] buffer = new char[4096];
+        int num;
+        BufferedReader reader = new BufferedReader(new InputStreamReader(input, "UTF-8"));
+        try {
+            while ((num = reader.read(buffer)) > 0)
+                content.append(buffer, 0, num);
+        } finally {
+            reader.close();
+        }
+        return content.toString();
+    }
+
+    /**
+     * A prefetch or pin job; guarded by the scheduler lock, except for the progress counters
+     * that are only written by the worker running it
+     */
+    private static class Job {
+        final String id;
+        final Type type;
+        final String cid;
+        final boolean requireUnmetered;
+        final boolean requireCharging;
+        int priority;
+        int attempts = 0;
+        long notBefore = 0;
+        boolean running = false;
+        String error = null;
+        volatile long blocks = 0;
+        volatile long blocksPerSecond = 0;
+        // the request of the running job, closed by setPaused
+        volatile HttpURLConnection conn = null;
+
+        Job(String id, Type type, String cid, int priority, boolean requireUnmetered, boolean requireCharging) {
+            this.id = id;
+            this.type = type;
+            this.cid = cid;
+            this.priority = priority;
+            this.requireUnmetered = requireUnmetered;
+            this.requireCharging = requireCharging;
+        }
+
+        String key() {
+            return type + ":" + cid;
+        }
+
+        /**
+         * @return {id, type: "prefetch" | "pin", cid, priority, requireUnmetered, requireCharging,
+         * attempts, blocks, blocksPerSecond, error}
+         */
+        JSONObject toJSON() {
+            try {
+                return new JSONObject()
+                        .put("id", id)
+                        .put("type", type == Type.PIN ? "pin" : "prefetch")
+                        .put("cid", cid)
+                        .put("priority", priority)
+                        .put("requireUnmetered", requireUnmetered)
+                        .put("requireCharging", requireCharging)
+                        .put("attempts", attempts)
+                        .put("blocks", blocks)
+                        .put("blocksPerSecond", blocksPerSecond)
+                        .put("error", error == null ? JSONObject.NULL : error);
+            } catch (JSONException e) {
+                e.printStackTrace();
+                return new JSONObject();
+            }
+        }
+
+        static Job fromJSON(JSONObject saved) throws JSONException {
+            Job job = new Job(saved.getString("id"),
+                    saved.getString("type").equals("pin") ? Type.PIN : Type.PREFETCH,
+                    saved.getString("cid"),
+                    saved.optInt("priority", 0),
+                    saved.optBoolean("requireUnmetered", false),
+                    saved.optBoolean("requireCharging", false));
+            job.attempts = saved.optInt("attempts", 0);
+            return job;
+        }
+    }
+}
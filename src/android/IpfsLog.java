@@ -0,0 +1,33 @@
+package org.apache.cordova.ipfs;
+
+
+/**
+ * The logging of the core classes, so that none of them depends on android.util.Log and they
+ * can be loaded off-device (tests, benchmarks). The lines go to System.out until a Sink is set;
+ * the Cordova plugin (see Ipfs) sets one writing to logcat.
+ *
+ * @author xSkyripper
+ */
+final class IpfsLog {
+    interface Sink {
+        void d(String tag, String message);
+    }
+
+    private static volatile Sink sink = new Sink() {
+        @Override
+        public void d(String tag, String message) {
+            System.out.println(tag + " " + message);
+        }
+    };
+
+    private IpfsLog() {
+    }
+
+    static void setSink(Sink newSink) {
+        sink = newSink;
+    }
+
+    static void d(String tag, String message) {
+        sink.d(tag, message);
+    }
+}
@@ -0,0 +1,444 @@
+package org.apache.cordova.ipfs;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+
+/**
+ * Collects the plugin metrics:
+ * - the lifecycle phases (download, extract, initRepo, start, stop): count, last and total
+ * duration, bytes; kept in fixed slots of atomic arrays so recording a phase never allocates
+ * - the daemon process usage read from /proc/[pid]/stat and /proc/[pid]/status (CPU time, RSS,
+ * threads) and /proc/[pid]/fd (open fds)
+ * - the daemon bandwidth, peer count and repo size read from the API
+ * - the hit / miss / eviction counters of the content cache and the repo GC runs
+ * The process and API stats are refreshed by a single low priority sampling thread, only while
+ * sampling is enabled; /proc is parsed from a reused buffer and the expensive repo size query
+ * only runs every REPO_STAT_EVERY samples. The API is not queried while the daemon is suspended
+ * (see setPaused), the last API stats are kept.
+ *
+ * @author xSkyripper
+ */
+class IpfsMetrics {
+    private static final String LOG_TAG = "#######CIP######";
+    private static final int HTTP_TIMEOUT = 2000;
+    private static final int REPO_STAT_EVERY = 12;
+    private static final long MIN_INTERVAL = 1000;
+    // USER_HZ is 100 on every Android ABI
+    private static final long CLOCK_TICKS_PER_SECOND = 100;
+
+    enum Phase {DOWNLOAD, EXTRACT, INIT_REPO, START, STOP}
+
+    interface Listener {
+        /**
+         * Called on the sampling thread after every sample
+         *
+         * @param snapshot the metrics snapshot, see snapshot
+         */
+        void onSample(JSONObject snapshot);
+    }
+
+    private static final int PHASES = Phase.values().length;
+    private final AtomicLongArray phaseCount = new AtomicLongArray(PHASES);
+    private final AtomicLongArray phaseLast = new AtomicLongArray(PHASES);
+    private final AtomicLongArray phaseTotal = new AtomicLongArray(PHASES);
+    private final AtomicLongArray phaseBytes = new AtomicLongArray(PHASES);
+
+    private final IpfsDaemonSupervisor supervisor;
+    private final IpfsContentCache cache;
+    private final IpfsRepoGc gc;
+    private final ScheduledExecutorService sampler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "ipfs-metrics");
+            thread.setDaemon(true);
+            thread.setPriority(Thread.MIN_PRIORITY);
+            return thread;
+        }
+    });
+    private ScheduledFuture<?> sampling = null;
+    private volatile Listener listener = null;
+    private volatile String api = null;
+    private volatile boolean paused = false;
+
+    // written by the sampling thread only
+    private final byte[] procBuffer = new byte[4096];
+    private int samples = 0;
+    private int pid = -1;
+    private long sampledAt = 0;
+    private long cpuTicks = 0;
+    private long cpuPercent = 0;
+    private long rssBytes = 0;
+    private long peakRssBytes = 0;
+    private long threads = 0;
+    private long fds = 0;
+    private long totalIn = 0;
+    private long totalOut = 0;
+    private long rateIn = 0;
+    private long rateOut = 0;
+    private long peers = 0;
+    private long repoSize = -1;
+    private long repoObjects = -1;
+
+    IpfsMetrics(IpfsDaemonSupervisor supervisor, IpfsContentCache cache, IpfsRepoGc gc) {
+        this.supervisor = supervisor;
+        this.cache = cache;
+        this.gc = gc;
+    }
+
+    /**
+     * Records a finished lifecycle phase
+     *
+     * @param phase    the phase
+     * @param duration the duration of the phase, in ms
+     * @param bytes    the bytes processed by the phase (0 if not relevant)
+     */
+    void record(Phase phase, long duration, long bytes) {
+        int slot = phase.ordinal();
+        phaseCount.incrementAndGet(slot);
+        phaseLast.set(slot, duration);
+        phaseTotal.addAndGet(slot, duration);
+        phaseBytes.addAndGet(slot, bytes);
+    }
+
+    /**
+     * @param api the API endpoint of the daemon; null if it's not running
+     */
+    void setApi(String api) {
+        this.api = api;
+    }
+
+    /**
+     * Stops querying the API while the daemon is suspended (SIGSTOP), which would never answer;
+     * the process stats are still read from /proc
+     *
+     * @param paused true while the daemon is suspended
+     */
+    void setPaused(boolean paused) {
+        this.paused = paused;
+    }
+
+    /**
+     * Starts (or reschedules) the sampling thread
+     *
+     * @param interval the sampling interval, in ms (at least MIN_INTERVAL)
+     * @param listener notified after every sample; may be null
+     */
+    synchronized void startSampling(long interval, Listener listener) {
+        this.listener = listener;
+        if (sampling != null)
+            sampling.cancel(false);
+
+        interval = Math.max(MIN_INTERVAL, interval);
+        sampling = sampler.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                sample();
+                Listener current = IpfsMetrics.this.listener;
+                if (current != null)
+                    current.onSample(snapshot());
+            }
+        }, 0, interval, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Stops the sampling thread; the last sampled values are kept
+     */
+    synchronized void stopSampling() {
+        listener = null;
+        if (sampling != null) {
+            sampling.cancel(false);
+            sampling = null;
+        }
+    }
+
+    synchronized boolean isSampling() {
+        return sampling != null;
+    }
+
+    /**
+     * Takes a single sample on the sampling thread and returns the snapshot
+     *
+     * @return the metrics snapshot, see snapshot
+     * @throws Exception if the sample couldn't be taken
+     */
+    JSONObject sampleOnce() throws Exception {
+        return sampler.submit(new Callable<JSONObject>() {
+            @Override
+            public JSONObject call() {
+                sample();
+                return snapshot();
+            }
+        }).get();
+    }
+
+    void shutdown() {
+        stopSampling();
+        sampler.shutdownNow();
+    }
+
+    /**
+     * Reads the process and API stats; runs on the sampling thread
+     */
+    private void sample() {
+        long now = System.currentTimeMillis();
+        Process process = supervisor.process();
+        int currentPid = process == null ? -1 : IpfsProcesses.pid(process);
+
+        if (currentPid != pid) {
+            pid = currentPid;
+            cpuTicks = 0;
+            cpuPercent = 0;
+            peakRssBytes = 0;
+        }
+
+        if (pid > 0) {
+            sampleStat(now);
+            sampleStatus();
+            String[] fdList = new File("/proc/" + pid + "/fd").list();
+            fds = fdList == null ? -1 : fdList.length;
+        } else {
+            rssBytes = threads = fds = 0;
+        }
+
+        String currentApi = api;
+        if (paused) {
+            rateIn = rateOut = 0;
+        } else if (currentApi != null) {
+            try {
+                JSONObject bw = postJSON(currentApi + "/api/v0/stats/bw");
+                totalIn = bw.optLong("TotalIn");
+                totalOut = bw.optLong("TotalOut");
+                rateIn = (long) bw.optDouble("RateIn", 0);
+                rateOut = (long) bw.optDouble("RateOut", 0);
+
+                JSONArray peerList = postJSON(currentApi + "/api/v0/swarm/peers").optJSONArray("Peers");
+                peers = peerList == null ? 0 : peerList.length();
+
+                if (samples % REPO_STAT_EVERY == 0) {
+                    JSONObject repo = postJSON(currentApi + "/api/v0/repo/stat");
+                    repoSize = repo.optLong("RepoSize", -1);
+                    repoObjects = repo.optLong("NumObjects", -1);
+                }
+            } catch (Exception e) {
+                IpfsLog.d(LOG_TAG, "Metrics API sample failed: " + e.toString());
+            }
+        } else {
+            rateIn = rateOut = peers = 0;
+        }
+
+        samples++;
+        sampledAt = now;
+    }
+
+    /**
+     * Parses utime + stime (fields 14, 15) from /proc/[pid]/stat and computes the CPU usage
+     * since the previous sample
+     */
+    private void sampleStat(long now) {
+        int length = readProc("/proc/" + pid + "/stat");
+        if (length <= 0)
+            return;
+
+        // the command name (field 2) may contain spaces, so count fields after its closing paren
+        int pos = length - 1;
+        while (pos > 0 && procBuffer[pos] != ')')
+            pos--;
+
+        long utime = 0, stime = 0;
+        int field = 2;
+        for (int i = pos + 1; i < length && field < 15; i++) {
+            if (procBuffer[i] == ' ') {
+                field++;
+                if (field == 14)
+                    utime = parseLong(i + 1, length);
+                else if (field == 15)
+                    stime = parseLong(i + 1, length);
+            }
+        }
+
+        long ticks = utime + stime;
+        if (cpuTicks > 0 && now > sampledAt)
+            cpuPercent = (ticks - cpuTicks) * 1000 / CLOCK_TICKS_PER_SECOND * 100 / (now - sampledAt);
+        cpuTicks = ticks;
+    }
+
+    /**
+     * Reads VmRSS, VmHWM and Threads from /proc/[pid]/status
+     */
+    private void sampleStatus() {
+        int length = readProc("/proc/" + pid + "/status");
+        int lineStart = 0;
+
+        for (int i = 0; i < length; i++) {
+            if (procBuffer[i] != '\n')
+                continue;
+
+            if (startsWith(lineStart, "VmRSS:"))
+                rssBytes = parseLong(lineStart + 6, i) * 1024;
+            else if (startsWith(lineStart, "VmHWM:"))
+                peakRssBytes = parseLong(lineStart + 6, i) * 1024;
+            else if (startsWith(lineStart, "Threads:"))
+                threads = parseLong(lineStart + 8, i);
+            lineStart = i + 1;
+        }
+    }
+
+    /**
+     * Reads a /proc file into procBuffer
+     *
+     * @return the number of bytes read, -1 if the file couldn't be read
+     */
+    private int readProc(String path) {
+        FileInputStream input = null;
+        try {
+            input = new FileInputStream(path);
+            int length = 0, read;
+            while (length < procBuffer.length
+                    && (read = input.read(procBuffer, length, procBuffer.length - length)) != -1)
+                length += read;
+            return length;
+        } catch (IOException e) {
+            return -1;
+        } finally {
+            if (input != null)
+                try {
+                    input.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+        }
+    }
+
+    private boolean startsWith(int offset, String prefix) {
+        if (offset + prefix.length() > procBuffer.length)
+            return false;
+        for (int i = 0; i < prefix.length(); i++)
+            if (procBuffer[offset + i] != prefix.charAt(i))
+                return false;
+        return true;
+    }
+
+    /**
+     * Parses the first decimal number found in procBuffer between from and to
+     */
+    private long parseLong(int from, int to) {
+        long value = 0;
+        boolean found = false;
+        for (int i = from; i < to; i++) {
+            byte b = procBuffer[i];
+            if (b >= '0' && b <= '9') {
+                value = value * 10 + (b - '0');
+                found = true;
+            } else if (found) {
+                break;
+            }
+        }
+        return value;
+    }
+
+    /**
+     * Must be called on the sampling thread (see Listener and sampleOnce)
+     *
+     * @return {phases: {download: {count, lastMs, totalMs, bytes}, ...},
+     * process: {pid, cpuTimeMs, cpuPercent, rssBytes, peakRssBytes, threads, fds},
+     * network: {totalIn, totalOut, rateIn, rateOut, peers}, repo: {size, objects},
+     * cache: {memoryHits, diskHits, misses, evictions, memoryBytes, diskBytes, objects},
+     * gc: {quota, runs, reclaimedBytes, pauseMs, lastRun}, suspended, sampledAt}
+     */
+    private JSONObject snapshot() {
+        try {
+            JSONObject phases = new JSONObject();
+            for (Phase phase : Phase.values()) {
+                int slot = phase.ordinal();
+                phases.put(phaseName(phase), new JSONObject()
+                        .put("count", phaseCount.get(slot))
+                        .put("lastMs", phaseLast.get(slot))
+                        .put("totalMs", phaseTotal.get(slot))
+                        .put("bytes", phaseBytes.get(slot)));
+            }
+
+            return new JSONObject()
+                    .put("phases", phases)
+                    .put("process", new JSONObject()
+                            .put("pid", pid)
+                            .put("cpuTimeMs", cpuTicks * 1000 / CLOCK_TICKS_PER_SECOND)
+                            .put("cpuPercent", cpuPercent)
+                            .put("rssBytes", rssBytes)
+                            .put("peakRssBytes", peakRssBytes)
+                            .put("threads", threads)
+                            .put("fds", fds))
+                    .put("network", new JSONObject()
+                            .put("totalIn", totalIn)
+                            .put("totalOut", totalOut)
+                            .put("rateIn", rateIn)
+                            .put("rateOut", rateOut)
+                            .put("peers", peers))
+                    .put("repo", new JSONObject()
+                            .put("size", repoSize)
+                            .put("objects", repoObjects))
+                    .put("cache", cache.stats())
+                    .put("gc", gc.stats())
+                    .put("suspended", paused)
+                    .put("sampledAt", sampledAt);
+        } catch (JSONException e) {
+            e.printStackTrace();
+            return new JSONObject();
+        }
+    }
+
+    static String phaseName(Phase phase) {
+        switch (phase) {
+            case DOWNLOAD:
+                return "download";
+            case EXTRACT:
+                return "extract";
+            case INIT_REPO:
+                return "initRepo";
+            case START:
+                return "start";
+            default:
+                return "stop";
+        }
+    }
+
+    private static JSONObject postJSON(String url) throws IOException, JSONException {
+        HttpURLConnection conn = (HttpURLConnection) new URL(url).openConnection();
+        try {
+            conn.setRequestMethod("POST");
+            conn.setConnectTimeout(HTTP_TIMEOUT);
+            conn.setReadTimeout(HTTP_TIMEOUT);
+            if (conn.getResponseCode() != HttpURLConnection.HTTP_OK)
+                throw new IOException("IPFS API returned HTTP " + conn.getResponseCode());
+
+            StringBuilder content = new StringBuilder();
+            BufferedReader reader = new BufferedReader(new InputStreamReader(conn.getInputStream(), "UTF-8"));
+            try {
+                String line;
+                while ((line = reader.readLine()) != null)
+                    content.append(line);
+            } finally {
+                reader.close();
+            }
+            return new JSONObject(content.toString());
+        } finally {
+            conn.disconnect();
+        }
+    }
+}
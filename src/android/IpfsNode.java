@@ -0,0 +1,802 @@
+package org.apache.cordova.ipfs;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
+import org.apache.commons.compress.archivers.tar.TarArchiveInputStream;
+import org.rauschig.jarchivelib.ArchiveFormat;
+import org.rauschig.jarchivelib.Archiver;
+import org.rauschig.jarchivelib.ArchiverFactory;
+import org.rauschig.jarchivelib.CompressionType;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.GZIPInputStream;
+
+
+/**
+ * The core of the plugin, with no dependency on Cordova: prepares the go-ipfs binary
+ * (download, extract, binary store), inits and provisions the repo, patches its config and
+ * launches the daemon through its own supervisor, recording every phase in its metrics, gives
+ * native access to its pubsub, runs the background prefetch / pin jobs, caches the content
+ * served to the WebView and keeps the repo under its quota.
+ * Every node has an id and belongs to an IpfsNodes registry, which shares the binary, the supervisor
+ * thread and the port allocation between its nodes; the default node keeps its repo in
+ * appFilesDir/.ipfs/, any other node in appFilesDir/nodes/[id]/.ipfs/.
+ * The Cordova plugin (see Ipfs) only maps the JS actions and callbacks onto the nodes; the core
+ * classes log through IpfsLog and signal processes through IpfsProcesses, so they load on a plain
+ * JVM as well, where the tests and benchmarks drive them against a fake binary (see pom.xml).
+ *
+ * @author xSkyripper
+ */
+class IpfsNode {
+    private static final String LOG_TAG = "#######CIP######";
+    private static final int EXEC_OUTPUT_LINES = 64;
+    private static final int DAEMON_OUTPUT_LINES = 256;
+    static final long DAEMON_READY_TIMEOUT = 60000;
+    private static final Pattern MULTIADDR_PORT = Pattern.compile("/(tcp|udp)/(\\d+)");
+
+    private final String id;
+    private final IpfsNodes nodes;
+    private URL ipfsArchiveSrc;
+    private String appFilesDir;
+    private String nodeDir;
+    private String ipfsBinPath;
+    private String ipfsBinVersion;
+    private String ipfsBinDigest;
+    private IpfsBinaryStore binaryStore;
+    private IpfsConfig repoConfig;
+    private IpfsProvisionSpec provisionSpec;
+    private Boolean pregenerateRepo = false;
+    private volatile Thread spareRepoGenerator = null;
+    private String ipfsRepo;
+    private Boolean streamExtract = false;
+    private int downloadSegments = 4;
+    private List<String> extractEntries = new ArrayList<String>(Arrays.asList("go-ipfs/ipfs"));
+    private IpfsInitProgress initProgress;
+
+    private final IpfsDaemonSupervisor supervisor;
+    private final IpfsMetrics metrics;
+    private final IpfsPubsub pubsub;
+    private final IpfsJobScheduler jobs;
+    private final IpfsContentCache cache;
+    private final IpfsRepoGc gc;
+    private final IpfsDaemonSupervisor.Listener stateListener;
+    private final IpfsProcessOutput.Listener outputListener;
+    private volatile long daemonReadyTimeout = DAEMON_READY_TIMEOUT;
+    private volatile JSONArray daemonConfigPatches = null;
+    private volatile boolean adoptRunning = true;
+    private volatile IpfsProcessOutput ipfsDaemonOutput = null;
+    private volatile String ipfsApi = null;
+    private volatile String ipfsGateway = null;
+    private volatile long stateChangedAt = 0;
+
+    /**
+     * Nodes are created by their registry, see IpfsNodes.create
+     *
+     * @param id             the node id
+     * @param nodes          the registry of the node
+     * @param stateListener  notified of every daemon state transition; may be null
+     * @param outputListener notified of every daemon output line; may be null
+     */
+    IpfsNode(String id, IpfsNodes nodes, IpfsDaemonSupervisor.Listener stateListener,
+             IpfsProcessOutput.Listener outputListener) {
+        this.id = id;
+        this.nodes = nodes;
+        this.stateListener = stateListener;
+        this.outputListener = outputListener;
+        this.supervisor = new IpfsDaemonSupervisor(daemonLauncher, daemonListener, nodes.supervisorThread());
+        this.cache = new IpfsContentCache(this);
+        this.gc = new IpfsRepoGc(this);
+        this.metrics = new IpfsMetrics(supervisor, cache, gc);
+        this.pubsub = new IpfsPubsub(this);
+        this.jobs = new IpfsJobScheduler(this);
+    }
+
+    String id() {
+        return id;
+    }
+
+    IpfsDaemonSupervisor supervisor() {
+        return supervisor;
+    }
+
+    IpfsMetrics metrics() {
+        return metrics;
+    }
+
+    IpfsPubsub pubsub() {
+        return pubsub;
+    }
+
+    IpfsJobScheduler jobs() {
+        return jobs;
+    }
+
+    IpfsContentCache cache() {
+        return cache;
+    }
+
+    IpfsRepoGc gc() {
+        return gc;
+    }
+
+    /**
+     * @return the API endpoint of the daemon; null if it's not READY
+     */
+    String api() {
+        return ipfsApi;
+    }
+
+    /**
+     * @return the gateway of the daemon, as an HTTP URL (e.g. http://127.0.0.1:8080); null if it's
+     * not READY or its gateway is not a tcp address
+     */
+    String gateway() {
+        return ipfsGateway;
+    }
+
+    /**
+     * @return the output of the last daemon launched; null if none was launched
+     */
+    IpfsProcessOutput output() {
+        return ipfsDaemonOutput;
+    }
+
+    /**
+     * Sets the options used by the next daemon launches
+     *
+     * @param readyTimeout  the time the API has to answer after spawning, in ms
+     * @param configPatches patches applied to the config (with the API permissions) before spawning;
+     *                      may be null
+     * @param adopt         if true, a daemon already running on the repo is adopted instead of
+     *                      spawning a new one
+     */
+    void setDaemonOptions(long readyTimeout, JSONArray configPatches, boolean adopt) {
+        daemonReadyTimeout = readyTimeout;
+        daemonConfigPatches = configPatches;
+        adoptRunning = adopt;
+    }
+
+    void shutdown() {
+        gc.shutdown();
+        jobs.shutdown();
+        pubsub.shutdown();
+        metrics.shutdown();
+        supervisor.shutdown();
+    }
+
+    /**
+     * Parses the init config, saves it, builds the path of the repo and the binary and prepares
+     * the IPFS binary if the binary store has no valid copy of it, then inits the repo if the IPFS
+     * repo dir doesn't exist or if resetRepo is 'true'; resetting the repo is refused while the
+     * daemon is not STOPPED
+     *
+     * @param config {appFilesDir, src, resetRepo, version, sha256, streamExtract, extractEntries,
+     *               downloadSegments, provision, pregenerateRepo, jobWorkers, progressInterval,
+     *               progressStep}, see the 'init' action
+     * @param listener receives the progress of every phase, see IpfsInitProgress; may be null
+     * @return {message, spareRepoUsed, timings: {prepare, initRepo, total, phases}}
+     * @throws Exception if the config is invalid or if the binary or the repo couldn't be prepared
+     */
+    JSONObject init(JSONObject config, IpfsInitProgress.Listener listener) throws Exception {
+        appFilesDir = config.getString("appFilesDir");
+        ipfsArchiveSrc = new URL(config.getString("src"));
+        ipfsBinVersion = config.optString("version", ipfsArchiveSrc.toString());
+        ipfsBinDigest = config.isNull("sha256") ? null : config.getString("sha256");
+        binaryStore = new IpfsBinaryStore(new File(appFilesDir.concat("bin/")));
+        nodeDir = id.equals(IpfsNodes.DEFAULT_NODE) ? appFilesDir : appFilesDir.concat("nodes/" + id + "/");
+        ipfsRepo = nodeDir.concat(".ipfs/");
+        repoConfig = new IpfsConfig(new File(ipfsRepo + "config"));
+        Boolean resetRepo = config.getBoolean("resetRepo");
+        streamExtract = config.optBoolean("streamExtract", false);
+        downloadSegments = config.optInt("downloadSegments", 4);
+        provisionSpec = new IpfsProvisionSpec(config.optJSONObject("provision"));
+        pregenerateRepo = config.optBoolean("pregenerateRepo", false);
+        initProgress = new IpfsInitProgress(listener,
+                config.optLong("progressInterval", IpfsInitProgress.INTERVAL),
+                config.optDouble("progressStep", IpfsInitProgress.STEP));
+
+        JSONArray entries = config.optJSONArray("extractEntries");
+        if (entries != null) {
+            extractEntries = new ArrayList<String>();
+            for (int i = 0; i < entries.length(); i++)
+                extractEntries.add(entries.getString(i));
+            if (!extractEntries.contains("go-ipfs/ipfs"))
+                extractEntries.add("go-ipfs/ipfs");
+        }
+
+        IpfsLog.d(LOG_TAG, "ipfsBinVersion: " + ipfsBinVersion + " sha256: " + ipfsBinDigest);
+        IpfsLog.d(LOG_TAG, "ipfsArchiveSrc: " + ipfsArchiveSrc);
+        IpfsLog.d(LOG_TAG, "appFilesDir: " + appFilesDir + " node: " + id);
+        IpfsLog.d(LOG_TAG, "ipfsRepo: " + ipfsRepo);
+        IpfsLog.d(LOG_TAG, "resetRepo: " + resetRepo);
+        IpfsLog.d(LOG_TAG, "streamExtract: " + streamExtract + " " + extractEntries);
+        IpfsLog.d(LOG_TAG, "provision: " + provisionSpec.key() + " pregenerateRepo: " + pregenerateRepo);
+
+        if (resetRepo && supervisor.state() != IpfsDaemonSupervisor.State.STOPPED)
+            throw new IllegalStateException("The IPFS daemon is " + supervisor.state()
+                    + ", stop it before resetting the repo !");
+        if (resetRepo && new File(ipfsRepo).exists()
+                && new IpfsReadinessProbe(ipfsRepo, DAEMON_READY_TIMEOUT).findRunning() != null)
+            throw new IllegalStateException("An IPFS daemon is still running on the repo,"
+                    + " start and stop it before resetting the repo !");
+
+        File nodeFiles = new File(nodeDir);
+        if (!nodeFiles.isDirectory() && !nodeFiles.mkdirs())
+            throw new IOException("Cannot create " + nodeDir);
+        IpfsRepoReaper.reclaimAsync(nodeFiles);
+
+        long started = System.currentTimeMillis();
+        boolean spareUsed = false;
+
+        // the nodes of an appFilesDir share the binary, only one of them prepares it
+        synchronized (nodes.binaryLock()) {
+            ipfsBinPath = binaryStore.current(ipfsBinVersion, ipfsBinDigest);
+            if (ipfsBinPath == null) {
+                prepareIpfs();
+                IpfsLog.d(LOG_TAG, "ipfsBinPath: " + ipfsBinPath);
+            }
+        }
+        if (pregenerateRepo)
+            pregenerateSpareRepo();
+
+        long prepared = System.currentTimeMillis();
+
+        if (resetRepo || !(new File(ipfsRepo).exists())) {
+            initProgress.begin(IpfsMetrics.Phase.INIT_REPO, -1);
+            spareUsed = initRepo();
+            metrics.record(IpfsMetrics.Phase.INIT_REPO, System.currentTimeMillis() - prepared, 0);
+        }
+
+        initProgress.end();
+        long inited = System.currentTimeMillis();
+        if (pregenerateRepo)
+            pregenerateSpareRepo();
+
+        jobs.setWorkers(config.optInt("jobWorkers", 2));
+        jobs.open(new File(nodeDir + "jobs.json"));
+        cache.setLimits(config.optLong("cacheMemoryBytes", IpfsContentCache.MEMORY_LIMIT),
+                config.optLong("cacheDiskBytes", IpfsContentCache.DISK_LIMIT));
+        gc.setQuota(config.optLong("repoQuotaBytes", 0),
+                config.optDouble("gcHighWatermark", IpfsRepoGc.HIGH_WATERMARK),
+                config.optDouble("gcLowWatermark", IpfsRepoGc.LOW_WATERMARK),
+                config.optLong("gcMaxPauseMs", IpfsRepoGc.MAX_PAUSE));
+
+        return new JSONObject()
+                .put("message", "Cordova IPFS Plugin (init): IPFS was prepared & inited !")
+                .put("spareRepoUsed", spareUsed)
+                .put("timings", new JSONObject()
+                        .put("prepare", prepared - started)
+                        .put("initRepo", inited - prepared)
+                        .put("total", inited - started)
+                        .put("phases", initProgress.timings()));
+    }
+
+    /**
+     * Applies a batch of patches to the repo config in a single read-modify-write; a running daemon
+     * only picks the changes up on its next start
+     *
+     * @param patches the array of patches {path: "Swarm.ConnMgr.HighWater", value: 100} or
+     *                {path: "...", remove: true}
+     * @return true if the config was changed
+     * @throws IllegalStateException if the repo was not initialized
+     * @throws IOException           if the config couldn't be read or written
+     * @throws JSONException         if the config or a patch is invalid
+     */
+    boolean config(JSONArray patches) throws IOException, JSONException {
+        if (repoConfig == null || !(new File(ipfsRepo).exists()))
+            throw new IllegalStateException("The IPFS repo was not initialized."
+                    + " Run init first or wait for init to finish !");
+        return repoConfig.apply(patches);
+    }
+
+    /**
+     * Function for starting a system process that will "shell execute" the given command(s)
+     * in the cmdArray, using the environment variables provided in envArray. The process will be
+     * waited to finish while its stdout and stderr are drained concurrently (only the last
+     * EXEC_OUTPUT_LINES lines are kept)
+     * If ignoreExc is true, the error output of the command will be ignored.
+     *
+     * @param cmdArray  the array of shell commands
+     * @param envArray  the array of environment variables
+     * @param ignoreExc if true, the error output is ignores; else, and IOException will be thrown
+     * @throws IOException          thrown if something happens with the process or if the error output is
+     *                              not ignored
+     * @throws InterruptedException thrown if something happens on waiting the process to finish
+     */
+    void execShell(final String[] cmdArray, final String[] envArray, Boolean ignoreExc, String workingDir) throws IOException, InterruptedException {
+        IpfsLog.d(LOG_TAG, Arrays.toString(cmdArray));
+        Process proc;
+
+        if (workingDir != null)
+            proc = Runtime.getRuntime().exec(cmdArray, envArray, new File(workingDir));
+        else
+            proc = Runtime.getRuntime().exec(cmdArray, envArray);
+
+
+        IpfsProcessOutput procOutput = new IpfsProcessOutput(EXEC_OUTPUT_LINES);
+        procOutput.pump(proc, "ipfs-exec");
+        proc.waitFor();
+        procOutput.await();
+
+        if (!ignoreExc)
+            if (procOutput.errorCount() > 0) {
+                IpfsLog.d(LOG_TAG, "Tried:" + Arrays.toString(cmdArray));
+                throw new IOException(procOutput.text(IpfsProcessOutput.STDERR));
+            }
+    }
+
+
+    /**
+     * Deletes a file or a directory recursively; if the delete returns 'false' (some file could
+     * not be deleted), it simply logs a messages
+     *
+     * @param fileOrDirectory the file / dir to be deleted
+     */
+
+    private void deleteRecursive(File fileOrDirectory) {
+        if (fileOrDirectory.isDirectory())
+            for (File child : fileOrDirectory.listFiles())
+                deleteRecursive(child);
+        if (!(fileOrDirectory.delete()))
+            IpfsLog.d(LOG_TAG, "File " + fileOrDirectory.getName() + " couldn't be deleted !");
+    }
+
+    /**
+     * Download the go-ipfs archive from the ipfsArchiveSrc provided at "init" using the
+     * IpfsDownloader engine: the archive is downloaded in up to downloadSegments parallel Range
+     * segments and an interrupted download is resumed on the next "init". If the archive
+     * already exists and has the same size as the one at the URL provided, nothing is downloaded
+     *
+     * @throws Exception if something happens (connection couldn't be initiated, the source server
+     *                   returned something else than "200" / "206", stream exceptions)
+     */
+    private void downloadIpfs() throws Exception {
+        long started = System.currentTimeMillis();
+        initProgress.begin(IpfsMetrics.Phase.DOWNLOAD, -1);
+        IpfsDownloader downloader = new IpfsDownloader(ipfsArchiveSrc,
+                new File(appFilesDir + "go-ipfs.tar.gz"), downloadSegments, initProgress);
+        downloader.download();
+        metrics.record(IpfsMetrics.Phase.DOWNLOAD, System.currentTimeMillis() - started, downloader.transferred());
+    }
+
+    /**
+     * Extracts the archive downloaded by downloadIpfs using the custom jar included in the project
+     * to the same directory, installs the binary in the binary store (verifying its digest) and
+     * finally deletes the archive for "space reasons"
+     *
+     * @throws Exception an exception is thrown if the IPFS binary couldn't be installed
+     */
+    private void extractIpfs() throws Exception {
+        IpfsLog.d(LOG_TAG, "STARTING EXTRACT");
+        long started = System.currentTimeMillis();
+        // the archiver gives no progress, only the start and the end of the phase are reported
+        initProgress.begin(IpfsMetrics.Phase.EXTRACT, new File(appFilesDir + "go-ipfs.tar.gz").length());
+
+        Archiver archiver = ArchiverFactory.createArchiver(ArchiveFormat.TAR, CompressionType.GZIP);
+        archiver.extract(new File(appFilesDir + "go-ipfs.tar.gz"), new File(appFilesDir));
+
+        File extractedBin = new File(appFilesDir + "go-ipfs/ipfs");
+        InputStream binInput = new FileInputStream(extractedBin);
+        try {
+            ipfsBinPath = binaryStore.install(ipfsBinVersion, binInput, ipfsBinDigest);
+        } finally {
+            binInput.close();
+        }
+
+        long extracted = extractedBin.length();
+        this.deleteRecursive(extractedBin);
+        this.deleteRecursive(new File(appFilesDir + "go-ipfs.tar.gz"));
+        metrics.record(IpfsMetrics.Phase.EXTRACT, System.currentTimeMillis() - started, extracted);
+        IpfsLog.d(LOG_TAG, "FINISHED EXTRACT");
+    }
+
+
+    /**
+     * Downloads and extracts the go-ipfs archive in a single pass: the HTTP body is piped through
+     * gunzip and a tar entry reader and only the entries listed in extractEntries are written,
+     * each one to a ".part" file that is renamed to its final path once complete; the binary
+     * entry is hashed and installed straight into the binary store.
+     * The archive itself never touches the disk and the download is dropped as soon as all the
+     * wanted entries were found
+     *
+     * @throws Exception if the source server returned something else than "200", if any of the
+     *                   wanted entries is missing from the archive or if the IPFS binary couldn't
+     *                   be installed
+     */
+    private void streamIpfs() throws Exception {
+        HttpURLConnection conn;
+        TarArchiveInputStream tarInput = null;
+        TarArchiveEntry entry;
+        Set<String> pendingEntries = new HashSet<String>(extractEntries);
+        byte block[] = new byte[65536];
+        int blockSize;
+
+        IpfsLog.d(LOG_TAG, "STARTING STREAMED DOWNLOAD & EXTRACT");
+        long started = System.currentTimeMillis();
+        // reported as a single download phase of the compressed bytes received
+        initProgress.begin(IpfsMetrics.Phase.DOWNLOAD, -1);
+        long streamed;
+
+        conn = (HttpURLConnection) ipfsArchiveSrc.openConnection();
+        conn.connect();
+
+        if (conn.getResponseCode() != HttpURLConnection.HTTP_OK) {
+            throw new Exception("Server returned HTTP " + conn.getResponseCode()
+                    + " " + conn.getResponseMessage());
+        }
+
+        try {
+            tarInput = new TarArchiveInputStream(
+                    new GZIPInputStream(
+                            new BufferedInputStream(
+                                    initProgress.track(conn.getInputStream(), conn.getContentLength()),
+                                    block.length)
+                    )
+            );
+
+            while (!pendingEntries.isEmpty() && (entry = tarInput.getNextTarEntry()) != null) {
+                if (!entry.isFile() || !pendingEntries.remove(entry.getName()))
+                    continue;
+
+                if (entry.getName().equals("go-ipfs/ipfs")) {
+                    ipfsBinPath = binaryStore.install(ipfsBinVersion, tarInput, ipfsBinDigest);
+                    // the spare repo is generated while the other entries are extracted
+                    if (pregenerateRepo)
+                        pregenerateSpareRepo();
+                    continue;
+                }
+
+                File target = new File(appFilesDir + entry.getName());
+                File partial = new File(target.getPath() + ".part");
+                if (!target.getParentFile().exists() && !target.getParentFile().mkdirs())
+                    throw new IOException("Cannot create dir " + target.getParent());
+
+                OutputStream output = new FileOutputStream(partial);
+                try {
+                    while ((blockSize = tarInput.read(block)) != -1)
+                        output.write(block, 0, blockSize);
+                } finally {
+                    output.close();
+                }
+
+                if (!partial.renameTo(target))
+                    throw new IOException("Cannot move " + partial.getPath() + " to " + target.getPath());
+                IpfsLog.d(LOG_TAG, "Extracted " + entry.getName() + " (" + target.length() + " bytes)");
+            }
+            streamed = tarInput.getBytesRead();
+        } finally {
+            if (tarInput != null)
+                tarInput.close();
+            conn.disconnect();
+        }
+
+        if (!pendingEntries.isEmpty())
+            throw new Exception("Entries " + pendingEntries + " not found in " + ipfsArchiveSrc);
+
+        // a streamed extract is recorded as a single download phase of the unpacked bytes read
+        metrics.record(IpfsMetrics.Phase.DOWNLOAD, System.currentTimeMillis() - started, streamed);
+
+        IpfsLog.d(LOG_TAG, "FINISHED STREAMED DOWNLOAD & EXTRACT");
+    }
+
+    /**
+     * Calls the 2 methods that "prepare" go-ipfs ARM: downloadIpfs and extractIpfs, or
+     * streamIpfs alone if the 'streamExtract' option was set at "init"
+     *
+     * @throws Exception exceptions are re-thrown from these functions
+     */
+    private void prepareIpfs() throws Exception {
+        if (streamExtract) {
+            this.streamIpfs();
+            return;
+        }
+
+        this.downloadIpfs();
+        this.extractIpfs();
+    }
+
+
+    /**
+     * Applies to the IPFS config, in a single read-modify-write, the next permissions on
+     * HTTPHeaders for API connections, the ports of the node (see IpfsNodes.allocatePorts)
+     * followed by the extra patches provided at "start"
+     * API.HTTPHeaders.Access-Control-Allow-Origin "[\"*\"]"
+     * API.HTTPHeaders.Access-Control-Allow-Credentials "[\"true\"]"
+     * Addresses.API, Addresses.Gateway and Addresses.Swarm with the allocated ports
+     * The configured addresses are taken from the config as it's read for the patching, so the
+     * file is read once; it's not written at all if the patches were already applied
+     *
+     * @param extraPatches the patches provided at "start"; may be null
+     * @throws IOException   if the config file doesn't exist or other problem
+     * @throws JSONException if the json data cannot be parse or other problem
+     */
+    private void configAPI(final JSONArray extraPatches) throws IOException, JSONException {
+        repoConfig.apply(new IpfsConfig.Patcher() {
+            @Override
+            public JSONArray patches(JSONObject config) throws IOException, JSONException {
+                JSONArray patches = new JSONArray()
+                        .put(new JSONObject()
+                                .put("path", "API.HTTPHeaders.Access-Control-Allow-Credentials")
+                                .put("value", new JSONArray().put("true")))
+                        .put(new JSONObject()
+                                .put("path", "API.HTTPHeaders.Access-Control-Allow-Origin")
+                                .put("value", new JSONArray().put("*")));
+
+                String api = configString(config, "Addresses.API", "/ip4/127.0.0.1/tcp/5001");
+                String gateway = configString(config, "Addresses.Gateway", "/ip4/127.0.0.1/tcp/8080");
+                Object swarmValue = IpfsConfig.get(config, "Addresses.Swarm");
+                JSONArray swarm = swarmValue instanceof JSONArray && ((JSONArray) swarmValue).length() > 0
+                        ? (JSONArray) swarmValue
+                        : new JSONArray().put("/ip4/0.0.0.0/tcp/4001").put("/ip6/::/tcp/4001");
+                int swarmPort = portOf(swarm.getString(0));
+
+                int[] ports = nodes.allocatePorts(id, new int[]{portOf(api), portOf(gateway), swarmPort});
+                JSONArray allocatedSwarm = new JSONArray();
+                for (int i = 0; i < swarm.length(); i++)
+                    allocatedSwarm.put(withPort(swarm.getString(i), swarmPort, ports[2]));
+                patches.put(new JSONObject()
+                                .put("path", "Addresses.API")
+                                .put("value", withPort(api, portOf(api), ports[0])))
+                        .put(new JSONObject()
+                                .put("path", "Addresses.Gateway")
+                                .put("value", withPort(gateway, portOf(gateway), ports[1])))
+                        .put(new JSONObject()
+                                .put("path", "Addresses.Swarm")
+                                .put("value", allocatedSwarm));
+
+                if (extraPatches != null)
+                    for (int i = 0; i < extraPatches.length(); i++)
+                        patches.put(extraPatches.getJSONObject(i));
+                return patches;
+            }
+        });
+    }
+
+    private static String configString(JSONObject config, String path, String defaultValue) {
+        Object value = IpfsConfig.get(config, path);
+        return value instanceof String ? (String) value : defaultValue;
+    }
+
+    /**
+     * @return the first tcp / udp port of a multiaddr; 0 if it has none
+     */
+    private static int portOf(String multiaddr) {
+        Matcher matcher = MULTIADDR_PORT.matcher(multiaddr);
+        return matcher.find() ? Integer.parseInt(matcher.group(2)) : 0;
+    }
+
+    /**
+     * @return the multiaddr with its tcp / udp port 'from' replaced by 'to'
+     */
+    private static String withPort(String multiaddr, int from, int to) {
+        Matcher matcher = MULTIADDR_PORT.matcher(multiaddr);
+        StringBuffer replaced = new StringBuffer();
+        while (matcher.find())
+            if (Integer.parseInt(matcher.group(2)) == from)
+                matcher.appendReplacement(replaced, "/" + matcher.group(1) + "/" + to);
+        matcher.appendTail(replaced);
+        return replaced.toString();
+    }
+
+    /**
+     * Moves the current IPFS Repo folder to a tombstone and recreates it, either by taking over the
+     * spare repo pre-generated in the background (if it was made for the same provisioning spec;
+     * a spare still being generated is waited for rather than generating a second identity
+     * alongside it) or using "ipfs init" exec shell with the provisioning spec, taking into account
+     * possible errors on initing; the tombstone is deleted in the background afterwards, so the
+     * reset doesn't depend on the size of the old repo
+     *
+     * @return true if the spare repo was used
+     * @throws Exception thrown by exec shell ('ipfs init') if something happens during initialization
+     */
+    private boolean initRepo() throws Exception {
+        IpfsLog.d(LOG_TAG, "INITING IF REPO RESET OR REPO NOT EXISTS");
+
+        File repo = new File(ipfsRepo);
+        if (repo.exists())
+            IpfsRepoReaper.tombstone(repo);
+
+        Thread generator = spareRepoGenerator;
+        if (generator != null)
+            generator.join();
+        boolean spareUsed = this.takeSpareRepo(repo);
+        if (!spareUsed)
+            this.execShell(
+                    provisionSpec.initCommand(ipfsBinPath),
+                    new String[]{"IPFS_PATH=" + this.ipfsRepo}, false, null);
+        IpfsRepoReaper.reclaimAsync(repo.getParentFile());
+
+        IpfsLog.d(LOG_TAG, "INITING FINISHED" + (spareUsed ? " (spare repo)" : ""));
+        return spareUsed;
+    }
+
+    /**
+     * Moves the spare repo to the repo path if it was generated for the current provisioning spec;
+     * a spare generated for another spec is discarded
+     *
+     * @param repo the repo dir
+     * @return true if the spare repo was moved to the repo path
+     * @throws IOException if the spare repo couldn't be moved or discarded
+     */
+    private boolean takeSpareRepo(File repo) throws IOException {
+        File spare = new File(nodeDir + ".ipfs-spare");
+        File spareSpec = new File(nodeDir + ".ipfs-spare.spec");
+        if (!spare.exists())
+            return false;
+
+        String spec = null;
+        if (spareSpec.exists()) {
+            BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(spareSpec), "UTF-8"));
+            try {
+                spec = reader.readLine();
+            } finally {
+                reader.close();
+            }
+        }
+
+        if (!provisionSpec.key().equals(spec)) {
+            IpfsLog.d(LOG_TAG, "Spare repo was generated for another spec (" + spec + "), discarding it");
+            IpfsRepoReaper.tombstone(spare);
+            spareSpec.delete();
+            return false;
+        }
+
+        if (!spare.renameTo(repo))
+            throw new IOException("Cannot move " + spare.getPath() + " to " + repo.getPath());
+        spareSpec.delete();
+        return true;
+    }
+
+    /**
+     * Generates, on a low priority background thread, a spare repo (identity included) for the
+     * current provisioning spec, so the next repo reset only has to rename it into place.
+     * It is started as soon as the binary is prepared (in a streamed prepare, while the other
+     * entries are still extracted) and again after the repo step if the spare was used
+     */
+    private synchronized void pregenerateSpareRepo() {
+        final File spare = new File(nodeDir + ".ipfs-spare");
+        final File spareTmp = new File(nodeDir + ".ipfs-spare.tmp");
+        final File spareSpec = new File(nodeDir + ".ipfs-spare.spec");
+        final IpfsProvisionSpec spec = provisionSpec;
+        final String binPath = ipfsBinPath;
+
+        if (spare.exists() || (spareRepoGenerator != null && spareRepoGenerator.isAlive()))
+            return;
+
+        Thread generator = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                long started = System.currentTimeMillis();
+                try {
+                    if (spareTmp.exists())
+                        IpfsRepoReaper.tombstone(spareTmp);
+                    execShell(spec.initCommand(binPath),
+                            new String[]{"IPFS_PATH=" + spareTmp.getPath()}, false, null);
+
+                    OutputStreamWriter writer = new OutputStreamWriter(new FileOutputStream(spareSpec), "UTF-8");
+                    try {
+                        writer.write(spec.key());
+                    } finally {
+                        writer.close();
+                    }
+                    if (!spareTmp.renameTo(spare))
+                        throw new IOException("Cannot move " + spareTmp.getPath() + " to " + spare.getPath());
+
+                    IpfsLog.d(LOG_TAG, "Spare repo generated in " + (System.currentTimeMillis() - started) + " ms");
+                } catch (Exception e) {
+                    IpfsLog.d(LOG_TAG, "Spare repo generation failed: " + e.toString());
+                }
+            }
+        }, "ipfs-spare-repo");
+        generator.setDaemon(true);
+        generator.setPriority(Thread.MIN_PRIORITY);
+        spareRepoGenerator = generator;
+        generator.start();
+    }
+
+    /**
+     * Launcher used by the daemon supervisor
+     * Checks if the IPFS binary and the IPFS repo dir exist, throwing an error of they don't
+     * If a daemon is already running on the repo (left by a previous plugin instance), it is
+     * adopted as it is (see IpfsAdoptedProcess); otherwise, tries to set the IPFS config access
+     * control and starts the IPFS daemon with 'pubsub' in a new process whose output is pumped
+     * into ipfsDaemonOutput
+     * The daemon is ready once the API answers, see IpfsReadinessProbe
+     */
+    private final IpfsDaemonSupervisor.Launcher daemonLauncher = new IpfsDaemonSupervisor.Launcher() {
+        @Override
+        public Process spawn() throws Exception {
+            if (ipfsBinPath == null || !(new File(ipfsBinPath).exists()))
+                throw new Exception("The IPFS was not prepared (binary not found)"
+                        + " Run init first or wait for init to finish !");
+
+            if (ipfsRepo == null || !(new File(ipfsRepo).exists()))
+                throw new Exception("The IPFS repo was not initialized (" + ipfsRepo + " not found)"
+                        + " Run init first or wait for init to finish !");
+
+            Process process = adoptRunning
+                    ? new IpfsReadinessProbe(ipfsRepo, daemonReadyTimeout).findRunning()
+                    : null;
+            if (process != null) {
+                IpfsLog.d(LOG_TAG, "Adopting the running IPFS daemon, the config patches are not applied");
+            } else {
+                configAPI(daemonConfigPatches);
+                process = Runtime.getRuntime().exec(
+                        new String[]{ipfsBinPath, "daemon", "--enable-pubsub-experiment"},
+                        new String[]{"IPFS_PATH=" + ipfsRepo}
+                );
+            }
+
+            ipfsDaemonOutput = new IpfsProcessOutput(DAEMON_OUTPUT_LINES);
+            ipfsDaemonOutput.setListener(new IpfsProcessOutput.Listener() {
+                @Override
+                public void onLine(String stream, String line) {
+                    IpfsProcessOutput.Listener listener = outputListener;
+                    if (listener != null)
+                        listener.onLine(stream, line);
+                }
+            });
+            ipfsDaemonOutput.pump(process, "ipfs-daemon");
+            return process;
+        }
+
+        @Override
+        public JSONObject awaitReady(Process process, long spawnStarted, long spawned) throws Exception {
+            try {
+                return new IpfsReadinessProbe(ipfsRepo, daemonReadyTimeout)
+                        .await(process, spawnStarted, spawned)
+                        .put("adopted", process instanceof IpfsAdoptedProcess);
+            } catch (Exception e) {
+                throw new Exception(e.getMessage() + "\n" + ipfsDaemonOutput.text(IpfsProcessOutput.STDERR));
+            }
+        }
+    };
+
+    /**
+     * Listener of the daemon supervisor; keeps the API endpoint up to date, records the start / stop
+     * durations in the metrics and forwards every state transition to the stateListener
+     */
+    private final IpfsDaemonSupervisor.Listener daemonListener = new IpfsDaemonSupervisor.Listener() {
+        @Override
+        public void onStateChanged(IpfsDaemonSupervisor.State state, IpfsDaemonSupervisor.State previous, JSONObject info) {
+            boolean ready = state == IpfsDaemonSupervisor.State.READY && info != null;
+            ipfsApi = ready ? info.optString("api", null) : null;
+            ipfsGateway = ready && !info.isNull("gateway") ? info.optString("gateway", null) : null;
+            metrics.setApi(ipfsApi);
+
+            long now = System.currentTimeMillis();
+            if (previous == IpfsDaemonSupervisor.State.STARTING && state == IpfsDaemonSupervisor.State.READY)
+                metrics.record(IpfsMetrics.Phase.START, now - stateChangedAt, 0);
+            else if (previous == IpfsDaemonSupervisor.State.STOPPING && state == IpfsDaemonSupervisor.State.STOPPED)
+                metrics.record(IpfsMetrics.Phase.STOP, now - stateChangedAt, 0);
+            stateChangedAt = now;
+            if (state == IpfsDaemonSupervisor.State.READY) {
+                jobs.wake();
+                gc.wake();
+            }
+
+            if (stateListener != null)
+                stateListener.onStateChanged(state, previous, info);
+        }
+    };
+}
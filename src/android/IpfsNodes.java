@@ -0,0 +1,140 @@
+package org.apache.cordova.ipfs;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.regex.Pattern;
+
+
+/**
+ * The nodes of the app, keyed by node id, each one with its own repo and daemon, sharing what can
+ * be shared: a single supervisor thread drives all the daemons, a single copy of the binary is
+ * prepared (one node at a time) for all the nodes of an appFilesDir, and the ports of the daemons
+ * are allocated here so that no two nodes of the app ever get the same API, gateway or swarm port.
+ *
+ * @author xSkyripper
+ */
+class IpfsNodes {
+    private static final String LOG_TAG = "#######CIP######";
+    private static final Pattern NODE_ID = Pattern.compile("[A-Za-z0-9_-]{1,64}");
+
+    static final String DEFAULT_NODE = "default";
+
+    private final ScheduledExecutorService supervisorThread = IpfsDaemonSupervisor.supervisorThread();
+    private final ConcurrentHashMap<String, IpfsNode> nodes = new ConcurrentHashMap<String, IpfsNode>();
+    private final Object binaryLock = new Object();
+    // the ports given to every node at its last start
+    private final Map<String, Set<Integer>> reservedPorts = new HashMap<String, Set<Integer>>();
+
+    /**
+     * Returns the node with the given id, creating it with the given listeners if it doesn't exist
+     *
+     * @param id             the node id: letters, digits, '-' and '_'
+     * @param stateListener  notified of every daemon state transition of a new node; may be null
+     * @param outputListener notified of every daemon output line of a new node; may be null
+     * @return the node
+     * @throws IllegalArgumentException if the id is not valid
+     */
+    synchronized IpfsNode create(String id, IpfsDaemonSupervisor.Listener stateListener,
+                                 IpfsProcessOutput.Listener outputListener) {
+        if (!NODE_ID.matcher(id).matches())
+            throw new IllegalArgumentException("Invalid node id " + id);
+
+        IpfsNode node = nodes.get(id);
+        if (node == null) {
+            node = new IpfsNode(id, this, stateListener, outputListener);
+            nodes.put(id, node);
+        }
+        return node;
+    }
+
+    /**
+     * @return the node with the given id; null if it was not created
+     */
+    IpfsNode get(String id) {
+        return nodes.get(id);
+    }
+
+    List<IpfsNode> all() {
+        return new ArrayList<IpfsNode>(nodes.values());
+    }
+
+    ScheduledExecutorService supervisorThread() {
+        return supervisorThread;
+    }
+
+    /**
+     * @return the lock held while a node looks for or prepares the binary
+     */
+    Object binaryLock() {
+        return binaryLock;
+    }
+
+    /**
+     * Picks the ports of a node about to start: the configured ports are kept if they are free
+     * and not given to another node, otherwise free local ports are allocated
+     *
+     * @param id         the node id
+     * @param configured the ports of the node config (API, gateway, swarm); 0 if not set
+     * @return the ports to use, in the same order
+     * @throws IOException if no free port could be allocated
+     */
+    synchronized int[] allocatePorts(String id, int[] configured) throws IOException {
+        Set<Integer> taken = new HashSet<Integer>();
+        for (Map.Entry<String, Set<Integer>> entry : reservedPorts.entrySet())
+            if (!entry.getKey().equals(id))
+                taken.addAll(entry.getValue());
+
+        int[] ports = new int[configured.length];
+        Set<Integer> reserved = new HashSet<Integer>();
+        for (int i = 0; i < configured.length; i++) {
+            int port = configured[i];
+            if (port <= 0 || taken.contains(port) || reserved.contains(port) || !isFree(port)) {
+                do {
+                    port = freePort();
+                } while (taken.contains(port) || reserved.contains(port));
+                IpfsLog.d(LOG_TAG, "Node " + id + ": port " + configured[i] + " not available, using " + port);
+            }
+            ports[i] = port;
+            reserved.add(port);
+        }
+        reservedPorts.put(id, reserved);
+        return ports;
+    }
+
+    /**
+     * Shuts down every node (their daemons are stopped gracefully) and then the supervisor thread
+     */
+    void shutdown() {
+        for (IpfsNode node : nodes.values())
+            node.shutdown();
+        supervisorThread.shutdown();
+    }
+
+    private static boolean isFree(int port) {
+        try {
+            // the swarm listens on all the interfaces, so the port is checked on all of them
+            ServerSocket socket = new ServerSocket(port);
+            socket.close();
+            return true;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    private static int freePort() throws IOException {
+        ServerSocket socket = new ServerSocket(0);
+        try {
+            return socket.getLocalPort();
+        } finally {
+            socket.close();
+        }
+    }
+}
@@ -0,0 +1,214 @@
+package org.apache.cordova.ipfs;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLEncoder;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+
+/**
+ * Lowers the resource usage of the daemon while the app is in background, without a cold restart
+ * when the app comes back, according to the mode:
+ * NONE    - nothing is changed
+ * TRIM    - the swarm connections are trimmed down to backgroundPeers through the API
+ * SUSPEND - the daemon process is paused with SIGSTOP and resumed with SIGCONT; the jobs, the repo
+ *           GC and the metrics stop calling its API meanwhile, since it would never answer
+ * STOP    - the daemon is stopped and started again on resume
+ * The pause / resume steps run in order on their own thread, never on the Cordova UI thread.
+ *
+ * @author xSkyripper
+ */
+class IpfsPowerPolicy {
+    private static final String LOG_TAG = "#######CIP######";
+    private static final int HTTP_TIMEOUT = 5000;
+
+    enum Mode {NONE, TRIM, SUSPEND, STOP}
+
+    private final IpfsNode node;
+    private final IpfsDaemonSupervisor supervisor;
+    private final ExecutorService executor = Executors.newSingleThreadExecutor();
+
+    private volatile Mode mode = Mode.NONE;
+    private volatile int backgroundPeers = 8;
+
+    private int suspendedPid = -1;
+    private boolean stoppedByPolicy = false;
+
+    IpfsPowerPolicy(IpfsNode node) {
+        this.node = node;
+        this.supervisor = node.supervisor();
+    }
+
+    /**
+     * @param mode            what is done with the daemon while the app is in background
+     * @param backgroundPeers the number of swarm connections kept in TRIM mode
+     */
+    void configure(Mode mode, int backgroundPeers) {
+        this.mode = mode;
+        this.backgroundPeers = backgroundPeers;
+    }
+
+    /**
+     * @return true if the daemon is paused or stopped while the app is in background
+     */
+    boolean pausesDaemon() {
+        return mode == Mode.SUSPEND || mode == Mode.STOP;
+    }
+
+    /**
+     * Called when the app goes to background
+     *
+     * @param api the API endpoint of the daemon; null if it's not running
+     */
+    void enterBackground(final String api) {
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                if (supervisor.state() != IpfsDaemonSupervisor.State.READY)
+                    return;
+
+                switch (mode) {
+                    case TRIM:
+                        if (api != null)
+                            trim(api);
+                        break;
+                    case SUSPEND:
+                        Process process = supervisor.process();
+                        int pid = process == null ? -1 : IpfsProcesses.pid(process);
+                        if (pid <= 0)
+                            break;
+                        // the API clients are paused first, so none is left waiting on a stopped daemon
+                        setClientsPaused(true);
+                        if (IpfsProcesses.signal(pid, IpfsProcesses.SIGSTOP)) {
+                            suspendedPid = pid;
+                            IpfsLog.d(LOG_TAG, "IPFS daemon suspended");
+                        } else {
+                            setClientsPaused(false);
+                        }
+                        break;
+                    case STOP:
+                        stoppedByPolicy = true;
+                        supervisor.stop(new LoggingCallback("stopped for background"));
+                        break;
+                    default:
+                        break;
+                }
+            }
+        });
+    }
+
+    /**
+     * Called when the app comes back to foreground; undoes what enterBackground did
+     */
+    void leaveBackground() {
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                if (suspendedPid > 0) {
+                    // the daemon may have been stopped meanwhile; never signal a reused PID
+                    Process process = supervisor.process();
+                    if (process != null && IpfsProcesses.pid(process) == suspendedPid) {
+                        IpfsProcesses.signal(suspendedPid, IpfsProcesses.SIGCONT);
+                        IpfsLog.d(LOG_TAG, "IPFS daemon resumed");
+                    }
+                    suspendedPid = -1;
+                    setClientsPaused(false);
+                }
+
+                if (stoppedByPolicy) {
+                    stoppedByPolicy = false;
+                    supervisor.start(new LoggingCallback("started for foreground"));
+                }
+            }
+        });
+    }
+
+    void shutdown() {
+        executor.shutdown();
+    }
+
+    /**
+     * Pauses or resumes the parts of the node that call the daemon API in background
+     */
+    private void setClientsPaused(boolean paused) {
+        node.jobs().setPaused(paused);
+        node.gc().setPaused(paused);
+        node.metrics().setPaused(paused);
+    }
+
+    /**
+     * Disconnects the swarm peers above backgroundPeers
+     */
+    private void trim(String api) {
+        try {
+            JSONArray peers = new JSONObject(post(api + "/api/v0/swarm/peers")).optJSONArray("Peers");
+            int disconnected = 0;
+
+            for (int i = backgroundPeers; peers != null && i < peers.length(); i++) {
+                JSONObject peer = peers.getJSONObject(i);
+                String address = peer.getString("Addr") + "/ipfs/" + peer.getString("Peer");
+                try {
+                    post(api + "/api/v0/swarm/disconnect?arg=" + URLEncoder.encode(address, "UTF-8"));
+                    disconnected++;
+                } catch (IOException e) {
+                    IpfsLog.d(LOG_TAG, "Cannot disconnect " + address + ": " + e.toString());
+                }
+            }
+            IpfsLog.d(LOG_TAG, "IPFS daemon trimmed, " + disconnected + " peers disconnected");
+        } catch (IOException e) {
+            IpfsLog.d(LOG_TAG, "IPFS daemon trim failed: " + e.toString());
+        } catch (JSONException e) {
+            IpfsLog.d(LOG_TAG, "IPFS daemon trim failed: " + e.toString());
+        }
+    }
+
+    private static String post(String url) throws IOException {
+        HttpURLConnection conn = (HttpURLConnection) new URL(url).openConnection();
+        try {
+            conn.setRequestMethod("POST");
+            conn.setConnectTimeout(HTTP_TIMEOUT);
+            conn.setReadTimeout(HTTP_TIMEOUT);
+            if (conn.getResponseCode() != HttpURLConnection.HTTP_OK)
+                throw new IOException("IPFS API returned HTTP " + conn.getResponseCode());
+
+            StringBuilder content = new StringBuilder();
+            BufferedReader reader = new BufferedReader(new InputStreamReader(conn.getInputStream(), "UTF-8"));
+            try {
+                String line;
+                while ((line = reader.readLine()) != null)
+                    content.append(line);
+            } finally {
+                reader.close();
+            }
+            return content.toString();
+        } finally {
+            conn.disconnect();
+        }
+    }
+
+    private static class LoggingCallback implements IpfsDaemonSupervisor.Callback {
+        private final String what;
+
+        LoggingCallback(String what) {
+            this.what = what;
+        }
+
+        @Override
+        public void success(JSONObject result) {
+            IpfsLog.d(LOG_TAG, "IPFS daemon " + what);
+        }
+
+        @Override
+        public void error(String message) {
+            IpfsLog.d(LOG_TAG, "IPFS daemon not " + what + ": " + message);
+        }
+    }
+}
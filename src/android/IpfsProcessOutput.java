@@ -0,0 +1,154 @@
+package org.apache.cordova.ipfs;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+
+
+/**
+ * Drains the stdout and stderr of a process at the same time, on one thread per stream, into a
+ * fixed-size ring buffer of the most recent lines, so a chatty process can never stall on a full
+ * pipe and the memory used for its output stays constant no matter how long it runs.
+ * Every line can also be pushed to a Listener as soon as it is read.
+ *
+ * @author xSkyripper
+ */
+class IpfsProcessOutput {
+    private static final String LOG_TAG = "#######CIP######";
+
+    static final String STDOUT = "out";
+    static final String STDERR = "err";
+
+    /**
+     * Receives every line read from the process, on the thread that pumps its stream
+     */
+    interface Listener {
+        void onLine(String stream, String line);
+    }
+
+    private final String[] lines;
+    private final String[] streams;
+    private int head = 0;
+    private int count = 0;
+    private int errCount = 0;
+
+    private volatile Listener listener;
+    private Thread outPump;
+    private Thread errPump;
+
+    /**
+     * @param capacity the number of recent lines kept
+     */
+    IpfsProcessOutput(int capacity) {
+        this.lines = new String[capacity];
+        this.streams = new String[capacity];
+    }
+
+    void setListener(Listener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * Starts pumping the stdout and stderr of the process; the pump threads end when the
+     * streams reach EOF (the process exited)
+     *
+     * @param process the process whose output is drained
+     * @param name    name used for the pump threads
+     */
+    void pump(Process process, String name) {
+        outPump = this.startPump(process.getInputStream(), STDOUT, name);
+        errPump = this.startPump(process.getErrorStream(), STDERR, name);
+    }
+
+    /**
+     * Waits for both pumps to drain their stream to EOF
+     *
+     * @throws InterruptedException if the waiting thread is interrupted
+     */
+    void await() throws InterruptedException {
+        if (outPump != null)
+            outPump.join();
+        if (errPump != null)
+            errPump.join();
+    }
+
+    /**
+     * @return the number of stderr lines read since the pumps were started (including the ones
+     * that were already dropped from the ring buffer)
+     */
+    synchronized int errorCount() {
+        return errCount;
+    }
+
+    /**
+     * @param stream STDOUT, STDERR or null for both
+     * @return the recent lines of the stream, oldest first, joined with "\n"
+     */
+    synchronized String text(String stream) {
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < count; i++) {
+            int index = (head - count + i + lines.length) % lines.length;
+            if (stream == null || stream.equals(streams[index]))
+                text.append(lines[index]).append("\n");
+        }
+        return text.toString();
+    }
+
+    /**
+     * @return the recent lines, oldest first, as [{stream, line}]
+     * @throws JSONException if a line couldn't be added
+     */
+    synchronized JSONArray toJSON() throws JSONException {
+        JSONArray json = new JSONArray();
+        for (int i = 0; i < count; i++) {
+            int index = (head - count + i + lines.length) % lines.length;
+            json.put(new JSONObject().put("stream", streams[index]).put("line", lines[index]));
+        }
+        return json;
+    }
+
+    private synchronized void add(String stream, String line) {
+        lines[head] = line;
+        streams[head] = stream;
+        head = (head + 1) % lines.length;
+        if (count < lines.length)
+            count++;
+        if (STDERR.equals(stream))
+            errCount++;
+    }
+
+    private Thread startPump(final InputStream input, final String stream, String name) {
+        Thread pump = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                BufferedReader reader = new BufferedReader(new InputStreamReader(input));
+                String line;
+                try {
+                    while ((line = reader.readLine()) != null) {
+                        add(stream, line);
+                        IpfsLog.d(LOG_TAG, line);
+
+                        Listener current = listener;
+                        if (current != null)
+                            current.onLine(stream, line);
+                    }
+                } catch (IOException e) {
+                    IpfsLog.d(LOG_TAG, "Process " + stream + " pump stopped: " + e.toString());
+                } finally {
+                    try {
+                        reader.close();
+                    } catch (IOException ignored) {
+                    }
+                }
+            }
+        }, name + "-" + stream);
+        pump.setDaemon(true);
+        pump.start();
+        return pump;
+    }
+}
@@ -0,0 +1,158 @@
+package org.apache.cordova.ipfs;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.Field;
+
+
+/**
+ * Helpers for the child processes of the plugin: finding the PID of a Process, sending signals
+ * and waiting for an exit with a deadline (Process.waitFor(timeout) is not available on older
+ * Android versions).
+ * The signals go through a Signaller: the Cordova plugin (see Ipfs) sets one calling
+ * android.os.Process.sendSignal, the default one runs 'kill', so the class also works off-device.
+ *
+ * @author xSkyripper
+ */
+class IpfsProcesses {
+    private static final String LOG_TAG = "#######CIP######";
+
+    static final int SIGKILL = 9;
+    static final int SIGTERM = 15;
+    static final int SIGCONT = 18;
+    static final int SIGSTOP = 19;
+
+    private static final long EXIT_POLL_INTERVAL = 50;
+
+    interface Signaller {
+        void send(int pid, int signal) throws IOException;
+    }
+
+    private static volatile Signaller signaller = new Signaller() {
+        @Override
+        public void send(int pid, int signal) throws IOException {
+            java.lang.Process kill = new ProcessBuilder("kill", "-" + signal, String.valueOf(pid))
+                    .redirectErrorStream(true).start();
+            try {
+                kill.waitFor();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    };
+
+    private IpfsProcesses() {
+    }
+
+    static void setSignaller(Signaller newSignaller) {
+        signaller = newSignaller;
+    }
+
+    /**
+     * Reads the PID of a process through the "pid" field of the platform implementation, or
+     * through Process.pid() on the Java 9+ runtimes that hide that field
+     *
+     * @param process the process
+     * @return the PID, or -1 if it couldn't be found
+     */
+    static int pid(Process process) {
+        try {
+            return ((Number) Process.class.getMethod("pid").invoke(process)).intValue();
+        } catch (Exception e) {
+            // not available before Java 9 / on Android, the field is read below
+        }
+
+        try {
+            Field pid = process.getClass().getDeclaredField("pid");
+            pid.setAccessible(true);
+            return pid.getInt(process);
+        } catch (Exception e) {
+            IpfsLog.d(LOG_TAG, "Cannot get the PID of " + process.getClass().getName() + ": " + e.toString());
+            return -1;
+        }
+    }
+
+    /**
+     * Checks if a process is running by trying to access the exitValue; if an exception is thrown
+     * then the process is still running; otherwise, it finished running and it has an exit value
+     *
+     * @param process the process to be checked
+     * @return true if the process is running; false otherwise
+     */
+    static boolean isRunning(Process process) {
+        try {
+            process.exitValue();
+            return false;
+        } catch (IllegalThreadStateException e) {
+            return true;
+        }
+    }
+
+    /**
+     * Checks if a process is stopped (e.g. suspended with SIGSTOP), by the state field of
+     * /proc/[pid]/stat: "T" (stopped) or "t" (tracing stop)
+     *
+     * @param pid the PID
+     * @return true if the process exists and is stopped
+     */
+    static boolean isStopped(int pid) {
+        if (pid <= 0)
+            return false;
+
+        byte[] stat = new byte[512];
+        int length = 0;
+        try {
+            InputStream input = new FileInputStream("/proc/" + pid + "/stat");
+            try {
+                int read;
+                while (length < stat.length && (read = input.read(stat, length, stat.length - length)) != -1)
+                    length += read;
+            } finally {
+                input.close();
+            }
+        } catch (IOException e) {
+            return false;
+        }
+
+        // "pid (comm) state ...", the command name may contain spaces and parens
+        int pos = length - 1;
+        while (pos > 0 && stat[pos] != ')')
+            pos--;
+        return pos + 2 < length && (stat[pos + 2] == 'T' || stat[pos + 2] == 't');
+    }
+
+    /**
+     * Sends a signal to a PID
+     *
+     * @return false if the PID is unknown
+     */
+    static boolean signal(int pid, int signal) {
+        if (pid <= 0)
+            return false;
+
+        try {
+            signaller.send(pid, signal);
+        } catch (IOException e) {
+            IpfsLog.d(LOG_TAG, "Cannot send signal " + signal + " to " + pid + ": " + e.toString());
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Waits for a process to exit, at most timeout ms
+     *
+     * @return true if the process exited
+     * @throws InterruptedException if the waiting thread is interrupted
+     */
+    static boolean waitFor(Process process, long timeout) throws InterruptedException {
+        long limit = System.currentTimeMillis() + timeout;
+        while (isRunning(process)) {
+            if (System.currentTimeMillis() >= limit)
+                return false;
+            Thread.sleep(EXIT_POLL_INTERVAL);
+        }
+        return true;
+    }
+}
@@ -0,0 +1,87 @@
+package org.apache.cordova.ipfs;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.List;
+
+
+/**
+ * Describes how a new repo is provisioned by "ipfs init": the identity key (algorithm and size),
+ * the config profiles (e.g. "lowpower") and the datastore ("flatfs" or "badgerds").
+ * Two specs with the same key() produce interchangeable repos, which is what allows a spare repo
+ * generated in the background to be used for the next reset.
+ *
+ * @author xSkyripper
+ */
+class IpfsProvisionSpec {
+    private final String algorithm;
+    private final int bits;
+    private final List<String> profiles = new ArrayList<String>();
+    private final String datastore;
+    private final boolean emptyRepo;
+
+    /**
+     * @param spec {algorithm: "rsa" | "ed25519", bits: 2048, profiles: ["lowpower"],
+     *             datastore: "flatfs" | "badgerds", emptyRepo: false}; null for a bare "ipfs init"
+     * @throws JSONException            if a profile is not a string
+     * @throws IllegalArgumentException if the datastore is neither "flatfs" nor "badgerds"
+     */
+    IpfsProvisionSpec(JSONObject spec) throws JSONException {
+        if (spec == null)
+            spec = new JSONObject();
+
+        algorithm = spec.isNull("algorithm") ? null : spec.getString("algorithm");
+        bits = spec.optInt("bits", 0);
+        datastore = spec.optString("datastore", "flatfs");
+        if (!datastore.equals("flatfs") && !datastore.equals("badgerds"))
+            throw new IllegalArgumentException("Unknown datastore " + datastore + ", expected flatfs or badgerds");
+        emptyRepo = spec.optBoolean("emptyRepo", false);
+
+        JSONArray specProfiles = spec.optJSONArray("profiles");
+        if (specProfiles != null)
+            for (int i = 0; i < specProfiles.length(); i++)
+                profiles.add(specProfiles.getString(i));
+        if (datastore.equals("badgerds") && !profiles.contains("badgerds"))
+            profiles.add("badgerds");
+    }
+
+    /**
+     * @param ipfsBinPath the path of the IPFS binary
+     * @return the "ipfs init" command for this spec
+     */
+    String[] initCommand(String ipfsBinPath) {
+        List<String> cmd = new ArrayList<String>();
+        cmd.add(ipfsBinPath);
+        cmd.add("init");
+        if (algorithm != null)
+            cmd.add("--algorithm=" + algorithm);
+        if (bits > 0)
+            cmd.add("--bits=" + bits);
+        if (!profiles.isEmpty())
+            cmd.add("--profile=" + join(profiles));
+        if (emptyRepo)
+            cmd.add("--empty-repo");
+        return cmd.toArray(new String[cmd.size()]);
+    }
+
+    /**
+     * @return a key identifying the repos produced by this spec
+     */
+    String key() {
+        return "algorithm=" + algorithm + ";bits=" + bits + ";profiles=" + join(profiles)
+                + ";emptyRepo=" + emptyRepo;
+    }
+
+    private static String join(List<String> values) {
+        StringBuilder joined = new StringBuilder();
+        for (String value : values) {
+            if (joined.length() > 0)
+                joined.append(",");
+            joined.append(value);
+        }
+        return joined.toString();
+    }
+}
@@ -0,0 +1,363 @@
+package org.apache.cordova.ipfs;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLEncoder;
+import java.util.ArrayDeque;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * Native pubsub for the daemon of a node: every subscribed topic has a single reader thread
+ * streaming /api/v0/pubsub/sub into a bounded queue, and the queued messages are delivered in
+ * batches, as soon as batchSize messages are queued or batchWindow ms after the first one, so a
+ * burst of messages costs a single delivery. When the queue is full, the overflow policy either
+ * drops the oldest or the newest message (the dropped messages are counted and reported with the
+ * next batch) or blocks the reader, which pushes back on the daemon.
+ * A reader whose stream is cut (e.g. the daemon was restarted) reconnects with backoff until
+ * the topic is unsubscribed.
+ *
+ * @author xSkyripper
+ */
+class IpfsPubsub {
+    private static final String LOG_TAG = "#######CIP######";
+    private static final int CONNECT_TIMEOUT = 5000;
+    private static final int HTTP_TIMEOUT = 10000;
+    private static final long MIN_RECONNECT_BACKOFF = 500;
+    private static final long MAX_RECONNECT_BACKOFF = 10000;
+
+    enum Overflow {DROP_OLDEST, DROP_NEWEST, BLOCK}
+
+    interface Listener {
+        /**
+         * Called on the flusher thread with a batch of messages of a topic
+         *
+         * @param topic    the topic
+         * @param messages the messages, as returned by the API ({from, data, seqno, topicIDs},
+         *                 with base64 encoded data)
+         * @param dropped  the number of messages dropped by the overflow policy since the last batch
+         */
+        void onMessages(String topic, JSONArray messages, long dropped);
+
+        /**
+         * Called once the topic was unsubscribed
+         *
+         * @param topic the topic
+         */
+        void onClosed(String topic);
+    }
+
+    private final IpfsNode node;
+    private final ConcurrentHashMap<String, Subscription> subscriptions = new ConcurrentHashMap<String, Subscription>();
+    private final ScheduledExecutorService flusher = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "ipfs-pubsub-flusher");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    /**
+     * @param node the node whose daemon API is used; the current API is looked up on every
+     *             (re)connect
+     */
+    IpfsPubsub(IpfsNode node) {
+        this.node = node;
+    }
+
+    /**
+     * Subscribes to a topic; if the topic is already subscribed, only the listener is replaced
+     * (the previous listener gets onClosed)
+     *
+     * @param topic       the topic
+     * @param batchSize   the number of messages that triggers a delivery at once
+     * @param batchWindow the maximum time a message waits for its batch, in ms
+     * @param queueSize   the capacity of the queue
+     * @param overflow    what happens to a new message when the queue is full
+     * @param discover    if true, the daemon tries to discover other peers subscribed to the topic
+     * @param listener    the listener of the batches
+     */
+    void subscribe(String topic, int batchSize, long batchWindow, int queueSize, Overflow overflow,
+                   boolean discover, Listener listener) {
+        Subscription subscription = new Subscription(topic, Math.max(1, batchSize), Math.max(0, batchWindow),
+                Math.max(1, queueSize), overflow, discover, listener);
+        subscription.reader = new Thread(subscription, "ipfs-pubsub-" + topic);
+        subscription.reader.setDaemon(true);
+
+        Subscription previous = subscriptions.putIfAbsent(topic, subscription);
+        if (previous != null) {
+            Listener replaced = previous.listener;
+            previous.listener = listener;
+            replaced.onClosed(topic);
+            return;
+        }
+        subscription.reader.start();
+    }
+
+    /**
+     * Unsubscribes from a topic: the stream is closed and the messages still queued are
+     * delivered before onClosed
+     *
+     * @param topic the topic
+     * @return false if the topic was not subscribed
+     */
+    boolean unsubscribe(String topic) {
+        Subscription subscription = subscriptions.remove(topic);
+        if (subscription == null)
+            return false;
+
+        subscription.close();
+        return true;
+    }
+
+    /**
+     * Publishes a message to a topic
+     *
+     * @param topic the topic
+     * @param data  the message
+     * @throws IOException if the daemon is not running or the API refused the message
+     */
+    void publish(String topic, String data) throws IOException {
+        String api = node.api();
+        if (api == null)
+            throw new IOException("The IPFS daemon is not running");
+
+        HttpURLConnection conn = (HttpURLConnection) new URL(api + "/api/v0/pubsub/pub?arg="
+                + URLEncoder.encode(topic, "UTF-8") + "&arg=" + URLEncoder.encode(data, "UTF-8")).openConnection();
+        try {
+            conn.setRequestMethod("POST");
+            conn.setConnectTimeout(CONNECT_TIMEOUT);
+            conn.setReadTimeout(HTTP_TIMEOUT);
+            if (conn.getResponseCode() != HttpURLConnection.HTTP_OK)
+                throw new IOException("IPFS API returned HTTP " + conn.getResponseCode() + " for pubsub/pub");
+        } finally {
+            conn.disconnect();
+        }
+    }
+
+    void shutdown() {
+        for (String topic : subscriptions.keySet())
+            unsubscribe(topic);
+        flusher.shutdown();
+    }
+
+    /**
+     * The reader of a topic; the queue and the counters are guarded by the subscription itself
+     */
+    private class Subscription implements Runnable {
+        private final String topic;
+        private final int batchSize;
+        private final long batchWindow;
+        private final int queueSize;
+        private final Overflow overflow;
+        private final boolean discover;
+        private volatile Listener listener;
+        private volatile boolean active = true;
+        private volatile HttpURLConnection conn = null;
+        private volatile Thread reader;
+
+        private final ArrayDeque<String> queue = new ArrayDeque<String>();
+        private long dropped = 0;
+        private boolean flushPending = false;
+
+        private final Runnable flush = new Runnable() {
+            @Override
+            public void run() {
+                flush();
+            }
+        };
+
+        Subscription(String topic, int batchSize, long batchWindow, int queueSize, Overflow overflow,
+                     boolean discover, Listener listener) {
+            this.topic = topic;
+            this.batchSize = batchSize;
+            this.batchWindow = batchWindow;
+            this.queueSize = queueSize;
+            this.overflow = overflow;
+            this.discover = discover;
+            this.listener = listener;
+        }
+
+        @Override
+        public void run() {
+            long backoff = MIN_RECONNECT_BACKOFF;
+
+            while (active) {
+                String api = node.api();
+                if (api != null) {
+                    try {
+                        this.read(api);
+                        backoff = MIN_RECONNECT_BACKOFF;
+                    } catch (IOException e) {
+                        if (active)
+                            IpfsLog.d(LOG_TAG, "pubsub " + topic + " stream failed: " + e.toString());
+                    } catch (InterruptedException e) {
+                        break;
+                    }
+                }
+                if (!active)
+                    break;
+
+                try {
+                    Thread.sleep(backoff);
+                } catch (InterruptedException e) {
+                    break;
+                }
+                backoff = Math.min(backoff * 2, MAX_RECONNECT_BACKOFF);
+            }
+        }
+
+        /**
+         * Streams the messages of the topic into the queue, one JSON message per line, until the
+         * stream ends or the subscription is closed
+         */
+        private void read(String api) throws IOException, InterruptedException {
+            HttpURLConnection connection = (HttpURLConnection) new URL(api + "/api/v0/pubsub/sub?arg="
+                    + URLEncoder.encode(topic, "UTF-8") + "&discover=" + discover).openConnection();
+            conn = connection;
+            try {
+                connection.setRequestMethod("POST");
+                connection.setConnectTimeout(CONNECT_TIMEOUT);
+                connection.setReadTimeout(0);
+                if (!active)
+                    return;
+                if (connection.getResponseCode() != HttpURLConnection.HTTP_OK)
+                    throw new IOException("IPFS API returned HTTP " + connection.getResponseCode() + " for pubsub/sub");
+
+                BufferedReader reader = new BufferedReader(new InputStreamReader(connection.getInputStream(), "UTF-8"));
+                try {
+                    String line;
+                    while (active && (line = reader.readLine()) != null) {
+                        // older daemons send an empty message first, to flush the headers
+                        if (line.length() == 0 || line.equals("{}"))
+                            continue;
+                        this.offer(line);
+                    }
+                } finally {
+                    reader.close();
+                }
+            } finally {
+                conn = null;
+                connection.disconnect();
+            }
+        }
+
+        /**
+         * Queues a message, applying the overflow policy, and schedules the delivery of its batch
+         */
+        private synchronized void offer(String message) throws InterruptedException {
+            if (!active)
+                return;
+
+            if (queue.size() >= queueSize) {
+                switch (overflow) {
+                    case DROP_OLDEST:
+                        queue.poll();
+                        dropped++;
+                        break;
+                    case DROP_NEWEST:
+                        dropped++;
+                        return;
+                    default:
+                        while (active && queue.size() >= queueSize)
+                            this.wait();
+                        if (!active)
+                            return;
+                        break;
+                }
+            }
+
+            queue.add(message);
+            if (queue.size() == batchSize) {
+                flusher.execute(flush);
+            } else if (!flushPending) {
+                flushPending = true;
+                flusher.schedule(flush, batchWindow, TimeUnit.MILLISECONDS);
+            }
+        }
+
+        /**
+         * Delivers the queued messages as a single batch; runs on the flusher thread
+         */
+        private void flush() {
+            StringBuilder batch;
+            long batchDropped;
+
+            synchronized (this) {
+                flushPending = false;
+                if (queue.isEmpty() && dropped == 0)
+                    return;
+
+                batch = new StringBuilder("[");
+                for (String message = queue.poll(); message != null; message = queue.poll()) {
+                    if (batch.length() > 1)
+                        batch.append(',');
+                    batch.append(message);
+                }
+                batch.append(']');
+                batchDropped = dropped;
+                dropped = 0;
+                this.notifyAll();
+            }
+
+            try {
+                listener.onMessages(topic, new JSONArray(batch.toString()), batchDropped);
+            } catch (JSONException e) {
+                IpfsLog.d(LOG_TAG, "pubsub " + topic + " batch dropped: " + e.toString());
+            }
+        }
+
+        /**
+         * Stops the reader (the stream is disconnected and a reader blocked on a full queue or
+         * waiting to reconnect is woken up), then delivers the last batch and onClosed without
+         * waiting for the reader to exit
+         */
+        private void close() {
+            active = false;
+            synchronized (this) {
+                this.notifyAll();
+            }
+            reader.interrupt();
+
+            Runnable closed = new Runnable() {
+                @Override
+                public void run() {
+                    flush();
+                    listener.onClosed(topic);
+                }
+            };
+            try {
+                flusher.execute(closed);
+            } catch (RejectedExecutionException e) {
+                // the flusher was shut down with the node
+                closed.run();
+            }
+
+            // some HttpURLConnection implementations drain the stream on disconnect, so it's
+            // never done on the caller thread
+            final HttpURLConnection connection = conn;
+            if (connection != null) {
+                Thread disconnect = new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        connection.disconnect();
+                    }
+                }, "ipfs-pubsub-close");
+                disconnect.setDaemon(true);
+                disconnect.start();
+            }
+        }
+    }
+}
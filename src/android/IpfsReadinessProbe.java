@@ -0,0 +1,317 @@
+package org.apache.cordova.ipfs;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.HttpURLConnection;
+import java.net.URL;
+
+
+/**
+ * Waits for a freshly spawned daemon to become usable: it watches the repo for "repo.lock"
+ * and for the "api" file (written by the daemon as soon as its API listens) and then polls
+ * /api/v0/id with backoff until the API answers, with the peer ID of the repo, or the deadline is
+ * reached. Any other server that answers on the configured port, or at the address of a stale
+ * "api" file, is never taken for the daemon.
+ * The time spent in every phase is measured and returned with the API endpoint.
+ * It also finds the daemon left running on the repo by a previous plugin instance, see findRunning.
+ *
+ * @author xSkyripper
+ */
+class IpfsReadinessProbe {
+    private static final String LOG_TAG = "#######CIP######";
+
+    private static final long MIN_POLL_INTERVAL = 10;
+    private static final long MAX_POLL_INTERVAL = 250;
+    private static final int HTTP_TIMEOUT = 1000;
+    private static final long TERM_TIMEOUT = 3000;
+    private static final long KILL_TIMEOUT = 5000;
+
+    private final String ipfsRepo;
+    private final long deadline;
+
+    /**
+     * @param ipfsRepo the path of the repo the daemon was started on (ending with "/")
+     * @param deadline the maximum time (ms) to wait for the API to answer
+     */
+    IpfsReadinessProbe(String ipfsRepo, long deadline) {
+        this.ipfsRepo = ipfsRepo;
+        this.deadline = deadline;
+    }
+
+    /**
+     * Blocks until the API of the daemon answers /api/v0/id
+     *
+     * @param process      the daemon process; the probe fails as soon as it exits
+     * @param spawnStarted the System.nanoTime() taken right before the process was spawned
+     * @param spawned      the System.nanoTime() taken right after the process was spawned
+     * @return {api, multiaddr, id, gateway, timings: {spawn, repoLock, apiReady, total}} (ms); the
+     * gateway is the HTTP URL of Addresses.Gateway, null if it's not an ip4 / ip6 tcp address
+     * @throws Exception if the process exited or the deadline was reached before the API answered
+     */
+    JSONObject await(Process process, long spawnStarted, long spawned) throws Exception {
+        File lockFile = new File(ipfsRepo + "repo.lock");
+        File apiFile = new File(ipfsRepo + "api");
+        JSONObject config = this.repoConfig();
+        String peerId = peerId(config);
+        String configuredGateway = address(config, "Gateway");
+        String gateway = configuredGateway == null ? null : toHttpUrl(configuredGateway);
+        long limit = spawned + deadline * 1000000L;
+        long locked = -1;
+        long interval = MIN_POLL_INTERVAL;
+
+        while (true) {
+            if (!isRunning(process))
+                throw new Exception("IPFS daemon exited with " + process.exitValue() + " before being ready");
+
+            long now = System.nanoTime();
+            if (locked < 0 && lockFile.exists())
+                locked = now;
+
+            String multiaddr = apiFile.exists() ? readFirstLine(apiFile) : null;
+            if (multiaddr != null) {
+                String api = toHttpUrl(multiaddr);
+                String id = api == null ? null : this.probeId(api, peerId);
+                if (id != null) {
+                    long ready = System.nanoTime();
+                    if (locked < 0)
+                        locked = ready;
+                    JSONObject timings = new JSONObject()
+                            .put("spawn", (spawned - spawnStarted) / 1000000L)
+                            .put("repoLock", (locked - spawned) / 1000000L)
+                            .put("apiReady", (ready - locked) / 1000000L)
+                            .put("total", (ready - spawnStarted) / 1000000L);
+
+                    IpfsLog.d(LOG_TAG, "IPFS daemon ready at " + api + " " + timings.toString());
+                    return new JSONObject()
+                            .put("api", api)
+                            .put("multiaddr", multiaddr)
+                            .put("id", id)
+                            .put("gateway", gateway == null ? JSONObject.NULL : gateway)
+                            .put("timings", timings);
+                }
+            }
+
+            if (now > limit)
+                throw new Exception("IPFS daemon API not ready after " + deadline + " ms");
+
+            Thread.sleep(interval);
+            interval = Math.min(interval * 2, MAX_POLL_INTERVAL);
+        }
+    }
+
+    /**
+     * Looks for a daemon that is already running on the repo (e.g. started before a WebView
+     * reload): the OwnerPID of "repo.lock" must be a live ipfs process and the "api" file must
+     * point to an API that answers /api/v0/id with the peer ID of the repo. An owner that is
+     * stopped (suspended by the power policy of a previous plugin instance, see IpfsPowerPolicy)
+     * is resumed with SIGCONT first, since it can't answer. An owner that is still starting gets until the deadline to answer;
+     * past it, it's hung and holds the repo lock for nothing, so it's terminated (SIGTERM, then
+     * SIGKILL) to let a new daemon start. The "api" and "repo.lock" files left behind by a daemon
+     * that was killed are deleted
+     *
+     * @return the running daemon, or null if there is none
+     * @throws Exception if a hung owner of the repo lock couldn't be terminated
+     */
+    IpfsAdoptedProcess findRunning() throws Exception {
+        File lockFile = new File(ipfsRepo + "repo.lock");
+        File apiFile = new File(ipfsRepo + "api");
+        int ownerPid = lockOwner(lockFile);
+        String peerId = peerId(this.repoConfig());
+
+        if (IpfsAdoptedProcess.isIpfs(ownerPid) && IpfsProcesses.isStopped(ownerPid)) {
+            IpfsLog.d(LOG_TAG, "Resuming the stopped IPFS daemon " + ownerPid);
+            IpfsProcesses.signal(ownerPid, IpfsProcesses.SIGCONT);
+        }
+
+        long limit = System.nanoTime() + deadline * 1000000L;
+        long interval = MIN_POLL_INTERVAL;
+        while (IpfsAdoptedProcess.isIpfs(ownerPid)) {
+            String multiaddr = apiFile.exists() ? readFirstLine(apiFile) : null;
+            String api = multiaddr == null ? null : toHttpUrl(multiaddr);
+            String id = api == null ? null : this.probeId(api, peerId);
+            if (id != null) {
+                IpfsLog.d(LOG_TAG, "Found running IPFS daemon " + id + " at " + api + " (PID " + ownerPid + ")");
+                return new IpfsAdoptedProcess(ownerPid);
+            }
+
+            if (System.nanoTime() > limit) {
+                terminate(ownerPid);
+                break;
+            }
+            Thread.sleep(interval);
+            interval = Math.min(interval * 2, MAX_POLL_INTERVAL);
+        }
+
+        if (apiFile.exists() && apiFile.delete())
+            IpfsLog.d(LOG_TAG, "Deleted stale " + apiFile.getPath());
+        if (ownerPid > 0 && lockFile.delete())
+            IpfsLog.d(LOG_TAG, "Deleted stale " + lockFile.getPath() + " of PID " + ownerPid);
+        return null;
+    }
+
+    /**
+     * Terminates the owner of the repo lock that doesn't answer: SIGTERM, then SIGKILL after
+     * TERM_TIMEOUT ms
+     *
+     * @throws Exception if it's still running KILL_TIMEOUT ms after SIGKILL
+     */
+    private void terminate(int pid) throws Exception {
+        IpfsLog.d(LOG_TAG, "IPFS daemon " + pid + " holds the repo lock but its API didn't answer in "
+                + deadline + " ms, terminating it");
+        if (IpfsProcesses.signal(pid, IpfsProcesses.SIGTERM) && awaitExit(pid, TERM_TIMEOUT))
+            return;
+        if (IpfsProcesses.signal(pid, IpfsProcesses.SIGKILL) && awaitExit(pid, KILL_TIMEOUT))
+            return;
+        throw new Exception("IPFS daemon " + pid + " holds " + ipfsRepo + "repo.lock, its API doesn't answer"
+                + " and it can't be stopped");
+    }
+
+    private static boolean awaitExit(int pid, long timeout) throws InterruptedException {
+        long limit = System.currentTimeMillis() + timeout;
+        while (IpfsAdoptedProcess.isIpfs(pid)) {
+            if (System.currentTimeMillis() >= limit)
+                return false;
+            Thread.sleep(MIN_POLL_INTERVAL);
+        }
+        return true;
+    }
+
+    /**
+     * @return the OwnerPID written in "repo.lock" ({"OwnerPID": 1234}), -1 if it can't be read
+     */
+    private static int lockOwner(File lockFile) {
+        String lock = lockFile.exists() ? readFirstLine(lockFile) : null;
+        if (lock == null)
+            return -1;
+
+        try {
+            return new JSONObject(lock).optInt("OwnerPID", -1);
+        } catch (JSONException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * Converts an API multiaddr like /ip4/127.0.0.1/tcp/5001 to http://127.0.0.1:5001
+     *
+     * @param multiaddr the multiaddr
+     * @return the HTTP URL or null if the multiaddr is not an ip4 / ip6 tcp address
+     */
+    static String toHttpUrl(String multiaddr) {
+        String[] parts = multiaddr.trim().split("/");
+        if (parts.length < 5 || !parts[3].equals("tcp"))
+            return null;
+
+        if (parts[1].equals("ip4"))
+            return "http://" + (parts[2].equals("0.0.0.0") ? "127.0.0.1" : parts[2]) + ":" + parts[4];
+        if (parts[1].equals("ip6"))
+            return "http://[" + (parts[2].equals("::") ? "::1" : parts[2]) + "]:" + parts[4];
+        return null;
+    }
+
+    /**
+     * @param peerId the peer ID of the repo; null to take any
+     * @return the ID of the node if /api/v0/id answered with "200" and the peer ID of the repo,
+     * null otherwise
+     */
+    private String probeId(String api, String peerId) {
+        HttpURLConnection conn = null;
+        try {
+            conn = (HttpURLConnection) new URL(api + "/api/v0/id").openConnection();
+            conn.setRequestMethod("POST");
+            conn.setConnectTimeout(HTTP_TIMEOUT);
+            conn.setReadTimeout(HTTP_TIMEOUT);
+            if (conn.getResponseCode() != HttpURLConnection.HTTP_OK)
+                return null;
+
+            StringBuilder content = new StringBuilder();
+            BufferedReader reader = new BufferedReader(new InputStreamReader(conn.getInputStream(), "UTF-8"));
+            String line;
+            while ((line = reader.readLine()) != null)
+                content.append(line);
+            reader.close();
+            String id = new JSONObject(content.toString()).optString("ID");
+            if (peerId != null && !peerId.equals(id)) {
+                IpfsLog.d(LOG_TAG, "Ignoring " + api + ", it answered as " + id + " instead of " + peerId);
+                return null;
+            }
+            return id;
+        } catch (IOException e) {
+            return null;
+        } catch (JSONException e) {
+            return null;
+        } finally {
+            if (conn != null)
+                conn.disconnect();
+        }
+    }
+
+    /**
+     * @return the repo config, or null if it can't be read
+     */
+    private JSONObject repoConfig() {
+        try {
+            StringBuilder content = new StringBuilder();
+            char[] buffer = new char[1024];
+            int num;
+            BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(ipfsRepo + "config"), "UTF-8"));
+            try {
+                while ((num = reader.read(buffer)) > 0)
+                    content.append(buffer, 0, num);
+            } finally {
+                reader.close();
+            }
+            return new JSONObject(content.toString());
+        } catch (IOException e) {
+            return null;
+        } catch (JSONException e) {
+            return null;
+        }
+    }
+
+    /**
+     * @param name the name of the address, e.g. "API" or "Gateway"
+     * @return Addresses.[name] from the repo config, or null if there is none
+     */
+    private static String address(JSONObject config, String name) {
+        JSONObject addresses = config == null ? null : config.optJSONObject("Addresses");
+        return addresses == null ? null : addresses.optString(name, null);
+    }
+
+    /**
+     * @return Identity.PeerID from the repo config, or null if there is none
+     */
+    private static String peerId(JSONObject config) {
+        JSONObject identity = config == null ? null : config.optJSONObject("Identity");
+        return identity == null ? null : identity.optString("PeerID", null);
+    }
+
+    private static String readFirstLine(File file) {
+        try {
+            BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+            try {
+                String line = reader.readLine();
+                return (line == null || line.trim().isEmpty()) ? null : line.trim();
+            } finally {
+                reader.close();
+            }
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    private static boolean isRunning(Process process) {
+        try {
+            process.exitValue();
+            return false;
+        } catch (IllegalThreadStateException e) {
+            return true;
+        }
+    }
+}
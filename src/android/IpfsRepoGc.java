@@ -0,0 +1,430 @@
+package org.apache.cordova.ipfs;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+/**
+ * Keeps the repo of a node under a storage quota: the repo size is checked every CHECK_INTERVAL
+ * (and when the daemon becomes READY or the conditions change) and, once it reaches the high
+ * watermark, garbage is collected through the daemon API (/api/v0/repo/gc), so no second ipfs
+ * process contends for the repo lock. A run only starts while the app is idle or the device is
+ * charging (and never while the daemon is suspended, see setPaused), and it's incremental: it
+ * stops as soon as enough blocks were removed to get back to the low watermark (estimated from
+ * the average block size), after maxPause ms, or when the conditions are lost, since the daemon
+ * blocks adds and pins for the whole run. Every run is reported with its reclaimed bytes and
+ * pause time.
+ * Prefetched DAGs are soft-pinned while there is a quota (see IpfsJobScheduler): a quota run that
+ * collected all the garbage and is still above the low watermark releases the oldest of them, and
+ * the next run follows right away to collect them; a manual run only releases them when asked to,
+ * e.g. once the quota was removed.
+ *
+ * @author xSkyripper
+ */
+class IpfsRepoGc {
+    private static final String LOG_TAG = "#######CIP######";
+    private static final int CONNECT_TIMEOUT = 5000;
+    private static final int HTTP_TIMEOUT = 60000;
+    private static final long CHECK_INTERVAL = 60000;
+
+    static final double HIGH_WATERMARK = 0.9;
+    static final double LOW_WATERMARK = 0.7;
+    static final long MAX_PAUSE = 30000;
+
+    interface Listener {
+        /**
+         * Called on the GC thread after every run
+         *
+         * @param report {trigger, stoppedBy, sizeBefore, sizeAfter, reclaimed, removed, pauseMs,
+         *               softPinsReleased, startedAt}
+         */
+        void onRun(JSONObject report);
+    }
+
+    private final IpfsNode node;
+    // one thread runs the checks and the GC, the other one aborts a run that takes too long
+    private final ScheduledExecutorService scheduler = Executors.newScheduledThreadPool(2, new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "ipfs-gc");
+            thread.setDaemon(true);
+            thread.setPriority(Thread.MIN_PRIORITY);
+            return thread;
+        }
+    });
+    private final Runnable check = new Runnable() {
+        @Override
+        public void run() {
+            check();
+        }
+    };
+
+    private volatile Listener listener = null;
+    private volatile long quota = 0;
+    private volatile double highWatermark = HIGH_WATERMARK;
+    private volatile double lowWatermark = LOW_WATERMARK;
+    private volatile long maxPause = MAX_PAUSE;
+    private volatile boolean idle = false;
+    private volatile boolean charging = false;
+    private volatile boolean paused = false;
+    private ScheduledFuture<?> checks = null;
+
+    private final AtomicBoolean running = new AtomicBoolean(false);
+    private volatile HttpURLConnection gcConn = null;
+    private volatile String abortReason = null;
+    private volatile boolean automaticRun = false;
+    private volatile boolean sizeOnlySupported = true;
+    // the last quota run released soft pins: the next check collects them under the high watermark
+    private volatile boolean followUp = false;
+
+    private final AtomicLong runs = new AtomicLong();
+    private final AtomicLong reclaimedBytes = new AtomicLong();
+    private final AtomicLong totalPauseMs = new AtomicLong();
+    private volatile JSONObject lastRun = null;
+
+    /**
+     * @param node the node whose daemon collects the garbage
+     */
+    IpfsRepoGc(IpfsNode node) {
+        this.node = node;
+    }
+
+    void setListener(Listener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * Sets the quota of the repo; the periodic checks only run while there is a quota
+     *
+     * @param quota         the repo quota in bytes; 0 disables the automatic runs
+     * @param highWatermark the fraction of the quota that triggers a run
+     * @param lowWatermark  the fraction of the quota a run tries to get back to
+     * @param maxPause      the maximum duration of a run, in ms
+     */
+    synchronized void setQuota(long quota, double highWatermark, double lowWatermark, long maxPause) {
+        this.quota = Math.max(0, quota);
+        this.highWatermark = highWatermark;
+        this.lowWatermark = Math.min(lowWatermark, highWatermark);
+        this.maxPause = Math.max(1000, maxPause);
+
+        if (checks != null) {
+            checks.cancel(false);
+            checks = null;
+        }
+        if (this.quota > 0)
+            checks = scheduler.scheduleWithFixedDelay(check, 0, CHECK_INTERVAL, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Updates the conditions of the automatic runs: a check is made right away if they allow a
+     * run, and an automatic run in progress is stopped if they don't anymore
+     *
+     * @param idle     true while the app is in background and the daemon is kept running
+     * @param charging true while the device is plugged in
+     */
+    void setConditions(boolean idle, boolean charging) {
+        this.idle = idle;
+        this.charging = charging;
+        if (idle || charging)
+            this.wake();
+        else if (automaticRun)
+            this.abort("conditions");
+    }
+
+    /**
+     * Pauses the GC while the daemon is suspended (SIGSTOP), which would never answer: the
+     * checks and the manual runs are refused and a run in progress is aborted
+     *
+     * @param paused true while the daemon is suspended
+     */
+    void setPaused(boolean paused) {
+        this.paused = paused;
+        if (paused)
+            this.abort("suspend");
+        else
+            this.wake();
+    }
+
+    /**
+     * @return true if the repo has a quota, so the prefetched DAGs are soft-pinned
+     */
+    boolean hasQuota() {
+        return quota > 0;
+    }
+
+    /**
+     * Checks the repo size right away (e.g. the daemon became READY)
+     */
+    void wake() {
+        if (quota > 0)
+            scheduler.execute(check);
+    }
+
+    /**
+     * Runs a full collection now, on the caller thread, whatever the conditions and the
+     * watermarks; it's still bounded by maxPause
+     *
+     * @param releaseSoftPins if true, all the soft pins are released first, so the prefetched
+     *                        DAGs are collected as well
+     * @return the report of the run
+     * @throws IOException if the daemon is not running or suspended, the API failed or a run is
+     *                     in progress
+     */
+    JSONObject runNow(boolean releaseSoftPins) throws IOException {
+        String api = node.api();
+        if (api == null)
+            throw new IOException("The IPFS daemon is not running");
+        if (paused)
+            throw new IOException("The IPFS daemon is suspended");
+
+        JSONObject report = this.run(api, "manual", -1, releaseSoftPins);
+        if (report == null)
+            throw new IOException("A repo GC is already running");
+        return report;
+    }
+
+    /**
+     * @return {quota, runs, reclaimedBytes, pauseMs, lastRun}
+     */
+    JSONObject stats() {
+        try {
+            return new JSONObject()
+                    .put("quota", quota)
+                    .put("runs", runs.get())
+                    .put("reclaimedBytes", reclaimedBytes.get())
+                    .put("pauseMs", totalPauseMs.get())
+                    .put("lastRun", lastRun == null ? JSONObject.NULL : lastRun);
+        } catch (JSONException e) {
+            e.printStackTrace();
+            return new JSONObject();
+        }
+    }
+
+    void shutdown() {
+        this.abort("shutdown");
+        scheduler.shutdownNow();
+    }
+
+    /**
+     * Starts a run if the quota, the conditions and the repo size call for one
+     */
+    private void check() {
+        String api = node.api();
+        if (quota <= 0 || !(idle || charging) || paused || api == null || running.get())
+            return;
+
+        try {
+            boolean releasedSoftPins = followUp;
+            followUp = false;
+            long size = repoStat(api, true).optLong("RepoSize", -1);
+            long target = (long) (quota * lowWatermark);
+            if (size < 0 || size < (releasedSoftPins ? target : quota * highWatermark))
+                return;
+
+            IpfsLog.d(LOG_TAG, "Repo size " + size + " over the " + (releasedSoftPins ? "low" : "high")
+                    + " watermark of " + quota);
+            JSONObject report = this.run(api, "quota", target, false);
+            if (report != null && report.optInt("softPinsReleased") > 0) {
+                followUp = true;
+                this.wake();
+            }
+        } catch (IOException e) {
+            IpfsLog.d(LOG_TAG, "Repo GC check failed: " + e.toString());
+        } catch (JSONException e) {
+            IpfsLog.d(LOG_TAG, "Repo GC check failed: " + e.toString());
+        }
+    }
+
+    /**
+     * Streams /api/v0/repo/gc, counting the removed blocks, until the collection is done, the
+     * estimated repo size reaches the target or the run is aborted; closing the request cancels
+     * the collection in the daemon
+     *
+     * @param target          the repo size to get down to; -1 for a full collection
+     * @param releaseSoftPins if true, all the soft pins are released before the collection
+     * @return the report; null if a run is already in progress
+     */
+    private JSONObject run(String api, String trigger, long target, boolean releaseSoftPins) throws IOException {
+        if (!running.compareAndSet(false, true))
+            return null;
+
+        ScheduledFuture<?> timeout = null;
+        try {
+            abortReason = null;
+            int softPinsReleased = releaseSoftPins ? node.jobs().releaseSoftPins(api, Long.MAX_VALUE) : 0;
+            automaticRun = !trigger.equals("manual");
+            long startedAt = System.currentTimeMillis();
+            long sizeBefore = -1;
+            long toRemove = Long.MAX_VALUE;
+            try {
+                JSONObject stat = repoStat(api, false);
+                sizeBefore = stat.optLong("RepoSize", -1);
+                long objects = stat.optLong("NumObjects", 0);
+                if (target >= 0 && sizeBefore >= 0 && objects > 0)
+                    toRemove = Math.max(1, (sizeBefore - target) * objects / sizeBefore);
+            } catch (JSONException e) {
+                IpfsLog.d(LOG_TAG, "Repo stat failed, running a full GC: " + e.toString());
+            }
+
+            timeout = scheduler.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    abort("maxPause");
+                }
+            }, maxPause, TimeUnit.MILLISECONDS);
+
+            long removed = 0;
+            String stoppedBy = "done";
+            long start = System.nanoTime();
+            HttpURLConnection conn = (HttpURLConnection) new URL(api + "/api/v0/repo/gc?stream-errors=true").openConnection();
+            gcConn = conn;
+            try {
+                conn.setRequestMethod("POST");
+                conn.setConnectTimeout(CONNECT_TIMEOUT);
+                // the mark phase prints nothing; a run is bounded by maxPause instead
+                conn.setReadTimeout(0);
+                if (abortReason != null)
+                    throw new IOException("Repo GC aborted");
+                if (conn.getResponseCode() != HttpURLConnection.HTTP_OK)
+                    throw new IOException("IPFS API returned HTTP " + conn.getResponseCode() + " for repo/gc");
+
+                BufferedReader reader = new BufferedReader(new InputStreamReader(conn.getInputStream(), "UTF-8"));
+                try {
+                    String line;
+                    while ((line = reader.readLine()) != null) {
+                        // {"Key": {"/": cid}} per removed block, {"Error": message} per failure
+                        if (line.contains("\"Key\"") && ++removed >= toRemove) {
+                            stoppedBy = "target";
+                            break;
+                        }
+                    }
+                } finally {
+                    reader.close();
+                }
+            } catch (IOException e) {
+                if (abortReason == null)
+                    throw e;
+            } finally {
+                gcConn = null;
+                conn.disconnect();
+            }
+            if (abortReason != null)
+                stoppedBy = abortReason;
+            long pauseMs = (System.nanoTime() - start) / 1000000;
+
+            long sizeAfter = -1;
+            try {
+                // a suspended daemon would hold the stat until the read timeout
+                if (!paused)
+                    sizeAfter = repoStat(api, true).optLong("RepoSize", -1);
+            } catch (JSONException e) {
+                IpfsLog.d(LOG_TAG, "Repo stat failed: " + e.toString());
+            }
+            long reclaimed = sizeBefore >= 0 && sizeAfter >= 0 ? Math.max(0, sizeBefore - sizeAfter) : 0;
+
+            // all the garbage is gone and it's not enough: the oldest prefetched DAGs go next
+            if (target >= 0 && stoppedBy.equals("done") && sizeAfter > target)
+                softPinsReleased = node.jobs().releaseSoftPins(api, sizeAfter - target);
+
+            runs.incrementAndGet();
+            reclaimedBytes.addAndGet(reclaimed);
+            totalPauseMs.addAndGet(pauseMs);
+            JSONObject report = new JSONObject();
+            try {
+                report.put("trigger", trigger)
+                        .put("stoppedBy", stoppedBy)
+                        .put("sizeBefore", sizeBefore)
+                        .put("sizeAfter", sizeAfter)
+                        .put("reclaimed", reclaimed)
+                        .put("removed", removed)
+                        .put("pauseMs", pauseMs)
+                        .put("softPinsReleased", softPinsReleased)
+                        .put("startedAt", startedAt);
+            } catch (JSONException e) {
+                e.printStackTrace();
+            }
+            lastRun = report;
+            IpfsLog.d(LOG_TAG, "Repo GC (" + trigger + ") stopped by " + stoppedBy + ": " + removed
+                    + " blocks, " + reclaimed + " bytes reclaimed in " + pauseMs + " ms");
+
+            Listener current = listener;
+            if (current != null)
+                current.onRun(report);
+            return report;
+        } finally {
+            if (timeout != null)
+                timeout.cancel(false);
+            running.set(false);
+        }
+    }
+
+    /**
+     * Stops the run in progress, if any; the request is closed on its own thread since some
+     * HttpURLConnection implementations drain the stream on disconnect
+     */
+    private void abort(String reason) {
+        final HttpURLConnection conn = gcConn;
+        if (!running.get())
+            return;
+
+        abortReason = reason;
+        if (conn == null)
+            return;
+
+        Thread disconnect = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                conn.disconnect();
+            }
+        }, "ipfs-gc-abort");
+        disconnect.setDaemon(true);
+        disconnect.start();
+    }
+
+    /**
+     * Reads /api/v0/repo/stat; the cheap size-only variant is used when asked for and supported
+     * by the daemon (older daemons reject the option, then the full stat is used)
+     */
+    private JSONObject repoStat(String api, boolean sizeOnly) throws IOException, JSONException {
+        boolean trySizeOnly = sizeOnly && sizeOnlySupported;
+        HttpURLConnection conn = (HttpURLConnection) new URL(api + "/api/v0/repo/stat"
+                + (trySizeOnly ? "?size-only=true" : "")).openConnection();
+        try {
+            conn.setRequestMethod("POST");
+            conn.setConnectTimeout(CONNECT_TIMEOUT);
+            conn.setReadTimeout(HTTP_TIMEOUT);
+            if (trySizeOnly && conn.getResponseCode() != HttpURLConnection.HTTP_OK) {
+                sizeOnlySupported = false;
+                return this.repoStat(api, false);
+            }
+            if (conn.getResponseCode() != HttpURLConnection.HTTP_OK)
+                throw new IOException("IPFS API returned HTTP " + conn.getResponseCode() + " for repo/stat");
+
+            StringBuilder content = new StringBuilder();
+            BufferedReader reader = new BufferedReader(new InputStreamReader(conn.getInputStream(), "UTF-8"));
+            try {
+                String line;
+                while ((line = reader.readLine()) != null)
+                    content.append(line);
+            } finally {
+                reader.close();
+            }
+            return new JSONObject(content.toString());
+        } finally {
+            conn.disconnect();
+        }
+    }
+}
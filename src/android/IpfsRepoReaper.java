@@ -0,0 +1,126 @@
+package org.apache.cordova.ipfs;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+
+/**
+ * Makes repo resets independent of the repo size: the old repo is renamed to a tombstone dir
+ * (a single, atomic rename) and the tombstones are deleted later, on a background thread,
+ * by a bounded fork/join pool. Tombstones that were not fully deleted (the app was killed,
+ * some files couldn't be deleted) are picked up again by the next reclaim.
+ *
+ * @author xSkyripper
+ */
+class IpfsRepoReaper {
+    private static final String LOG_TAG = "#######CIP######";
+    private static final String TOMBSTONE_PREFIX = ".ipfs-tombstone-";
+    private static final int MAX_PARALLELISM = 4;
+
+    private static final Set<String> reclaiming = Collections.synchronizedSet(new HashSet<String>());
+
+    /**
+     * Renames the repo to a tombstone dir next to it
+     *
+     * @param repo the repo dir
+     * @return the tombstone dir
+     * @throws IOException if the repo couldn't be renamed
+     */
+    static File tombstone(File repo) throws IOException {
+        File tombstone = new File(repo.getAbsoluteFile().getParentFile(), TOMBSTONE_PREFIX + System.nanoTime());
+        if (!repo.renameTo(tombstone))
+            throw new IOException("Cannot move " + repo.getPath() + " to " + tombstone.getPath());
+
+        IpfsLog.d(LOG_TAG, "Repo " + repo.getPath() + " moved to " + tombstone.getName());
+        return tombstone;
+    }
+
+    /**
+     * Starts a low priority background thread that deletes all the tombstones found in dir;
+     * tombstones that are already being deleted by another reclaim are skipped
+     *
+     * @param dir the dir containing the tombstones (the parent of the repo)
+     */
+    static void reclaimAsync(final File dir) {
+        final File[] tombstones = dir.listFiles();
+        if (tombstones == null)
+            return;
+
+        final List<File> pending = new ArrayList<File>();
+        for (File tombstone : tombstones)
+            if (tombstone.getName().startsWith(TOMBSTONE_PREFIX) && reclaiming.add(tombstone.getPath()))
+                pending.add(tombstone);
+        if (pending.isEmpty())
+            return;
+
+        Thread reaper = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                int parallelism = Math.max(1, Math.min(MAX_PARALLELISM, Runtime.getRuntime().availableProcessors()));
+                ForkJoinPool pool = new ForkJoinPool(parallelism);
+                try {
+                    for (File tombstone : pending) {
+                        long started = System.currentTimeMillis();
+                        int failed = pool.invoke(new DeleteTask(tombstone));
+                        IpfsLog.d(LOG_TAG, "Reclaimed " + tombstone.getName() + " in "
+                                + (System.currentTimeMillis() - started) + " ms"
+                                + (failed > 0 ? ", " + failed + " files couldn't be deleted" : ""));
+                    }
+                } finally {
+                    pool.shutdown();
+                    for (File tombstone : pending)
+                        reclaiming.remove(tombstone.getPath());
+                }
+            }
+        }, "ipfs-repo-reaper");
+        reaper.setDaemon(true);
+        reaper.setPriority(Thread.MIN_PRIORITY);
+        reaper.start();
+    }
+
+    /**
+     * Deletes a file or a dir tree; every subdir is forked as a separate task
+     * Returns the number of files that couldn't be deleted
+     */
+    private static class DeleteTask extends RecursiveTask<Integer> {
+        private static final long serialVersionUID = 1L;
+
+        private final File file;
+
+        DeleteTask(File file) {
+            this.file = file;
+        }
+
+        @Override
+        protected Integer compute() {
+            int failed = 0;
+            File[] children = file.isDirectory() ? file.listFiles() : null;
+
+            if (children != null) {
+                List<DeleteTask> subTasks = new ArrayList<DeleteTask>();
+                for (File child : children) {
+                    if (child.isDirectory()) {
+                        DeleteTask subTask = new DeleteTask(child);
+                        subTask.fork();
+                        subTasks.add(subTask);
+                    } else if (!child.delete()) {
+                        failed++;
+                    }
+                }
+                for (DeleteTask subTask : subTasks)
+                    failed += subTask.join();
+            }
+
+            if (!file.delete())
+                failed++;
+            return failed;
+        }
+    }
+}
@@ -0,0 +1,51 @@
+package org.apache.cordova.ipfs;
+
+import android.annotation.TargetApi;
+import android.os.Build;
+import android.webkit.WebResourceRequest;
+import android.webkit.WebResourceResponse;
+import android.webkit.WebView;
+
+import org.apache.cordova.engine.SystemWebViewClient;
+import org.apache.cordova.engine.SystemWebViewEngine;
+
+import java.util.Map;
+
+
+/**
+ * The WebView client of the Cordova system engine, extended to answer the IPFS URLs with a
+ * status and headers (API 21): the Cordova request hook (remapUri / handleOpenForRead) can only
+ * answer "200" with the whole content, so a media element could not seek. Every other request,
+ * and every request on older WebViews, goes through the Cordova client as before
+ *
+ * @author xSkyripper
+ */
+class IpfsWebViewClient extends SystemWebViewClient {
+    private final Ipfs plugin;
+
+    IpfsWebViewClient(SystemWebViewEngine engine, Ipfs plugin) {
+        super(engine);
+        this.plugin = plugin;
+    }
+
+    @TargetApi(Build.VERSION_CODES.LOLLIPOP)
+    @Override
+    public WebResourceResponse shouldInterceptRequest(WebView view, WebResourceRequest request) {
+        WebResourceResponse response = null;
+        if ("GET".equals(request.getMethod()))
+            response = plugin.serve(request.getUrl(), header(request.getRequestHeaders(), "Range"));
+        return response != null ? response : super.shouldInterceptRequest(view, request);
+    }
+
+    /**
+     * @return the value of a request header, whatever the case of its name; null if there is none
+     */
+    private static String header(Map<String, String> headers, String name) {
+        if (headers == null)
+            return null;
+        for (Map.Entry<String, String> header : headers.entrySet())
+            if (header.getKey() != null && header.getKey().equalsIgnoreCase(name))
+                return header.getValue();
+        return null;
+    }
+}
@@ -0,0 +1,21 @@
+package org.apache.cordova.ipfs;
+
+
+/**
+ * Helpers shared by the benchmarks
+ */
+final class Benchmarks {
+    private Benchmarks() {
+    }
+
+    /**
+     * Drops the log lines of the core classes, they would only measure the console
+     */
+    static void quiet() {
+        IpfsLog.setSink(new IpfsLog.Sink() {
+            @Override
+            public void d(String tag, String message) {
+            }
+        });
+    }
+}
@@ -0,0 +1,88 @@
+package org.apache.cordova.ipfs;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * Reads and writes of the repo config through IpfsConfig: a batch of patches derived from the
+ * config as it's read (the start of a node, read only once the ports are kept), a batch that is
+ * already applied (read only) and a batch that changes the config (read, fsync, rename)
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class ConfigBenchmark {
+    private File dir;
+    private IpfsConfig config;
+    private JSONArray unchanged;
+    private JSONArray changing;
+    private int highWater;
+
+    @Setup
+    public void setUp() throws Exception {
+        Benchmarks.quiet();
+        dir = TestFiles.tempDir("bench-config");
+        File file = new File(dir, "config");
+        StringBuilder peers = new StringBuilder();
+        for (int i = 0; i < 64; i++)
+            peers.append(i > 0 ? "," : "").append("\"/ip4/10.0.0.").append(i).append("/tcp/4001/ipfs/Qm").append(i).append("\"");
+        TestFiles.write(file, ("{\"Identity\":{\"PeerID\":\"QmBench\",\"PrivKey\":\"" + new String(new char[1600]).replace('\0', 'k') + "\"},"
+                + "\"Addresses\":{\"API\":\"/ip4/127.0.0.1/tcp/5001\",\"Gateway\":\"/ip4/127.0.0.1/tcp/8080\","
+                + "\"Swarm\":[\"/ip4/0.0.0.0/tcp/4001\",\"/ip6/::/tcp/4001\"]},"
+                + "\"Bootstrap\":[" + peers + "],\"Swarm\":{\"ConnMgr\":{\"HighWater\":900,\"LowWater\":600}}}")
+                .getBytes(StandardCharsets.UTF_8));
+        config = new IpfsConfig(file);
+
+        unchanged = new JSONArray()
+                .put(new JSONObject().put("path", "Addresses.API").put("value", "/ip4/127.0.0.1/tcp/5001"))
+                .put(new JSONObject().put("path", "Swarm.ConnMgr.LowWater").put("value", 600));
+    }
+
+    @TearDown
+    public void tearDown() {
+        TestFiles.delete(dir);
+    }
+
+    @Benchmark
+    public boolean applyDerived() throws Exception {
+        return config.apply(new IpfsConfig.Patcher() {
+            @Override
+            public JSONArray patches(JSONObject current) throws JSONException {
+                return new JSONArray().put(new JSONObject()
+                        .put("path", "Addresses.Gateway")
+                        .put("value", IpfsConfig.get(current, "Addresses.Gateway")));
+            }
+        });
+    }
+
+    @Benchmark
+    public boolean applyUnchanged() throws Exception {
+        return config.apply(unchanged);
+    }
+
+    @Benchmark
+    public boolean applyChanging() throws Exception {
+        changing = new JSONArray().put(new JSONObject().put("path", "Swarm.ConnMgr.HighWater").put("value", ++highWater));
+        return config.apply(changing);
+    }
+}
@@ -0,0 +1,69 @@
+package org.apache.cordova.ipfs;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * Download throughput of IpfsDownloader against a local HTTP server, single stream (no range
+ * support) vs parallel segments; the score divided by 'size' gives the throughput
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class DownloadBenchmark {
+    @Param({"33554432"})
+    int size;
+
+    @Param({"0", "1", "4"})
+    int segments;
+
+    private StubHttpServer server;
+    private File dir;
+    private File target;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        Benchmarks.quiet();
+        dir = TestFiles.tempDir("bench-download");
+        server = new StubHttpServer();
+        // 0 segments: a server with no range support
+        server.serve("/go-ipfs.tar.gz", TestFiles.random(size)).ranges = segments > 0;
+    }
+
+    @Setup(Level.Invocation)
+    public void clean() {
+        target = new File(dir, "go-ipfs.tar.gz");
+        target.delete();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        server.close();
+        TestFiles.delete(dir);
+    }
+
+    @Benchmark
+    public long download() throws Exception {
+        IpfsDownloader downloader = new IpfsDownloader(server.url("/go-ipfs.tar.gz"), target, segments, null);
+        downloader.download();
+        return downloader.transferred();
+    }
+}
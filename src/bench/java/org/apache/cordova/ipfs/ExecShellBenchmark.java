@@ -0,0 +1,50 @@
+package org.apache.cordova.ipfs;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * Overhead of IpfsNode.execShell (spawn, output pumps, wait) for a command doing nothing
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class ExecShellBenchmark {
+    private static final String[] TRUE = new String[]{"/bin/true"};
+    private static final String[] ENV = new String[]{"IPFS_PATH=/tmp"};
+
+    private IpfsNodes nodes;
+    private IpfsNode node;
+
+    @Setup
+    public void setUp() {
+        Benchmarks.quiet();
+        nodes = new IpfsNodes();
+        node = nodes.create(IpfsNodes.DEFAULT_NODE, null, null);
+    }
+
+    @TearDown
+    public void tearDown() {
+        nodes.shutdown();
+    }
+
+    @Benchmark
+    public void execShell() throws Exception {
+        node.execShell(TRUE, ENV, false, null);
+    }
+}
@@ -0,0 +1,78 @@
+package org.apache.cordova.ipfs;
+
+import org.json.JSONObject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * Preparation of the binary by IpfsNode.init (download + extract vs streamed extract) of an
+ * archive padded to 'padding' bytes, served by a local HTTP server; the repo exists already, so
+ * only the preparation is measured
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class PrepareBenchmark {
+    @Param({"33554432"})
+    int padding;
+
+    @Param({"false", "true"})
+    boolean streamExtract;
+
+    private StubHttpServer server;
+    private IpfsNodes nodes;
+    private File dir;
+    private File appFiles;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        Benchmarks.quiet();
+        dir = TestFiles.tempDir("bench-prepare");
+        File fakeBin = FakeIpfs.install(new File(dir, "fake"), new FakeIpfs.Options());
+        server = new StubHttpServer();
+        server.serve("/go-ipfs.tar.gz", FakeIpfs.archive(fakeBin, padding));
+        nodes = new IpfsNodes();
+    }
+
+    @Setup(Level.Invocation)
+    public void clean() {
+        appFiles = new File(dir, "app");
+        TestFiles.delete(appFiles);
+        new File(appFiles, ".ipfs").mkdirs();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        nodes.shutdown();
+        server.close();
+        TestFiles.delete(dir);
+    }
+
+    @Benchmark
+    public JSONObject prepare() throws Exception {
+        return nodes.create(IpfsNodes.DEFAULT_NODE, null, null).init(new JSONObject()
+                .put("appFilesDir", appFiles.getPath() + "/")
+                .put("src", server.url("/go-ipfs.tar.gz").toString())
+                .put("resetRepo", false)
+                .put("version", "fake")
+                .put("streamExtract", streamExtract), null);
+    }
+}
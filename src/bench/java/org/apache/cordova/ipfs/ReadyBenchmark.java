@@ -0,0 +1,85 @@
+package org.apache.cordova.ipfs;
+
+import org.json.JSONObject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * Time-to-ready of a node: from the start request to READY, with the fake binary answering
+ * 'readyDelay' ms after its launch; the score minus the delay (and the JVM start of the fake
+ * binary, see the 0 delay score) is the overhead of the spawn, the readiness probe and the
+ * supervisor
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 10)
+@Fork(1)
+public class ReadyBenchmark {
+    @Param({"0", "500"})
+    long readyDelay;
+
+    private StubHttpServer server;
+    private IpfsNodes nodes;
+    private IpfsNode node;
+    private File dir;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        Benchmarks.quiet();
+        dir = TestFiles.tempDir("bench-ready");
+        FakeIpfs.Options options = new FakeIpfs.Options();
+        options.readyDelay = readyDelay;
+        File fakeBin = FakeIpfs.install(new File(dir, "fake"), options);
+        server = new StubHttpServer();
+        server.serve("/go-ipfs.tar.gz", FakeIpfs.archive(fakeBin, 0));
+
+        nodes = new IpfsNodes();
+        node = nodes.create(IpfsNodes.DEFAULT_NODE, null, null);
+        node.init(new JSONObject()
+                .put("appFilesDir", dir.getPath() + "/")
+                .put("src", server.url("/go-ipfs.tar.gz").toString())
+                .put("resetRepo", false)
+                .put("version", "fake")
+                .put("streamExtract", true), null);
+        // a fresh daemon every time, never the previous one
+        node.setDaemonOptions(IpfsNode.DAEMON_READY_TIMEOUT, null, false);
+    }
+
+    @TearDown(Level.Invocation)
+    public void stop() throws Exception {
+        TestCallback stopped = new TestCallback();
+        node.supervisor().stop(stopped);
+        stopped.awaitSuccess(30000);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        nodes.shutdown();
+        server.close();
+        TestFiles.delete(dir);
+    }
+
+    @Benchmark
+    public JSONObject start() throws Exception {
+        TestCallback started = new TestCallback();
+        node.supervisor().start(started);
+        return started.awaitSuccess(30000);
+    }
+}
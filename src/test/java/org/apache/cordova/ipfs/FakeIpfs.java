@@ -0,0 +1,378 @@
+package org.apache.cordova.ipfs;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Executors;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+
+/**
+ * A scripted stand-in for the go-ipfs binary, so the whole lifecycle (init, daemon, readiness,
+ * adoption, stop, crash) runs on a Linux box with no network. install() writes an "ipfs" bash
+ * script that runs this class on the current JVM with the given behaviour; the script keeps
+ * "ipfs" as the process name, so the daemon is recognized by IpfsAdoptedProcess.isIpfs.
+ * Supported: 'version', 'init' (creates the repo and its config) and 'daemon' (takes repo.lock,
+ * writes the "api" file and serves id, version, shutdown, add, cat, refs, pin/add, pin/rm,
+ * repo/stat, repo/gc, stats/bw and swarm/peers; the blocks are whole files under blocks/).
+ * The script runs with the test classes only, so the daemon side depends on nothing but the JDK.
+ */
+public class FakeIpfs {
+    private static final Pattern API = Pattern.compile("\"API\"\\s*:\\s*\"([^\"]+)\"");
+    private static final Pattern PEER_ID = Pattern.compile("\"PeerID\"\\s*:\\s*\"([^\"]+)\"");
+
+    /**
+     * The behaviour of the fake daemon
+     */
+    static class Options {
+        // delay before the API answers, after taking repo.lock
+        long readyDelay = 0;
+        // the daemon exits with 1 (without cleaning up) this long after being ready; -1 never
+        long crashAfter = -1;
+        // /api/v0/shutdown answers but the daemon keeps running
+        boolean ignoreShutdown = false;
+        // the daemon doesn't exit on SIGTERM
+        boolean ignoreTerm = false;
+        // 'init' fails
+        boolean failInit = false;
+
+        String toArgs() {
+            return "-Dfake.readyDelay=" + readyDelay + " -Dfake.crashAfter=" + crashAfter
+                    + " -Dfake.ignoreShutdown=" + ignoreShutdown + " -Dfake.ignoreTerm=" + ignoreTerm
+                    + " -Dfake.failInit=" + failInit;
+        }
+    }
+
+    /**
+     * Writes the fake "ipfs" executable
+     *
+     * @param dir     the dir of the executable
+     * @param options the behaviour of the daemon
+     * @return the executable
+     */
+    static File install(File dir, Options options) throws IOException {
+        String classes = new File(FakeIpfs.class.getProtectionDomain().getCodeSource().getLocation().getPath()).getPath();
+        String java = System.getProperty("java.home") + "/bin/java";
+        File script = new File(dir, "ipfs");
+        dir.mkdirs();
+
+        OutputStream output = new FileOutputStream(script);
+        try {
+            output.write(("#!/bin/bash\n"
+                    + "exec -a \"$0\" " + java + " -Xshare:auto -XX:TieredStopAtLevel=1 -Xss512k -Xmx64m "
+                    + options.toArgs() + " -cp " + classes + " " + FakeIpfs.class.getName() + " \"$@\"\n")
+                    .getBytes(StandardCharsets.UTF_8));
+        } finally {
+            output.close();
+        }
+        if (!script.setExecutable(true))
+            throw new IOException("Cannot make " + script + " executable");
+        return script;
+    }
+
+    /**
+     * @return a go-ipfs like archive (go-ipfs/ipfs, go-ipfs/README.md, go-ipfs/install.sh, plus
+     * 'padding' random bytes in go-ipfs/LICENSE) with the given executable as go-ipfs/ipfs
+     */
+    static byte[] archive(File executable, int padding) throws IOException {
+        return TestFiles.tarGz(new String[]{"go-ipfs/README.md", "go-ipfs/ipfs", "go-ipfs/install.sh", "go-ipfs/LICENSE"},
+                new byte[][]{
+                        "# go-ipfs (fake)\n".getBytes(StandardCharsets.UTF_8),
+                        TestFiles.read(executable),
+                        "#!/bin/sh\n".getBytes(StandardCharsets.UTF_8),
+                        TestFiles.random(padding)});
+    }
+
+    public static void main(String[] args) throws Exception {
+        String repo = System.getenv("IPFS_PATH");
+        String command = args.length > 0 ? args[0] : "";
+
+        if (command.equals("version")) {
+            System.out.println("ipfs version 0.4.8-fake");
+        } else if (command.equals("init")) {
+            init(new File(repo), args);
+        } else if (command.equals("daemon")) {
+            daemon(new File(repo));
+        } else {
+            System.err.println("Error: unknown command " + command);
+            System.exit(1);
+        }
+    }
+
+    private static void init(File repo, String[] args) throws IOException {
+        if (Boolean.getBoolean("fake.failInit")) {
+            System.err.println("Error: init failed (scripted)");
+            System.exit(1);
+        }
+        if (new File(repo, "config").exists()) {
+            System.err.println("Error: ipfs configuration file already exists!");
+            System.exit(1);
+        }
+
+        new File(repo, "blocks").mkdirs();
+        new File(repo, "keystore").mkdirs();
+        StringBuilder initArgs = new StringBuilder();
+        for (int i = 1; i < args.length; i++)
+            initArgs.append(i > 1 ? "\", \"" : "").append(args[i]);
+
+        String peerId = "Qm" + hex(digest(Long.toString(System.nanoTime()).getBytes(StandardCharsets.UTF_8))).substring(0, 44);
+        writeAll(new File(repo, "config"), ("{\n"
+                + "    \"Identity\": {\"PeerID\": \"" + peerId + "\"},\n"
+                + "    \"Addresses\": {\n"
+                + "        \"API\": \"/ip4/127.0.0.1/tcp/5001\",\n"
+                + "        \"Gateway\": \"/ip4/127.0.0.1/tcp/8080\",\n"
+                + "        \"Swarm\": [\"/ip4/0.0.0.0/tcp/4001\", \"/ip6/::/tcp/4001\"]\n"
+                + "    },\n"
+                + "    \"Datastore\": {\"StorageMax\": \"10GB\"},\n"
+                + "    \"Fake\": {\"InitArgs\": [" + (args.length > 1 ? "\"" + initArgs + "\"" : "") + "]}\n"
+                + "}\n").getBytes(StandardCharsets.UTF_8));
+        System.out.println("initializing IPFS node at " + repo.getPath());
+        System.out.println("peer identity: " + peerId);
+    }
+
+    private static void daemon(final File repo) throws Exception {
+        String config = new String(readAll(new File(repo, "config")), StandardCharsets.UTF_8);
+        Matcher api = API.matcher(config);
+        Matcher peer = PEER_ID.matcher(config);
+        if (!api.find() || !peer.find()) {
+            System.err.println("Error: invalid config");
+            System.exit(1);
+        }
+        final String peerId = peer.group(1);
+        int port = Integer.parseInt(api.group(1).replaceAll(".*/tcp/(\\d+).*", "$1"));
+
+        final File lock = new File(repo, "repo.lock");
+        final File apiFile = new File(repo, "api");
+        // like the fslock of go-ipfs, a lock file is only held while its owner is alive
+        String owner = lock.exists() ? new String(readAll(lock), StandardCharsets.UTF_8).replaceAll("\\D", "") : "";
+        if (!owner.isEmpty() && new File("/proc/" + owner).exists()) {
+            System.err.println("Error: lock " + lock.getPath() + ": someone else has the lock");
+            System.exit(1);
+        }
+        String pid = ManagementFactory.getRuntimeMXBean().getName().split("@")[0];
+        writeAll(lock, ("{\"OwnerPID\":" + pid + "}").getBytes(StandardCharsets.UTF_8));
+
+        final boolean ignoreTerm = Boolean.getBoolean("fake.ignoreTerm");
+        Runtime.getRuntime().addShutdownHook(new Thread() {
+            @Override
+            public void run() {
+                if (ignoreTerm) {
+                    // SIGTERM can't be ignored by a JVM, the hook just never returns
+                    while (true) {
+                        try {
+                            Thread.sleep(1000);
+                        } catch (InterruptedException e) {
+                            return;
+                        }
+                    }
+                }
+                apiFile.delete();
+                lock.delete();
+            }
+        });
+
+        Thread.sleep(Long.getLong("fake.readyDelay", 0));
+        System.out.println("Initializing daemon...");
+
+        HttpServer server = HttpServer.create(new InetSocketAddress("127.0.0.1", port), 16);
+        server.setExecutor(Executors.newCachedThreadPool());
+        server.createContext("/", new Api(repo, peerId));
+        server.start();
+        writeAll(apiFile, ("/ip4/127.0.0.1/tcp/" + server.getAddress().getPort()).getBytes(StandardCharsets.UTF_8));
+        System.out.println("API server listening on /ip4/127.0.0.1/tcp/" + server.getAddress().getPort());
+        System.out.println("Daemon is ready");
+
+        long crashAfter = Long.getLong("fake.crashAfter", -1);
+        if (crashAfter >= 0) {
+            Thread.sleep(crashAfter);
+            System.err.println("panic: scripted crash");
+            Runtime.getRuntime().halt(1);
+        }
+        Thread.currentThread().join();
+    }
+
+    /**
+     * The daemon API
+     */
+    private static class Api implements HttpHandler {
+        private final File repo;
+        private final File blocks;
+        private final File pins;
+        private final String peerId;
+
+        Api(File repo, String peerId) {
+            this.repo = repo;
+            this.blocks = new File(repo, "blocks");
+            this.pins = new File(repo, "pins");
+            this.peerId = peerId;
+            pins.mkdirs();
+        }
+
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            String path = exchange.getRequestURI().getPath();
+            Map<String, String> query = query(exchange.getRequestURI().getRawQuery());
+            String arg = query.get("arg");
+
+            try {
+                if (path.equals("/api/v0/id")) {
+                    reply(exchange, 200, "{\"ID\":\"" + peerId + "\",\"AgentVersion\":\"go-ipfs/0.4.8/fake\"}");
+                } else if (path.equals("/api/v0/version")) {
+                    reply(exchange, 200, "{\"Version\":\"0.4.8-fake\"}");
+                } else if (path.equals("/api/v0/shutdown")) {
+                    reply(exchange, 200, "");
+                    if (!Boolean.getBoolean("fake.ignoreShutdown"))
+                        new Thread() {
+                            @Override
+                            public void run() {
+                                System.exit(0);
+                            }
+                        }.start();
+                } else if (path.equals("/api/v0/add")) {
+                    byte[] content = multipartContent(readAll(exchange.getRequestBody()));
+                    String cid = cid(content);
+                    writeAll(new File(blocks, cid), content);
+                    reply(exchange, 200, "{\"Name\":\"" + cid + "\",\"Hash\":\"" + cid + "\",\"Size\":\"" + content.length + "\"}");
+                } else if (path.equals("/api/v0/cat")) {
+                    File block = block(arg);
+                    if (block == null) {
+                        reply(exchange, 500, "{\"Message\":\"not found\",\"Code\":0}");
+                        return;
+                    }
+                    exchange.sendResponseHeaders(200, block.length());
+                    OutputStream output = exchange.getResponseBody();
+                    output.write(readAll(block));
+                    output.close();
+                } else if (path.equals("/api/v0/refs")) {
+                    reply(exchange, 200, block(arg) == null
+                            ? "{\"Ref\":\"\",\"Err\":\"not found\"}\n"
+                            : "{\"Ref\":\"" + arg + "\",\"Err\":\"\"}\n");
+                } else if (path.equals("/api/v0/pin/add")) {
+                    if (block(arg) == null) {
+                        reply(exchange, 500, "{\"Message\":\"not found\",\"Code\":0}");
+                        return;
+                    }
+                    new File(pins, arg).createNewFile();
+                    reply(exchange, 200, "{\"Pins\":[\"" + arg + "\"]}");
+                } else if (path.equals("/api/v0/pin/rm")) {
+                    new File(pins, arg).delete();
+                    reply(exchange, 200, "{\"Pins\":[\"" + arg + "\"]}");
+                } else if (path.equals("/api/v0/repo/stat")) {
+                    long size = 0;
+                    File[] all = blocks.listFiles();
+                    for (File block : all)
+                        size += block.length();
+                    reply(exchange, 200, "{\"RepoSize\":" + size + ",\"StorageMax\":10000000000,\"NumObjects\":"
+                            + all.length + ",\"RepoPath\":\"" + repo.getPath() + "\"}");
+                } else if (path.equals("/api/v0/repo/gc")) {
+                    StringBuilder removed = new StringBuilder();
+                    for (File block : blocks.listFiles())
+                        if (!new File(pins, block.getName()).exists() && block.delete())
+                            removed.append("{\"Key\":{\"/\":\"").append(block.getName()).append("\"}}\n");
+                    reply(exchange, 200, removed.toString());
+                } else if (path.equals("/api/v0/stats/bw")) {
+                    reply(exchange, 200, "{\"TotalIn\":0,\"TotalOut\":0,\"RateIn\":0,\"RateOut\":0}");
+                } else if (path.equals("/api/v0/swarm/peers")) {
+                    reply(exchange, 200, "{\"Peers\":[]}");
+                } else {
+                    reply(exchange, 404, "404 page not found");
+                }
+            } finally {
+                exchange.close();
+            }
+        }
+
+        private File block(String cid) {
+            if (cid == null)
+                return null;
+            File block = new File(blocks, cid.replaceAll("^/ipfs/", "").split("/")[0]);
+            return block.isFile() ? block : null;
+        }
+    }
+
+    static String cid(byte[] content) {
+        return "Qm" + hex(digest(content)).substring(0, 44);
+    }
+
+    /**
+     * @return the content of the first part of a multipart/form-data body
+     */
+    private static byte[] multipartContent(byte[] body) {
+        String text = new String(body, StandardCharsets.ISO_8859_1);
+        String boundary = text.substring(0, text.indexOf("\r\n"));
+        int start = text.indexOf("\r\n\r\n") + 4;
+        int end = text.indexOf("\r\n" + boundary, start);
+        return text.substring(start, end).getBytes(StandardCharsets.ISO_8859_1);
+    }
+
+    private static Map<String, String> query(String rawQuery) throws IOException {
+        Map<String, String> query = new TreeMap<String, String>();
+        if (rawQuery == null)
+            return query;
+        for (String pair : rawQuery.split("&")) {
+            int eq = pair.indexOf('=');
+            if (eq > 0)
+                query.put(pair.substring(0, eq), URLDecoder.decode(pair.substring(eq + 1), "UTF-8"));
+        }
+        return query;
+    }
+
+    private static void reply(HttpExchange exchange, int code, String body) throws IOException {
+        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "application/json");
+        exchange.sendResponseHeaders(code, bytes.length == 0 ? -1 : bytes.length);
+        if (bytes.length > 0) {
+            OutputStream output = exchange.getResponseBody();
+            output.write(bytes);
+            output.close();
+        }
+    }
+
+    private static byte[] readAll(File file) throws IOException {
+        return Files.readAllBytes(file.toPath());
+    }
+
+    private static byte[] readAll(InputStream input) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        byte[] block = new byte[65536];
+        int count;
+        while ((count = input.read(block)) != -1)
+            bytes.write(block, 0, count);
+        return bytes.toByteArray();
+    }
+
+    private static void writeAll(File file, byte[] content) throws IOException {
+        Files.write(file.toPath(), content);
+    }
+
+    private static byte[] digest(byte[] content) {
+        try {
+            return MessageDigest.getInstance("SHA-256").digest(content);
+        } catch (Exception e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static String hex(byte[] bytes) {
+        StringBuilder hex = new StringBuilder();
+        for (byte b : bytes)
+            hex.append(String.format("%02x", b & 0xff));
+        return hex.toString();
+    }
+}
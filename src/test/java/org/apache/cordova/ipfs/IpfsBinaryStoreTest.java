@@ -0,0 +1,136 @@
+package org.apache.cordova.ipfs;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.security.MessageDigest;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+
+/**
+ * The binary store on a temporary bin dir
+ */
+public class IpfsBinaryStoreTest {
+    private File dir;
+    private IpfsBinaryStore store;
+
+    @Before
+    public void setUp() throws Exception {
+        dir = TestFiles.tempDir("ipfs-bin");
+        store = new IpfsBinaryStore(dir);
+    }
+
+    private static String sha256(byte[] bytes) throws Exception {
+        StringBuilder hex = new StringBuilder();
+        for (byte b : MessageDigest.getInstance("SHA-256").digest(bytes))
+            hex.append(String.format("%02x", b));
+        return hex.toString();
+    }
+
+    /**
+     * @return the names in the bin dir other than the manifest and the binary dirs
+     */
+    private String[] leftovers() {
+        return dir.list(new FilenameFilter() {
+            @Override
+            public boolean accept(File parent, String name) {
+                return !name.equals("manifest.json") && !new File(parent, name).isDirectory();
+            }
+        });
+    }
+
+    @Test
+    public void anInstalledBinaryIsCurrentForItsVersionAndDigest() throws Exception {
+        byte[] binary = TestFiles.random(100000);
+        String path = store.install("v1", new ByteArrayInputStream(binary), sha256(binary));
+
+        assertEquals(path, store.current("v1", sha256(binary)));
+        assertEquals(path, store.current("v1", null));
+        assertArrayEquals(binary, TestFiles.read(new File(path)));
+        assertTrue(new File(path).canExecute());
+        assertNull(store.current("v2", null));
+        assertNull(store.current("v1", sha256(TestFiles.random(10))));
+    }
+
+    @Test
+    public void aDigestMismatchIsRejected() throws Exception {
+        byte[] binary = TestFiles.random(100000);
+        String path = store.install("v1", new ByteArrayInputStream(binary), null);
+
+        byte[] tampered = TestFiles.random(100001);
+        try {
+            store.install("v2", new ByteArrayInputStream(tampered), sha256(binary));
+            fail("the digest doesn't match");
+        } catch (Exception e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("doesn't match"));
+        }
+
+        assertEquals("the previous binary is still current", path, store.current("v1", null));
+        assertNull(store.current("v2", null));
+        assertFalse(new File(dir, sha256(tampered)).exists());
+        assertEquals(0, leftovers().length);
+    }
+
+    @Test
+    public void theManifestSurvivesAnInterruptedInstall() throws Exception {
+        byte[] binary = TestFiles.random(100000);
+        String path = store.install("v1", new ByteArrayInputStream(binary), null);
+
+        // the download of the next binary fails midway
+        byte[] next = TestFiles.random(200000);
+        InputStream failing = new FilterInputStream(new ByteArrayInputStream(next, 0, 100000)) {
+            @Override
+            public int read(byte[] buffer, int offset, int count) throws IOException {
+                int read = super.read(buffer, offset, count);
+                if (read == -1)
+                    throw new IOException("Connection reset");
+                return read;
+            }
+        };
+        try {
+            store.install("v2", failing, null);
+            fail("the install was interrupted");
+        } catch (IOException e) {
+            assertEquals("Connection reset", e.getMessage());
+        }
+        assertEquals(path, store.current("v1", null));
+
+        // and the app was killed while writing the manifest of another one
+        File tmp = new File(dir, "manifest.json.tmp");
+        RandomAccessFile half = new RandomAccessFile(tmp, "rw");
+        half.write("{\"version\": \"v3\", \"dig".getBytes("UTF-8"));
+        half.close();
+        assertEquals(path, store.current("v1", null));
+
+        // the next install replaces the manifest and drops what the failed ones left behind
+        String nextPath = store.install("v2", new ByteArrayInputStream(next), sha256(next));
+        assertEquals(nextPath, store.current("v2", sha256(next)));
+        assertTrue("the previous binary is kept", new File(path).exists());
+        assertEquals(Arrays.asList(), Arrays.asList(leftovers()));
+    }
+
+    @Test
+    public void aChangedBinaryIsNotCurrent() throws Exception {
+        byte[] binary = TestFiles.random(100000);
+        String path = store.install("v1", new ByteArrayInputStream(binary), null);
+
+        RandomAccessFile file = new RandomAccessFile(path, "rw");
+        file.setLength(50000);
+        file.close();
+        assertNull(store.current("v1", null));
+    }
+}
@@ -0,0 +1,128 @@
+package org.apache.cordova.ipfs;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.attribute.BasicFileAttributes;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+
+/**
+ * The config patches on a config file in a temporary repo
+ */
+public class IpfsConfigTest {
+    private static final String CONFIG = "{\"Addresses\": {\"API\": \"/ip4/127.0.0.1/tcp/5001\"},"
+            + " \"Datastore\": {\"StorageMax\": \"10GB\"}, \"Swarm\": {\"ConnMgr\": {\"HighWater\": 900}}}";
+
+    private File configFile;
+    private IpfsConfig config;
+
+    @Before
+    public void setUp() throws Exception {
+        configFile = new File(TestFiles.tempDir("ipfs-config"), "config");
+        TestFiles.write(configFile, CONFIG.getBytes("UTF-8"));
+        config = new IpfsConfig(configFile);
+    }
+
+    private static JSONObject set(String path, Object value) throws JSONException {
+        return new JSONObject().put("path", path).put("value", value);
+    }
+
+    private static JSONObject remove(String path) throws JSONException {
+        return new JSONObject().put("path", path).put("remove", true);
+    }
+
+    private JSONObject read() throws Exception {
+        return new JSONObject(new String(TestFiles.read(configFile), "UTF-8"));
+    }
+
+    private Object fileKey() throws Exception {
+        return Files.readAttributes(configFile.toPath(), BasicFileAttributes.class).fileKey();
+    }
+
+    @Test
+    public void patchesAreAppliedInOrder() throws Exception {
+        assertTrue(config.apply(new JSONArray()
+                .put(set("Swarm.ConnMgr.HighWater", 100))
+                .put(set("Swarm.ConnMgr.LowWater", 50))
+                .put(set("Swarm.ConnMgr.HighWater", 200))
+                .put(set("Experimental.FilestoreEnabled", true))
+                .put(remove("Datastore.StorageMax"))));
+
+        JSONObject patched = read();
+        assertEquals(200, IpfsConfig.get(patched, "Swarm.ConnMgr.HighWater"));
+        assertEquals(50, IpfsConfig.get(patched, "Swarm.ConnMgr.LowWater"));
+        assertEquals(true, IpfsConfig.get(patched, "Experimental.FilestoreEnabled"));
+        assertNull(IpfsConfig.get(patched, "Datastore.StorageMax"));
+        assertEquals("/ip4/127.0.0.1/tcp/5001", IpfsConfig.get(patched, "Addresses.API"));
+    }
+
+    @Test
+    public void anUnchangedPatchIsSkippedWithoutARewrite() throws Exception {
+        byte[] before = TestFiles.read(configFile);
+        configFile.setLastModified(System.currentTimeMillis() - 3600 * 1000);
+        long modified = configFile.lastModified();
+        Object key = this.fileKey();
+
+        assertFalse(config.apply(new JSONArray()
+                .put(set("Swarm.ConnMgr.HighWater", 900))
+                .put(set("Addresses.API", "/ip4/127.0.0.1/tcp/5001"))
+                .put(remove("Gateway.Writable"))
+                .put(remove("Datastore.GCPeriod"))));
+
+        assertArrayEquals(before, TestFiles.read(configFile));
+        assertEquals(modified, configFile.lastModified());
+        assertEquals(key, this.fileKey());
+    }
+
+    @Test
+    public void theConfigIsReplacedAtomically() throws Exception {
+        Object key = this.fileKey();
+        // left behind by a write interrupted by a crash
+        File tmp = new File(configFile.getPath() + ".tmp");
+        TestFiles.write(tmp, "{\"Addresses\": ".getBytes("UTF-8"));
+
+        assertTrue(config.apply(new JSONArray().put(set("Swarm.ConnMgr.HighWater", 100))));
+        // written aside and renamed over the config, never rewritten in place
+        assertNotEquals(key, this.fileKey());
+        assertFalse(tmp.exists());
+        assertEquals(100, IpfsConfig.get(read(), "Swarm.ConnMgr.HighWater"));
+    }
+
+    @Test
+    public void anInvalidPatchLeavesTheConfigUntouched() throws Exception {
+        byte[] before = TestFiles.read(configFile);
+        try {
+            config.apply(new JSONArray()
+                    .put(set("Swarm.ConnMgr.HighWater", 100))
+                    .put(new JSONObject().put("value", 1)));
+            fail("a patch without a path");
+        } catch (JSONException e) {
+            assertArrayEquals(before, TestFiles.read(configFile));
+        }
+    }
+
+    @Test
+    public void patchesCanBeComputedFromTheConfig() throws Exception {
+        assertTrue(config.apply(new IpfsConfig.Patcher() {
+            @Override
+            public JSONArray patches(JSONObject current) throws JSONException {
+                int highWater = (Integer) IpfsConfig.get(current, "Swarm.ConnMgr.HighWater");
+                return new JSONArray().put(set("Swarm.ConnMgr.LowWater", highWater / 2));
+            }
+        }));
+        assertEquals(450, IpfsConfig.get(read(), "Swarm.ConnMgr.LowWater"));
+    }
+}
@@ -0,0 +1,307 @@
+package org.apache.cordova.ipfs;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.URLDecoder;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+
+/**
+ * The content cache against a stub cat API, on a temporary cache directory
+ */
+public class IpfsContentCacheTest {
+    private StubHttpServer server;
+    private CatApi api;
+    private IpfsNodes nodes;
+    private IpfsNode node;
+    private IpfsContentCache cache;
+    private File dir;
+
+    @Before
+    public void setUp() throws Exception {
+        server = new StubHttpServer();
+        api = new CatApi();
+        server.handle("/api/v0/cat", api);
+        final String apiUrl = "http://127.0.0.1:" + server.port();
+
+        nodes = new IpfsNodes();
+        // a node whose daemon is always READY at the stub API
+        node = new IpfsNode("cache", nodes, null, null) {
+            @Override
+            String api() {
+                return apiUrl;
+            }
+        };
+        dir = TestFiles.tempDir("ipfs-cache");
+        cache = new IpfsContentCache(node);
+        cache.open(dir);
+    }
+
+    @After
+    public void tearDown() {
+        nodes.shutdown();
+        server.close();
+    }
+
+    /**
+     * @return the whole object, read through the cache
+     */
+    private byte[] read(String path) throws IOException {
+        IpfsContentCache.Content content = cache.open(path);
+        try {
+            return TestFiles.read(content.stream);
+        } finally {
+            content.stream.close();
+        }
+    }
+
+    private long stat(String name) throws Exception {
+        return cache.stats().getLong(name);
+    }
+
+    @Test
+    public void aMissIsCommittedOnceFullyRead() throws Exception {
+        byte[] bytes = TestFiles.random(1000);
+        api.objects.put("QmWhole", bytes);
+
+        assertArrayEquals(bytes, read("/ipfs/QmWhole"));
+        assertArrayEquals(bytes, read("QmWhole/"));
+        assertEquals(1, stat("misses"));
+        assertEquals(1, stat("memoryHits"));
+        assertEquals(1, api.requests.get());
+        assertEquals(1, dir.list().length);
+    }
+
+    @Test
+    public void aTruncatedCatIsNotCached() throws Exception {
+        // the daemon fails midway: the body ends cleanly, short of the announced length
+        byte[] bytes = TestFiles.random(1000);
+        api.objects.put("QmShort", bytes);
+        api.truncateAt = 600;
+
+        assertEquals(600, read("QmShort").length);
+        assertEquals(0, stat("objects"));
+        assertEquals(0, dir.list().length);
+
+        api.truncateAt = -1;
+        assertArrayEquals("the next read fetches it again", bytes, read("QmShort"));
+        assertEquals(2, stat("misses"));
+        assertEquals(1, stat("objects"));
+    }
+
+    @Test
+    public void anObjectOfUnknownLengthIsNotCached() throws Exception {
+        byte[] bytes = TestFiles.random(1000);
+        api.objects.put("QmUnknown", bytes);
+        api.announceLength = false;
+
+        assertArrayEquals(bytes, read("QmUnknown"));
+        assertArrayEquals(bytes, read("QmUnknown"));
+        assertEquals(2, stat("misses"));
+        assertEquals(0, stat("objects"));
+        assertEquals(0, dir.list().length);
+    }
+
+    @Test
+    public void aPartialReadIsDiscarded() throws Exception {
+        // larger than what the stream buffers ahead
+        byte[] bytes = TestFiles.random(500000);
+        api.objects.put("QmPartial", bytes);
+
+        IpfsContentCache.Content content = cache.open("QmPartial");
+        assertEquals(100, content.stream.read(new byte[100]));
+        content.stream.close();
+        assertEquals(0, stat("objects"));
+        assertEquals(0, stat("diskBytes"));
+        assertEquals(0, dir.list().length);
+
+        assertArrayEquals(bytes, read("QmPartial"));
+        assertEquals(2, stat("misses"));
+        assertEquals(1, stat("objects"));
+    }
+
+    @Test
+    public void theLeastRecentlyUsedObjectIsEvicted() throws Exception {
+        cache.setLimits(IpfsContentCache.MEMORY_LIMIT, 2500);
+        for (String cid : Arrays.asList("QmFirst", "QmSecond", "QmThird"))
+            api.objects.put(cid, TestFiles.random(1000));
+        read("QmFirst");
+        read("QmSecond");
+        read("QmFirst");
+
+        read("QmThird");
+        assertEquals(1, stat("evictions"));
+        assertEquals(2, stat("objects"));
+        assertEquals(2000, stat("diskBytes"));
+        assertEquals(2000, stat("memoryBytes"));
+        assertEquals(2, dir.list().length);
+
+        read("QmFirst");
+        read("QmThird");
+        assertEquals(3, stat("misses"));
+        read("QmSecond");
+        assertEquals("the evicted one is fetched again", 4, stat("misses"));
+        assertEquals(4, api.requests.get());
+    }
+
+    @Test
+    public void theMemoryLimitOnlyEvictsFromMemory() throws Exception {
+        cache.setLimits(1500, IpfsContentCache.DISK_LIMIT);
+        api.objects.put("QmFirst", TestFiles.random(1000));
+        api.objects.put("QmSecond", TestFiles.random(1000));
+        read("QmFirst");
+        read("QmSecond");
+        assertEquals(1000, stat("memoryBytes"));
+        assertEquals(2000, stat("diskBytes"));
+        assertEquals(0, stat("evictions"));
+
+        read("QmFirst");
+        assertEquals(1, stat("diskHits"));
+        read("QmFirst");
+        assertEquals("promoted by the disk hit", 1, stat("memoryHits"));
+        read("QmSecond");
+        assertEquals("and the other one left memory", 2, stat("diskHits"));
+    }
+
+    @Test
+    public void onlySmallObjectsArePromotedToMemory() throws Exception {
+        byte[] small = TestFiles.random(1000);
+        byte[] large = TestFiles.random((int) IpfsContentCache.MEMORY_OBJECT_LIMIT + 1);
+        api.objects.put("QmSmall", small);
+        api.objects.put("QmLarge", large);
+        read("QmSmall");
+        read("QmLarge");
+
+        // a restarted cache starts with an empty memory
+        IpfsContentCache restarted = new IpfsContentCache(node);
+        restarted.open(dir);
+        assertEquals(0, restarted.stats().getLong("memoryBytes"));
+        for (int i = 0; i < 2; i++) {
+            assertArrayEquals(small, TestFiles.read(restarted.open("QmSmall").stream));
+            assertArrayEquals(large, TestFiles.read(restarted.open("QmLarge").stream));
+        }
+        assertEquals(small.length, restarted.stats().getLong("memoryBytes"));
+        assertEquals(1, restarted.stats().getLong("memoryHits"));
+        assertEquals(3, restarted.stats().getLong("diskHits"));
+        assertEquals(0, restarted.stats().getLong("misses"));
+        assertEquals(2, api.requests.get());
+    }
+
+    @Test
+    public void memoryHitsKeepTheOrderAcrossRestarts() throws Exception {
+        api.objects.put("QmHot", TestFiles.random(1000));
+        api.objects.put("QmCold", TestFiles.random(1000));
+        read("QmHot");
+        File hot = dir.listFiles()[0];
+        read("QmCold");
+        // both were fetched long ago, the hot one before the cold one
+        long now = System.currentTimeMillis();
+        for (File file : dir.listFiles())
+            file.setLastModified(now - (file.equals(hot) ? 7200 : 3600) * 1000);
+        read("QmHot");
+
+        // the restarted cache only has room for one of them: the hot one stays
+        IpfsContentCache restarted = new IpfsContentCache(node);
+        restarted.setLimits(IpfsContentCache.MEMORY_LIMIT, 1500);
+        restarted.open(dir);
+        assertEquals(1, restarted.stats().getLong("evictions"));
+        restarted.open("QmHot").stream.close();
+        assertEquals(1, restarted.stats().getLong("diskHits"));
+        assertEquals(0, restarted.stats().getLong("misses"));
+    }
+
+    @Test
+    public void rangesAreParsedAgainstTheSize() {
+        assertArrayEquals(new long[]{100, 999}, IpfsContentCache.range("bytes=100-", 1000));
+        assertArrayEquals(new long[]{100, 199}, IpfsContentCache.range("bytes=100-199", 1000));
+        assertArrayEquals("the last byte is clamped", new long[]{900, 999}, IpfsContentCache.range("bytes=900-5000", 1000));
+        assertArrayEquals("a suffix", new long[]{800, 999}, IpfsContentCache.range("bytes=-200", 1000));
+        long[] past = IpfsContentCache.range("bytes=1000-", 1000);
+        assertTrue("past the end can't be satisfied", past[0] > past[1]);
+
+        // the whole object is served
+        assertNull(IpfsContentCache.range(null, 1000));
+        assertNull(IpfsContentCache.range("bytes=100-", -1));
+        assertNull(IpfsContentCache.range("bytes=200-100", 1000));
+        assertNull(IpfsContentCache.range("bytes=0-1,5-9", 1000));
+        assertNull(IpfsContentCache.range("items=0-1", 1000));
+    }
+
+    @Test
+    public void aRangeOfACachedObjectIsReadWithoutTheRest() throws Exception {
+        // larger than MEMORY_OBJECT_LIMIT: served from the mapped file
+        byte[] bytes = TestFiles.random((int) IpfsContentCache.MEMORY_OBJECT_LIMIT * 4);
+        api.objects.put("QmMovie", bytes);
+        read("QmMovie");
+
+        IpfsContentCache.Content part = IpfsContentCache.slice(cache.open("QmMovie"), 700000, 700099);
+        assertEquals(100, part.length);
+        assertEquals(bytes.length, part.size);
+        assertArrayEquals(Arrays.copyOfRange(bytes, 700000, 700100), TestFiles.read(part.stream));
+        part.stream.close();
+        assertEquals(1, stat("diskHits"));
+        assertEquals(1, api.requests.get());
+    }
+
+    @Test
+    public void aRangeOfAMissFillsTheCache() throws Exception {
+        byte[] bytes = TestFiles.random(500000);
+        api.objects.put("QmSeek", bytes);
+
+        IpfsContentCache.Content part = IpfsContentCache.slice(cache.open("QmSeek"), 300000, bytes.length - 1);
+        assertArrayEquals(Arrays.copyOfRange(bytes, 300000, bytes.length), TestFiles.read(part.stream));
+        part.stream.close();
+
+        // the bytes before the range were read through, the whole object is cached
+        assertEquals(1, stat("objects"));
+        assertArrayEquals(bytes, read("QmSeek"));
+        assertEquals(1, api.requests.get());
+    }
+
+    /**
+     * /api/v0/cat of the objects, chunked with X-Content-Length like go-ipfs; a body can be
+     * truncated, still ending cleanly as when the daemon fails midway
+     */
+    static class CatApi implements HttpHandler {
+        final Map<String, byte[]> objects = new ConcurrentHashMap<String, byte[]>();
+        volatile boolean announceLength = true;
+        // the bodies end after this many bytes; -1 never
+        volatile int truncateAt = -1;
+        final AtomicInteger requests = new AtomicInteger();
+
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            requests.incrementAndGet();
+            String arg = URLDecoder.decode(exchange.getRequestURI().getRawQuery().replaceAll(".*\\barg=([^&]*).*", "$1"), "UTF-8");
+            byte[] bytes = objects.get(IpfsContentCache.normalize(arg));
+            if (bytes == null) {
+                exchange.sendResponseHeaders(500, -1);
+                exchange.close();
+                return;
+            }
+
+            if (announceLength)
+                exchange.getResponseHeaders().set("X-Content-Length", String.valueOf(bytes.length));
+            exchange.sendResponseHeaders(200, 0);
+            OutputStream output = exchange.getResponseBody();
+            output.write(bytes, 0, truncateAt >= 0 ? Math.min(truncateAt, bytes.length) : bytes.length);
+            output.close();
+            exchange.close();
+        }
+    }
+}
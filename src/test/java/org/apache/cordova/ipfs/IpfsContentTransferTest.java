@@ -0,0 +1,201 @@
+package org.apache.cordova.ipfs;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+
+/**
+ * add / cat / get of IpfsContentTransfer and their cancellation, against a stub of the daemon API
+ */
+public class IpfsContentTransferTest {
+    private static final int LENGTH = 4 * 1024 * 1024;
+    private static final String CID = "QmTestCid";
+
+    private StubHttpServer server;
+    private String api;
+    private File dir;
+    private byte[] bytes;
+    private final AtomicBoolean cancelled = new AtomicBoolean(false);
+
+    // what the stub /api/v0/add received
+    private volatile byte[] addBody;
+    private volatile String addEncoding;
+
+    @Before
+    public void setUp() throws Exception {
+        bytes = TestFiles.random(LENGTH);
+        dir = TestFiles.tempDir("ipfs-transfer");
+        server = new StubHttpServer();
+        api = "http://127.0.0.1:" + server.port();
+
+        server.handle("/api/v0/add", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                addEncoding = exchange.getRequestHeaders().getFirst("Transfer-Encoding");
+                addBody = TestFiles.read(exchange.getRequestBody());
+                reply(exchange, "{\"Name\":\"file\",\"Hash\":\"" + CID + "\",\"Size\":\"" + LENGTH + "\"}\n");
+            }
+        });
+        server.serve("/api/v0/cat", bytes);
+    }
+
+    @After
+    public void tearDown() {
+        server.close();
+    }
+
+    private static void reply(HttpExchange exchange, String body) throws IOException {
+        byte[] reply = body.getBytes(StandardCharsets.UTF_8);
+        exchange.sendResponseHeaders(200, reply.length);
+        OutputStream output = exchange.getResponseBody();
+        output.write(reply);
+        output.close();
+    }
+
+    /**
+     * @return a listener setting the cancel flag once 'after' bytes were transferred
+     */
+    private IpfsContentTransfer.ProgressListener cancelAfter(final long after) {
+        return new IpfsContentTransfer.ProgressListener() {
+            @Override
+            public void onProgress(long bytes, long total) {
+                if (bytes >= after)
+                    cancelled.set(true);
+            }
+        };
+    }
+
+    @Test
+    public void addStreamsTheFileChunked() throws Exception {
+        File file = new File(dir, "content.bin");
+        TestFiles.write(file, bytes);
+
+        String cid = new IpfsContentTransfer(api, cancelled, null).add(file);
+
+        assertEquals(CID, cid);
+        assertEquals("chunked", addEncoding);
+        String body = new String(addBody, StandardCharsets.ISO_8859_1);
+        int start = body.indexOf("\r\n\r\n") + 4;
+        assertArrayEquals(bytes, body.substring(start, start + LENGTH).getBytes(StandardCharsets.ISO_8859_1));
+    }
+
+    @Test
+    public void addEscapesTheFilename() throws Exception {
+        File file = new File(dir, "a \"quoted\" näme+1.txt");
+        TestFiles.write(file, new byte[]{1, 2, 3});
+
+        new IpfsContentTransfer(api, cancelled, null).add(file);
+
+        String body = new String(addBody, StandardCharsets.UTF_8);
+        String disposition = body.substring(body.indexOf("Content-Disposition"), body.indexOf("\r\n", body.indexOf("Content-Disposition")));
+        assertEquals("Content-Disposition: form-data; name=\"file\";"
+                + " filename=\"a \\\"quoted\\\" näme+1.txt\";"
+                + " filename*=UTF-8''a%20%22quoted%22%20n%C3%A4me+1.txt", disposition);
+    }
+
+    @Test
+    public void addKeepsAnAsciiFilenameQuotedOnly() throws Exception {
+        File file = new File(dir, "my file.txt");
+        TestFiles.write(file, new byte[]{1});
+
+        new IpfsContentTransfer(api, cancelled, null).add(file);
+
+        assertTrue(new String(addBody, StandardCharsets.UTF_8)
+                .contains("name=\"file\"; filename=\"my file.txt\"\r\n"));
+    }
+
+    @Test
+    public void catWritesTheContentToTheFile() throws Exception {
+        File target = new File(dir, "out/content.bin");
+        final long[] last = new long[1];
+        long written = new IpfsContentTransfer(api, cancelled, new IpfsContentTransfer.ProgressListener() {
+            @Override
+            public void onProgress(long bytes, long total) {
+                last[0] = bytes;
+            }
+        }).catToFile(CID, target);
+
+        assertEquals(LENGTH, written);
+        assertEquals(LENGTH, last[0]);
+        assertArrayEquals(bytes, TestFiles.read(target));
+        assertFalse(new File(target.getPath() + ".part").exists());
+    }
+
+    @Test
+    public void cancelledCatFailsWithAnIOException() throws Exception {
+        File target = new File(dir, "content.bin");
+        try {
+            new IpfsContentTransfer(api, cancelled, cancelAfter(LENGTH / 4)).catToFile(CID, target);
+            fail("the transfer should have been cancelled");
+        } catch (IOException e) {
+            assertTrue(e instanceof IpfsContentTransfer.CancelledException);
+        }
+        assertFalse(target.exists());
+        assertFalse(new File(target.getPath() + ".part").exists());
+    }
+
+    @Test
+    public void cancelledAddFailsWithAnIOException() throws Exception {
+        File file = new File(dir, "content.bin");
+        TestFiles.write(file, bytes);
+        try {
+            new IpfsContentTransfer(api, cancelled, cancelAfter(LENGTH / 4)).add(file);
+            fail("the transfer should have been cancelled");
+        } catch (IpfsContentTransfer.CancelledException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void getWritesTheTree() throws Exception {
+        server.serve("/api/v0/get", TestFiles.tar(new String[]{CID + "/", CID + "/a.txt", CID + "/sub/b.bin"},
+                new byte[][]{null, "a".getBytes(StandardCharsets.UTF_8), bytes}));
+
+        String path = new IpfsContentTransfer(api, cancelled, null).get(CID, dir);
+
+        assertEquals(new File(dir, CID).getPath(), path);
+        assertArrayEquals("a".getBytes(StandardCharsets.UTF_8), TestFiles.read(new File(dir, CID + "/a.txt")));
+        assertArrayEquals(bytes, TestFiles.read(new File(dir, CID + "/sub/b.bin")));
+    }
+
+    @Test
+    public void getRefusesEntriesOutsideOfTheDir() throws Exception {
+        server.serve("/api/v0/get", TestFiles.tar(new String[]{"../evil.txt"},
+                new byte[][]{"x".getBytes(StandardCharsets.UTF_8)}));
+        File target = new File(dir, "inner");
+        target.mkdirs();
+
+        try {
+            new IpfsContentTransfer(api, cancelled, null).get(CID, target);
+            fail("the entry should have been refused");
+        } catch (IOException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("outside"));
+        }
+        assertFalse(new File(dir, "evil.txt").exists());
+    }
+
+    @Test
+    public void apiErrorsFailWithAnIOException() throws Exception {
+        try {
+            new IpfsContentTransfer(api + "/missing", cancelled, null).catToFile(CID, new File(dir, "x"));
+            fail("the API error should have failed the transfer");
+        } catch (IOException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("404"));
+        }
+    }
+}
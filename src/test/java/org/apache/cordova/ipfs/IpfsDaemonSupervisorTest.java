@@ -0,0 +1,242 @@
+package org.apache.cordova.ipfs;
+
+import org.apache.cordova.ipfs.IpfsDaemonSupervisor.State;
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+
+/**
+ * The state machine of IpfsDaemonSupervisor with a scripted launcher: every launch either spawns
+ * a 'sleep' process standing for the daemon or fails
+ */
+public class IpfsDaemonSupervisorTest {
+    private final ConcurrentLinkedQueue<Boolean> script = new ConcurrentLinkedQueue<Boolean>();
+    private final AtomicInteger spawns = new AtomicInteger();
+    private final BlockingQueue<State> states = new LinkedBlockingQueue<State>();
+    private final List<Process> processes = new ArrayList<Process>();
+    // the next daemons ignore every signal
+    private volatile boolean unkillable = false;
+    private IpfsDaemonSupervisor supervisor;
+
+    @Before
+    public void setUp() {
+        supervisor = new IpfsDaemonSupervisor(new IpfsDaemonSupervisor.Launcher() {
+            @Override
+            public Process spawn() throws Exception {
+                spawns.incrementAndGet();
+                Boolean succeeds = script.poll();
+                if (succeeds == null || !succeeds)
+                    throw new Exception("Scripted launch failure");
+                Process process = new ProcessBuilder("sleep", "60").start();
+                synchronized (processes) {
+                    processes.add(process);
+                }
+                return unkillable ? new UnkillableProcess(process) : process;
+            }
+
+            @Override
+            public JSONObject awaitReady(Process process, long spawnStarted, long spawned) throws Exception {
+                return new JSONObject().put("pid", IpfsProcesses.pid(process));
+            }
+        }, new IpfsDaemonSupervisor.Listener() {
+            @Override
+            public void onStateChanged(State state, State previous, JSONObject info) {
+                states.add(state);
+            }
+        });
+        supervisor.setRestartPolicy(true, 3, 60000, 10);
+        supervisor.setStopTimeouts(1000, 1000);
+    }
+
+    @After
+    public void tearDown() {
+        supervisor.shutdown();
+        synchronized (processes) {
+            for (Process process : processes)
+                process.destroy();
+        }
+    }
+
+    private void script(Boolean... launches) {
+        script.addAll(Arrays.asList(launches));
+    }
+
+    private void expectStates(State... expected) throws InterruptedException {
+        for (State state : expected) {
+            State next = states.poll(10, TimeUnit.SECONDS);
+            assertEquals(state, next);
+        }
+    }
+
+    private Process running() {
+        synchronized (processes) {
+            return processes.get(processes.size() - 1);
+        }
+    }
+
+    @Test
+    public void startAndStop() throws Exception {
+        script(true);
+        TestCallback started = new TestCallback();
+        supervisor.start(started);
+        assertNotNull(started.awaitSuccess(10000));
+        assertNotNull(supervisor.process());
+
+        TestCallback stopped = new TestCallback();
+        supervisor.stop(stopped);
+        stopped.awaitSuccess(10000);
+        assertNull(supervisor.process());
+        expectStates(State.STARTING, State.READY, State.STOPPING, State.STOPPED);
+    }
+
+    @Test
+    public void failedStartStops() throws Exception {
+        script(false);
+        TestCallback started = new TestCallback();
+        supervisor.start(started);
+        started.awaitError(10000);
+
+        expectStates(State.STARTING, State.STOPPED);
+        Thread.sleep(200);
+        assertEquals("an explicit start is not retried", 1, spawns.get());
+    }
+
+    @Test
+    public void crashIsRestarted() throws Exception {
+        script(true, true);
+        TestCallback started = new TestCallback();
+        supervisor.start(started);
+        started.awaitSuccess(10000);
+
+        running().destroy();
+        expectStates(State.STARTING, State.READY, State.CRASHED, State.STARTING, State.READY);
+        assertEquals(2, spawns.get());
+    }
+
+    @Test
+    public void failedRestartBacksOffAndRetries() throws Exception {
+        script(true, false, true);
+        TestCallback started = new TestCallback();
+        supervisor.start(started);
+        started.awaitSuccess(10000);
+
+        running().destroy();
+        expectStates(State.STARTING, State.READY,
+                State.CRASHED, State.STARTING,
+                // the failed restart goes back to CRASHED, not to STOPPED
+                State.CRASHED, State.STARTING, State.READY);
+        assertEquals(3, spawns.get());
+    }
+
+    @Test
+    public void failedRestartsStopOnceTheBudgetIsSpent() throws Exception {
+        script(true);
+        TestCallback started = new TestCallback();
+        supervisor.start(started);
+        started.awaitSuccess(10000);
+
+        running().destroy();
+        expectStates(State.STARTING, State.READY,
+                State.CRASHED, State.STARTING,
+                State.CRASHED, State.STARTING,
+                State.CRASHED, State.STARTING,
+                State.STOPPED);
+        // the first launch and maxRestarts restarts
+        assertEquals(4, spawns.get());
+        assertEquals(State.STOPPED, supervisor.state());
+    }
+
+    @Test
+    public void stopCancelsThePendingRestart() throws Exception {
+        supervisor.setRestartPolicy(true, 3, 60000, 500);
+        script(true, true);
+        TestCallback started = new TestCallback();
+        supervisor.start(started);
+        started.awaitSuccess(10000);
+
+        running().destroy();
+        expectStates(State.STARTING, State.READY, State.CRASHED);
+        TestCallback stopped = new TestCallback();
+        supervisor.stop(stopped);
+        stopped.awaitSuccess(10000);
+
+        expectStates(State.STOPPED);
+        Thread.sleep(1000);
+        assertEquals(1, spawns.get());
+        assertEquals(State.STOPPED, supervisor.state());
+    }
+
+    @Test
+    public void stopFailsWhenTheDaemonCannotBeKilled() throws Exception {
+        unkillable = true;
+        script(true);
+        TestCallback started = new TestCallback();
+        supervisor.start(started);
+        started.awaitSuccess(10000);
+
+        // the stop is bounded even if the daemon never exits
+        TestCallback stopped = new TestCallback();
+        supervisor.stop(stopped);
+        String error = stopped.awaitError(20000);
+        assertTrue(error, error.contains("still running"));
+        expectStates(State.STARTING, State.READY, State.STOPPING, State.STOPPED);
+    }
+
+    /**
+     * A daemon whose PID is unknown and that survives destroy(); it only exits with the test
+     */
+    private static class UnkillableProcess extends Process {
+        private final Process process;
+
+        UnkillableProcess(Process process) {
+            this.process = process;
+        }
+
+        @Override
+        public OutputStream getOutputStream() {
+            return process.getOutputStream();
+        }
+
+        @Override
+        public InputStream getInputStream() {
+            return process.getInputStream();
+        }
+
+        @Override
+        public InputStream getErrorStream() {
+            return process.getErrorStream();
+        }
+
+        @Override
+        public int waitFor() throws InterruptedException {
+            return process.waitFor();
+        }
+
+        @Override
+        public int exitValue() {
+            return process.exitValue();
+        }
+
+        @Override
+        public void destroy() {
+        }
+    }
+}
@@ -0,0 +1,187 @@
+package org.apache.cordova.ipfs;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+
+/**
+ * IpfsDownloader against a local server with Range support and injected disconnects
+ */
+public class IpfsDownloaderTest {
+    private static final int LENGTH = 8 * 1024 * 1024;
+
+    private StubHttpServer server;
+    private StubHttpServer.Content content;
+    private byte[] bytes;
+    private File dir;
+    private File target;
+
+    @Before
+    public void setUp() throws Exception {
+        bytes = TestFiles.random(LENGTH);
+        server = new StubHttpServer();
+        content = server.serve("/go-ipfs.tar.gz", bytes);
+        dir = TestFiles.tempDir("ipfs-download");
+        target = new File(dir, "go-ipfs.tar.gz");
+    }
+
+    @After
+    public void tearDown() {
+        server.close();
+    }
+
+    private IpfsDownloader downloader(int segments) throws IOException {
+        IpfsDownloader downloader = new IpfsDownloader(server.url("/go-ipfs.tar.gz"), target, segments, null);
+        downloader.setRetryBackoff(1);
+        return downloader;
+    }
+
+    @Test
+    public void downloadsInParallelSegments() throws Exception {
+        IpfsDownloader downloader = downloader(4);
+        downloader.download();
+
+        assertArrayEquals(bytes, TestFiles.read(target));
+        assertEquals(LENGTH, downloader.transferred());
+        // the probe and one request per segment
+        assertEquals(5, content.requests.get());
+        assertFalse(new File(dir, "go-ipfs.tar.gz.part").exists());
+        assertFalse(new File(dir, "go-ipfs.tar.gz.state").exists());
+    }
+
+    @Test
+    public void segmentsResumeAfterDisconnects() throws Exception {
+        content.cutAfter = 300 * 1024;
+        content.cuts.set(8);
+        downloader(4).download();
+
+        assertArrayEquals(bytes, TestFiles.read(target));
+        assertTrue(content.disconnects.get() > 0);
+        // every retry continues from the last written byte, nothing is fetched twice
+        assertEquals(LENGTH + 1, content.served.get());
+    }
+
+    @Test
+    public void resumesOnTheNextDownload() throws Exception {
+        // the segment is cut and the server goes away, the download gives up after MAX_RETRIES
+        content.cutAfter = 512 * 1024;
+        content.failAfter = 2;
+        try {
+            downloader(1).download();
+            fail("the download should have failed");
+        } catch (IOException e) {
+            // expected
+        }
+        assertFalse(target.exists());
+        assertTrue(new File(dir, "go-ipfs.tar.gz.state").exists());
+
+        content.cutAfter = -1;
+        content.failAfter = -1;
+        IpfsDownloader resumed = downloader(1);
+        resumed.download();
+
+        assertArrayEquals(bytes, TestFiles.read(target));
+        assertEquals("only the missing part is fetched", LENGTH - 512 * 1024, resumed.transferred());
+    }
+
+    @Test
+    public void restartsWhenTheFileChangedBetweenDownloads() throws Exception {
+        content.cutAfter = 512 * 1024;
+        content.failAfter = 2;
+        try {
+            downloader(1).download();
+            fail("the download should have failed");
+        } catch (IOException e) {
+            // expected
+        }
+
+        byte[] replaced = TestFiles.random(LENGTH + 1);
+        content.cutAfter = -1;
+        content.failAfter = -1;
+        content.bytes = replaced;
+        content.etag = "\"v2\"";
+        IpfsDownloader restarted = downloader(1);
+        restarted.download();
+
+        assertArrayEquals(replaced, TestFiles.read(target));
+        assertEquals(LENGTH + 1, restarted.transferred());
+    }
+
+    @Test
+    public void failsWhenTheFileChangesDuringTheDownload() throws Exception {
+        // the file is replaced right after the probe, If-Range gets the whole new file
+        final AtomicInteger requests = new AtomicInteger();
+        server.handle("/changing.tar.gz", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                if (requests.incrementAndGet() == 2)
+                    content.etag = "\"v2\"";
+                content.handle(exchange);
+            }
+        });
+
+        IpfsDownloader downloader = new IpfsDownloader(server.url("/changing.tar.gz"), target, 1, null);
+        downloader.setRetryBackoff(1);
+        try {
+            downloader.download();
+            fail("the download should have failed");
+        } catch (IOException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("changed on the server"));
+        }
+        // no retries, and the next download starts over
+        assertEquals(2, requests.get());
+        assertFalse(new File(dir, "go-ipfs.tar.gz.state").exists());
+    }
+
+    @Test
+    public void givesUpOnAServerClosingEveryConnection() throws Exception {
+        // every answer is dropped right after its headers, the retries must not loop forever
+        content.cutAfter = 0;
+        try {
+            downloader(1).download();
+            fail("the download should have failed");
+        } catch (IOException e) {
+            // expected
+        }
+        // the probe, the first try and MAX_RETRIES retries
+        assertTrue(content.disconnects.get() >= 7);
+        assertFalse(target.exists());
+    }
+
+    @Test
+    public void streamsWithoutRangeSupport() throws Exception {
+        content.ranges = false;
+        content.cutAfter = 1024 * 1024;
+        content.cuts.set(3);
+        downloader(4).download();
+
+        assertArrayEquals(bytes, TestFiles.read(target));
+        // the probe (cut as well), 2 cut downloads restarted from zero and the complete one
+        assertEquals(4, content.requests.get());
+        assertFalse(new File(dir, "go-ipfs.tar.gz.state").exists());
+    }
+
+    @Test
+    public void skipsAnExistingArchive() throws Exception {
+        TestFiles.write(target, Arrays.copyOf(bytes, LENGTH));
+        IpfsDownloader downloader = downloader(4);
+        downloader.download();
+
+        assertEquals(0, downloader.transferred());
+        assertEquals(1, content.requests.get());
+    }
+}
@@ -0,0 +1,379 @@
+package org.apache.cordova.ipfs;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+
+/**
+ * The job scheduler against a stub API streaming blocks, slowly or failing on demand, and
+ * keeping the pins
+ */
+public class IpfsJobSchedulerTest {
+    private static final long BACKOFF = 100;
+
+    private StubHttpServer server;
+    private BlockApi api;
+    private IpfsNodes nodes;
+    private IpfsNode node;
+    private IpfsJobScheduler jobs;
+    private String apiUrl;
+    private final BlockingQueue<JSONObject> events = new LinkedBlockingQueue<JSONObject>();
+
+    @Before
+    public void setUp() throws Exception {
+        server = new StubHttpServer();
+        api = new BlockApi();
+        server.handle("/api/v0/", api);
+        apiUrl = "http://127.0.0.1:" + server.port();
+
+        nodes = new IpfsNodes();
+        // a node whose daemon is always READY at the stub API
+        node = new IpfsNode("jobs", nodes, null, null) {
+            @Override
+            String api() {
+                return apiUrl;
+            }
+        };
+        // the prefetched DAGs are only soft-pinned under a quota
+        node.gc().setQuota(1L << 30, IpfsRepoGc.HIGH_WATERMARK, IpfsRepoGc.LOW_WATERMARK, IpfsRepoGc.MAX_PAUSE);
+        jobs = node.jobs();
+        jobs.setRetryBackoff(BACKOFF);
+        jobs.setListener(new IpfsJobScheduler.Listener() {
+            @Override
+            public void onJobEvent(String event, JSONObject job) {
+                try {
+                    // the worker thread, whose name numbers the workers in start order
+                    events.add(job.put("event", event).put("thread", Thread.currentThread().getName()));
+                } catch (JSONException e) {
+                    throw new AssertionError(e);
+                }
+            }
+        });
+    }
+
+    @After
+    public void tearDown() {
+        node.shutdown();
+        nodes.shutdown();
+        server.close();
+    }
+
+    /**
+     * @return the next job event with the given name (the events in between are skipped), null
+     * if none came in time
+     */
+    private JSONObject next(String event, long timeout) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeout;
+        while (true) {
+            JSONObject job = events.poll(Math.max(0, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+            if (job == null || job.optString("event").equals(event))
+                return job;
+        }
+    }
+
+    private JSONObject expect(String event) throws InterruptedException {
+        JSONObject job = next(event, 10000);
+        assertNotNull("no " + event + " event", job);
+        return job;
+    }
+
+    @Test
+    public void pausingRequeuesTheRunningJobWithoutCountingAnAttempt() throws Exception {
+        api.blocks = 100;
+        api.blockDelay = 50;
+        jobs.submit(IpfsJobScheduler.Type.PREFETCH, Arrays.asList("QmSlow"), 0, false, false);
+        assertEquals(1, expect("started").getInt("attempts"));
+        Thread.sleep(200);
+
+        // the daemon is about to be suspended: the request is closed, not left hanging
+        jobs.setPaused(true);
+        JSONObject retry = expect("retry");
+        assertEquals(0, retry.getInt("attempts"));
+        assertNull("no job starts while paused", next("started", 500));
+
+        api.blockDelay = 0;
+        jobs.setPaused(false);
+        assertEquals(1, expect("started").getInt("attempts"));
+        assertEquals(1, expect("done").getInt("attempts"));
+        assertEquals(2, api.requests.get());
+    }
+
+    @Test
+    public void failingBlocksAreRetriedWithBackoff() throws Exception {
+        api.failures.set(2);
+        jobs.submit(IpfsJobScheduler.Type.PREFETCH, Arrays.asList("QmFlaky"), 0, false, false);
+
+        expect("started");
+        JSONObject retry = expect("retry");
+        assertTrue(retry.getString("error"), retry.getString("error").contains("block unavailable"));
+        long retried = System.currentTimeMillis();
+        assertEquals(2, expect("started").getInt("attempts"));
+        assertTrue("the first retry waits for the backoff", System.currentTimeMillis() - retried >= BACKOFF - 10);
+
+        expect("retry");
+        retried = System.currentTimeMillis();
+        assertEquals(3, expect("started").getInt("attempts"));
+        assertTrue("the backoff doubles", System.currentTimeMillis() - retried >= 2 * BACKOFF - 10);
+
+        JSONObject done = expect("done");
+        assertEquals(3, done.getInt("attempts"));
+        assertEquals("a retry counts the blocks from the root again", 20, done.getLong("blocks"));
+        assertEquals(3, api.requests.get());
+    }
+
+    @Test
+    public void aResizedPoolKeepsTheWantedWorkers() throws Exception {
+        jobs.setWorkers(3);
+        Map<String, String> cidOfWorker = new HashMap<String, String>();
+        for (String cid : Arrays.asList("QmBusy0", "QmBusy1", "QmBusy2"))
+            api.gates.put(cid, new CountDownLatch(1));
+        jobs.submit(IpfsJobScheduler.Type.PREFETCH, Arrays.asList("QmBusy0", "QmBusy1", "QmBusy2"), 10, false, false);
+        jobs.submit(IpfsJobScheduler.Type.PREFETCH, Arrays.asList("QmQueued"), 0, false, false);
+        for (int i = 0; i < 3; i++) {
+            JSONObject started = expect("started");
+            cidOfWorker.put(started.getString("thread"), started.getString("cid"));
+        }
+
+        // shrunk while all the workers are busy: the middle one finishes first, then the pool
+        // grows back before the last one finishes
+        jobs.setWorkers(1);
+        api.gates.get(cidOfWorker.get("ipfs-jobs-1")).countDown();
+        expect("done");
+        jobs.setWorkers(2);
+        api.gates.get(cidOfWorker.get("ipfs-jobs-2")).countDown();
+        expect("done");
+
+        // two workers are left, one is still busy: the other one runs the queued job
+        assertEquals("QmQueued", expect("started").getString("cid"));
+        api.gates.get(cidOfWorker.get("ipfs-jobs-0")).countDown();
+        expect("done");
+        expect("done");
+    }
+
+    @Test
+    public void droppedConnectionsAreRetried() throws Exception {
+        api.failures.set(1);
+        api.drop = true;
+        jobs.submit(IpfsJobScheduler.Type.PIN, Arrays.asList("QmDropped"), 0, false, false);
+
+        expect("retry");
+        JSONObject done = expect("done");
+        assertEquals(2, done.getInt("attempts"));
+        assertEquals(20, done.getLong("blocks"));
+        assertTrue(api.pins.contains("QmDropped"));
+    }
+
+    @Test
+    public void givesUpAfterMaxAttempts() throws Exception {
+        api.failures.set(Integer.MAX_VALUE);
+        jobs.submit(IpfsJobScheduler.Type.PREFETCH, Arrays.asList("QmMissing"), 0, false, false);
+
+        JSONObject failed = expect("failed");
+        assertEquals(5, failed.getInt("attempts"));
+        assertEquals(5, api.requests.get());
+        assertEquals(0, jobs.list().length());
+    }
+
+    @Test
+    public void slowBlocksReportProgressAndThroughput() throws Exception {
+        api.blocks = 40;
+        api.blockDelay = 30;
+        jobs.submit(IpfsJobScheduler.Type.PREFETCH, Arrays.asList("QmSlow"), 0, false, false);
+
+        JSONObject progress = expect("progress");
+        assertTrue(progress.getLong("blocks") > 0);
+        assertTrue(progress.getLong("blocksPerSecond") > 0);
+        // a CID already running is not queued twice
+        JSONObject again = jobs.submit(IpfsJobScheduler.Type.PREFETCH, Arrays.asList("QmSlow"), 5, false, false).getJSONObject(0);
+        assertEquals(progress.getString("id"), again.getString("id"));
+
+        assertEquals(40, expect("done").getLong("blocks"));
+        assertEquals(1, api.requests.get());
+    }
+
+    @Test
+    public void prefetchedDagsAreSoftPinnedUntilReleased() throws Exception {
+        // one job at a time, so the soft pins are made in order
+        jobs.setWorkers(1);
+        jobs.submit(IpfsJobScheduler.Type.PREFETCH, Arrays.asList("QmOld"), 0, false, false);
+        expect("done");
+        jobs.submit(IpfsJobScheduler.Type.PREFETCH, Arrays.asList("QmNew", "QmPinnedByTheApp", "QmKept"), 0, false, false);
+        expect("done");
+        expect("done");
+        expect("done");
+        // pinned by the app through the daemon API, behind the scheduler's back
+        api.pins.add("QmPinnedByTheApp");
+        jobs.submit(IpfsJobScheduler.Type.PIN, Arrays.asList("QmKept"), 0, false, false);
+        expect("done");
+
+        // the soft pins are MFS entries, a pin job replaces its soft pin with a pin
+        assertEquals(Arrays.asList("QmOld", "QmNew", "QmPinnedByTheApp"), jobs.softPins());
+        assertEquals(new HashSet<String>(Arrays.asList("QmOld", "QmNew", "QmPinnedByTheApp")), api.mfs);
+        assertEquals(new HashSet<String>(Arrays.asList("QmPinnedByTheApp", "QmKept")), api.pins);
+
+        // 1000 bytes per DAG: the oldest one is enough
+        assertEquals(1, jobs.releaseSoftPins(apiUrl, 800));
+        assertEquals(Arrays.asList("QmNew", "QmPinnedByTheApp"), jobs.softPins());
+        assertFalse(api.mfs.contains("QmOld"));
+        assertEquals(2, jobs.releaseSoftPins(apiUrl, 5000));
+        assertTrue(api.mfs.isEmpty());
+        // releasing never unpins anything
+        assertEquals(new HashSet<String>(Arrays.asList("QmPinnedByTheApp", "QmKept")), api.pins);
+    }
+
+    @Test
+    public void nothingIsSoftPinnedWithoutAQuota() throws Exception {
+        // nothing would ever release them
+        node.gc().setQuota(0, IpfsRepoGc.HIGH_WATERMARK, IpfsRepoGc.LOW_WATERMARK, IpfsRepoGc.MAX_PAUSE);
+        jobs.submit(IpfsJobScheduler.Type.PREFETCH, Arrays.asList("QmFree"), 0, false, false);
+        expect("done");
+
+        assertTrue(jobs.softPins().isEmpty());
+        assertTrue(api.mfs.isEmpty());
+    }
+
+    @Test
+    public void aFailedSoftPinRetriesThePrefetch() throws Exception {
+        api.mfsFailures.set(1);
+        jobs.submit(IpfsJobScheduler.Type.PREFETCH, Arrays.asList("QmCopy"), 0, false, false);
+
+        expect("retry");
+        assertEquals(2, expect("done").getInt("attempts"));
+        assertEquals(Arrays.asList("QmCopy"), jobs.softPins());
+        assertTrue(api.mfs.contains("QmCopy"));
+    }
+
+    @Test
+    public void softPinsSurviveRestarts() throws Exception {
+        File store = new File(TestFiles.tempDir("ipfs-jobs"), "jobs.json");
+        jobs.open(store);
+        jobs.submit(IpfsJobScheduler.Type.PREFETCH, Arrays.asList("QmSaved"), 0, false, false);
+        expect("done");
+
+        IpfsJobScheduler reloaded = new IpfsJobScheduler(node);
+        reloaded.open(store);
+        assertEquals(Arrays.asList("QmSaved"), reloaded.softPins());
+        reloaded.shutdown();
+    }
+
+    /**
+     * The API calls of the jobs: refs (one {"Ref"} line per block), pin/add ({"Progress"} lines
+     * then {"Pins"}), object/stat and the files calls of the soft pins (files/cp of /ipfs/cid to
+     * /.prefetch/cid). The block streams can be slow or fail after failAt blocks
+     */
+    static class BlockApi implements HttpHandler {
+        volatile int blocks = 20;
+        // pause after every block, in ms
+        volatile long blockDelay = 0;
+        // the number of block streams that fail after failAt blocks
+        final AtomicInteger failures = new AtomicInteger();
+        volatile int failAt = 5;
+        // the failing streams are dropped instead of ending with an error line
+        volatile boolean drop = false;
+        // the block streams of these CIDs hold after the first block until their gate is open
+        final Map<String, CountDownLatch> gates = new ConcurrentHashMap<String, CountDownLatch>();
+        // the number of block streams
+        final AtomicInteger requests = new AtomicInteger();
+        final Set<String> pins = Collections.synchronizedSet(new HashSet<String>());
+        // the CIDs linked in /.prefetch
+        final Set<String> mfs = Collections.synchronizedSet(new HashSet<String>());
+        // the number of files/cp calls that fail
+        final AtomicInteger mfsFailures = new AtomicInteger();
+
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            String path = exchange.getRequestURI().getPath();
+            String query = exchange.getRequestURI().getQuery();
+            // the last arg, the CID of /ipfs/cid or /.prefetch/cid
+            String cid = query.replaceAll(".*\\barg=([^&]*)$", "$1").replaceAll(".*/", "");
+
+            if (path.endsWith("/files/mkdir")) {
+                reply(exchange, 200, "");
+            } else if (path.endsWith("/files/cp")) {
+                boolean fail = mfsFailures.getAndDecrement() > 0 || !mfs.add(cid);
+                reply(exchange, fail ? 500 : 200, fail ? "{\"Message\":\"cannot copy\"}" : "");
+            } else if (path.endsWith("/files/stat")) {
+                reply(exchange, mfs.contains(cid) ? 200 : 500, "{\"Hash\":\"" + cid + "\"}");
+            } else if (path.endsWith("/files/rm")) {
+                boolean removed = mfs.remove(cid);
+                reply(exchange, removed ? 200 : 500, "");
+            } else if (path.endsWith("/object/stat")) {
+                reply(exchange, 200, "{\"Hash\":\"" + cid + "\",\"CumulativeSize\":1000}");
+            } else {
+                stream(exchange, path.endsWith("/pin/add"), cid);
+            }
+        }
+
+        private void stream(HttpExchange exchange, boolean pin, String cid) throws IOException {
+            requests.incrementAndGet();
+            boolean fail = failures.getAndDecrement() > 0;
+            CountDownLatch gate = gates.get(cid);
+
+            exchange.sendResponseHeaders(200, 0);
+            OutputStream output = exchange.getResponseBody();
+            try {
+                for (int i = 0; i < blocks; i++) {
+                    if (fail && i == failAt) {
+                        if (drop)
+                            throw new IOException("Request dropped");
+                        write(output, "{\"Message\":\"block unavailable\",\"Code\":0,\"Type\":\"error\"}");
+                        break;
+                    }
+                    write(output, pin ? "{\"Progress\":" + (i + 1) + "}" : "{\"Ref\":\"QmBlock" + i + "\",\"Err\":\"\"}");
+                    if (blockDelay > 0)
+                        Thread.sleep(blockDelay);
+                    if (gate != null && i == 0)
+                        gate.await();
+                }
+                if (pin && !fail) {
+                    pins.add(cid);
+                    write(output, "{\"Pins\":[\"" + cid + "\"]}");
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            output.close();
+            exchange.close();
+        }
+
+        private static void reply(HttpExchange exchange, int code, String body) throws IOException {
+            byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+            exchange.sendResponseHeaders(code, bytes.length == 0 ? -1 : bytes.length);
+            exchange.getResponseBody().write(bytes);
+            exchange.close();
+        }
+
+        private static void write(OutputStream output, String line) throws IOException {
+            output.write((line + "\n").getBytes(StandardCharsets.UTF_8));
+            output.flush();
+        }
+    }
+}
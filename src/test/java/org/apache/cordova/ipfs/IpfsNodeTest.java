@@ -0,0 +1,227 @@
+package org.apache.cordova.ipfs;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+
+/**
+ * The whole lifecycle of a node (prepare, init, start, stop) against the fake binary served
+ * by a local HTTP server, and the disk use of the streamed vs downloaded prepare
+ */
+public class IpfsNodeTest {
+    private static final int PADDING = 16 * 1024 * 1024;
+
+    private StubHttpServer server;
+    private IpfsNodes nodes;
+    private File appFiles;
+    private File fakeBin;
+
+    @Before
+    public void setUp() throws Exception {
+        appFiles = TestFiles.tempDir("ipfs-node");
+        fakeBin = FakeIpfs.install(TestFiles.tempDir("ipfs-fake"), new FakeIpfs.Options());
+        server = new StubHttpServer();
+        server.serve("/go-ipfs.tar.gz", FakeIpfs.archive(fakeBin, 1024));
+        nodes = new IpfsNodes();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        for (IpfsNode node : nodes.all())
+            node.supervisor().stop(new TestCallback());
+        nodes.shutdown();
+        server.close();
+    }
+
+    /**
+     * @return the size of the binaries in the binary store
+     */
+    private long binarySize() {
+        long size = 0;
+        for (File dir : new File(appFiles, "bin").listFiles())
+            if (dir.isDirectory())
+                size += TestFiles.size(dir);
+        return size;
+    }
+
+    /**
+     * Samples the disk use of a dir until finished, keeping the peak
+     */
+    private static class DiskSampler extends Thread {
+        private final File dir;
+        private volatile boolean running = true;
+        volatile long peak = 0;
+
+        DiskSampler(File dir) {
+            this.dir = dir;
+        }
+
+        @Override
+        public void run() {
+            while (running)
+                peak = Math.max(peak, TestFiles.size(dir));
+        }
+
+        void finish() throws InterruptedException {
+            running = false;
+            join();
+            peak = Math.max(peak, TestFiles.size(dir));
+        }
+    }
+
+    private JSONObject config(boolean streamExtract) throws Exception {
+        return new JSONObject()
+                .put("appFilesDir", appFiles.getPath() + "/")
+                .put("src", server.url("/go-ipfs.tar.gz").toString())
+                .put("resetRepo", false)
+                .put("version", "fake")
+                .put("streamExtract", streamExtract);
+    }
+
+    @Test
+    public void initStartStop() throws Exception {
+        IpfsNode node = nodes.create(IpfsNodes.DEFAULT_NODE, null, null);
+        JSONObject inited = node.init(config(false), null);
+        assertFalse(inited.getBoolean("spareRepoUsed"));
+        assertTrue(new File(appFiles, ".ipfs/config").isFile());
+        assertFalse("the archive is deleted after the extract", new File(appFiles, "go-ipfs.tar.gz").exists());
+
+        TestCallback started = new TestCallback();
+        node.supervisor().start(started);
+        JSONObject ready = started.awaitSuccess(30000);
+        assertEquals(IpfsDaemonSupervisor.State.READY, node.supervisor().state());
+        assertNotNull(node.api());
+        assertFalse(ready.getBoolean("adopted"));
+        // the WebView only intercepts the gateway of the running node, with its allocated port
+        assertEquals(ready.getString("gateway"), node.gateway());
+        assertTrue(node.gateway().matches("http://127\\.0\\.0\\.1:\\d+"));
+
+        TestCallback stopped = new TestCallback();
+        node.supervisor().stop(stopped);
+        stopped.awaitSuccess(30000);
+        assertEquals(IpfsDaemonSupervisor.State.STOPPED, node.supervisor().state());
+        assertNull(node.api());
+        assertNull(node.gateway());
+        assertFalse("the daemon released its lock", new File(appFiles, ".ipfs/repo.lock").exists());
+    }
+
+    @Test
+    public void streamedPrepareStopsAfterTheWantedEntries() throws Exception {
+        // the incompressible padding comes after go-ipfs/ipfs in the archive
+        byte[] archive = FakeIpfs.archive(fakeBin, PADDING);
+        StubHttpServer.Content content = server.serve("/padded.tar.gz", archive);
+        new File(appFiles, ".ipfs").mkdirs();
+
+        DiskSampler sampler = new DiskSampler(appFiles);
+        sampler.start();
+        nodes.create(IpfsNodes.DEFAULT_NODE, null, null).init(config(true)
+                .put("src", server.url("/padded.tar.gz").toString()), null);
+        sampler.finish();
+
+        assertTrue("the download stops once the binary was found, " + content.served.get() + " bytes served",
+                content.served.get() < archive.length / 2);
+        assertTrue("the archive never touches the disk, peak " + sampler.peak,
+                sampler.peak < fakeBin.length() * 2 + 4096);
+        assertEquals("the binary store holds the binary", fakeBin.length(), binarySize());
+        assertFalse(new File(appFiles, "go-ipfs").exists());
+    }
+
+    @Test
+    public void streamedPrepareWritesEveryWantedEntry() throws Exception {
+        byte[] archive = FakeIpfs.archive(fakeBin, PADDING);
+        server.serve("/padded.tar.gz", archive);
+        new File(appFiles, ".ipfs").mkdirs();
+
+        DiskSampler sampler = new DiskSampler(appFiles);
+        sampler.start();
+        nodes.create(IpfsNodes.DEFAULT_NODE, null, null).init(config(true)
+                .put("src", server.url("/padded.tar.gz").toString())
+                .put("extractEntries", new JSONArray().put("go-ipfs/LICENSE")), null);
+        sampler.finish();
+
+        File license = new File(appFiles, "go-ipfs/LICENSE");
+        assertEquals(PADDING, license.length());
+        assertFalse(new File(appFiles, "go-ipfs/LICENSE.part").exists());
+        assertEquals("no other entry was written", 1, new File(appFiles, "go-ipfs").list().length);
+        assertEquals(fakeBin.length(), binarySize());
+        assertTrue("the disk use peaks at the extracted entries, peak " + sampler.peak,
+                sampler.peak < PADDING + fakeBin.length() * 2 + 4096);
+    }
+
+    @Test
+    public void downloadedPrepareDeletesTheArchive() throws Exception {
+        byte[] archive = FakeIpfs.archive(fakeBin, PADDING);
+        server.serve("/padded.tar.gz", archive);
+        new File(appFiles, ".ipfs").mkdirs();
+
+        DiskSampler sampler = new DiskSampler(appFiles);
+        sampler.start();
+        nodes.create(IpfsNodes.DEFAULT_NODE, null, null).init(config(false)
+                .put("src", server.url("/padded.tar.gz").toString()), null);
+        sampler.finish();
+
+        // the archive and all of its entries are on disk at once, the streamed prepare avoids it
+        assertTrue("peak " + sampler.peak, sampler.peak >= archive.length);
+        assertFalse(new File(appFiles, "go-ipfs.tar.gz").exists());
+        assertEquals(fakeBin.length(), binarySize());
+    }
+
+    @Test
+    public void firstInitTakesTheSpareGeneratedAfterThePrepare() throws Exception {
+        IpfsNode node = nodes.create(IpfsNodes.DEFAULT_NODE, null, null);
+        JSONObject inited = node.init(config(true)
+                .put("provision", new JSONObject().put("profiles", new JSONArray().put("lowpower")))
+                .put("pregenerateRepo", true), null);
+
+        // a single identity was generated for the first repo, with the spec flags
+        assertTrue(inited.getBoolean("spareRepoUsed"));
+        assertTrue(new String(TestFiles.read(new File(appFiles, ".ipfs/config")), "UTF-8").contains("--profile=lowpower"));
+
+        // and the next spare is generated in background
+        long deadline = System.currentTimeMillis() + 30000;
+        while (!new File(appFiles, ".ipfs-spare").exists() && System.currentTimeMillis() < deadline)
+            Thread.sleep(50);
+        assertTrue(new File(appFiles, ".ipfs-spare/config").isFile());
+
+        JSONObject reset = node.init(config(true).put("resetRepo", true).put("pregenerateRepo", false)
+                .put("provision", new JSONObject().put("profiles", new JSONArray().put("lowpower"))), null);
+        assertTrue(reset.getBoolean("spareRepoUsed"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void initRejectsAnUnknownDatastore() throws Exception {
+        nodes.create(IpfsNodes.DEFAULT_NODE, null, null).init(config(true)
+                .put("provision", new JSONObject().put("datastore", "leveldb")), null);
+    }
+
+    @Test
+    public void nodesGetDistinctPorts() throws Exception {
+        IpfsNode first = nodes.create(IpfsNodes.DEFAULT_NODE, null, null);
+        IpfsNode second = nodes.create("second", null, null);
+        first.init(config(true), null);
+        second.init(config(true), null);
+
+        TestCallback firstStarted = new TestCallback();
+        TestCallback secondStarted = new TestCallback();
+        first.supervisor().start(firstStarted);
+        second.supervisor().start(secondStarted);
+        firstStarted.awaitSuccess(30000);
+        secondStarted.awaitSuccess(30000);
+
+        assertNotNull(first.api());
+        assertNotNull(second.api());
+        assertFalse(first.api().equals(second.api()));
+        assertTrue(new File(appFiles, "nodes/second/.ipfs/config").isFile());
+    }
+}
@@ -0,0 +1,47 @@
+package org.apache.cordova.ipfs;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+
+/**
+ * The "ipfs init" commands and keys of IpfsProvisionSpec
+ */
+public class IpfsProvisionSpecTest {
+    @Test
+    public void bareSpec() throws Exception {
+        IpfsProvisionSpec spec = new IpfsProvisionSpec(null);
+        assertEquals(Arrays.asList("ipfs", "init"), Arrays.asList(spec.initCommand("ipfs")));
+    }
+
+    @Test
+    public void fullSpec() throws Exception {
+        IpfsProvisionSpec spec = new IpfsProvisionSpec(new JSONObject()
+                .put("algorithm", "ed25519")
+                .put("bits", 256)
+                .put("profiles", new JSONArray().put("lowpower"))
+                .put("datastore", "badgerds")
+                .put("emptyRepo", true));
+        assertEquals(Arrays.asList("ipfs", "init", "--algorithm=ed25519", "--bits=256",
+                "--profile=lowpower,badgerds", "--empty-repo"), Arrays.asList(spec.initCommand("ipfs")));
+    }
+
+    @Test
+    public void keysDifferPerSpec() throws Exception {
+        assertEquals(new IpfsProvisionSpec(null).key(),
+                new IpfsProvisionSpec(new JSONObject().put("datastore", "flatfs")).key());
+        assertFalse(new IpfsProvisionSpec(null).key().equals(
+                new IpfsProvisionSpec(new JSONObject().put("datastore", "badgerds")).key()));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsAnUnknownDatastore() throws Exception {
+        new IpfsProvisionSpec(new JSONObject().put("datastore", "leveldb"));
+    }
+}
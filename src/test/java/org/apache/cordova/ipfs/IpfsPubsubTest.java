@@ -0,0 +1,224 @@
+package org.apache.cordova.ipfs;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+
+/**
+ * The pubsub batching against a stub pubsub/sub API streaming the messages the test sends
+ */
+public class IpfsPubsubTest {
+    private static final String TOPIC = "topic";
+
+    private StubHttpServer server;
+    private SubApi api;
+    private IpfsNodes nodes;
+    private IpfsNode node;
+    private IpfsPubsub pubsub;
+    // {messages: the data of the messages, dropped} per batch, {closed: true} for onClosed
+    private final BlockingQueue<JSONObject> batches = new LinkedBlockingQueue<JSONObject>();
+    private final IpfsPubsub.Listener listener = new IpfsPubsub.Listener() {
+        @Override
+        public void onMessages(String topic, JSONArray messages, long dropped) {
+            try {
+                JSONArray data = new JSONArray();
+                for (int i = 0; i < messages.length(); i++)
+                    data.put(messages.getJSONObject(i).getString("data"));
+                batches.add(new JSONObject().put("messages", data).put("dropped", dropped));
+            } catch (Exception e) {
+                throw new AssertionError(e);
+            }
+        }
+
+        @Override
+        public void onClosed(String topic) {
+            try {
+                batches.add(new JSONObject().put("closed", true));
+            } catch (Exception e) {
+                throw new AssertionError(e);
+            }
+        }
+    };
+
+    @Before
+    public void setUp() throws Exception {
+        server = new StubHttpServer();
+        api = new SubApi();
+        server.handle("/api/v0/pubsub/sub", api);
+        final String apiUrl = "http://127.0.0.1:" + server.port();
+
+        nodes = new IpfsNodes();
+        // a node whose daemon is always READY at the stub API
+        node = new IpfsNode("pubsub", nodes, null, null) {
+            @Override
+            String api() {
+                return apiUrl;
+            }
+        };
+        pubsub = node.pubsub();
+    }
+
+    @After
+    public void tearDown() {
+        node.shutdown();
+        nodes.shutdown();
+        server.close();
+    }
+
+    private JSONObject nextBatch(long timeout) throws InterruptedException {
+        JSONObject batch = batches.poll(timeout, TimeUnit.MILLISECONDS);
+        assertNotNull("no batch", batch);
+        return batch;
+    }
+
+    private static List<String> messages(JSONObject batch) throws Exception {
+        List<String> messages = new ArrayList<String>();
+        JSONArray array = batch.getJSONArray("messages");
+        for (int i = 0; i < array.length(); i++)
+            messages.add(array.getString(i));
+        return messages;
+    }
+
+    @Test
+    public void aFullBatchIsDeliveredAtOnce() throws Exception {
+        pubsub.subscribe(TOPIC, 3, 60000, 100, IpfsPubsub.Overflow.DROP_OLDEST, false, listener);
+        api.send("m1", "m2", "m3");
+
+        JSONObject batch = nextBatch(5000);
+        assertEquals(Arrays.asList("m1", "m2", "m3"), messages(batch));
+        assertEquals(0, batch.getLong("dropped"));
+
+        api.send("m4");
+        assertNull("a single one waits for its window", batches.poll(500, TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    public void aPartialBatchIsDeliveredAfterTheWindow() throws Exception {
+        pubsub.subscribe(TOPIC, 100, 500, 100, IpfsPubsub.Overflow.DROP_OLDEST, false, listener);
+        api.send("m1", "m2");
+
+        long sent = System.currentTimeMillis();
+        JSONObject batch = nextBatch(5000);
+        assertTrue("not before the window", System.currentTimeMillis() - sent >= 400);
+        assertEquals(Arrays.asList("m1", "m2"), messages(batch));
+
+        // the next message opens a new window
+        api.send("m3");
+        assertEquals(Arrays.asList("m3"), messages(nextBatch(5000)));
+    }
+
+    @Test
+    public void dropOldestKeepsTheNewestMessages() throws Exception {
+        pubsub.subscribe(TOPIC, 100, 500, 3, IpfsPubsub.Overflow.DROP_OLDEST, false, listener);
+        api.send("m1", "m2", "m3", "m4", "m5");
+
+        JSONObject batch = nextBatch(5000);
+        assertEquals(Arrays.asList("m3", "m4", "m5"), messages(batch));
+        assertEquals(2, batch.getLong("dropped"));
+    }
+
+    @Test
+    public void dropNewestKeepsTheOldestMessages() throws Exception {
+        pubsub.subscribe(TOPIC, 100, 500, 3, IpfsPubsub.Overflow.DROP_NEWEST, false, listener);
+        api.send("m1", "m2", "m3", "m4", "m5");
+
+        JSONObject batch = nextBatch(5000);
+        assertEquals(Arrays.asList("m1", "m2", "m3"), messages(batch));
+        assertEquals(2, batch.getLong("dropped"));
+
+        // the count is reset by every batch
+        api.send("m6");
+        batch = nextBatch(5000);
+        assertEquals(Arrays.asList("m6"), messages(batch));
+        assertEquals(0, batch.getLong("dropped"));
+    }
+
+    @Test
+    public void blockHoldsTheReaderUntilTheQueueIsDelivered() throws Exception {
+        pubsub.subscribe(TOPIC, 100, 500, 3, IpfsPubsub.Overflow.BLOCK, false, listener);
+        api.send("m1", "m2", "m3", "m4", "m5");
+
+        JSONObject first = nextBatch(5000);
+        assertEquals(Arrays.asList("m1", "m2", "m3"), messages(first));
+        assertEquals(0, first.getLong("dropped"));
+        JSONObject second = nextBatch(5000);
+        assertEquals(Arrays.asList("m4", "m5"), messages(second));
+        assertEquals(0, second.getLong("dropped"));
+    }
+
+    @Test
+    public void theLastBatchIsDeliveredOnClose() throws Exception {
+        pubsub.subscribe(TOPIC, 100, 60000, 100, IpfsPubsub.Overflow.DROP_OLDEST, false, listener);
+        api.send("m1", "m2");
+        // read and queued, far from the end of the window
+        Thread.sleep(500);
+
+        assertTrue(pubsub.unsubscribe(TOPIC));
+        assertEquals(Arrays.asList("m1", "m2"), messages(nextBatch(5000)));
+        assertTrue(nextBatch(5000).getBoolean("closed"));
+        assertFalse("unsubscribed once", pubsub.unsubscribe(TOPIC));
+    }
+
+    /**
+     * /api/v0/pubsub/sub: an empty message first, like older daemons, then the messages sent by
+     * the test, each a line {from, data, seqno, topicIDs}, until the server is closed
+     */
+    static class SubApi implements HttpHandler {
+        private final BlockingQueue<List<String>> pending = new LinkedBlockingQueue<List<String>>();
+        private int seqno = 0;
+
+        /**
+         * Streams the messages in a single write, so they reach the reader together
+         */
+        void send(String... data) {
+            pending.add(Arrays.asList(data));
+        }
+
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            exchange.sendResponseHeaders(200, 0);
+            OutputStream output = exchange.getResponseBody();
+            try {
+                write(output, "{}\n");
+                while (true) {
+                    StringBuilder lines = new StringBuilder();
+                    for (String data : pending.take())
+                        lines.append("{\"from\":\"QmPeer\",\"data\":\"").append(data).append("\",\"seqno\":\"")
+                                .append(++seqno).append("\",\"topicIDs\":[\"").append(TOPIC).append("\"]}\n");
+                    write(output, lines.toString());
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (IOException e) {
+                // the subscription was closed
+            }
+            exchange.close();
+        }
+
+        private static void write(OutputStream output, String lines) throws IOException {
+            output.write(lines.getBytes(StandardCharsets.UTF_8));
+            output.flush();
+        }
+    }
+}
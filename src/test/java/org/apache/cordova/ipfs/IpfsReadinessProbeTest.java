@@ -0,0 +1,187 @@
+package org.apache.cordova.ipfs;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+
+/**
+ * Finding the daemon already running on a repo, against fake daemons spawned by the test
+ */
+public class IpfsReadinessProbeTest {
+    private File repo;
+    private final List<Process> daemons = new ArrayList<Process>();
+
+    @Before
+    public void setUp() throws Exception {
+        repo = TestFiles.tempDir("ipfs-probe");
+    }
+
+    @After
+    public void tearDown() {
+        for (Process daemon : daemons) {
+            IpfsProcesses.signal(IpfsProcesses.pid(daemon), IpfsProcesses.SIGCONT);
+            daemon.destroyForcibly();
+        }
+    }
+
+    private String repoPath() {
+        return repo.getPath() + "/";
+    }
+
+    /**
+     * Inits the repo (with an ephemeral API port) and spawns a fake daemon on it
+     *
+     * @return the daemon, once it holds repo.lock
+     */
+    private Process spawn(FakeIpfs.Options options) throws Exception {
+        File bin = FakeIpfs.install(TestFiles.tempDir("ipfs-fake"), options);
+        String[] env = new String[]{"IPFS_PATH=" + repoPath()};
+        if (!new File(repo, "config").exists()) {
+            assertEquals(0, Runtime.getRuntime().exec(new String[]{bin.getPath(), "init"}, env).waitFor());
+            File config = new File(repo, "config");
+            TestFiles.write(config, new String(TestFiles.read(config), StandardCharsets.UTF_8)
+                    .replace("/tcp/5001", "/tcp/0").getBytes(StandardCharsets.UTF_8));
+        }
+
+        Process daemon = Runtime.getRuntime().exec(new String[]{bin.getPath(), "daemon"}, env);
+        daemons.add(daemon);
+        long deadline = System.currentTimeMillis() + 30000;
+        while (!new File(repo, "repo.lock").exists() && System.currentTimeMillis() < deadline)
+            Thread.sleep(10);
+        assertTrue(new File(repo, "repo.lock").exists());
+        return daemon;
+    }
+
+    /**
+     * @return a fake daemon, once its API answers
+     */
+    private Process daemon(FakeIpfs.Options options) throws Exception {
+        long spawnStarted = System.nanoTime();
+        Process daemon = spawn(options);
+        new IpfsReadinessProbe(repoPath(), 30000).await(daemon, spawnStarted, System.nanoTime());
+        return daemon;
+    }
+
+    private static void awaitStopped(int pid, boolean stopped) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 10000;
+        while (IpfsProcesses.isStopped(pid) != stopped && System.currentTimeMillis() < deadline)
+            Thread.sleep(10);
+        assertEquals(stopped, IpfsProcesses.isStopped(pid));
+    }
+
+    @Test
+    public void findsTheRunningDaemon() throws Exception {
+        Process daemon = daemon(new FakeIpfs.Options());
+
+        IpfsAdoptedProcess found = new IpfsReadinessProbe(repoPath(), 1000).findRunning();
+        assertNotNull(found);
+        assertEquals(IpfsProcesses.pid(daemon), IpfsProcesses.pid(found));
+        assertTrue(IpfsProcesses.isRunning(found));
+    }
+
+    @Test
+    public void resumesAStoppedOwner() throws Exception {
+        // suspended by the power policy of a previous plugin instance
+        int pid = IpfsProcesses.pid(daemon(new FakeIpfs.Options()));
+        IpfsProcesses.signal(pid, IpfsProcesses.SIGSTOP);
+        awaitStopped(pid, true);
+
+        IpfsAdoptedProcess found = new IpfsReadinessProbe(repoPath(), 1000).findRunning();
+        assertNotNull("the stopped daemon is resumed and adopted", found);
+        assertEquals(pid, IpfsProcesses.pid(found));
+        assertFalse(IpfsProcesses.isStopped(pid));
+    }
+
+    @Test
+    public void waitsForAStartingOwner() throws Exception {
+        FakeIpfs.Options options = new FakeIpfs.Options();
+        options.readyDelay = 1000;
+        Process daemon = spawn(options);
+
+        IpfsAdoptedProcess found = new IpfsReadinessProbe(repoPath(), 20000).findRunning();
+        assertNotNull(found);
+        assertEquals(IpfsProcesses.pid(daemon), IpfsProcesses.pid(found));
+    }
+
+    @Test
+    public void terminatesAnOwnerThatDoesNotAnswer() throws Exception {
+        FakeIpfs.Options options = new FakeIpfs.Options();
+        options.readyDelay = 60000;
+        Process daemon = spawn(options);
+
+        assertNull(new IpfsReadinessProbe(repoPath(), 500).findRunning());
+        assertTrue("the hung daemon got SIGTERM", IpfsProcesses.waitFor(daemon, 5000));
+        assertFalse(new File(repo, "repo.lock").exists());
+
+        // and a new daemon can take the repo
+        daemon(new FakeIpfs.Options());
+    }
+
+    @Test
+    public void killsAnOwnerIgnoringSigterm() throws Exception {
+        FakeIpfs.Options options = new FakeIpfs.Options();
+        options.readyDelay = 60000;
+        options.ignoreTerm = true;
+        Process daemon = spawn(options);
+
+        assertNull(new IpfsReadinessProbe(repoPath(), 500).findRunning());
+        assertTrue("the hung daemon got SIGKILL", IpfsProcesses.waitFor(daemon, 5000));
+        assertFalse("the lock of the killed daemon is deleted", new File(repo, "repo.lock").exists());
+    }
+
+    @Test
+    public void deletesTheFilesOfAKilledOwner() throws Exception {
+        Process daemon = daemon(new FakeIpfs.Options());
+        daemon.destroyForcibly().waitFor();
+        assertTrue(new File(repo, "repo.lock").exists());
+
+        assertNull(new IpfsReadinessProbe(repoPath(), 1000).findRunning());
+        assertFalse(new File(repo, "repo.lock").exists());
+        assertFalse(new File(repo, "api").exists());
+    }
+
+    @Test
+    public void doesNotTakeAnotherNodeForTheDaemon() throws Exception {
+        // the "api" file left by an earlier daemon points to a port now used by another node
+        StubHttpServer other = new StubHttpServer();
+        other.serve("/api/v0/id", "{\"ID\":\"QmAnotherNode\"}".getBytes(StandardCharsets.UTF_8));
+        try {
+            FakeIpfs.Options options = new FakeIpfs.Options();
+            options.readyDelay = 60000;
+            TestFiles.write(new File(repo, "api"), ("/ip4/127.0.0.1/tcp/" + other.port()).getBytes(StandardCharsets.UTF_8));
+            long spawnStarted = System.nanoTime();
+            Process daemon = spawn(options);
+
+            try {
+                new IpfsReadinessProbe(repoPath(), 1000).await(daemon, spawnStarted, System.nanoTime());
+                fail("another node was taken for the daemon");
+            } catch (Exception e) {
+                assertTrue(e.getMessage(), e.getMessage().contains("not ready"));
+            }
+        } finally {
+            other.close();
+        }
+    }
+
+    @Test
+    public void doesNotAdoptADaemonWithoutItsPid() throws Exception {
+        // an API answers, but the lock doesn't name a live ipfs process: nothing could stop it
+        daemon(new FakeIpfs.Options());
+        TestFiles.write(new File(repo, "repo.lock"), "{}".getBytes(StandardCharsets.UTF_8));
+
+        assertNull(new IpfsReadinessProbe(repoPath(), 1000).findRunning());
+    }
+}
@@ -0,0 +1,291 @@
+package org.apache.cordova.ipfs;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+
+/**
+ * The repo GC against a stub API keeping a repo of equal blocks, some of them garbage, and the
+ * soft pins of the prefetched DAGs
+ */
+public class IpfsRepoGcTest {
+    private static final long QUOTA = 100000;
+    private static final long BLOCK_SIZE = 1000;
+
+    private StubHttpServer server;
+    private RepoApi api;
+    private IpfsNodes nodes;
+    private IpfsNode node;
+    private IpfsRepoGc gc;
+    private final BlockingQueue<JSONObject> reports = new LinkedBlockingQueue<JSONObject>();
+
+    @Before
+    public void setUp() throws Exception {
+        server = new StubHttpServer();
+        api = new RepoApi();
+        server.handle("/api/v0/", api);
+        final String apiUrl = "http://127.0.0.1:" + server.port();
+
+        nodes = new IpfsNodes();
+        // a node whose daemon is always READY at the stub API
+        node = new IpfsNode("gc", nodes, null, null) {
+            @Override
+            String api() {
+                return apiUrl;
+            }
+        };
+        gc = node.gc();
+        gc.setListener(new IpfsRepoGc.Listener() {
+            @Override
+            public void onRun(JSONObject report) {
+                reports.add(report);
+            }
+        });
+        // neither idle nor charging yet, so the checks don't run
+        gc.setQuota(QUOTA, IpfsRepoGc.HIGH_WATERMARK, IpfsRepoGc.LOW_WATERMARK, 1000);
+    }
+
+    @After
+    public void tearDown() {
+        node.shutdown();
+        nodes.shutdown();
+        server.close();
+    }
+
+    private JSONObject nextReport() throws InterruptedException {
+        JSONObject report = reports.poll(10, TimeUnit.SECONDS);
+        assertNotNull("no GC run", report);
+        return report;
+    }
+
+    /**
+     * Prefetches the DAGs one by one and waits until each is soft-pinned, so the oldest comes first
+     */
+    private void prefetch(String... cids) throws InterruptedException {
+        for (String cid : cids) {
+            node.jobs().submit(IpfsJobScheduler.Type.PREFETCH, Arrays.asList(cid), 0, false, false);
+            long deadline = System.currentTimeMillis() + 10000;
+            while (!node.jobs().softPins().contains(cid)) {
+                assertTrue(cid + " not soft-pinned", System.currentTimeMillis() < deadline);
+                Thread.sleep(10);
+            }
+        }
+    }
+
+    @Test
+    public void aRunOnlyStartsOverTheHighWatermarkWhileIdleOrCharging() throws Exception {
+        api.blocks.set(85);
+        api.garbage.set(30);
+        gc.setConditions(true, false);
+        assertNull("under the high watermark", reports.poll(500, TimeUnit.MILLISECONDS));
+
+        api.blocks.set(95);
+        gc.setConditions(false, false);
+        assertNull("neither idle nor charging", reports.poll(500, TimeUnit.MILLISECONDS));
+        assertEquals(0, api.gcRuns.get());
+
+        gc.setConditions(false, true);
+        JSONObject report = nextReport();
+        assertEquals("quota", report.getString("trigger"));
+        assertEquals(95000, report.getLong("sizeBefore"));
+        assertEquals(1, api.gcRuns.get());
+        assertEquals(1, gc.stats().getLong("runs"));
+    }
+
+    @Test
+    public void aRunStopsOnceBackToTheLowWatermark() throws Exception {
+        api.blocks.set(95);
+        api.garbage.set(50);
+        api.blockDelay = 5;
+        gc.setConditions(true, false);
+
+        // (95000 - 70000) bytes of 1000-byte blocks
+        JSONObject report = nextReport();
+        assertEquals("target", report.getString("stoppedBy"));
+        assertEquals(25, report.getLong("removed"));
+        assertTrue("the rest of the garbage is left", api.garbage.get() > 0);
+        assertTrue(report.getLong("sizeAfter") <= 70000);
+        assertEquals(95000 - report.getLong("sizeAfter"), report.getLong("reclaimed"));
+    }
+
+    @Test
+    public void aRunIsAbortedAfterMaxPause() throws Exception {
+        api.blocks.set(95);
+        api.garbage.set(50);
+        // a full collection takes 5 s
+        api.blockDelay = 100;
+
+        long start = System.currentTimeMillis();
+        JSONObject report = gc.runNow(false);
+        assertEquals("maxPause", report.getString("stoppedBy"));
+        assertTrue(report.getLong("removed") < 20);
+        assertTrue(report.getLong("pauseMs") >= 1000);
+        assertTrue("the run stopped", System.currentTimeMillis() - start < 3000);
+    }
+
+    @Test
+    public void losingTheConditionsStopsAnAutomaticRun() throws Exception {
+        api.blocks.set(95);
+        api.garbage.set(50);
+        api.blockDelay = 100;
+        gc.setConditions(true, false);
+        while (api.garbage.get() > 45)
+            Thread.sleep(10);
+
+        gc.setConditions(false, false);
+        JSONObject report = nextReport();
+        assertEquals("conditions", report.getString("stoppedBy"));
+        assertTrue(report.getLong("removed") < 20);
+    }
+
+    @Test
+    public void softPinsAreReleasedOldestFirstWhenTheGarbageIsNotEnough() throws Exception {
+        api.dag("QmOld", 20);
+        api.dag("QmNew", 20);
+        prefetch("QmOld", "QmNew");
+        api.blocks.set(95);
+        api.garbage.set(10);
+        gc.setConditions(true, false);
+
+        // 85000 bytes are left without the garbage, 15000 over the low watermark: one DAG goes
+        JSONObject first = nextReport();
+        assertEquals("done", first.getString("stoppedBy"));
+        assertEquals(10, first.getLong("removed"));
+        assertEquals(1, first.getInt("softPinsReleased"));
+        assertEquals(Arrays.asList("QmNew"), node.jobs().softPins());
+        assertEquals(Collections.singleton("QmNew"), api.mfs);
+
+        // and the next run collects it right away, under the high watermark
+        JSONObject second = nextReport();
+        assertEquals("target", second.getString("stoppedBy"));
+        assertEquals(15, second.getLong("removed"));
+        assertEquals(0, second.getInt("softPinsReleased"));
+    }
+
+    @Test
+    public void aManualRunOnlyReleasesTheSoftPinsWhenAsked() throws Exception {
+        api.dag("QmOld", 20);
+        api.dag("QmNew", 20);
+        prefetch("QmOld", "QmNew");
+        api.blocks.set(95);
+        api.garbage.set(10);
+
+        JSONObject kept = gc.runNow(false);
+        assertEquals("manual", kept.getString("trigger"));
+        assertEquals(10, kept.getLong("removed"));
+        assertEquals(0, kept.getInt("softPinsReleased"));
+        assertEquals(2, node.jobs().softPins().size());
+
+        JSONObject released = gc.runNow(true);
+        assertEquals(2, released.getInt("softPinsReleased"));
+        assertEquals(40, released.getLong("removed"));
+        assertEquals(45000, released.getLong("sizeAfter"));
+        assertTrue(node.jobs().softPins().isEmpty());
+        assertTrue(api.mfs.isEmpty());
+    }
+
+    /**
+     * A repo of blocks of BLOCK_SIZE bytes: repo/stat reports them, repo/gc removes the garbage
+     * ones (streaming a key per block, until the request is closed), and a soft-pinned DAG turns
+     * into garbage when its MFS entry is removed
+     */
+    static class RepoApi implements HttpHandler {
+        final AtomicInteger blocks = new AtomicInteger();
+        final AtomicInteger garbage = new AtomicInteger();
+        // the blocks of the prefetchable DAGs
+        final Map<String, Integer> dags = new ConcurrentHashMap<String, Integer>();
+        // the CIDs linked in /.prefetch
+        final Set<String> mfs = Collections.synchronizedSet(new HashSet<String>());
+        // the pause after every removed block, in ms
+        volatile long blockDelay = 0;
+        final AtomicInteger gcRuns = new AtomicInteger();
+
+        void dag(String cid, int blocks) {
+            dags.put(cid, blocks);
+        }
+
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            String path = exchange.getRequestURI().getPath();
+            String query = exchange.getRequestURI().getQuery();
+            // the last arg, the CID of /ipfs/cid or /.prefetch/cid
+            String cid = query == null ? "" : query.replaceAll(".*\\barg=([^&]*)$", "$1").replaceAll(".*/", "");
+            Integer dag = dags.get(cid);
+
+            if (path.endsWith("/repo/stat")) {
+                reply(exchange, 200, "{\"RepoSize\":" + blocks.get() * BLOCK_SIZE + ",\"NumObjects\":" + blocks.get() + "}");
+            } else if (path.endsWith("/repo/gc")) {
+                collect(exchange);
+            } else if (path.endsWith("/refs")) {
+                reply(exchange, 200, "{\"Ref\":\"QmBlock\",\"Err\":\"\"}\n");
+            } else if (path.endsWith("/files/mkdir")) {
+                reply(exchange, 200, "");
+            } else if (path.endsWith("/files/cp")) {
+                reply(exchange, mfs.add(cid) ? 200 : 500, "");
+            } else if (path.endsWith("/files/stat")) {
+                reply(exchange, mfs.contains(cid) ? 200 : 500, "{\"Hash\":\"" + cid + "\"}");
+            } else if (path.endsWith("/files/rm")) {
+                boolean removed = mfs.remove(cid);
+                if (removed && dag != null)
+                    garbage.addAndGet(dag);
+                reply(exchange, removed ? 200 : 500, "");
+            } else if (path.endsWith("/object/stat") && dag != null) {
+                reply(exchange, 200, "{\"Hash\":\"" + cid + "\",\"CumulativeSize\":" + dag * BLOCK_SIZE + "}");
+            } else {
+                reply(exchange, 404, "");
+            }
+        }
+
+        private void collect(HttpExchange exchange) throws IOException {
+            gcRuns.incrementAndGet();
+            exchange.sendResponseHeaders(200, 0);
+            OutputStream output = exchange.getResponseBody();
+            try {
+                while (garbage.get() > 0) {
+                    garbage.decrementAndGet();
+                    blocks.decrementAndGet();
+                    output.write("{\"Key\":{\"/\":\"QmGarbage\"}}\n".getBytes(StandardCharsets.UTF_8));
+                    output.flush();
+                    if (blockDelay > 0)
+                        Thread.sleep(blockDelay);
+                }
+                output.close();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (IOException e) {
+                // the request was closed, the collection is cancelled
+            }
+            exchange.close();
+        }
+
+        private static void reply(HttpExchange exchange, int code, String body) throws IOException {
+            byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+            exchange.sendResponseHeaders(code, bytes.length == 0 ? -1 : bytes.length);
+            exchange.getResponseBody().write(bytes);
+            exchange.close();
+        }
+    }
+}
@@ -0,0 +1,137 @@
+package org.apache.cordova.ipfs;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+
+/**
+ * A local HTTP server for the tests: serves static content with optional Range / If-Range
+ * support, injected disconnects and throttling, or any custom handler
+ */
+class StubHttpServer {
+    private static final Pattern RANGE = Pattern.compile("bytes=(\\d+)-(\\d*)");
+
+    private final HttpServer server;
+    private final ExecutorService executor = Executors.newCachedThreadPool();
+
+    StubHttpServer() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 32);
+        server.setExecutor(executor);
+        server.start();
+    }
+
+    URL url(String path) throws MalformedURLException {
+        return new URL("http://127.0.0.1:" + server.getAddress().getPort() + path);
+    }
+
+    int port() {
+        return server.getAddress().getPort();
+    }
+
+    void handle(String path, HttpHandler handler) {
+        server.createContext(path, handler);
+    }
+
+    Content serve(String path, byte[] bytes) {
+        Content content = new Content(bytes);
+        server.createContext(path, content);
+        return content;
+    }
+
+    void close() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+
+    /**
+     * Static content; every knob can be changed while the server runs
+     */
+    static class Content implements HttpHandler {
+        volatile byte[] bytes;
+        // answer Range requests with 206, else always 200 with the whole content
+        volatile boolean ranges = true;
+        // the ETag of the content; changing it makes If-Range requests get the whole content
+        volatile String etag = "\"v1\"";
+        // every response body is cut after this many bytes (the connection is dropped); -1 never
+        volatile long cutAfter = -1;
+        // the number of responses to cut; cutAfter is ignored once they were cut
+        final AtomicInteger cuts = new AtomicInteger(Integer.MAX_VALUE);
+        // pause between the blocks of a body, in ms
+        volatile long blockDelay = 0;
+        // every request after this many is dropped without an answer; -1 never
+        volatile int failAfter = -1;
+
+        final AtomicInteger requests = new AtomicInteger();
+        final AtomicInteger disconnects = new AtomicInteger();
+        final AtomicLong served = new AtomicLong();
+
+        Content(byte[] bytes) {
+            this.bytes = bytes;
+        }
+
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            if (requests.incrementAndGet() > failAfter && failAfter >= 0) {
+                disconnects.incrementAndGet();
+                throw new IOException("Request dropped");
+            }
+            byte[] content = bytes;
+            String range = exchange.getRequestHeaders().getFirst("Range");
+            String ifRange = exchange.getRequestHeaders().getFirst("If-Range");
+            long start = 0;
+            long end = content.length - 1;
+            int code = 200;
+
+            Matcher matcher = range == null ? null : RANGE.matcher(range);
+            if (ranges && matcher != null && matcher.matches() && (ifRange == null || ifRange.equals(etag))) {
+                start = Long.parseLong(matcher.group(1));
+                if (!matcher.group(2).isEmpty())
+                    end = Math.min(end, Long.parseLong(matcher.group(2)));
+                code = 206;
+                exchange.getResponseHeaders().set("Content-Range", "bytes " + start + "-" + end + "/" + content.length);
+            }
+            if (etag != null)
+                exchange.getResponseHeaders().set("ETag", etag);
+
+            long length = end - start + 1;
+            long limit = cutAfter >= 0 && cuts.getAndDecrement() > 0 ? Math.min(cutAfter, length) : length;
+            exchange.sendResponseHeaders(code, length);
+            OutputStream output = exchange.getResponseBody();
+            long written = 0;
+            try {
+                while (written < limit) {
+                    int block = (int) Math.min(16384, limit - written);
+                    output.write(content, (int) (start + written), block);
+                    output.flush();
+                    written += block;
+                    served.addAndGet(block);
+                    if (blockDelay > 0)
+                        Thread.sleep(blockDelay);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+
+            if (written < length) {
+                // a handler failing with an unfinished body makes the server drop the connection
+                disconnects.incrementAndGet();
+                throw new IOException("Disconnect injected after " + written + " bytes");
+            }
+            output.close();
+            exchange.close();
+        }
+    }
+}
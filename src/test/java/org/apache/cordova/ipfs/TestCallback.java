@@ -0,0 +1,52 @@
+package org.apache.cordova.ipfs;
+
+import org.json.JSONObject;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * A supervisor callback the tests can wait on
+ */
+class TestCallback implements IpfsDaemonSupervisor.Callback {
+    private final CountDownLatch done = new CountDownLatch(1);
+    private volatile JSONObject result;
+    private volatile String error;
+
+    @Override
+    public void success(JSONObject result) {
+        this.result = result;
+        done.countDown();
+    }
+
+    @Override
+    public void error(String message) {
+        this.error = message;
+        done.countDown();
+    }
+
+    /**
+     * @return the result of a successful request
+     * @throws AssertionError if the request failed or didn't finish in time
+     */
+    JSONObject awaitSuccess(long timeout) throws InterruptedException {
+        if (!done.await(timeout, TimeUnit.MILLISECONDS))
+            throw new AssertionError("No result after " + timeout + " ms");
+        if (error != null)
+            throw new AssertionError("Failed: " + error);
+        return result;
+    }
+
+    /**
+     * @return the error of a failed request
+     * @throws AssertionError if the request succeeded or didn't finish in time
+     */
+    String awaitError(long timeout) throws InterruptedException {
+        if (!done.await(timeout, TimeUnit.MILLISECONDS))
+            throw new AssertionError("No result after " + timeout + " ms");
+        if (error == null)
+            throw new AssertionError("Succeeded: " + result);
+        return error;
+    }
+}
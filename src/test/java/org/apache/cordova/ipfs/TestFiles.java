@@ -0,0 +1,127 @@
+package org.apache.cordova.ipfs;
+
+import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
+import org.apache.commons.compress.archivers.tar.TarArchiveOutputStream;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.util.Random;
+import java.util.zip.GZIPOutputStream;
+
+
+/**
+ * File helpers of the tests
+ */
+final class TestFiles {
+    private TestFiles() {
+    }
+
+    /**
+     * @return a new empty temp dir, deleted when the JVM exits
+     */
+    static File tempDir(String prefix) throws IOException {
+        final File dir = Files.createTempDirectory(prefix).toFile();
+        Runtime.getRuntime().addShutdownHook(new Thread() {
+            @Override
+            public void run() {
+                delete(dir);
+            }
+        });
+        return dir;
+    }
+
+    static void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null)
+            for (File child : children)
+                delete(child);
+        file.delete();
+    }
+
+    /**
+     * @return the total size of the files under a dir
+     */
+    static long size(File file) {
+        if (file.isFile())
+            return file.length();
+        long size = 0;
+        File[] children = file.listFiles();
+        if (children != null)
+            for (File child : children)
+                size += size(child);
+        return size;
+    }
+
+    static byte[] random(int length) {
+        byte[] bytes = new byte[length];
+        new Random(length).nextBytes(bytes);
+        return bytes;
+    }
+
+    static byte[] read(File file) throws IOException {
+        InputStream input = new FileInputStream(file);
+        try {
+            return read(input);
+        } finally {
+            input.close();
+        }
+    }
+
+    static byte[] read(InputStream input) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        byte[] block = new byte[65536];
+        int count;
+        while ((count = input.read(block)) != -1)
+            bytes.write(block, 0, count);
+        return bytes.toByteArray();
+    }
+
+    static void write(File file, byte[] content) throws IOException {
+        OutputStream output = new FileOutputStream(file);
+        try {
+            output.write(content);
+        } finally {
+            output.close();
+        }
+    }
+
+    /**
+     * @return a tar.gz archive of the given entries, the executable bit set on all of them
+     */
+    static byte[] tarGz(String[] names, byte[][] contents) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        write(new TarArchiveOutputStream(new GZIPOutputStream(bytes)), names, contents);
+        return bytes.toByteArray();
+    }
+
+    /**
+     * @return a tar archive of the given entries; a null content is a dir
+     */
+    static byte[] tar(String[] names, byte[][] contents) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        write(new TarArchiveOutputStream(bytes), names, contents);
+        return bytes.toByteArray();
+    }
+
+    private static void write(TarArchiveOutputStream tar, String[] names, byte[][] contents) throws IOException {
+        try {
+            for (int i = 0; i < names.length; i++) {
+                TarArchiveEntry entry = new TarArchiveEntry(names[i]);
+                entry.setSize(contents[i] == null ? 0 : contents[i].length);
+                entry.setMode(0755);
+                tar.putArchiveEntry(entry);
+                if (contents[i] != null)
+                    tar.write(contents[i]);
+                tar.closeArchiveEntry();
+            }
+        } finally {
+            tar.close();
+        }
+    }
+}
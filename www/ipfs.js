@@ -2,17 +2,93 @@ var exec = require('cordova/exec');
 
 var PLUGIN_NAME = 'Ipfs';
 
-var Ipfs = function () {
+var Ipfs = function (nodeId) {
+    var node = nodeId || "default";
+
     this.init = function(args, cb, cbErr) {
-        exec(cb, cbErr, PLUGIN_NAME, "init", [args]);
+        exec(cb, cbErr, PLUGIN_NAME, "init", [node, args]);
+    };
+
+    this.start = function(options, cb, cbErr) {
+        if (typeof options === 'function') {
+            cbErr = cb;
+            cb = options;
+            options = {};
+        }
+        exec(cb, cbErr, PLUGIN_NAME, "start", [node, options || {}]);
+    };
+
+    this.stop = function(options, cb, cbErr) {
+        if (typeof options === 'function') {
+            cbErr = cb;
+            cb = options;
+            options = {};
+        }
+        exec(cb, cbErr, PLUGIN_NAME, "stop", [node, options || {}]);
+    };
+
+    this.config = function(patches, cb, cbErr) {
+        exec(cb, cbErr, PLUGIN_NAME, "config", [node, patches]);
+    };
+
+    this.addFile = function(path, options, cb, cbErr) {
+        exec(cb, cbErr, PLUGIN_NAME, "addFile", [node, path, options || {}]);
+    };
+
+    this.catToFile = function(cid, path, options, cb, cbErr) {
+        exec(cb, cbErr, PLUGIN_NAME, "catToFile", [node, cid, path, options || {}]);
+    };
+
+    this.get = function(cid, dir, options, cb, cbErr) {
+        exec(cb, cbErr, PLUGIN_NAME, "get", [node, cid, dir, options || {}]);
+    };
+
+    this.cancel = function(id, cb, cbErr) {
+        exec(cb, cbErr, PLUGIN_NAME, "cancel", [id]);
+    };
+
+    this.watchState = function(cb, cbErr) {
+        exec(cb, cbErr, PLUGIN_NAME, "watchState", [node]);
+    };
+
+    this.logs = function(options, cb, cbErr) {
+        exec(cb, cbErr, PLUGIN_NAME, "logs", [node, options || {}]);
+    };
+
+    this.metrics = function(options, cb, cbErr) {
+        exec(cb, cbErr, PLUGIN_NAME, "metrics", [node, options || {}]);
+    };
+
+    this.subscribe = function(topic, options, cb, cbErr) {
+        exec(cb, cbErr, PLUGIN_NAME, "subscribe", [node, topic, options || {}]);
+    };
+
+    this.unsubscribe = function(topic, cb, cbErr) {
+        exec(cb, cbErr, PLUGIN_NAME, "unsubscribe", [node, topic]);
+    };
+
+    this.publish = function(topic, data, cb, cbErr) {
+        exec(cb, cbErr, PLUGIN_NAME, "publish", [node, topic, data]);
+    };
+
+    this.prefetch = function(cids, options, cb, cbErr) {
+        exec(cb, cbErr, PLUGIN_NAME, "prefetch", [node, cids, options || {}]);
+    };
+
+    this.pin = function(cids, options, cb, cbErr) {
+        exec(cb, cbErr, PLUGIN_NAME, "pin", [node, cids, options || {}]);
+    };
+
+    this.watchJobs = function(cb, cbErr) {
+        exec(cb, cbErr, PLUGIN_NAME, "watchJobs", [node]);
     };
 
-    this.start = function(cb, cbErr) {
-        exec(cb, cbErr, PLUGIN_NAME, "start", []);
+    this.gc = function(options, cb, cbErr) {
+        exec(cb, cbErr, PLUGIN_NAME, "gc", [node, options || {}]);
     };
 
-    this.stop = function(cb, cbErr) {
-        exec(cb, cbErr, PLUGIN_NAME, "stop", []);
+    this.nodes = function(cb, cbErr) {
+        exec(cb, cbErr, PLUGIN_NAME, "nodes", []);
     };
 };
 